@@ -0,0 +1,341 @@
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Server-side store of files uploaded through the relay, so clients that were offline when a file was sent, or
+ * that take up an offer later, can fetch it without the sender uploading it again.
+ * <p>
+ * While a client's upload is relayed, its chunks are also spooled into a part file here with the same checks a
+ * receiver makes ({@link IncomingFileTransfer}), and the file is kept under its transfer id once the EOF verifies.
+ * Spooling is best effort: a spool that misses chunks, e.g. because every receiver resumed past the start, is
+ * dropped at the EOF. Each file has a properties sidecar with its name, size and content hash, and the sidecar's
+ * modification time records its last use. Once the store grows past its size limit the least recently used files
+ * are evicted, except those being served.
+ * <p>
+ * Files are kept as uploaded, unencrypted, so the server only keeps them when its operator chose to
+ * ({@link PrefsManager#isStoreAttachments()}), and where the file system has POSIX permissions the directory and
+ * everything in it are readable by the owner alone.
+ */
+final class AttachmentStore {
+    private static final Logger LOG = AppLogger.get(AttachmentStore.class);
+    private static final String META_SUFFIX = ".properties";
+    private static final Pattern TRANSFER_ID = Pattern.compile("[0-9a-f]{64}");
+    // How long a spool's EOF waits for chunks still on their way, and how long an abandoned part is kept
+    private static final long SPOOL_GRACE_MS = TimeUnit.SECONDS.toMillis(15);
+    private static final long STALE_SPOOL_MS = TimeUnit.DAYS.toMillis(1);
+    private static final Set<PosixFilePermission> OWNER_ONLY_DIR = PosixFilePermissions.fromString("rwx------");
+    private static final Set<PosixFilePermission> OWNER_ONLY_FILE = PosixFilePermissions.fromString("rw-------");
+
+    private final Path dir;
+    private final long maxBytes;
+    private final boolean posix;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // least recent first
+    private final Map<String, Integer> pins = new HashMap<>();
+    private final ConcurrentHashMap<String, IncomingFileTransfer> spools = new ConcurrentHashMap<>();
+    private long totalBytes;
+
+    AttachmentStore(Path dir, long maxBytes) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.maxBytes = maxBytes;
+        this.posix = Files.getFileStore(this.dir).supportsFileAttributeView("posix");
+        if (posix) {
+            Files.setPosixFilePermissions(this.dir, OWNER_ONLY_DIR);
+        }
+        load();
+    }
+
+    /**
+     * Start spooling the upload {@code header} announces, or carry on with a spool of the same file that was
+     * interrupted. Returns false when the file is not stored: folders, files larger than the whole store, and
+     * files already held.
+     */
+    boolean spool(FileTransferProtocol.Header header) {
+        if (header.bundle() || header.size() > maxBytes || !TRANSFER_ID.matcher(header.hash()).matches() || contains(header.hash())) {
+            return false;
+        }
+        try {
+            spools.compute(header.hash(), (hash, existing) -> {
+                if (existing != null && existing.isActive() && existing.matches(header)) {
+                    return existing;
+                }
+                if (existing != null) {
+                    existing.suspend("Upload restarted");
+                }
+                try {
+                    IncomingFileTransfer opened = IncomingFileTransfer.open(dir, header, null);
+                    ownerOnly(dir.resolve("." + hash + ".part"));
+                    return opened;
+                } catch (IOException e) {
+                    throw new java.io.UncheckedIOException(e);
+                }
+            });
+            return true;
+        } catch (java.io.UncheckedIOException e) {
+            LOG.warn("Cannot spool {} into the attachment store", header.filename(), e.getCause());
+            return false;
+        }
+    }
+
+    /**
+     * Spool a chunk frame of an upload; frames of uploads that are not being spooled are ignored.
+     */
+    void spoolFrame(String transferId, String frame) {
+        IncomingFileTransfer spool = spools.get(transferId);
+        if (spool != null) {
+            spool.submitFrame(frame);
+        }
+    }
+
+    /**
+     * Close the spool for {@code eof} once its chunks are in. Completes with the stored file, or null when the
+     * upload was not spooled or the spool is incomplete or does not verify.
+     */
+    CompletableFuture<Entry> finishSpool(FileTransferProtocol.Eof eof) {
+        IncomingFileTransfer spool = spools.remove(eof.transferId());
+        if (spool == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return spool.whenReceived(SPOOL_GRACE_MS).thenApply(ignored -> keep(spool, eof));
+    }
+
+    /**
+     * Stop spooling an upload whose sender went away. The part file stays, so the same upload later continues it.
+     */
+    void suspendSpool(String transferId) {
+        IncomingFileTransfer spool = spools.remove(transferId);
+        if (spool != null) {
+            spool.suspend("Sender left");
+        }
+    }
+
+    /**
+     * Take a stored file for serving; it is not evicted until {@link #unpin(String)}. Counts as a use. Returns
+     * null when the file is not held.
+     */
+    synchronized Entry pin(String transferId) {
+        Entry entry = entries.get(transferId);
+        if (entry == null) {
+            return null;
+        }
+        if (!Files.isRegularFile(file(entry))) {
+            LOG.warn("Stored attachment {} disappeared", entry.filename());
+            remove(entry);
+            return null;
+        }
+        pins.merge(transferId, 1, Integer::sum);
+        try {
+            Files.setLastModifiedTime(meta(transferId), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            LOG.debug("Cannot record use of {}", entry.filename(), e);
+        }
+        return entry;
+    }
+
+    synchronized void unpin(String transferId) {
+        pins.computeIfPresent(transferId, (id, count) -> count == 1 ? null : count - 1);
+        evict();
+    }
+
+    synchronized boolean contains(String transferId) {
+        return entries.containsKey(transferId);
+    }
+
+    /**
+     * Files stored within the last {@code maxAgeMs}, newest first, at most {@code limit} of them.
+     */
+    synchronized List<Entry> recent(int limit, long maxAgeMs) {
+        long since = System.currentTimeMillis() - maxAgeMs;
+        return entries.values().stream()
+                .filter(e -> e.storedAt() >= since)
+                .sorted(Comparator.comparingLong(Entry::storedAt).reversed())
+                .limit(limit)
+                .toList();
+    }
+
+    synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    Path file(Entry entry) {
+        return dir.resolve(entry.transferId());
+    }
+
+    /**
+     * The proofs of a stored file's chunks, read back from disk; fails unless they lead to the root recorded with it.
+     */
+    MerkleTree.Proofs proofs(Entry entry) throws IOException {
+        MerkleTree.Proofs proofs = FileChunkReader.proofs(() -> Files.newInputStream(file(entry)), entry.size());
+        if (!FileTransferProtocol.toHex(proofs.root()).equals(entry.merkleRoot())) {
+            throw new IOException("Stored file no longer matches its Merkle root");
+        }
+        return proofs;
+    }
+
+    private Entry keep(IncomingFileTransfer spool, FileTransferProtocol.Eof eof) {
+        if (!spool.isActive()) {
+            return null;
+        }
+        if (!spool.hasAllBytes()) {
+            LOG.info("Spool of {} missed chunks; not storing it", spool.getFilename());
+            spool.abortWithReason("Incomplete");
+            return null;
+        }
+        try {
+            Entry entry = new Entry(eof.transferId(), spool.getFilename(), spool.size(),
+                    eof.sha256() != null ? eof.sha256() : eof.transferId(), eof.merkleRoot(), System.currentTimeMillis());
+            spool.complete(dir.resolve(entry.transferId()), eof.sha256(), eof.merkleRoot());
+            ownerOnly(file(entry));
+            writeMeta(entry);
+            synchronized (this) {
+                Entry previous = entries.put(entry.transferId(), entry);
+                totalBytes += entry.size() - (previous != null ? previous.size() : 0);
+                evict();
+            }
+            LOG.info("Stored attachment {} ({} bytes)", entry.filename(), entry.size());
+            return entry;
+        } catch (IOException e) {
+            LOG.warn("Spool of {} failed verification", spool.getFilename(), e);
+            spool.abortWithReason(e.getMessage());
+            return null;
+        }
+    }
+
+    // Caller must hold the monitor
+    private void evict() {
+        Iterator<Entry> leastRecentFirst = entries.values().iterator();
+        while (totalBytes > maxBytes && leastRecentFirst.hasNext()) {
+            Entry entry = leastRecentFirst.next();
+            if (pins.containsKey(entry.transferId())) {
+                continue;
+            }
+            leastRecentFirst.remove();
+            totalBytes -= entry.size();
+            deleteFiles(entry);
+            LOG.info("Evicted attachment {} ({} bytes)", entry.filename(), entry.size());
+        }
+    }
+
+    // Caller must hold the monitor
+    private void remove(Entry entry) {
+        if (entries.remove(entry.transferId()) != null) {
+            totalBytes -= entry.size();
+        }
+        deleteFiles(entry);
+    }
+
+    private void deleteFiles(Entry entry) {
+        try {
+            Files.deleteIfExists(meta(entry.transferId()));
+            Files.deleteIfExists(file(entry));
+        } catch (IOException e) {
+            LOG.warn("Cannot delete stored attachment {}", entry.filename(), e);
+        }
+    }
+
+    private Path meta(String transferId) {
+        return dir.resolve(transferId + META_SUFFIX);
+    }
+
+    private void writeMeta(Entry entry) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("filename", entry.filename());
+        props.setProperty("size", Long.toString(entry.size()));
+        props.setProperty("contentHash", entry.contentHash());
+        if (entry.merkleRoot() != null) {
+            props.setProperty("merkleRoot", entry.merkleRoot());
+        }
+        props.setProperty("storedAt", Long.toString(entry.storedAt()));
+        Path tmp = dir.resolve(entry.transferId() + META_SUFFIX + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            props.store(out, "LocalChat attachment");
+        }
+        ownerOnly(tmp);
+        Files.move(tmp, meta(entry.transferId()), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Stored files are kept in the clear, so other users of the machine must not be able to read them
+    private void ownerOnly(Path file) throws IOException {
+        if (posix && Files.exists(file)) {
+            Files.setPosixFilePermissions(file, OWNER_ONLY_FILE);
+        }
+    }
+
+    // Rebuilds the index from the sidecars, oldest use first, clears out parts of spools abandoned long ago, and
+    // takes away access to the rest that an older version left open
+    private void load() throws IOException {
+        List<Path> metas = new ArrayList<>();
+        long staleBefore = System.currentTimeMillis() - STALE_SPOOL_MS;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(META_SUFFIX)) {
+                    metas.add(path);
+                } else if (name.startsWith(".") && name.contains(".part")
+                        && Files.getLastModifiedTime(path).toMillis() < staleBefore) {
+                    Files.deleteIfExists(path);
+                    continue;
+                }
+                if (Files.isRegularFile(path)) {
+                    ownerOnly(path);
+                }
+            }
+        }
+        Map<Path, Long> lastUse = new HashMap<>();
+        for (Path path : metas) {
+            lastUse.put(path, Files.getLastModifiedTime(path).toMillis());
+        }
+        metas.sort(Comparator.comparing(lastUse::get));
+        for (Path path : metas) {
+            String id = path.getFileName().toString();
+            id = id.substring(0, id.length() - META_SUFFIX.length());
+            Properties props = new Properties();
+            try (InputStream in = Files.newInputStream(path)) {
+                props.load(in);
+                Entry entry = new Entry(id, props.getProperty("filename"), Long.parseLong(props.getProperty("size")),
+                        props.getProperty("contentHash"), props.getProperty("merkleRoot"),
+                        Long.parseLong(props.getProperty("storedAt")));
+                Path file = file(entry);
+                if (entry.filename() == null || !Files.isRegularFile(file) || Files.size(file) != entry.size()) {
+                    throw new IOException("Stored file is missing or has the wrong size");
+                }
+                entries.put(id, entry);
+                totalBytes += entry.size();
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Dropping unreadable attachment {}", id, e);
+                Files.deleteIfExists(path);
+                Files.deleteIfExists(dir.resolve(id));
+            }
+        }
+        evict();
+    }
+
+    /**
+     * @param contentHash SHA-256 of the stored bytes
+     * @param merkleRoot root of the {@link MerkleTree} over the stored bytes, or null when the upload sent none
+     * @param storedAt when the upload finished, in epoch milliseconds
+     */
+    record Entry(String transferId, String filename, long size, String contentHash, String merkleRoot, long storedAt) { }
+}
@@ -0,0 +1,361 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Unpacks a {@link FileBundle} stream into a staging directory as the bytes arrive, so a received folder is never
+ * held on disk twice. Only one file is open at a time.
+ * <p>
+ * Every manifest path must stay inside the staging directory: absolute paths, {@code ..} and empty segments are
+ * rejected before anything is written. The manifest is kept next to the staging directory until the bundle is
+ * complete, which lets {@link #resume(long)} pick up an interrupted bundle at a chunk boundary.
+ */
+final class BundleExtractor extends OutputStream {
+    static final int MAX_MANIFEST_BYTES = 64 * 1024 * 1024;
+
+    private final Path root;
+    private final Path manifestFile;
+    private final long size;
+    private final byte[] lengthBytes = new byte[Long.BYTES];
+    private ByteArrayOutputStream manifest;
+    private long headLength = -1;
+    private List<Entry> files;
+    private int current;
+    private OutputStream out;
+    private long remaining;
+    private long position;
+
+    BundleExtractor(Path root, Path manifestFile, long size) {
+        this.root = root.toAbsolutePath().normalize();
+        this.manifestFile = manifestFile;
+        this.size = size;
+    }
+
+    /**
+     * Throw away anything extracted before and start from an empty staging directory.
+     */
+    void reset() throws IOException {
+        close();
+        deleteTree(root);
+        Files.deleteIfExists(manifestFile);
+        Files.createDirectories(root);
+        manifest = null;
+        headLength = -1;
+        files = null;
+        current = 0;
+        position = 0;
+    }
+
+    /**
+     * Continue an earlier extraction from {@code offset}: files past it are removed and the one it falls in is cut
+     * back. Returns the bundle bytes before {@code offset}, read back from disk, for the caller to hash again.
+     */
+    InputStream resume(long offset) throws IOException {
+        close();
+        if (!Files.isDirectory(root) || !Files.isRegularFile(manifestFile)) {
+            throw new IOException("Nothing to resume");
+        }
+        byte[] head = Files.readAllBytes(manifestFile);
+        if (head.length <= Long.BYTES || ByteBuffer.wrap(head).getLong() != head.length - Long.BYTES) {
+            throw new IOException("Saved bundle manifest is damaged");
+        }
+        if (offset < head.length) {
+            throw new IOException("Checkpoint falls inside the bundle manifest");
+        }
+        System.arraycopy(head, 0, lengthBytes, 0, Long.BYTES);
+        headLength = head.length;
+        files = parseManifest(head, Long.BYTES);
+        List<InputStream> prefix = new ArrayList<>();
+        prefix.add(new ByteArrayInputStream(head));
+        current = files.size();
+        for (int i = 0; i < files.size(); i++) {
+            Entry entry = files.get(i);
+            Path target = root.resolve(entry.path());
+            long end = entry.start() + entry.size();
+            if (end <= offset) {
+                if (entry.size() == 0 && !Files.exists(target)) {
+                    Files.createDirectories(target.getParent());
+                    Files.createFile(target);
+                } else if (!Files.isRegularFile(target) || Files.size(target) != entry.size()) {
+                    throw new IOException("Extracted file changed: " + entry.path());
+                }
+                prefix.add(new LazyFileStream(target));
+            } else if (entry.start() < offset) {
+                long kept = offset - entry.start();
+                if (!Files.isRegularFile(target) || Files.size(target) < kept) {
+                    throw new IOException("Extracted file changed: " + entry.path());
+                }
+                try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+                    channel.truncate(kept);
+                }
+                prefix.add(new LazyFileStream(target));
+                current = Math.min(current, i);
+            } else {
+                Files.deleteIfExists(target);
+                current = Math.min(current, i);
+            }
+        }
+        position = offset;
+        if (current < files.size() && files.get(current).start() < offset) {
+            Entry entry = files.get(current);
+            out = Files.newOutputStream(root.resolve(entry.path()), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            remaining = entry.start() + entry.size() - offset;
+        }
+        return new SequenceInputStream(Collections.enumeration(prefix));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n;
+            if (position < Long.BYTES) {
+                n = (int) Math.min(len, Long.BYTES - position);
+                System.arraycopy(b, off, lengthBytes, (int) position, n);
+                if (position + n == Long.BYTES) {
+                    startManifest();
+                }
+            } else if (files == null) {
+                n = (int) Math.min(len, headLength - position);
+                manifest.write(b, off, n);
+                if (position + n == headLength) {
+                    endManifest();
+                }
+            } else {
+                if (out == null) {
+                    openCurrent();
+                }
+                n = (int) Math.min(len, remaining);
+                out.write(b, off, n);
+                remaining -= n;
+                if (remaining == 0) {
+                    out.close();
+                    out = null;
+                    current++;
+                    createEmptyFiles();
+                }
+            }
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            try {
+                out.close();
+            } finally {
+                out = null;
+            }
+        }
+    }
+
+    /**
+     * Check that every file listed in the manifest was written in full, and drop the saved manifest.
+     */
+    void finish() throws IOException {
+        close();
+        if (files == null || current < files.size() || position != size) {
+            throw new IOException("Bundle ended before all of its files arrived");
+        }
+        Files.deleteIfExists(manifestFile);
+    }
+
+    /**
+     * Remove the staging directory and the saved manifest.
+     */
+    void discard() throws IOException {
+        close();
+        deleteTree(root);
+        Files.deleteIfExists(manifestFile);
+    }
+
+    private void startManifest() throws IOException {
+        long length = ByteBuffer.wrap(lengthBytes).getLong();
+        if (length <= 0 || length > MAX_MANIFEST_BYTES || Long.BYTES + length > size) {
+            throw new IOException("Invalid bundle manifest length " + length);
+        }
+        headLength = Long.BYTES + length;
+        manifest = new ByteArrayOutputStream((int) length);
+    }
+
+    private void endManifest() throws IOException {
+        byte[] body = manifest.toByteArray();
+        manifest = null;
+        files = parseManifest(body, 0);
+        // Saved before any file data is written, so every checkpoint past the manifest can be resumed
+        byte[] head = ByteBuffer.allocate(Long.BYTES + body.length).put(lengthBytes).put(body).array();
+        Files.write(manifestFile, head);
+        createEmptyFiles();
+    }
+
+    // Validates every entry and creates the listed directories; returns the files with their stream offsets
+    private List<Entry> parseManifest(byte[] bytes, int offset) throws IOException {
+        String text = new String(bytes, offset, bytes.length - offset, StandardCharsets.UTF_8);
+        String[] lines = text.split("\n");
+        if (lines.length == 0 || !FileBundle.MAGIC.equals(lines[0])) {
+            throw new IOException("Not a bundle manifest");
+        }
+        List<Entry> parsed = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        long start = headLength;
+        for (int i = 1; i < lines.length; i++) {
+            String[] fields = lines[i].split("\t", 3);
+            if (fields.length != 3 || fields[0].length() != 1) {
+                throw new IOException("Malformed bundle manifest line " + (i + 1));
+            }
+            long entrySize;
+            try {
+                entrySize = Long.parseLong(fields[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed bundle manifest line " + (i + 1), e);
+            }
+            String path = fields[2];
+            Path target = checkedTarget(path);
+            if (!seen.add(path) || entrySize < 0) {
+                throw new IOException("Invalid bundle entry " + path);
+            }
+            if (fields[0].charAt(0) == FileBundle.DIRECTORY) {
+                Files.createDirectories(target);
+            } else if (fields[0].charAt(0) == FileBundle.FILE) {
+                parsed.add(new Entry(path, start, entrySize));
+                start += entrySize;
+                if (start > size) {
+                    throw new IOException("Bundle manifest lists more data than the transfer holds");
+                }
+            } else {
+                throw new IOException("Unknown bundle entry type " + fields[0]);
+            }
+        }
+        if (start != size) {
+            throw new IOException("Bundle manifest does not match the transfer size");
+        }
+        return parsed;
+    }
+
+    private Path checkedTarget(String path) throws IOException {
+        if (path.isEmpty() || path.startsWith("/") || path.indexOf('\\') >= 0 || path.indexOf('\0') >= 0) {
+            throw new IOException("Unsafe path in bundle: " + path);
+        }
+        for (String segment : path.split("/", -1)) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                throw new IOException("Unsafe path in bundle: " + path);
+            }
+        }
+        Path target = root.resolve(path).normalize();
+        if (!target.startsWith(root) || target.equals(root)) {
+            throw new IOException("Unsafe path in bundle: " + path);
+        }
+        return target;
+    }
+
+    private void openCurrent() throws IOException {
+        if (current >= files.size()) {
+            throw new IOException("Bundle holds more data than its manifest lists");
+        }
+        Entry entry = files.get(current);
+        Path target = root.resolve(entry.path());
+        Files.createDirectories(target.getParent());
+        out = Files.newOutputStream(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        remaining = entry.size();
+    }
+
+    // Empty files take no bytes in the stream, so they are created as soon as the stream reaches them
+    private void createEmptyFiles() throws IOException {
+        while (current < files.size() && files.get(current).size() == 0) {
+            Path target = root.resolve(files.get(current).path());
+            Files.createDirectories(target.getParent());
+            Files.newOutputStream(target).close();
+            current++;
+        }
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private record Entry(String path, long start, long size) { }
+
+    // Opens the file only when the prefix replay reaches it
+    private static final class LazyFileStream extends InputStream {
+        private final Path path;
+        private InputStream in;
+
+        LazyFileStream(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return stream().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return stream().read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+
+        private InputStream stream() throws IOException {
+            if (in == null) {
+                in = Files.newInputStream(path);
+            }
+            return in;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-connection deflate context for chat text, applied before encryption.
+ * <p>
+ * Chat messages are short and repetitive, so compressing each one on its own gains little. Instead both directions
+ * keep one raw deflate stream for the life of the connection, primed with a preset dictionary of common chat words
+ * and frame prefixes, and every message is sync-flushed so it can be decoded as soon as it arrives. Later messages
+ * refer back to earlier ones, which is where most of the saving comes from. As in WebSocket permessage-deflate,
+ * the empty block every sync flush ends with is left off the wire and restored by the receiver.
+ * <p>
+ * A compressed frame is marked by a leading zero byte. Plain frames are written through {@link #plain(String)}, which
+ * puts an escape byte in front of text that starts with the marker or the escape byte itself, so compressed and
+ * plain frames can be mixed freely whatever the text. Because the streams carry state from one frame to the next, both ends
+ * {@link #reset()} whenever a connection starts, and the sender only compresses on a live connection: anything
+ * that has to be queued or replayed later is sent plain.
+ */
+public final class ChatCompression {
+    static final byte MARKER = 0;
+    static final byte ESCAPE = 1;
+    private static final int MAX_MESSAGE_BYTES = 4 * 1024 * 1024;
+    private static final byte[] SYNC_TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+    private static final byte[] DICTIONARY = (
+            "[SERVER] [127.0.0.1:192.168.1.10.0.0.1:" +
+            " ok okay yes no thanks thank you please sorry sure great good nice cool lol haha :) :D" +
+            " hi hello hey morning evening night bye see you later tomorrow today now soon again" +
+            " what when where why how who which can could would should will did does do is are was were" +
+            " I you we they he she it this that there here the a an and or but if so not just also too" +
+            " meeting call file send sent sending received download upload link message chat server client" +
+            " let me know I'll I'm it's that's don't can't won't have has had get got need want think" +
+            " https://www. .com ").getBytes(StandardCharsets.UTF_8);
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private byte[] scratch = new byte[1024];
+    private long rawBytes;
+    private long compressedBytes;
+
+    public ChatCompression() {
+        reset();
+    }
+
+    /**
+     * Start both streams over for a new connection.
+     */
+    public synchronized void reset() {
+        resetDeflater();
+        resetInflater();
+    }
+
+    public synchronized void resetDeflater() {
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+    }
+
+    public synchronized void resetInflater() {
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+    }
+
+    /**
+     * Compress {@code text} as the next message on the outgoing stream.
+     */
+    public synchronized byte[] compress(String text) {
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        if (raw.length == 0) {
+            return raw; // a flush with no input emits no block for the receiver's restored tail to end
+        }
+        deflater.setInput(raw);
+        byte[] out = new byte[raw.length / 2 + 64];
+        out[0] = MARKER;
+        int length = 1;
+        while (true) {
+            length += deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+            if (length < out.length) {
+                break;
+            }
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        if (length >= 1 + SYNC_TAIL.length && Arrays.equals(out, length - SYNC_TAIL.length, length, SYNC_TAIL, 0, SYNC_TAIL.length)) {
+            length -= SYNC_TAIL.length;
+        }
+        rawBytes += raw.length;
+        compressedBytes += length;
+        return Arrays.copyOf(out, length);
+    }
+
+    /**
+     * Encode {@code text} to be sent uncompressed; {@link #decode(byte[])} gives it back unchanged.
+     */
+    public static byte[] plain(String text) {
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        if (raw.length == 0 || (raw[0] != MARKER && raw[0] != ESCAPE)) {
+            return raw;
+        }
+        byte[] escaped = new byte[raw.length + 1];
+        escaped[0] = ESCAPE;
+        System.arraycopy(raw, 0, escaped, 1, raw.length);
+        return escaped;
+    }
+
+    /**
+     * Decode a received frame, inflating it when it carries the compression marker.
+     */
+    public synchronized String decode(byte[] frame) throws DataFormatException {
+        if (frame.length == 0 || frame[0] != MARKER) {
+            int from = frame.length > 0 && frame[0] == ESCAPE ? 1 : 0;
+            return new String(frame, from, frame.length - from, StandardCharsets.UTF_8);
+        }
+        byte[] input = Arrays.copyOfRange(frame, 1, frame.length + SYNC_TAIL.length);
+        System.arraycopy(SYNC_TAIL, 0, input, frame.length - 1, SYNC_TAIL.length);
+        inflater.setInput(input);
+        int length = 0;
+        while (true) {
+            if (length == scratch.length) {
+                if (scratch.length >= MAX_MESSAGE_BYTES) {
+                    throw new DataFormatException("Compressed message exceeds " + MAX_MESSAGE_BYTES + " bytes");
+                }
+                scratch = Arrays.copyOf(scratch, scratch.length * 2);
+            }
+            int n = inflater.inflate(scratch, length, scratch.length - length);
+            if (n == 0) {
+                break; // there was room left, so the flushed input is used up
+            }
+            length += n;
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Chat bytes compressed so far divided by the bytes they took on the wire, or 1 before anything was sent.
+     */
+    public synchronized double ratio() {
+        return compressedBytes == 0 ? 1.0 : (double) rawBytes / compressedBytes;
+    }
+
+    public synchronized String describe() {
+        return String.format(Locale.ROOT, "%d chat bytes sent as %d (%.2fx)", rawBytes, compressedBytes, ratio());
+    }
+}
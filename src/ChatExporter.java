@@ -0,0 +1,119 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Writes a chat transcript from a {@link ChatHistory} straight to a file, a page of messages at a time, so memory
+ * use stays the same however long the history is. Files are always UTF-8.
+ */
+final class ChatExporter {
+    static final int PAGE_MESSAGES = 500;
+    private static final DateTimeFormatter TEXT_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter JSON_TIME = DateTimeFormatter.ISO_OFFSET_DATE_TIME.withZone(ZoneId.systemDefault());
+
+    enum Format {
+        TEXT("Plain text", "txt"),
+        JSON_LINES("JSON Lines", "jsonl");
+
+        private final String label;
+        private final String extension;
+
+        Format(String label, String extension) {
+            this.label = label;
+            this.extension = extension;
+        }
+
+        String extension() {
+            return extension;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /**
+     * Told how many of the history's messages have been looked at; returning false cancels the export.
+     */
+    interface Progress {
+        boolean update(int scanned, int total);
+    }
+
+    private ChatExporter() {
+    }
+
+    /**
+     * Write the messages shown from {@code fromMillis} up to but excluding {@code toMillis} to {@code target}, and
+     * return how many were written. A cancelled export deletes what it wrote and throws
+     * {@link CancellationException}.
+     */
+    static int export(ChatHistory history, Path target, Format format, long fromMillis, long toMillis,
+                      Progress progress) throws IOException {
+        int total = history.size();
+        int written = 0;
+        try (BufferedWriter out = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+            for (int from = 0; from < total; from += PAGE_MESSAGES) {
+                for (ChatHistory.Message message : history.read(from, PAGE_MESSAGES)) {
+                    if (message.time() < fromMillis || message.time() >= toMillis) {
+                        continue;
+                    }
+                    out.write(format == Format.JSON_LINES ? jsonLine(message) : textLine(message));
+                    out.newLine();
+                    written++;
+                }
+                if (!progress.update(Math.min(total, from + PAGE_MESSAGES), total)) {
+                    throw new CancellationException("Export cancelled");
+                }
+            }
+        } catch (CancellationException | IOException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+        return written;
+    }
+
+    static String textLine(ChatHistory.Message message) {
+        return "[" + TEXT_TIME.format(Instant.ofEpochMilli(message.time())) + "] " + message.who() + ": " + message.text();
+    }
+
+    static String jsonLine(ChatHistory.Message message) {
+        StringBuilder json = new StringBuilder(64 + message.text().length());
+        json.append("{\"id\":").append(message.id())
+                .append(",\"time\":\"").append(JSON_TIME.format(Instant.ofEpochMilli(message.time())))
+                .append("\",\"from\":");
+        appendJsonString(json, message.who());
+        json.append(",\"text\":");
+        appendJsonString(json, message.text());
+        return json.append('}').toString();
+    }
+
+    private static void appendJsonString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        json.append('"');
+    }
+}
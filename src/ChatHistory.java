@@ -0,0 +1,299 @@
+import org.slf4j.Logger;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every message a chat window has shown, in arrival order, so the window itself only keeps the recent ones in memory
+ * and pages older ones back in when the user scrolls up. Messages are numbered from 0.
+ * <p>
+ * Records go either to a temporary file only its owner can read, deleted when the window closes, where the only
+ * per-message cost in memory is its offset in the file, or to an encrypted {@link HistorySegments} store kept across restarts. If
+ * storage fails the history keeps nothing more, and the window shows what it still holds.
+ */
+final class ChatHistory implements Closeable {
+    private static final Logger LOG = AppLogger.get(ChatHistory.class);
+    private static final String INDEX = "index.bin";
+    // Keys for kept histories by digest of salt and password, so PBKDF2 runs once per password per run of the app
+    private static final Map<String, SecretKey> KEYS = new HashMap<>();
+
+    private final Path file;
+    private FileChannel channel;
+    private HistorySegments segments;
+    private long[] offsets = new long[1024];
+    private int count;
+    private long end;
+
+    ChatHistory(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    /**
+     * History in a fresh temporary file, or one that keeps nothing when no file can be created.
+     */
+    static ChatHistory temporary() {
+        try {
+            Path file = ownerOnlyTempFile();
+            file.toFile().deleteOnExit();
+            return new ChatHistory(file);
+        } catch (IOException e) {
+            LOG.warn("Chat history is unavailable; older messages will not page back in", e);
+            return new ChatHistory();
+        }
+    }
+
+    private ChatHistory() {
+        this.file = null;
+    }
+
+    // Messages are stored in the clear here, so other users of the machine must not be able to read them
+    private static Path ownerOnlyTempFile() throws IOException {
+        FileAttribute<?>[] ownerOnly = Files.getFileStore(Paths.get(System.getProperty("java.io.tmpdir")))
+                .supportsFileAttributeView("posix")
+                ? new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))}
+                : new FileAttribute<?>[0]; // elsewhere the temporary directory is the user's own
+        return Files.createTempFile("localchat-history", ".bin", ownerOnly);
+    }
+
+    private ChatHistory(HistorySegments segments) {
+        this.file = null;
+        this.segments = segments;
+        this.count = segments.size();
+    }
+
+    /**
+     * The kept history of a conversation, encrypted with a key derived from {@code password}. Falls back to a
+     * temporary history when it cannot be opened, e.g. because the password changed or another window has it open.
+     */
+    static ChatHistory open(Path dir, char[] password) {
+        try {
+            return new ChatHistory(new HistorySegments(dir, key(dir.getParent(), password)));
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            LOG.warn("Cannot open chat history {}; this window's messages will not be kept", dir, e);
+            return temporary();
+        }
+    }
+
+    /**
+     * Where the history of the conversation named {@code conversation} is kept.
+     */
+    static Path keptDir(String conversation) {
+        return Paths.get(System.getProperty("user.home", "."), ".localchat", "history",
+                conversation.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    // One salt for all kept histories under root, so one derived key serves every conversation with that password
+    private static SecretKey key(Path root, char[] password) throws IOException, GeneralSecurityException {
+        synchronized (KEYS) {
+            Files.createDirectories(root);
+            Path saltFile = root.resolve("salt");
+            if (!Files.exists(saltFile)) {
+                Files.write(saltFile, EncryptionUtil.newSalt());
+            }
+            byte[] salt = Files.readAllBytes(saltFile);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            digest.update(new String(password).getBytes(StandardCharsets.UTF_8));
+            String id = Base64.getEncoder().encodeToString(digest.digest());
+            SecretKey key = KEYS.get(id);
+            if (key == null) {
+                key = EncryptionUtil.deriveKey(password, salt);
+                KEYS.put(id, key);
+            }
+            return key;
+        }
+    }
+
+    /**
+     * Record a message and return it with its number.
+     */
+    synchronized Message append(long time, String who, String text) {
+        Message message = new Message(count, time, who, text);
+        if (segments != null) {
+            try {
+                segments.append(time, who, text);
+            } catch (IOException | GeneralSecurityException e) {
+                LOG.warn("Chat history write failed; keeping no more history", e);
+                close();
+            }
+        } else if (channel != null) {
+            try {
+                ByteBuffer record = encode(message);
+                long at = end;
+                while (record.hasRemaining()) {
+                    end += channel.write(record, end);
+                }
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                offsets[count] = at;
+            } catch (IOException e) {
+                LOG.warn("Chat history write failed; keeping no more history", e);
+                close();
+            }
+        }
+        count++;
+        return message;
+    }
+
+    /**
+     * Number of messages recorded, including any that could not be stored.
+     */
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Up to {@code limit} messages from number {@code from} on; none once the history stopped storing.
+     */
+    synchronized List<Message> read(int from, int limit) {
+        int to = Math.min(count, from + limit);
+        List<Message> messages = new ArrayList<>(Math.max(0, to - from));
+        if (from < 0 || from >= to) {
+            return messages;
+        }
+        if (segments != null) {
+            try {
+                return segments.read(from, to);
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                LOG.warn("Chat history read failed", e);
+                return messages;
+            }
+        }
+        if (channel == null) {
+            return messages;
+        }
+        try {
+            long start = offsets[from];
+            long stop = to == count ? end : offsets[to];
+            ByteBuffer buffer = ByteBuffer.allocate((int) (stop - start));
+            while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) > 0) {
+                // keep reading
+            }
+            buffer.flip();
+            for (int id = from; id < to && buffer.hasRemaining(); id++) {
+                messages.add(decode(id, buffer));
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Chat history read failed", e);
+        }
+        return messages;
+    }
+
+    /**
+     * The search index saved with a kept history, caught up with messages recorded since; otherwise an index built
+     * from the messages stored.
+     */
+    SearchIndex loadIndex() {
+        SearchIndex index = null;
+        synchronized (this) {
+            if (segments != null) {
+                try {
+                    byte[] saved = segments.readSealed(INDEX);
+                    if (saved != null) {
+                        index = SearchIndex.read(new ByteArrayInputStream(saved));
+                    }
+                } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                    LOG.warn("Saved search index is unreadable; rebuilding it", e);
+                }
+            }
+            if (index != null && index.indexed() > count) {
+                index = null; // saved after messages the history lost
+            }
+        }
+        if (index == null) {
+            index = new SearchIndex();
+        }
+        index.catchUp(this);
+        return index;
+    }
+
+    /**
+     * Keep {@code index} with the history for {@link #loadIndex()}; does nothing for a temporary history.
+     */
+    void saveIndex(SearchIndex index) {
+        synchronized (this) {
+            if (segments == null) {
+                return;
+            }
+        }
+        try {
+            // Written out before taking the monitor, so messages are still recorded while a large index is saved
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            index.write(out);
+            synchronized (this) {
+                if (segments != null) {
+                    segments.writeSealed(INDEX, out.toByteArray());
+                }
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            LOG.warn("Cannot save the search index; it will be rebuilt next time", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (segments != null) {
+            try {
+                segments.close();
+            } catch (IOException e) {
+                LOG.debug("Cannot close chat history", e);
+            }
+            segments = null;
+        }
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.debug("Cannot remove chat history {}", file, e);
+        }
+        channel = null;
+    }
+
+    static ByteBuffer encode(Message message) {
+        byte[] who = message.who().getBytes(StandardCharsets.UTF_8);
+        byte[] text = message.text().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(Long.BYTES + 2 * Integer.BYTES + who.length + text.length);
+        record.putLong(message.time()).putInt(who.length).put(who).putInt(text.length).put(text);
+        return record.flip();
+    }
+
+    static Message decode(int id, ByteBuffer buffer) {
+        long time = buffer.getLong();
+        byte[] who = new byte[buffer.getInt()];
+        buffer.get(who);
+        byte[] text = new byte[buffer.getInt()];
+        buffer.get(text);
+        return new Message(id, time, new String(who, StandardCharsets.UTF_8), new String(text, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param time when the message was shown, in epoch milliseconds
+     */
+    record Message(int id, long time, String who, String text) { }
+}
@@ -0,0 +1,305 @@
+import javax.swing.AbstractListModel;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * The chat view's list model: a bounded window of messages from a {@link ChatHistory}, split into display lines so
+ * the list can use a fixed row height and only lay out the rows on screen.
+ * <p>
+ * While the window reaches the latest message, new messages are added at the bottom and the oldest fall off the
+ * top once it holds more than its capacity. Scrolling up pages older messages back in from the history and lets the
+ * newest fall off instead; until the window is paged back down to the end, new messages are only recorded in the
+ * history. Messages the user sent carry a {@link Delivery} state until they are written to the connection. Must only
+ * be used on the event dispatch thread.
+ */
+final class ChatLog extends AbstractListModel<ChatLog.Row> {
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final String CONTINUATION = "    ";
+
+    private final ChatHistory history;
+    private final int capacity;
+    private final ArrayDeque<ChatHistory.Message> messages = new ArrayDeque<>();
+    private final ArrayDeque<Integer> rowCounts = new ArrayDeque<>();
+    private final ArrayList<Row> rows = new ArrayList<>();
+    private final Map<Integer, Delivery> deliveries = new HashMap<>(); // only messages not yet sent
+    private Function<String, List<String>> wrapper = List::of;
+    private boolean following = true;
+
+    ChatLog(ChatHistory history, int capacity) {
+        this.history = history;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Show a message just recorded in the history, if the window is at the end. Returns true when it was added.
+     */
+    boolean add(ChatHistory.Message message) {
+        if (!following) {
+            return false;
+        }
+        int first = rows.size();
+        append(message);
+        fireIntervalAdded(this, first, rows.size() - 1);
+        trimOldest();
+        return true;
+    }
+
+    /**
+     * Fill an empty window with the last {@code limit} messages of the history, e.g. those kept from an earlier run.
+     */
+    void loadLatest(int limit) {
+        if (!messages.isEmpty()) {
+            return;
+        }
+        history.read(Math.max(0, history.size() - limit), limit).forEach(this::append);
+        if (!rows.isEmpty()) {
+            fireIntervalAdded(this, 0, rows.size() - 1);
+        }
+        following = true;
+    }
+
+    /**
+     * Page in up to {@code limit} messages before the window. Returns the number of rows added at the top.
+     */
+    int loadOlder(int limit) {
+        if (messages.isEmpty()) {
+            return 0;
+        }
+        int first = messages.getFirst().id();
+        List<ChatHistory.Message> older = history.read(Math.max(0, first - limit), Math.min(first, limit));
+        if (older.isEmpty()) {
+            return 0;
+        }
+        List<Row> added = new ArrayList<>();
+        for (int i = older.size() - 1; i >= 0; i--) {
+            ChatHistory.Message message = older.get(i);
+            List<Row> lines = lines(message);
+            added.addAll(0, lines);
+            messages.addFirst(message);
+            rowCounts.addFirst(lines.size());
+        }
+        rows.addAll(0, added);
+        fireIntervalAdded(this, 0, added.size() - 1);
+        trimNewest();
+        return added.size();
+    }
+
+    /**
+     * Page in up to {@code limit} messages after the window. Returns the number of rows that fell off the top.
+     */
+    int loadNewer(int limit) {
+        if (following) {
+            return 0;
+        }
+        int next = messages.isEmpty() ? 0 : messages.getLast().id() + 1;
+        List<ChatHistory.Message> newer = history.read(next, limit);
+        int first = rows.size();
+        newer.forEach(this::append);
+        if (rows.size() > first) {
+            fireIntervalAdded(this, first, rows.size() - 1);
+        }
+        following = next + newer.size() >= history.size();
+        return trimOldest();
+    }
+
+    /**
+     * Replace the window with the messages around message {@code id}, e.g. to show a search result, and return the
+     * index of its first row, or -1 when the history no longer has it.
+     */
+    int showAround(int id) {
+        List<ChatHistory.Message> around = history.read(Math.max(0, id - capacity / 2), capacity);
+        if (around.isEmpty() || id < around.get(0).id() || id > around.get(around.size() - 1).id()) {
+            return -1;
+        }
+        int before = rows.size();
+        messages.clear();
+        rowCounts.clear();
+        rows.clear();
+        if (before > 0) {
+            fireIntervalRemoved(this, 0, before - 1);
+        }
+        int row = -1;
+        for (ChatHistory.Message message : around) {
+            if (message.id() == id) {
+                row = rows.size();
+            }
+            append(message);
+        }
+        fireIntervalAdded(this, 0, rows.size() - 1);
+        following = around.get(around.size() - 1).id() + 1 >= history.size();
+        return row;
+    }
+
+    /**
+     * Record how far an outgoing message got, and redraw it if it is shown.
+     */
+    void setDelivery(int id, Delivery state) {
+        if (state == Delivery.SENT) {
+            deliveries.remove(id);
+        } else {
+            deliveries.put(id, state);
+        }
+        int last = rows.size() - 1;
+        while (last >= 0 && rows.get(last).message().id() > id) {
+            last--;
+        }
+        int first = last;
+        while (first > 0 && rows.get(first - 1).message().id() == id) {
+            first--;
+        }
+        if (last >= 0 && rows.get(last).message().id() == id) {
+            fireContentsChanged(this, first, last);
+        }
+    }
+
+    Delivery delivery(int id) {
+        return deliveries.getOrDefault(id, Delivery.SENT);
+    }
+
+    boolean hasOlder() {
+        return !messages.isEmpty() && messages.getFirst().id() > 0;
+    }
+
+    /**
+     * Whether the window reaches the latest message, so new ones appear in it.
+     */
+    boolean isFollowing() {
+        return following;
+    }
+
+    int messageCount() {
+        return messages.size();
+    }
+
+    /**
+     * Split lines with {@code wrapper} from now on and re-split the messages shown, e.g. after the view was resized.
+     */
+    void rewrap(Function<String, List<String>> wrapper) {
+        this.wrapper = wrapper;
+        int before = rows.size();
+        rows.clear();
+        rowCounts.clear();
+        for (ChatHistory.Message message : messages) {
+            List<Row> lines = lines(message);
+            rows.addAll(lines);
+            rowCounts.addLast(lines.size());
+        }
+        if (before > 0) {
+            fireIntervalRemoved(this, 0, before - 1);
+        }
+        if (!rows.isEmpty()) {
+            fireIntervalAdded(this, 0, rows.size() - 1);
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return rows.size();
+    }
+
+    @Override
+    public Row getElementAt(int index) {
+        return rows.get(index);
+    }
+
+    /**
+     * A message as one line of text, the way it is shown and saved.
+     */
+    static String format(ChatHistory.Message message) {
+        return "[" + TIME.format(Instant.ofEpochMilli(message.time())) + "] " + message.who() + ": " + message.text();
+    }
+
+    /**
+     * Greedy word wrap of {@code text} into lines no wider than {@code width} as measured by {@code measure}; a word
+     * wider than a whole line is broken where it has to be. Line breaks in the text are kept.
+     */
+    static List<String> wrap(String text, int width, ToIntFunction<String> measure) {
+        List<String> lines = new ArrayList<>();
+        for (String paragraph : text.split("\n", -1)) {
+            StringBuilder line = new StringBuilder();
+            for (String word : paragraph.split("(?<= )")) {
+                if (line.length() > 0 && measure.applyAsInt(line + word.stripTrailing()) > width) {
+                    lines.add(line.toString().stripTrailing());
+                    line.setLength(0);
+                }
+                line.append(word);
+                while (line.length() > 1 && measure.applyAsInt(line.toString().stripTrailing()) > width) {
+                    int fit = 1;
+                    while (fit < line.length() - 1 && measure.applyAsInt(line.substring(0, fit + 1)) <= width) {
+                        fit++;
+                    }
+                    lines.add(line.substring(0, fit));
+                    line.delete(0, fit);
+                }
+            }
+            lines.add(line.toString().stripTrailing());
+        }
+        return lines;
+    }
+
+    private void append(ChatHistory.Message message) {
+        List<Row> lines = lines(message);
+        rows.addAll(lines);
+        messages.addLast(message);
+        rowCounts.addLast(lines.size());
+    }
+
+    private List<Row> lines(ChatHistory.Message message) {
+        List<String> text = wrapper.apply(format(message));
+        List<Row> lines = new ArrayList<>(text.size());
+        for (int i = 0; i < text.size(); i++) {
+            lines.add(new Row(message, i == 0 ? text.get(i) : CONTINUATION + text.get(i)));
+        }
+        return lines;
+    }
+
+    // Trims in batches of an eighth of the capacity, so removing from the front of the rows stays cheap per message
+    private int trimOldest() {
+        if (messages.size() <= capacity + capacity / 8) {
+            return 0;
+        }
+        int removed = 0;
+        while (messages.size() > capacity) {
+            messages.removeFirst();
+            removed += rowCounts.removeFirst();
+        }
+        rows.subList(0, removed).clear();
+        fireIntervalRemoved(this, 0, removed - 1);
+        return removed;
+    }
+
+    private void trimNewest() {
+        if (messages.size() <= capacity + capacity / 8) {
+            return;
+        }
+        int removed = 0;
+        while (messages.size() > capacity) {
+            messages.removeLast();
+            removed += rowCounts.removeLast();
+        }
+        int size = rows.size();
+        rows.subList(size - removed, size).clear();
+        fireIntervalRemoved(this, size - removed, size - 1);
+        following = false;
+    }
+
+    enum Delivery { QUEUED, SENT, FAILED }
+
+    /**
+     * One display line of a message; continuation lines are indented.
+     */
+    record Row(ChatHistory.Message message, String text) {
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
@@ -1,24 +1,61 @@
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
+import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
 public class ChatWindow extends JFrame {
-    private JTextArea chatArea;
+    // Messages the chat view keeps in memory, and how many more it pages in from history per scroll to either end
+    private static final int MESSAGES_IN_VIEW = 2000;
+    private static final int PAGE_MESSAGES = 200;
+    // Newest matches listed per search, and how long typing pauses before the search runs
+    private static final int SEARCH_RESULTS = 100;
+    private static final int SEARCH_DELAY_MS = 200;
+    private static final int OFFER_EXPIRY_MS = 120_000;
+    // How often a changed search index is saved, so a crash costs at most this much re-indexing
+    private static final int INDEX_SAVE_MS = 60_000;
+
+    private final ChatHistory history;
+    private final ChatLog chatLog;
+    // Null until loaded and caught up in the background; swapped in under the incoming lock so no message is missed
+    private volatile SearchIndex searchIndex;
+    private javax.swing.Timer indexSaving;
+    private int savedIndexAt = -1;
+    private final SessionTabs tabs; // null for a window of its own
+    private boolean historyClosed;
+    // Messages recorded but not shown yet, in history order; the next UI pass moves them all into the view
+    private final ConcurrentLinkedQueue<ChatHistory.Message> incoming = new ConcurrentLinkedQueue<>();
+    private final UiUpdateBatcher updates = new UiUpdateBatcher();
+    private JList<ChatLog.Row> chatList;
+    private JScrollPane chatScroll;
+    private int wrapWidth = -1;
     private JTextField inputField;
+    private JTextField searchField;
+    private DefaultListModel<ChatHistory.Message> searchResults;
+    private JList<ChatHistory.Message> searchList;
+    private JScrollPane searchScroll;
+    private javax.swing.Timer searchDelay;
+    private SwingWorker<List<ChatHistory.Message>, Void> searching;
     public JButton sendButton;
     public JButton fileButton;
     private JButton saveButton;
@@ -49,16 +86,45 @@ public class ChatWindow extends JFrame {
     private int discoveredPeerCount = -1;
 
     public ChatWindow(String title) {
+        this(title, ChatHistory.temporary());
+    }
+
+    /**
+     * A window showing and adding to {@code history}; only its last page is read to open, older pages are read as
+     * the user scrolls up, and its search index is loaded in the background. The window closes the history.
+     */
+    public ChatWindow(String title, ChatHistory history) {
+        this(title, history, null);
+    }
+
+    /**
+     * A chat view shown as a tab of {@code tabs} instead of a window of its own; the owner disposes of it when its
+     * tab is closed.
+     */
+    ChatWindow(String title, ChatHistory history, SessionTabs tabs) {
         super(title);
+        this.history = history;
+        this.chatLog = new ChatLog(history, MESSAGES_IN_VIEW);
+        this.tabs = tabs;
+        chatLog.loadLatest(PAGE_MESSAGES);
+        loadSearchIndex();
         initUI();
-        initTray();
-        addWindowListener(new WindowAdapter() {
-            @Override
-            public void windowClosing(WindowEvent e) {
-                removeTray();
-            }
-        });
-        setVisible(true);
+        if (tabs != null) {
+            tabs.add(title, this);
+        } else {
+            initTray();
+            addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosing(WindowEvent e) {
+                    removeTray();
+                    closeHistory();
+                }
+            });
+            setVisible(true);
+        }
+        if (chatLog.getSize() > 0) {
+            SwingUtilities.invokeLater(() -> chatList.ensureIndexIsVisible(chatLog.getSize() - 1));
+        }
     }
 
     private void initUI() {
@@ -66,13 +132,26 @@ public class ChatWindow extends JFrame {
         setLocationRelativeTo(null);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        chatArea.setLineWrap(true);
-        chatArea.setWrapStyleWord(true);
-        chatArea.setFont(new Font("Segoe UI", Font.PLAIN, 13));
-        JScrollPane chatScroll = new JScrollPane(chatArea);
+        chatList = new JList<>(chatLog);
+        chatList.setFont(new Font("Segoe UI", Font.PLAIN, 13));
+        // Fixed row sizes keep the list from measuring every row; rows are already wrapped to the view's width
+        chatList.setFixedCellHeight(chatList.getFontMetrics(chatList.getFont()).getHeight() + 2);
+        chatList.setFixedCellWidth(1);
+        chatList.setCellRenderer(new ChatRowRenderer());
+        chatScroll = new JScrollPane(chatList);
         chatScroll.setBorder(new EmptyBorder(6, 6, 6, 6));
+        chatScroll.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+        chatScroll.getViewport().addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                rewrapChat();
+            }
+        });
+        chatScroll.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (!e.getValueIsAdjusting()) {
+                SwingUtilities.invokeLater(this::pageChat);
+            }
+        });
 
         transfersPanel = new JPanel();
         transfersPanel.setLayout(new BoxLayout(transfersPanel, BoxLayout.Y_AXIS));
@@ -81,6 +160,8 @@ public class ChatWindow extends JFrame {
         transfersScroll.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
         transfersScroll.setVisible(false);
 
+        JPanel searchBar = buildSearchBar();
+
         inputField = new JTextField();
         sendButton = new JButton("Send");
         fileButton = new JButton("Send File");
@@ -113,8 +194,13 @@ public class ChatWindow extends JFrame {
 
         JPanel rightPanel = buildRightPanel();
 
+        JPanel top = new JPanel(new BorderLayout(0, 6));
+        top.add(searchBar, BorderLayout.NORTH);
+        top.add(searchScroll, BorderLayout.CENTER);
+        top.add(transfersScroll, BorderLayout.SOUTH);
+
         JPanel center = new JPanel(new BorderLayout(6, 6));
-        center.add(transfersScroll, BorderLayout.NORTH);
+        center.add(top, BorderLayout.NORTH);
         center.add(chatScroll, BorderLayout.CENTER);
         center.add(bottom, BorderLayout.SOUTH);
 
@@ -184,15 +270,208 @@ public class ChatWindow extends JFrame {
     }
 
     public void appendMessage(String who, String message) {
-        SwingUtilities.invokeLater(() -> {
-            SimpleDateFormat fmt = new SimpleDateFormat("HH:mm:ss");
-            String time = fmt.format(new Date());
-            chatArea.append("[" + time + "] " + who + ": " + message + "\n");
-            chatArea.setCaretPosition(chatArea.getDocument().getLength());
-        });
+        synchronized (incoming) {
+            ChatHistory.Message recorded = history.append(System.currentTimeMillis(), who, message);
+            indexMessage(recorded);
+            incoming.add(recorded);
+        }
+        updates.postLatest(incoming, this::showIncoming);
         maybeNotifyTray(who, message);
     }
 
+    /**
+     * Show a message the user is sending right away, marked as queued. The returned listener moves it to sent, or
+     * to failed when it was dropped unsent.
+     */
+    public FrameScheduler.DeliveryListener appendOutgoing(String message) {
+        ChatHistory.Message recorded;
+        synchronized (incoming) {
+            recorded = history.append(System.currentTimeMillis(), "You", message);
+            indexMessage(recorded);
+            incoming.add(recorded);
+        }
+        updates.post(() -> chatLog.setDelivery(recorded.id(), ChatLog.Delivery.QUEUED));
+        updates.postLatest(incoming, this::showIncoming);
+        return written -> updates.post(() -> chatLog.setDelivery(recorded.id(),
+                written ? ChatLog.Delivery.SENT : ChatLog.Delivery.FAILED));
+    }
+
+    private JPanel buildSearchBar() {
+        searchField = new JTextField();
+        searchField.setToolTipText("Find messages containing every word; words match as prefixes");
+        searchResults = new DefaultListModel<>();
+        searchList = new JList<>(searchResults);
+        searchList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        searchList.setVisibleRowCount(6);
+        searchList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+                return super.getListCellRendererComponent(list, ChatLog.format((ChatHistory.Message) value), index,
+                        isSelected, cellHasFocus);
+            }
+        });
+        searchList.addListSelectionListener(e -> {
+            ChatHistory.Message selected = searchList.getSelectedValue();
+            if (!e.getValueIsAdjusting() && selected != null) {
+                showMessage(selected.id());
+            }
+        });
+        searchScroll = new JScrollPane(searchList);
+        searchScroll.setBorder(new EmptyBorder(0, 6, 0, 6));
+        searchScroll.setVisible(false);
+
+        searchDelay = new javax.swing.Timer(SEARCH_DELAY_MS, e -> runSearch());
+        searchDelay.setRepeats(false);
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                searchDelay.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                searchDelay.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                searchDelay.restart();
+            }
+        });
+        searchField.addActionListener(e -> {
+            if (!searchResults.isEmpty()) {
+                searchList.setSelectedIndex(0);
+            }
+        });
+        searchField.getInputMap().put(KeyStroke.getKeyStroke("ESCAPE"), "clearSearch");
+        searchField.getActionMap().put("clearSearch", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                searchField.setText("");
+            }
+        });
+
+        JPanel bar = new JPanel(new BorderLayout(6, 0));
+        bar.setBorder(new EmptyBorder(6, 6, 0, 6));
+        bar.add(new JLabel("Search"), BorderLayout.WEST);
+        bar.add(searchField, BorderLayout.CENTER);
+        return bar;
+    }
+
+    // Looks up the index off the event dispatch thread; results of a query typed over meanwhile are dropped
+    private void runSearch() {
+        String query = searchField.getText();
+        if (searching != null) {
+            searching.cancel(false);
+        }
+        if (SearchIndex.words(query).isEmpty()) {
+            searching = null;
+            searchResults.clear();
+            searchScroll.setVisible(false);
+            revalidate();
+            return;
+        }
+        searching = new SwingWorker<>() {
+            @Override
+            protected List<ChatHistory.Message> doInBackground() {
+                List<ChatHistory.Message> found = new ArrayList<>();
+                SearchIndex index = searchIndex;
+                if (index == null) {
+                    return found; // still loading
+                }
+                for (int id : index.search(query, SEARCH_RESULTS)) {
+                    found.addAll(history.read(id, 1));
+                }
+                return found;
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled() || searching != this) {
+                    return;
+                }
+                try {
+                    searchResults.clear();
+                    searchResults.addAll(get());
+                    if (searchResults.isEmpty()) {
+                        setStatus("No messages match \"" + query.trim() + "\"");
+                    }
+                    searchScroll.setVisible(!searchResults.isEmpty());
+                    revalidate();
+                } catch (InterruptedException | ExecutionException ex) {
+                    setStatus("Search failed: " + ex.getMessage());
+                }
+            }
+        };
+        searching.execute();
+    }
+
+    private void showMessage(int id) {
+        int row = chatLog.showAround(id);
+        if (row < 0) {
+            return;
+        }
+        chatList.revalidate();
+        chatList.setSelectedIndex(row);
+        chatList.ensureIndexIsVisible(row);
+    }
+
+    private void showIncoming() {
+        boolean atBottom = isChatAtBottom();
+        boolean shown = false;
+        ChatHistory.Message message;
+        while ((message = incoming.poll()) != null) {
+            shown |= chatLog.add(message);
+        }
+        if (shown && atBottom) {
+            chatList.ensureIndexIsVisible(chatLog.getSize() - 1);
+        }
+        if (shown && tabs != null) {
+            tabs.messageArrived(this);
+        }
+    }
+
+    private boolean isChatAtBottom() {
+        JScrollBar bar = chatScroll.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - chatList.getFixedCellHeight();
+    }
+
+    // At the top, older messages page back in above the ones shown; at the bottom of a window scrolled away from
+    // the end, newer ones do. The view is shifted by the rows that came or went above it, so it does not jump.
+    private void pageChat() {
+        JScrollBar bar = chatScroll.getVerticalScrollBar();
+        int rowHeight = chatList.getFixedCellHeight();
+        if (bar.getValue() == bar.getMinimum() && chatLog.hasOlder()) {
+            int added = chatLog.loadOlder(PAGE_MESSAGES);
+            if (added > 0) {
+                chatList.revalidate();
+                SwingUtilities.invokeLater(() -> bar.setValue(bar.getValue() + added * rowHeight));
+            }
+        } else if (!chatLog.isFollowing() && isChatAtBottom()) {
+            int removed = chatLog.loadNewer(PAGE_MESSAGES);
+            if (removed > 0) {
+                chatList.revalidate();
+                SwingUtilities.invokeLater(() -> bar.setValue(Math.max(0, bar.getValue() - removed * rowHeight)));
+            }
+        }
+    }
+
+    private void rewrapChat() {
+        int width = chatScroll.getViewport().getExtentSize().width;
+        if (width <= 0 || width == wrapWidth) {
+            return;
+        }
+        wrapWidth = width;
+        FontMetrics metrics = chatList.getFontMetrics(chatList.getFont());
+        // Leave room for the cell renderer's border and the indent of continuation lines
+        int lineWidth = Math.max(40, width - metrics.stringWidth("    ") - 8);
+        boolean atBottom = isChatAtBottom();
+        chatLog.rewrap(text -> ChatLog.wrap(text, lineWidth, metrics::stringWidth));
+        if (atBottom && chatLog.getSize() > 0) {
+            chatList.ensureIndexIsVisible(chatLog.getSize() - 1);
+        }
+    }
+
     public String grabInputAndClear() {
         String txt = inputField.getText();
         inputField.setText("");
@@ -200,11 +479,11 @@ public class ChatWindow extends JFrame {
     }
 
     public void setStatus(String status) {
-        SwingUtilities.invokeLater(() -> statusLabel.setText(status));
+        updates.postLatest(statusLabel, () -> statusLabel.setText(status));
     }
 
     public void setConnected(boolean connected) {
-        SwingUtilities.invokeLater(() -> {
+        updates.postLatest(connStateLabel, () -> {
             if (connected) {
                 connStateLabel.setText("Connected");
                 connStateLabel.setIcon(new DotIcon(colorConnected, 8));
@@ -216,14 +495,14 @@ public class ChatWindow extends JFrame {
     }
 
     public void setConnecting() {
-        SwingUtilities.invokeLater(() -> {
-            connStateLabel.setText("Connecting…");
+        updates.postLatest(connStateLabel, () -> {
+            connStateLabel.setText("Connecting\u2026");
             connStateLabel.setIcon(new DotIcon(colorConnecting, 8));
         });
     }
 
     public void setDiscoveredPeers(Map<String, DiscoveryService.DiscoveredPeer> peers) {
-        SwingUtilities.invokeLater(() -> {
+        updates.postLatest(discoveredModel, () -> {
             discoveredModel.clear();
             if (peers == null || peers.isEmpty()) {
                 return;
@@ -251,6 +530,26 @@ public class ChatWindow extends JFrame {
         fileTransferHandler = handler;
     }
 
+    /**
+     * Ask whether to receive an offered file. The question is asked on the event dispatch thread so the caller,
+     * typically a socket reader, keeps running; {@code decision} is called there with the answer, and with false
+     * when nobody answers within {@link #OFFER_EXPIRY_MS}.
+     */
+    public void offerIncomingFile(String description, Consumer<Boolean> decision) {
+        SwingUtilities.invokeLater(() -> {
+            JOptionPane question = new JOptionPane(description + "\n\nReceive it?", JOptionPane.QUESTION_MESSAGE,
+                    JOptionPane.YES_NO_OPTION);
+            JDialog dialog = question.createDialog(this, "Incoming file");
+            javax.swing.Timer expiry = new javax.swing.Timer(OFFER_EXPIRY_MS, e -> dialog.dispose());
+            expiry.setRepeats(false);
+            expiry.start();
+            dialog.setVisible(true);
+            expiry.stop();
+            dialog.dispose();
+            decision.accept(Integer.valueOf(JOptionPane.YES_OPTION).equals(question.getValue()));
+        });
+    }
+
     public TransferProgressHandle createIncomingTransfer(String id, String name, long totalBytes) {
         TransferPanel panel = addTransferPanel(id, name + " (incoming)", totalBytes, false);
         return new TransferProgressHandle() {
@@ -275,16 +574,16 @@ public class ChatWindow extends JFrame {
 
     public void updatePeerCount(int count) {
         connectedPeerCount = Math.max(0, count);
-        SwingUtilities.invokeLater(this::refreshPeerSummary);
+        updates.postLatest(peersLabel, this::refreshPeerSummary);
     }
 
     public void updateDiscoveryCount(int count) {
         discoveredPeerCount = count < 0 ? -1 : Math.max(0, count);
-        SwingUtilities.invokeLater(this::refreshPeerSummary);
+        updates.postLatest(peersLabel, this::refreshPeerSummary);
     }
 
     public void setEncryptionMode(String mode) {
-        SwingUtilities.invokeLater(() -> encryptionLabel.setText("Encryption: " + mode));
+        updates.postLatest(encryptionLabel, () -> encryptionLabel.setText("Encryption: " + mode));
     }
 
     private void refreshPeerSummary() {
@@ -301,26 +600,30 @@ public class ChatWindow extends JFrame {
             return;
         }
         JFileChooser chooser = new JFileChooser();
+        chooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+        chooser.setMultiSelectionEnabled(true);
         if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
             return;
         }
-        File file = chooser.getSelectedFile();
-        if (file == null) {
+        File[] files = chooser.getSelectedFiles();
+        if (files == null || files.length == 0) {
             return;
         }
-        startOutgoingTransfer(file);
+        startOutgoingTransfer(List.of(files));
     }
 
-    private void startOutgoingTransfer(File file) {
-        long totalBytes = file.length();
+    // Folders and multiple files go out as one bundle; the total is corrected by the first progress update
+    private void startOutgoingTransfer(List<File> files) {
+        long totalBytes = files.stream().filter(File::isFile).mapToLong(File::length).sum();
+        String name = files.get(0).getName() + (files.size() > 1 ? " and " + (files.size() - 1) + " more" : "");
         String transferId = UUID.randomUUID().toString();
-        TransferPanel panel = addTransferPanel(transferId, file.getName(), totalBytes, true);
+        TransferPanel panel = addTransferPanel(transferId, name, totalBytes, true);
 
         SwingWorker<Void, Void> worker = new SwingWorker<>() {
             @Override
             protected Void doInBackground() throws Exception {
                 final SwingWorker<Void, Void> self = this;
-                fileTransferHandler.transfer(file, new TransferMonitor() {
+                fileTransferHandler.transfer(files, new TransferMonitor() {
                     @Override
                     public void onProgress(long transferred, long total) {
                         panel.updateProgress(transferred, total);
@@ -330,6 +633,11 @@ public class ChatWindow extends JFrame {
                     public boolean isCancelled() {
                         return self.isCancelled();
                     }
+
+                    @Override
+                    public void onQueued() {
+                        panel.markQueued();
+                    }
                 });
                 return null;
             }
@@ -354,9 +662,9 @@ public class ChatWindow extends JFrame {
     }
 
     private TransferPanel addTransferPanel(String id, String name, long totalBytes, boolean cancellable) {
-        TransferPanel panel = new TransferPanel(name, totalBytes, cancellable);
+        TransferPanel panel = new TransferPanel(name, totalBytes, cancellable, updates);
         transferPanels.put(id, panel);
-        SwingUtilities.invokeLater(() -> {
+        updates.post(() -> {
             transfersPanel.add(panel);
             transfersPanel.revalidate();
             transfersPanel.repaint();
@@ -370,7 +678,7 @@ public class ChatWindow extends JFrame {
         timer.schedule(new TimerTask() {
             @Override
             public void run() {
-                SwingUtilities.invokeLater(() -> {
+                updates.post(() -> {
                     transferPanels.remove(id);
                     transfersPanel.remove(panel);
                     transfersPanel.revalidate();
@@ -386,34 +694,75 @@ public class ChatWindow extends JFrame {
         transfersScroll.revalidate();
     }
 
+    // Format and date range first, then the file; the export streams from the history behind a progress dialog
     private void handleSaveChat() {
+        JComboBox<ChatExporter.Format> format = new JComboBox<>(ChatExporter.Format.values());
+        JCheckBox useFrom = new JCheckBox("From");
+        JCheckBox useUntil = new JCheckBox("Until");
+        JSpinner from = dateSpinner(useFrom);
+        JSpinner until = dateSpinner(useUntil);
+        JPanel options = new JPanel(new GridLayout(0, 2, 6, 6));
+        options.add(new JLabel("Format"));
+        options.add(format);
+        options.add(useFrom);
+        options.add(from);
+        options.add(useUntil);
+        options.add(until);
+        if (JOptionPane.showConfirmDialog(this, options, "Save Chat", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            return;
+        }
+        ChatExporter.Format chosen = (ChatExporter.Format) format.getSelectedItem();
+        long fromMillis = useFrom.isSelected() ? ((Date) from.getValue()).getTime() : Long.MIN_VALUE;
+        long untilMillis = useUntil.isSelected() ? ((Date) until.getValue()).getTime() : Long.MAX_VALUE;
+
         JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new File("chat." + chosen.extension()));
         if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
             return;
         }
         File target = chooser.getSelectedFile();
-        SwingWorker<Void, Void> writer = new SwingWorker<>() {
+        ProgressMonitor monitor = new ProgressMonitor(this, "Saving chat to " + target.getName(), null, 0, 100);
+        SwingWorker<Integer, Void> writer = new SwingWorker<>() {
             @Override
-            protected Void doInBackground() throws Exception {
-                try (BufferedWriter bw = new BufferedWriter(new FileWriter(target))) {
-                    bw.write(chatArea.getText());
-                }
-                return null;
+            protected Integer doInBackground() throws Exception {
+                return ChatExporter.export(history, target.toPath(), chosen, fromMillis, untilMillis, (scanned, total) -> {
+                    setProgress(total == 0 ? 100 : (int) (scanned * 100L / total));
+                    return !monitor.isCanceled();
+                });
             }
 
             @Override
             protected void done() {
+                monitor.close();
                 try {
-                    get();
-                    JOptionPane.showMessageDialog(ChatWindow.this, "Saved to " + target.getAbsolutePath());
+                    int saved = get();
+                    JOptionPane.showMessageDialog(ChatWindow.this, "Saved " + saved + " messages to " + target.getAbsolutePath());
+                } catch (ExecutionException ex) {
+                    if (!(ex.getCause() instanceof CancellationException)) {
+                        JOptionPane.showMessageDialog(ChatWindow.this, "Error saving: " + ex.getCause().getMessage());
+                    }
                 } catch (Exception ex) {
                     JOptionPane.showMessageDialog(ChatWindow.this, "Error saving: " + ex.getMessage());
                 }
             }
         };
+        writer.addPropertyChangeListener(e -> {
+            if ("progress".equals(e.getPropertyName())) {
+                monitor.setProgress((Integer) e.getNewValue());
+            }
+        });
         writer.execute();
     }
 
+    private static JSpinner dateSpinner(JCheckBox enabledBy) {
+        JSpinner spinner = new JSpinner(new SpinnerDateModel());
+        spinner.setEditor(new JSpinner.DateEditor(spinner, "yyyy-MM-dd HH:mm"));
+        spinner.setEnabled(false);
+        enabledBy.addActionListener(e -> spinner.setEnabled(enabledBy.isSelected()));
+        return spinner;
+    }
+
     private void initTray() {
         if (!SystemTray.isSupported()) {
             return;
@@ -473,16 +822,85 @@ public class ChatWindow extends JFrame {
     @Override
     public void dispose() {
         removeTray();
+        closeHistory();
         super.dispose();
     }
 
+    // Catching the saved index up can decrypt every segment recorded since it was saved, so that is done off the
+    // event dispatch thread; messages recorded meanwhile are indexed by the last catch-up, under the incoming lock
+    private void loadSearchIndex() {
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                SearchIndex loaded = history.loadIndex();
+                synchronized (incoming) {
+                    loaded.catchUp(history);
+                    searchIndex = loaded;
+                }
+                return null;
+            }
+        }.execute();
+        indexSaving = new javax.swing.Timer(INDEX_SAVE_MS, e -> saveSearchIndex());
+        indexSaving.start();
+    }
+
+    // Caller must hold the incoming lock
+    private void indexMessage(ChatHistory.Message recorded) {
+        SearchIndex index = searchIndex;
+        if (index != null) {
+            index.add(recorded);
+        }
+    }
+
+    // On the event dispatch thread; the index is written and sealed in the background
+    private void saveSearchIndex() {
+        SearchIndex index = searchIndex;
+        if (index == null || index.indexed() == savedIndexAt) {
+            return;
+        }
+        savedIndexAt = index.indexed();
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                history.saveIndex(index);
+                return null;
+            }
+        }.execute();
+    }
+
+    // Messages still arriving after this are shown but no longer kept
+    private void closeHistory() {
+        synchronized (incoming) {
+            if (historyClosed) {
+                return;
+            }
+            historyClosed = true;
+            if (indexSaving != null) {
+                indexSaving.stop();
+            }
+            if (searchIndex != null) {
+                history.saveIndex(searchIndex);
+            }
+            history.close();
+        }
+    }
+
     public interface FileTransferHandler {
-        void transfer(File file, TransferMonitor monitor) throws Exception;
+        /**
+         * Send one regular file as itself, or a folder or several files as a single bundle.
+         */
+        void transfer(List<File> files, TransferMonitor monitor) throws Exception;
     }
 
     public interface TransferMonitor {
         void onProgress(long transferred, long total);
         boolean isCancelled();
+
+        /**
+         * The transfer is waiting for other transfers to finish before it starts.
+         */
+        default void onQueued() {
+        }
     }
 
     public interface TransferProgressHandle {
@@ -498,16 +916,21 @@ public class ChatWindow extends JFrame {
         private final boolean cancellable;
         private SwingWorker<?, ?> worker;
         private final long totalBytes;
+        private final UiUpdateBatcher updates;
+        // What the bar shows or is about to; reports that would not change it are dropped before reaching the EDT
+        private volatile String shownProgress;
+        private volatile boolean finished;
 
-        TransferPanel(String name, long totalBytes, boolean cancellable) {
+        TransferPanel(String name, long totalBytes, boolean cancellable, UiUpdateBatcher updates) {
             super(new BorderLayout(6, 0));
             this.cancellable = cancellable;
             this.totalBytes = totalBytes;
+            this.updates = updates;
             JLabel nameLabel = new JLabel(name);
             nameLabel.setFont(nameLabel.getFont().deriveFont(Font.BOLD));
             progressBar.setStringPainted(true);
-            updateProgress(0L, totalBytes);
-            statusLabel.setText(cancellable ? "Preparing…" : "Receiving…");
+            progressBar.setString("0% - 0 B / " + (totalBytes > 0 ? humanReadable(totalBytes) : "unknown"));
+            statusLabel.setText(cancellable ? "Preparing\u2026" : "Receiving\u2026");
             cancelButton.setVisible(cancellable);
             add(nameLabel, BorderLayout.NORTH);
             add(progressBar, BorderLayout.CENTER);
@@ -526,25 +949,38 @@ public class ChatWindow extends JFrame {
                         this.worker.cancel(true);
                     }
                     cancelButton.setEnabled(false);
-                    statusLabel.setText("Cancelling…");
+                    statusLabel.setText("Cancelling\u2026");
                 };
                 cancelButton.addActionListener(listener);
             }
         }
 
         void updateProgress(long transferred, long total) {
-            SwingUtilities.invokeLater(() -> {
-                long boundedTotal = total <= 0 ? 1 : total;
-                int percent = (int) Math.min(100, Math.round((double) transferred * 100.0 / boundedTotal));
+            long boundedTotal = total <= 0 ? 1 : total;
+            int percent = (int) Math.min(100, Math.round((double) transferred * 100.0 / boundedTotal));
+            String totalText = total > 0 ? humanReadable(total) : "unknown";
+            String text = percent + "% - " + humanReadable(transferred) + " / " + totalText;
+            if (finished || text.equals(shownProgress)) {
+                return;
+            }
+            shownProgress = text;
+            updates.postLatest(this, () -> {
+                if (finished) {
+                    return;
+                }
                 progressBar.setValue(percent);
-                String totalText = total > 0 ? humanReadable(total) : "unknown";
-                progressBar.setString(percent + "% - " + humanReadable(transferred) + " / " + totalText);
-                statusLabel.setText(cancellable ? "Sending…" : "Receiving…");
+                progressBar.setString(text);
+                statusLabel.setText(cancellable ? "Sending\u2026" : "Receiving\u2026");
             });
         }
 
+        void markQueued() {
+            updates.post(() -> statusLabel.setText("Queued\u2026"));
+        }
+
         void markCompleted(String message) {
-            SwingUtilities.invokeLater(() -> {
+            finished = true;
+            updates.post(() -> {
                 progressBar.setValue(100);
                 progressBar.setString("100% - " + humanReadable(totalBytes));
                 statusLabel.setText(message);
@@ -553,7 +989,8 @@ public class ChatWindow extends JFrame {
         }
 
         void markFailed(String reason) {
-            SwingUtilities.invokeLater(() -> {
+            finished = true;
+            updates.post(() -> {
                 statusLabel.setText(reason == null ? "Failed" : reason);
                 progressBar.setValue(0);
                 progressBar.setString("Failed");
@@ -579,6 +1016,30 @@ public class ChatWindow extends JFrame {
     }
 }
 
+// Messages still queued are drawn grey, and ones that could not be sent red with a note on their last line
+class ChatRowRenderer extends DefaultListCellRenderer {
+    private final Color queued = new Color(150, 150, 150);
+    private final Color failed = new Color(211, 47, 47);
+
+    @Override
+    public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+        JLabel lbl = (JLabel) super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+        if (!(value instanceof ChatLog.Row row) || !(list.getModel() instanceof ChatLog log)) {
+            return lbl;
+        }
+        ChatLog.Delivery delivery = log.delivery(row.message().id());
+        if (delivery == ChatLog.Delivery.SENT || isSelected) {
+            return lbl;
+        }
+        lbl.setForeground(delivery == ChatLog.Delivery.QUEUED ? queued : failed);
+        boolean lastLine = index + 1 >= log.getSize() || log.getElementAt(index + 1).message() != row.message();
+        if (delivery == ChatLog.Delivery.FAILED && lastLine) {
+            lbl.setText(row.text() + "  (not sent)");
+        }
+        return lbl;
+    }
+}
+
 class UserCellRenderer extends DefaultListCellRenderer {
     private final Color online = new Color(76, 175, 80);
     private final int dot = 8;
@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Turns the chunks of a {@link FileChunkReader} into chunk frames, optionally deflating them.
+ * <p>
+ * When compression is on, the next few chunks are read ahead and compressed on a shared pool while the caller waits
+ * for credit and writes the current frame, so compression overlaps with sending instead of adding to it. Each chunk
+ * first gets a cheap entropy estimate over a sample of its bytes; chunks that look random (zip, jpg, mp4 and the
+ * like) go out raw, and so does any chunk that deflate fails to shrink by at least an eighth. After a run of such
+ * misses only every {@link #REPROBE_INTERVAL}th chunk is tried, so incompressible files cost next to nothing.
+ * <p>
+ * A frame may carry several consecutive blocks when {@link #setBlocksPerFrame(int)} asks for it; the blocks are then
+ * compressed together and each keeps its own proof, or leaf hash when the offer announced no root.
+ * <p>
+ * With a {@link DeltaCodec.Index} set, frames are first encoded as a delta against the receivers' older copy, and
+ * only frames that do not shrink that way are tried with deflate.
+ */
+final class ChunkEncoder {
+    static final int LOOKAHEAD = 4;
+    static final int MISS_LIMIT = 8;
+    static final int REPROBE_INTERVAL = 32;
+    private static final int SAMPLE_BYTES = 4096;
+    private static final double MAX_ENTROPY_BITS = 7.5;
+
+    private static final AtomicInteger COMPRESSOR_IDS = new AtomicInteger();
+    private static final ExecutorService COMPRESSORS = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)), r -> {
+                Thread t = new Thread(r, "Chunk-Compressor-" + COMPRESSOR_IDS.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+    private final FileChunkReader reader;
+    private final String transferId;
+    private final boolean deflate;
+    private final MerkleTree.Proofs proofs;
+    private final ArrayDeque<CompletableFuture<Encoded>> pending = new ArrayDeque<>();
+    private final AtomicInteger misses = new AtomicInteger();
+    private boolean exhausted;
+    private int blocksPerFrame = 1;
+    private DeltaCodec.Index delta;
+
+    ChunkEncoder(FileChunkReader reader, String transferId, boolean deflate) {
+        this(reader, transferId, deflate, null);
+    }
+
+    /**
+     * @param proofs the proofs against the root the offer announced, or null to send leaf hashes
+     */
+    ChunkEncoder(FileChunkReader reader, String transferId, boolean deflate, MerkleTree.Proofs proofs) {
+        this.reader = reader;
+        this.transferId = transferId;
+        this.deflate = deflate;
+        this.proofs = proofs;
+    }
+
+    /**
+     * The next chunk frame in sequence order, or null once the file has been read.
+     */
+    Encoded next() throws IOException {
+        fill();
+        CompletableFuture<Encoded> head = pending.poll();
+        if (head == null) {
+            return null;
+        }
+        fill(); // start on the chunk after this one while the caller sends it
+        try {
+            return head.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IOException("Chunk encoding failed", e.getCause());
+        }
+    }
+
+    /**
+     * Size of the frames read from now on; frames already read ahead keep theirs.
+     */
+    void setBlocksPerFrame(int blocks) {
+        blocksPerFrame = Math.max(1, Math.min(FileTransferProtocol.MAX_BLOCKS_PER_FRAME, blocks));
+    }
+
+    /**
+     * Encode frames read from now on as deltas against {@code index}, or stop doing so with null.
+     */
+    void setDelta(DeltaCodec.Index index) {
+        delta = index;
+    }
+
+    /**
+     * A frame with chunk {@code seq} alone, raw, for a receiver that asked for it again; the frames in sequence go on
+     * where they were.
+     */
+    String resendFrame(int seq) throws IOException {
+        byte[] data = reader.chunk(seq);
+        byte[] proof = proofs != null ? proofs.path(seq) : MerkleTree.leafHash(data);
+        return FileTransferProtocol.buildChunk(transferId, seq, data, data.length, proof);
+    }
+
+    /**
+     * Drop the read-ahead and continue from chunk {@code seq}.
+     */
+    void seek(int seq) throws IOException {
+        pending.forEach(f -> f.cancel(false));
+        pending.clear();
+        exhausted = false;
+        reader.seek(seq);
+    }
+
+    private void fill() throws IOException {
+        DeltaCodec.Index index = delta;
+        boolean async = deflate || index != null;
+        int depth = async ? LOOKAHEAD : 1;
+        while (!exhausted && pending.size() < depth) {
+            int read = reader.next();
+            if (read <= 0) {
+                exhausted = true;
+                return;
+            }
+            int seq = reader.sequence();
+            if (blocksPerFrame == 1 && !async) {
+                pending.add(CompletableFuture.completedFuture(new Encoded(seq, 1, reader.position(), read,
+                        FileTransferProtocol.buildChunk(transferId, seq, reader.buffer(), read, proof()))));
+                continue;
+            }
+            byte[] data = new byte[blocksPerFrame * FileTransferProtocol.CHUNK_SIZE];
+            System.arraycopy(reader.buffer(), 0, data, 0, read);
+            int length = read;
+            List<byte[]> leaves = new ArrayList<>();
+            leaves.add(proof());
+            while (leaves.size() < blocksPerFrame && read == FileTransferProtocol.CHUNK_SIZE) {
+                read = reader.next();
+                if (read <= 0) {
+                    exhausted = true;
+                    break;
+                }
+                System.arraycopy(reader.buffer(), 0, data, length, read);
+                length += read;
+                leaves.add(proof());
+            }
+            long position = reader.position();
+            byte[] frameData = length == data.length ? data : Arrays.copyOf(data, length);
+            if (!async) {
+                pending.add(CompletableFuture.completedFuture(encode(seq, position, frameData, leaves, null, false)));
+                continue;
+            }
+            boolean probe = deflate && (misses.get() < MISS_LIMIT || seq % REPROBE_INTERVAL == 0);
+            pending.add(CompletableFuture.supplyAsync(() -> encode(seq, position, frameData, leaves, index, probe), COMPRESSORS));
+        }
+    }
+
+    // For the chunk just read
+    private byte[] proof() {
+        return proofs != null ? proofs.path(reader.sequence()) : reader.leafHash();
+    }
+
+    private Encoded encode(int seq, long position, byte[] data, List<byte[]> leaves, DeltaCodec.Index index,
+                           boolean probe) {
+        byte[] script = index != null ? index.encode(data) : null;
+        if (script != null) {
+            return new Encoded(seq, leaves.size(), position, script.length,
+                    FileTransferProtocol.buildDeltaChunk(transferId, seq, script, leaves));
+        }
+        if (probe && looksCompressible(data, data.length)) {
+            byte[] out = new byte[data.length - data.length / 8];
+            Deflater deflater = DEFLATERS.get();
+            deflater.reset();
+            deflater.setInput(data);
+            deflater.finish();
+            int length = deflater.deflate(out);
+            if (deflater.finished()) {
+                misses.set(0);
+                return new Encoded(seq, leaves.size(), position, length, leaves.size() == 1
+                        ? FileTransferProtocol.buildDeflatedChunk(transferId, seq, out, length, leaves.get(0))
+                        : FileTransferProtocol.buildBatchChunk(transferId, seq, out, length, leaves, true));
+            }
+        }
+        if (probe) {
+            misses.incrementAndGet();
+        }
+        return new Encoded(seq, leaves.size(), position, data.length, leaves.size() == 1
+                ? FileTransferProtocol.buildChunk(transferId, seq, data, data.length, leaves.get(0))
+                : FileTransferProtocol.buildBatchChunk(transferId, seq, data, data.length, leaves, false));
+    }
+
+    /**
+     * Shannon entropy of a sample of the bytes, in bits per byte; already-compressed data sits close to 8.
+     */
+    static boolean looksCompressible(byte[] data, int length) {
+        if (length == 0) {
+            return false;
+        }
+        int[] counts = new int[256];
+        int step = Math.max(1, length / SAMPLE_BYTES);
+        int sampled = 0;
+        for (int i = 0; i < length; i += step) {
+            counts[data[i] & 0xff]++;
+            sampled++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / sampled;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2) < MAX_ENTROPY_BITS;
+    }
+
+    /**
+     * @param sequence the first block in the frame
+     * @param blocks number of consecutive blocks the frame carries
+     * @param position bytes of the file covered up to and including this frame
+     * @param wireBytes payload size before base64, which is smaller than the data when it was compressed
+     */
+    record Encoded(int sequence, int blocks, long position, int wireBytes, String frame) {
+        int lastSequence() {
+            return sequence + blocks - 1;
+        }
+    }
+}
@@ -8,35 +8,60 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ClientHandler implements Runnable {
     private static final Logger LOG = AppLogger.get(ClientHandler.class);
+    // How long a dropped session stays resumable, and how much outbound traffic it may queue meanwhile
+    private static final long SESSION_GRACE_MS = TimeUnit.SECONDS.toMillis(60);
+    private static final long MAX_BACKLOG_CHARS = 16L * 1024 * 1024;
+    private static final int BULK_QUEUE_FRAMES = 16;
 
-    private final Socket socket;
-    private final BufferedReader in;
-    private final BufferedWriter out;
+    private volatile Socket socket;
+    private volatile BufferedReader in;
+    private volatile BufferedWriter out;
     private final char[] password;
+    private final SessionCrypto crypto;
     private final EncryptedMultiServer server;
     private final String clientId;
     private final ScheduledExecutorService heartbeatScheduler;
     private final long heartbeatIntervalMs;
     private final long heartbeatTimeoutMs;
+    private final Object writeLock = new Object();
+    private final ArrayDeque<String> backlog = new ArrayDeque<>();
+    private final FrameScheduler outbound;
+    private final ChatCompression chatCompression = new ChatCompression();
+    // Extra data connections the client opened for this session; file frames take turns over them and this one
+    private final CopyOnWriteArrayList<ClientHandler> stripes = new CopyOnWriteArrayList<>();
+    private final AtomicInteger stripeTurn = new AtomicInteger();
 
     private volatile long lastActivity;
     private volatile boolean running = true;
+    private volatile boolean detached;
+    private volatile long detachedAt;
+    private volatile String sessionToken;
+    private volatile ClientHandler owner; // set when this connection is a stripe of another session
+    private long backlogChars;
+    private int generation;
+    private boolean compressChat; // guarded by writeLock; per connection
     private ScheduledFuture<?> heartbeatTask;
 
     public ClientHandler(Socket socket,
                          char[] password,
+                         SessionCrypto crypto,
                          EncryptedMultiServer server,
                          ScheduledExecutorService heartbeatScheduler,
                          long heartbeatIntervalMs,
                          long heartbeatTimeoutMs) throws IOException {
         this.socket = socket;
         this.password = password;
+        this.crypto = crypto;
         this.server = server;
         this.heartbeatScheduler = heartbeatScheduler;
         this.heartbeatIntervalMs = heartbeatIntervalMs;
@@ -45,17 +70,47 @@ public class ClientHandler implements Runnable {
         this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
         this.clientId = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
         this.lastActivity = System.currentTimeMillis();
+        this.outbound = new FrameScheduler("Client-Writer-" + clientId, this::writeFrame, BULK_QUEUE_FRAMES, false);
     }
 
     @Override
     public void run() {
         scheduleHeartbeat();
+        serve(currentGeneration());
+    }
+
+    private void serve(int gen) {
+        ClientHandler resumed = null;
         try {
             String line;
             while (running && (line = in.readLine()) != null) {
                 lastActivity = System.currentTimeMillis();
                 try {
-                    String plaintext = EncryptionUtil.decryptMessage(line, password);
+                    String plaintext = chatCompression.decode(crypto.decryptBytes(line));
+                    if (SessionProtocol.DEFLATE_ON.equals(plaintext)) {
+                        synchronized (writeLock) {
+                            compressChat = true;
+                        }
+                        continue;
+                    }
+                    if (SessionProtocol.isStripe(plaintext)) {
+                        owner = server.attachStripe(this, SessionProtocol.parseStripeToken(plaintext));
+                        if (owner == null) {
+                            break;
+                        }
+                        continue;
+                    }
+                    if (owner != null) {
+                        server.onClientMessage(owner, plaintext);
+                        continue;
+                    }
+                    if (SessionProtocol.isResume(plaintext)) {
+                        resumed = server.resumeSession(this, SessionProtocol.parseResumeToken(plaintext));
+                        if (resumed != null) {
+                            break;
+                        }
+                        continue;
+                    }
                     server.onClientMessage(this, plaintext);
                 } catch (AEADBadTagException tampered) {
                     LOG.warn("Discarded tampered payload from {}", clientId, tampered);
@@ -65,16 +120,60 @@ public class ClientHandler implements Runnable {
             }
         } catch (IOException e) {
             LOG.info("Connection closed: {}", clientId);
-        } finally {
+        }
+
+        if (resumed != null) {
+            // This connection now belongs to the parked session; retire the placeholder without closing the socket
+            running = false;
+            if (heartbeatTask != null) {
+                heartbeatTask.cancel(false);
+            }
+            outbound.close();
+            resumed.resumeOn(socket, in, out);
+            return;
+        }
+        ClientHandler session = owner;
+        if (session != null) {
+            // A stripe only carries data; losing it never parks or ends the session
+            session.stripes.remove(this);
             closeQuietly();
-            server.removeClient(this);
+            return;
+        }
+        if (gen != currentGeneration()) {
+            return; // superseded by a resumed connection
         }
+        if (running && sessionToken != null && server.parkClient(this)) {
+            detach();
+            return;
+        }
+        closeQuietly();
+        server.removeClient(this);
     }
 
     public String getClientId() {
         return clientId;
     }
 
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    void setSessionToken(String token) {
+        this.sessionToken = token;
+    }
+
+    public boolean isDetached() {
+        return detached;
+    }
+
+    /**
+     * Carry part of this session's file frames on {@code stripe}, a further connection from the same client.
+     */
+    void addStripe(ClientHandler stripe) {
+        stripes.add(stripe);
+        LOG.info("Session for {} now striped over {} extra connections", clientId, stripes.size());
+    }
+
     public void acknowledgePong() {
         lastActivity = System.currentTimeMillis();
     }
@@ -83,41 +182,186 @@ public class ClientHandler implements Runnable {
         sendAsync(plaintext, password);
     }
 
+    /**
+     * Queue a frame for this client. Control and chat frames never wait behind file data; file frames may block
+     * the caller while this client's bulk lane is full.
+     */
     public void sendAsync(String plaintext, char[] encryptionPassword) {
         if (!running) return;
+        if (crypto.matches(encryptionPassword)) {
+            try {
+                outboundFor(plaintext).submit(plaintext);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
         try {
-            String encrypted = EncryptionUtil.encryptMessage(plaintext, encryptionPassword);
-            sendEncrypted(encrypted);
+            sendEncrypted(EncryptionUtil.encryptMessage(plaintext, encryptionPassword));
         } catch (Exception e) {
             LOG.warn("Failed to encrypt outbound message to {}", clientId, e);
         }
     }
 
+    /**
+     * Like {@link #sendAsync(String)} for a frame relayed on another client's behalf, but never waits: returns false
+     * when this client's bulk lane is full and the frame was not queued.
+     */
+    public boolean offerAsync(String plaintext) {
+        if (!running) return true; // gone; nothing is owed to it
+        return outboundFor(plaintext).offer(plaintext);
+    }
+
+    // File frames of a striped session take turns over its connections; everything else keeps to this one, and so
+    // does everything while the session is parked, so the backlog replays in order
+    private FrameScheduler outboundFor(String plaintext) {
+        int count = stripes.size();
+        if (count == 0 || detached || FrameScheduler.classify(plaintext) != FrameScheduler.Lane.BULK) {
+            return outbound;
+        }
+        int turn = Math.floorMod(stripeTurn.getAndIncrement(), count + 1);
+        try {
+            ClientHandler stripe = turn == 0 ? this : stripes.get(turn - 1);
+            return stripe.running ? stripe.outbound : outbound;
+        } catch (IndexOutOfBoundsException closedMeanwhile) {
+            return outbound;
+        }
+    }
+
+    private void closeStripes() {
+        for (ClientHandler stripe : stripes) {
+            stripe.closeQuietly();
+        }
+        stripes.clear();
+    }
+
     public void closeQuietly() {
         if (!running) return;
         running = false;
+        closeStripes();
         if (heartbeatTask != null) {
             heartbeatTask.cancel(true);
         }
+        outbound.close();
+        synchronized (writeLock) {
+            backlog.clear();
+            backlogChars = 0;
+        }
         try { socket.close(); } catch (IOException ignored) {}
         try { in.close(); } catch (IOException ignored) {}
         try { out.close(); } catch (IOException ignored) {}
     }
 
+    /**
+     * Attach a freshly accepted connection to this parked session, replay what was queued while it was away, and
+     * serve it on the calling thread.
+     */
+    void resumeOn(Socket newSocket, BufferedReader newIn, BufferedWriter newOut) {
+        int gen;
+        Socket previous;
+        synchronized (writeLock) {
+            previous = socket;
+            socket = newSocket;
+            in = newIn;
+            out = newOut;
+            gen = ++generation;
+            detached = false;
+            lastActivity = System.currentTimeMillis();
+            chatCompression.reset();
+            compressChat = false;
+            try {
+                writeLine(crypto.encrypt(SessionProtocol.buildAccept(sessionToken, true, PrefsManager.isCompressChat())));
+                while (!backlog.isEmpty()) {
+                    writeLine(backlog.pollFirst());
+                }
+                out.flush();
+            } catch (Exception e) {
+                LOG.warn("Failed to replay session backlog to {}", clientId, e);
+            }
+            backlogChars = 0;
+        }
+        if (previous != newSocket) {
+            try { previous.close(); } catch (IOException ignored) {}
+        }
+        LOG.info("Session resumed for {}", clientId);
+        serve(gen);
+    }
+
+    private void detach() {
+        LOG.info("Chat compression for {}: {}", clientId, chatCompression.describe());
+        detachedAt = System.currentTimeMillis();
+        detached = true;
+        closeStripes();
+        try { socket.close(); } catch (IOException ignored) {}
+        LOG.info("Session for {} parked for up to {} ms", clientId, SESSION_GRACE_MS);
+    }
+
+    private int currentGeneration() {
+        synchronized (writeLock) {
+            return generation;
+        }
+    }
+
+    // Runs on this client's writer thread. Chat text is only compressed when it can go out on the live connection;
+    // frames that end up in the backlog are sent plain, since the next connection starts a fresh stream.
+    private void writeFrame(String plaintext) {
+        try {
+            synchronized (writeLock) {
+                if (running && !detached && compressChat && FrameScheduler.classify(plaintext) == FrameScheduler.Lane.CHAT) {
+                    try {
+                        writeLine(crypto.encrypt(chatCompression.compress(plaintext)));
+                        out.flush();
+                        return;
+                    } catch (IOException e) {
+                        LOG.debug("Compressed write to {} failed; falling back to the backlog", clientId, e);
+                    }
+                }
+            }
+            sendEncrypted(crypto.encrypt(ChatCompression.plain(plaintext)));
+        } catch (GeneralSecurityException e) {
+            LOG.warn("Failed to encrypt outbound message to {}", clientId, e);
+        }
+    }
+
     private void sendEncrypted(String encryptedLine) {
         if (!running) return;
-        synchronized (out) {
+        synchronized (writeLock) {
+            if (detached) {
+                queueWhileDetached(encryptedLine);
+                return;
+            }
             try {
-                out.write(encryptedLine);
-                out.newLine();
+                writeLine(encryptedLine);
                 out.flush();
             } catch (IOException e) {
+                if (sessionToken != null) {
+                    // The read loop will notice the broken socket and park the session; keep the frame for replay
+                    queueWhileDetached(encryptedLine);
+                    return;
+                }
                 LOG.warn("Failed to send payload to {}", clientId, e);
                 closeQuietly();
             }
         }
     }
 
+    // Caller must hold writeLock
+    private void queueWhileDetached(String encryptedLine) {
+        if (backlogChars + encryptedLine.length() > MAX_BACKLOG_CHARS) {
+            LOG.warn("Session backlog for {} exceeded {} chars; dropping session", clientId, MAX_BACKLOG_CHARS);
+            server.expireSession(this);
+            return;
+        }
+        backlog.addLast(encryptedLine);
+        backlogChars += encryptedLine.length();
+    }
+
+    // Caller must hold writeLock
+    private void writeLine(String line) throws IOException {
+        out.write(line);
+        out.newLine();
+    }
+
     private void scheduleHeartbeat() {
         if (heartbeatScheduler == null) {
             return;
@@ -126,10 +370,17 @@ public class ClientHandler implements Runnable {
             if (!running) {
                 return;
             }
+            if (detached) {
+                if (System.currentTimeMillis() - detachedAt >= SESSION_GRACE_MS) {
+                    LOG.info("Session for {} expired", clientId);
+                    server.expireSession(this);
+                }
+                return;
+            }
             long idle = System.currentTimeMillis() - lastActivity;
             if (idle >= heartbeatTimeoutMs) {
                 LOG.warn("Heartbeat timeout for {}; disconnecting", clientId);
-                closeQuietly();
+                try { socket.close(); } catch (IOException ignored) {}
                 return;
             }
             if (idle >= heartbeatIntervalMs) {
@@ -0,0 +1,478 @@
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One selector thread that connects, reads and writes the line-framed connections of every client session in the
+ * process, plus one timer for their reconnects and periodic work, so threads do not multiply with sessions.
+ * <p>
+ * Received lines are handed to the connection's {@link Handler} in order, one at a time, on the handler executor;
+ * a connection whose handler falls more than {@link #MAX_PENDING_CHARS} behind is not read until it catches up.
+ * Writes never block: lines are queued and written as the socket takes them, and {@link Connection#canWrite()}
+ * tells a writer to hold off while too much is queued.
+ */
+final class ClientIoLoop implements Closeable {
+    private static final Logger LOG = AppLogger.get(ClientIoLoop.class);
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    // Characters received but not yet handled before a connection stops being read
+    static final int MAX_PENDING_CHARS = 4 * 1024 * 1024;
+    // Longest line accepted, well above a full batch frame; a peer sending more without a line end is cut off
+    static final int MAX_LINE_BYTES = 16 * 1024 * 1024;
+    // Bytes queued for a connection before it reports it cannot take more
+    static final int MAX_UNWRITTEN_BYTES = 1024 * 1024;
+    private static final long CONNECT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(10);
+    // How long a closing connection may take to write what was queued before it is cut off
+    private static final long CLOSE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * Receives a connection's lines, without their line ends, and is told once after the last one that it closed.
+     */
+    interface Handler {
+        void line(Connection connection, String line);
+
+        /**
+         * @param cause why it closed, or null when the peer ended it or it was closed locally
+         */
+        void closed(Connection connection, IOException cause);
+    }
+
+    private final Selector selector;
+    private final Executor handlers;
+    private final ScheduledExecutorService timer;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES); // loop thread only
+    private volatile boolean closed;
+
+    /**
+     * @param handlers runs handlers, name lookups and timed tasks; these may block, so it must not be bounded so
+     *                 tightly that blocked handlers starve the rest
+     */
+    ClientIoLoop(Executor handlers) throws IOException {
+        this.selector = Selector.open();
+        this.handlers = handlers;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Client-Timer");
+            t.setDaemon(true);
+            return t;
+        });
+        Thread thread = new Thread(this::run, "Client-IO");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Open a connection to {@code host}; the future completes once it is connected, or fails after
+     * {@link #CONNECT_TIMEOUT_MS}.
+     */
+    CompletableFuture<Connection> connect(String host, int port, Handler handler) {
+        CompletableFuture<Connection> opened = new CompletableFuture<>();
+        handlers.execute(() -> {
+            SocketChannel channel = null;
+            try {
+                InetSocketAddress address = new InetSocketAddress(host, port); // may block on a name lookup
+                if (address.isUnresolved()) {
+                    throw new UnknownHostException(host);
+                }
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                Connection connection = new Connection(channel, handler, opened);
+                boolean connected = channel.connect(address);
+                submit(() -> connection.register(connected));
+                timer.schedule(() -> submit(() -> {
+                    if (!opened.isDone()) {
+                        connection.end(new SocketTimeoutException("Connect timed out"));
+                    }
+                }), CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (IOException | RuntimeException e) {
+                closeQuietly(channel);
+                opened.completeExceptionally(e);
+            }
+        });
+        return opened;
+    }
+
+    /**
+     * Run {@code task} on the handler executor after {@code delayMs}.
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        return timer.schedule(() -> handlers.execute(task), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run {@code task} on the handler executor every {@code periodMs}, skipping a turn while the last is still running.
+     */
+    ScheduledFuture<?> every(Runnable task, long periodMs) {
+        AtomicBoolean running = new AtomicBoolean();
+        return timer.scheduleAtFixedRate(() -> {
+            if (running.compareAndSet(false, true)) {
+                handlers.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        running.set(false);
+                    }
+                });
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        timer.shutdownNow();
+        selector.wakeup();
+    }
+
+    private void submit(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    ((Connection) key.attachment()).ready(key);
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Client I/O loop error", e);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((Connection) key.attachment()).end(null);
+        }
+        closeQuietly(selector);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    final class Connection {
+        private final SocketChannel channel;
+        private final Handler handler;
+        private final CompletableFuture<Connection> opened;
+        private SelectionKey key; // loop thread only
+        private byte[] partial = new byte[256]; // loop thread only: the line being received
+        private int partialLength;
+        private volatile SocketAddress remote;
+        private volatile Runnable onWritable = () -> { };
+        // Guarded by this
+        private final ArrayDeque<ByteBuffer> unwritten = new ArrayDeque<>();
+        private final ArrayDeque<String> received = new ArrayDeque<>();
+        private int unwrittenBytes;
+        private long receivedChars;
+        private boolean writerWaiting;
+        private boolean readPaused;
+        private boolean handling;
+        private boolean closing;
+        private boolean ended;
+        private IOException failure;
+
+        private Connection(SocketChannel channel, Handler handler, CompletableFuture<Connection> opened) {
+            this.channel = channel;
+            this.handler = handler;
+            this.opened = opened;
+        }
+
+        SocketAddress remoteAddress() {
+            return remote;
+        }
+
+        /**
+         * Queue a line to be written; never blocks.
+         */
+        void write(String line) throws IOException {
+            byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            boolean first;
+            synchronized (this) {
+                if (ended || closing) {
+                    throw new IOException("Connection closed");
+                }
+                unwritten.addLast(ByteBuffer.wrap(bytes));
+                unwrittenBytes += bytes.length;
+                first = unwritten.size() == 1;
+            }
+            if (first) {
+                submit(() -> {
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        end(e);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Whether the connection takes more lines now. After it said no, {@code onWritable} runs once it does again.
+         */
+        synchronized boolean canWrite() {
+            if (ended || unwrittenBytes < MAX_UNWRITTEN_BYTES) {
+                return true;
+            }
+            writerWaiting = true;
+            return false;
+        }
+
+        void onWritable(Runnable callback) {
+            onWritable = callback;
+        }
+
+        /**
+         * Close the connection once the lines already queued are written, or after a few seconds if the peer does not
+         * take them; lines already received are still handed over before the handler hears it closed.
+         */
+        void close() {
+            if (closed) {
+                return; // the loop ends every connection as it stops
+            }
+            timer.schedule(() -> submit(() -> end(null)), CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            submit(() -> {
+                synchronized (this) {
+                    closing = true;
+                }
+                try {
+                    if (opened.isDone()) {
+                        flush();
+                    } else {
+                        end(null);
+                    }
+                } catch (IOException e) {
+                    end(e);
+                }
+            });
+        }
+
+        // Loop thread
+        private void register(boolean connected) {
+            try {
+                key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+                if (connected) {
+                    established();
+                }
+            } catch (IOException e) {
+                end(e);
+            }
+        }
+
+        // Loop thread
+        private void ready(SelectionKey key) {
+            try {
+                if (key.isValid() && key.isConnectable() && channel.finishConnect()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    established();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush();
+                }
+            } catch (IOException e) {
+                end(e);
+            }
+        }
+
+        private void established() throws IOException {
+            remote = channel.getRemoteAddress();
+            opened.complete(this);
+        }
+
+        private void read() throws IOException {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                end(null);
+                return;
+            }
+            List<String> lines = new ArrayList<>();
+            byte[] bytes = readBuffer.array();
+            boolean tooLong = false;
+            for (int i = 0; i < n; i++) {
+                if (bytes[i] != '\n') {
+                    if (partialLength == MAX_LINE_BYTES) {
+                        tooLong = true;
+                        break;
+                    }
+                    if (partialLength == partial.length) {
+                        partial = Arrays.copyOf(partial, partialLength * 2);
+                    }
+                    partial[partialLength++] = bytes[i];
+                    continue;
+                }
+                int length = partialLength > 0 && partial[partialLength - 1] == '\r' ? partialLength - 1 : partialLength;
+                lines.add(new String(partial, 0, length, StandardCharsets.UTF_8));
+                partialLength = 0;
+            }
+            if (!lines.isEmpty()) {
+                synchronized (this) {
+                    for (String line : lines) {
+                        received.addLast(line);
+                        receivedChars += line.length();
+                    }
+                    if (receivedChars > MAX_PENDING_CHARS && !readPaused) {
+                        readPaused = true;
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    }
+                    startHandling();
+                }
+            }
+            if (tooLong) {
+                end(new IOException("Line longer than " + MAX_LINE_BYTES + " bytes"));
+            }
+        }
+
+        // Loop thread. Writes what the socket takes now and waits for it to be writable again for the rest.
+        private void flush() throws IOException {
+            Runnable wake = null;
+            boolean done;
+            synchronized (this) {
+                while (!unwritten.isEmpty()) {
+                    ByteBuffer head = unwritten.peekFirst();
+                    int before = head.remaining();
+                    channel.write(head);
+                    unwrittenBytes -= before - head.remaining();
+                    if (head.hasRemaining()) {
+                        break;
+                    }
+                    unwritten.pollFirst();
+                }
+                if (key != null && key.isValid() && (key.interestOps() & SelectionKey.OP_CONNECT) == 0) {
+                    int ops = key.interestOps();
+                    key.interestOps(unwritten.isEmpty() ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE);
+                }
+                if (writerWaiting && unwrittenBytes < MAX_UNWRITTEN_BYTES / 2) {
+                    writerWaiting = false;
+                    wake = onWritable;
+                }
+                done = closing && unwritten.isEmpty();
+            }
+            if (wake != null) {
+                handlers.execute(wake);
+            }
+            if (done) {
+                end(null);
+            }
+        }
+
+        // Loop thread
+        private void resumeReading() {
+            if (key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        // Loop thread
+        private void end(IOException cause) {
+            Runnable wake;
+            synchronized (this) {
+                if (ended) {
+                    return;
+                }
+                ended = true;
+                failure = cause;
+                unwritten.clear();
+                unwrittenBytes = 0;
+                wake = writerWaiting ? onWritable : null;
+                if (opened.isDone()) {
+                    startHandling();
+                }
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            if (!opened.isDone()) {
+                opened.completeExceptionally(cause != null ? cause : new EOFException("Connection closed"));
+            }
+            if (wake != null) {
+                handlers.execute(wake);
+            }
+        }
+
+        // Caller must hold the monitor
+        private void startHandling() {
+            if (!handling) {
+                handling = true;
+                handlers.execute(this::handle);
+            }
+        }
+
+        // Handler executor, one task per connection at a time
+        private void handle() {
+            while (true) {
+                String line;
+                boolean resume = false;
+                synchronized (this) {
+                    line = received.pollFirst();
+                    if (line == null) {
+                        handling = false;
+                        if (!ended) {
+                            return;
+                        }
+                        handling = true; // stays set, so the close is reported only once
+                    } else {
+                        receivedChars -= line.length();
+                        if (readPaused && receivedChars < MAX_PENDING_CHARS / 2) {
+                            readPaused = false;
+                            resume = true;
+                        }
+                    }
+                }
+                if (resume) {
+                    submit(this::resumeReading);
+                }
+                if (line == null) {
+                    handler.closed(this, failure);
+                    return;
+                }
+                try {
+                    handler.line(this, line);
+                } catch (RuntimeException e) {
+                    LOG.error("Handling a line from {} failed", remote, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+import org.slf4j.Logger;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Every client session of the process, each a tab in one {@link SessionTabs} window. Sessions share one LAN
+ * discovery service, one worker pool for key derivation and encryption, one pool for handling received frames, and
+ * one {@link ClientIoLoop} for their connections, so another server needs no selector, timer, crypto workers or
+ * PBKDF2 run of its own. Handler threads are not bounded, as handlers may block; they grow with the handlers
+ * blocked at once rather than with sessions. Must only be used on the event dispatch thread.
+ */
+final class ClientSessions {
+    private static final Logger LOG = AppLogger.get(ClientSessions.class);
+    private static final int CRYPTO_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static ClientSessions shared;
+
+    private final String username;
+    private final ExecutorService crypto = Executors.newFixedThreadPool(CRYPTO_THREADS, daemon("Client-Crypto"));
+    // Handles received frames, name lookups and timed work; these may block on disk or on a full send queue
+    private final ExecutorService handlers = Executors.newCachedThreadPool(daemon("Client-Handler"));
+    private final ClientIoLoop io;
+    // One session crypto context per password, so its key is derived once however many servers use it
+    private final Map<String, CompletableFuture<SessionCrypto>> keys = new ConcurrentHashMap<>();
+    private final List<EncryptedClient> clients = new ArrayList<>();
+    // Servers whose tab waits for its history to open
+    private final Set<String> opening = new HashSet<>();
+    private final SessionTabs tabs;
+    private DiscoveryService discovery;
+
+    private ClientSessions(String username) {
+        this.username = username;
+        try {
+            this.io = new ClientIoLoop(handlers);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot start the client I/O loop", e);
+        }
+        this.tabs = new SessionTabs("Encrypted Local Messenger - CLIENT", this::closeTab, this::closeAll);
+    }
+
+    /**
+     * The process's sessions, asking for the display name the first time.
+     */
+    static ClientSessions shared() {
+        if (shared == null) {
+            String name = PrefsManager.getUsername(System.getProperty("user.name", "User"));
+            try {
+                String u = JOptionPane.showInputDialog(null, "Enter your display name:", name);
+                if (u != null && !u.trim().isEmpty()) name = u.trim();
+                PrefsManager.setUsername(name);
+            } catch (Exception ignored) {}
+            shared = new ClientSessions(name);
+        }
+        return shared;
+    }
+
+    /**
+     * Connect to a server in a new tab, or show the tab already connected to it. The tab appears once the kept
+     * history is open, which derives its key with PBKDF2 on the crypto pool rather than here.
+     */
+    void open(String host, int port, String password) {
+        for (EncryptedClient client : clients) {
+            if (client.isFor(host, port)) {
+                tabs.select(client.window());
+                return;
+            }
+        }
+        String server = host.toLowerCase(Locale.ROOT) + ":" + port;
+        if (!opening.add(server)) {
+            return;
+        }
+        char[] secret = (password != null ? password : "").toCharArray();
+        CompletableFuture.supplyAsync(() -> ChatHistory.open(ChatHistory.keptDir(host + "_" + port), secret), crypto)
+                .whenComplete((history, error) -> SwingUtilities.invokeLater(() -> {
+                    opening.remove(server);
+                    if (shared != this) {
+                        if (history != null) {
+                            history.close(); // every tab was closed meanwhile
+                        }
+                        return;
+                    }
+                    EncryptedClient client = new EncryptedClient(this, host, port, password,
+                            history != null ? history : ChatHistory.temporary());
+                    clients.add(client);
+                    startDiscovery(client, password);
+                }));
+    }
+
+    String username() {
+        return username;
+    }
+
+    SessionTabs tabs() {
+        return tabs;
+    }
+
+    ClientIoLoop io() {
+        return io;
+    }
+
+    ExecutorService crypto() {
+        return crypto;
+    }
+
+    ExecutorService handlers() {
+        return handlers;
+    }
+
+    /**
+     * The shared crypto context for {@code password}, derived on the crypto pool the first time it is asked for. A
+     * derivation that failed is forgotten, so the next session with that password tries again.
+     */
+    CompletableFuture<SessionCrypto> sessionCrypto(String password) {
+        CompletableFuture<SessionCrypto> derived = keys.computeIfAbsent(password, p -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return new SessionCrypto(p.toCharArray());
+            } catch (GeneralSecurityException e) {
+                throw new CompletionException(e);
+            }
+        }, crypto));
+        derived.whenComplete((shared, error) -> {
+            if (error != null) {
+                keys.remove(password, derived);
+            }
+        });
+        return derived;
+    }
+
+    /**
+     * The LAN discovery service, or null when it could not start.
+     */
+    DiscoveryService discovery() {
+        return discovery;
+    }
+
+    // Invitations are encrypted with the password of the first session; later ones send their own in each invite
+    private void startDiscovery(EncryptedClient client, String password) {
+        if (discovery != null) {
+            client.showDiscoveredPeers(discovery.getPeersSnapshot());
+            return;
+        }
+        try {
+            DiscoveryService started = new DiscoveryService(username, true, password);
+            started.addListener(new DiscoveryService.Listener() {
+                @Override
+                public void onPeersChanged(Map<String, DiscoveryService.DiscoveredPeer> snapshot) {
+                    SwingUtilities.invokeLater(() -> clients.forEach(c -> c.showDiscoveredPeers(snapshot)));
+                }
+
+                @Override
+                public void onInvitation(DiscoveryService.Invitation invitation) {
+                    SwingUtilities.invokeLater(() -> {
+                        int res = JOptionPane.showConfirmDialog(tabs,
+                                "'" + invitation.fromUsername + "' (" + invitation.fromIp + ") invites you to join:\n" +
+                                        invitation.serverHost + ":" + invitation.serverPort + "\nAccept?",
+                                "Chat Invitation",
+                                JOptionPane.YES_NO_OPTION);
+                        if (res == JOptionPane.YES_OPTION) {
+                            // Use inviter's IP if invite host is loopback or empty
+                            String targetHost = EncryptedClient.chooseInvitationHost(invitation.serverHost, invitation.fromIp);
+                            open(targetHost, invitation.serverPort, invitation.serverPassword);
+                        }
+                    });
+                }
+            });
+            started.start();
+            discovery = started;
+            client.showDiscoveredPeers(Map.of());
+            client.window().appendMessage("SYSTEM", "LAN discovery started on UDP " + DiscoveryService.DISCOVERY_PORT);
+        } catch (Exception ex) {
+            LOG.error("Discovery service start failure", ex);
+            client.window().appendMessage("ERROR", "Discovery start failed: " + ex.getMessage());
+        }
+    }
+
+    private void closeTab(ChatWindow window) {
+        for (EncryptedClient client : new ArrayList<>(clients)) {
+            if (client.window() == window) {
+                clients.remove(client);
+                tabs.remove(window);
+                client.shutdown();
+                window.dispose();
+            }
+        }
+        if (clients.isEmpty()) {
+            closeAll();
+            tabs.dispose();
+        }
+    }
+
+    // Ends every session; their histories are saved as their windows are disposed
+    private void closeAll() {
+        clients.forEach(client -> {
+            client.shutdown();
+            client.window().dispose();
+        });
+        clients.clear();
+        if (discovery != null) {
+            try { discovery.stop(); } catch (Exception ignored) {}
+            discovery = null;
+        }
+        io.close();
+        crypto.shutdown();
+        handlers.shutdown();
+        if (shared == this) {
+            shared = null;
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,225 @@
+import org.slf4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed index of files this user already has: SHA-256 to path, plus aliases from transfer ids to
+ * content hashes. A receiver checks it when a file is offered and links the existing copy instead of downloading
+ * it again; a sender uses it to announce the content hash of a file it has hashed before.
+ * <p>
+ * The index is an append-only log under {@code ~/.localchat} that is compacted on load. An entry is only trusted
+ * while the file still has the size and modification time recorded for it, and a background pass hashes new
+ * files in the download directory one at a time, so the index catches up incrementally instead of rescanning.
+ */
+public final class ContentStore {
+    private static final Logger LOG = AppLogger.get(ContentStore.class);
+    private static final String FILE_ENTRY = "F";
+    private static final String ALIAS_ENTRY = "A";
+
+    private final Path indexFile;
+    private final Map<String, Entry> byHash = new HashMap<>();
+    private final Map<Path, String> byPath = new HashMap<>();
+    private final Map<String, String> aliases = new HashMap<>();
+    private BufferedWriter log;
+
+    private static final class Holder {
+        static final ContentStore SHARED = new ContentStore(Paths.get(System.getProperty("user.home", "."), ".localchat", "content-index"));
+    }
+
+    /**
+     * The store shared by every window in this process.
+     */
+    public static ContentStore shared() {
+        return Holder.SHARED;
+    }
+
+    public ContentStore(Path indexFile) {
+        this.indexFile = indexFile;
+        load();
+    }
+
+    /**
+     * Find an intact local copy by content hash or transfer id, or null.
+     */
+    public synchronized Path lookup(String key, long size) {
+        if (key == null) {
+            return null;
+        }
+        String hash = aliases.getOrDefault(key, key);
+        Entry entry = byHash.get(hash);
+        if (entry == null || entry.size() != size) {
+            return null;
+        }
+        if (!isIntact(entry)) {
+            byHash.remove(hash);
+            byPath.remove(entry.path());
+            return null;
+        }
+        return entry.path();
+    }
+
+    /**
+     * The content hash recorded for {@code path}, if the file has not changed since.
+     */
+    public synchronized String knownHash(Path path) {
+        Path key = path.toAbsolutePath().normalize();
+        String hash = byPath.get(key);
+        if (hash == null) {
+            return null;
+        }
+        Entry entry = byHash.get(hash);
+        if (entry == null || !entry.path().equals(key) || !isIntact(entry)) {
+            byPath.remove(key);
+            return null;
+        }
+        return hash;
+    }
+
+    public synchronized void record(String sha256, Path path) {
+        try {
+            Path key = path.toAbsolutePath().normalize();
+            Entry entry = new Entry(key, Files.size(key), Files.getLastModifiedTime(key).toMillis());
+            byHash.put(sha256, entry);
+            byPath.put(key, sha256);
+            append(FILE_ENTRY + "\t" + sha256 + "\t" + entry.size() + "\t" + entry.modified() + "\t" + key);
+        } catch (IOException e) {
+            LOG.warn("Failed to index {}", path, e);
+        }
+    }
+
+    public synchronized void alias(String transferId, String sha256) {
+        if (transferId == null || transferId.equals(sha256)) {
+            return;
+        }
+        aliases.put(transferId, sha256);
+        append(ALIAS_ENTRY + "\t" + transferId + "\t" + sha256);
+    }
+
+    /**
+     * Hash files in {@code dir} that the index does not know yet, on a low-priority background thread.
+     */
+    public void indexDirectoryAsync(Path dir) {
+        Thread indexer = new Thread(() -> indexDirectory(dir), "Content-Indexer");
+        indexer.setDaemon(true);
+        indexer.setPriority(Thread.MIN_PRIORITY);
+        indexer.start();
+    }
+
+    void indexDirectory(Path dir) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(".") || !Files.isRegularFile(file) || knownHash(file) != null) {
+                    continue;
+                }
+                try {
+                    record(FileTransferProtocol.computeSha256(file), file);
+                } catch (IOException e) {
+                    LOG.debug("Skipping {} while indexing", file, e);
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to index {}", dir, e);
+        }
+    }
+
+    // Caller must hold the monitor
+    private boolean isIntact(Entry entry) {
+        try {
+            return Files.isRegularFile(entry.path())
+                    && Files.size(entry.path()) == entry.size()
+                    && Files.getLastModifiedTime(entry.path()).toMillis() == entry.modified();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Caller must hold the monitor
+    private void append(String line) {
+        try {
+            if (log == null) {
+                Files.createDirectories(indexFile.getParent());
+                log = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            log.write(line);
+            log.newLine();
+            log.flush();
+        } catch (IOException e) {
+            LOG.warn("Failed to update content index {}", indexFile, e);
+        }
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(indexFile)) {
+            return;
+        }
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                String[] parts = line.split("\t", 5);
+                try {
+                    if (FILE_ENTRY.equals(parts[0]) && parts.length == 5) {
+                        Path path = Paths.get(parts[4]);
+                        String stale = byPath.put(path, parts[1]);
+                        if (stale != null && !stale.equals(parts[1])) {
+                            byHash.remove(stale);
+                        }
+                        byHash.put(parts[1], new Entry(path, Long.parseLong(parts[2]), Long.parseLong(parts[3])));
+                    } else if (ALIAS_ENTRY.equals(parts[0]) && parts.length == 3) {
+                        aliases.put(parts[1], parts[2]);
+                    }
+                } catch (RuntimeException e) {
+                    LOG.debug("Ignoring malformed content index line {}", lines, e);
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to read content index {}", indexFile, e);
+            return;
+        }
+        byHash.values().removeIf(entry -> !isIntact(entry));
+        byPath.keySet().removeIf(path -> !byHash.containsKey(byPath.get(path)) || !byHash.get(byPath.get(path)).path().equals(path));
+        aliases.values().removeIf(hash -> !byHash.containsKey(hash));
+        if (lines > 2 * (byHash.size() + aliases.size()) + 16) {
+            compact();
+        }
+    }
+
+    // Rewrite the log with live entries only
+    private void compact() {
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> e : byHash.entrySet()) {
+                Entry entry = e.getValue();
+                out.write(FILE_ENTRY + "\t" + e.getKey() + "\t" + entry.size() + "\t" + entry.modified() + "\t" + entry.path());
+                out.newLine();
+            }
+            for (Map.Entry<String, String> e : aliases.entrySet()) {
+                out.write(ALIAS_ENTRY + "\t" + e.getKey() + "\t" + e.getValue());
+                out.newLine();
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to compact content index {}", indexFile, e);
+            return;
+        }
+        try {
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOG.warn("Failed to replace content index {}", indexFile, e);
+        }
+    }
+
+    private record Entry(Path path, long size, long modified) { }
+}
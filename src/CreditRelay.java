@@ -0,0 +1,269 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Server-side aggregation of receiver credit for one relayed transfer. The origin may only advance as far as the
+ * slowest receiver that takes part in flow control; receivers that never acknowledge (older clients) are ignored,
+ * and once every participant has left the origin is held at a zero window, so it stalls out unless someone joins.
+ * <p>
+ * The first grant also tells the origin where to start, so it is held back until every expected receiver has
+ * reported its resume point (or {@link #release()} gives up waiting) and the origin starts from the lowest one.
+ * Compressed chunks and multi-block frames are only accepted on behalf of the group when every participant
+ * accepts them. Delta chunks are only accepted when every participant also signed the same older copy as the
+ * receiver whose signature went to the origin.
+ * <p>
+ * Granting is also how a receiver accepts the offer: only participants are sent the transfer's chunks, each from
+ * the next frame after it joined, and not chunks it has already acknowledged when the origin goes back for a late
+ * joiner's missing start.
+ *
+ * @param <K> recipient identity, typically a {@link ClientHandler}
+ */
+public final class CreditRelay<K> {
+    private final Object origin;
+    private final Map<K, long[]> grants = new HashMap<>();
+    private final Set<K> acceptDeflate = new HashSet<>();
+    private final Set<K> acceptBatch = new HashSet<>();
+    private final Set<K> acceptDelta = new HashSet<>();
+    private final Map<K, String> bases = new HashMap<>();
+    private String deltaBasis;
+    private final Set<K> pending;
+    private final Set<K> expected;
+    // Expected receivers that opted out, each counted once however often it repeats itself
+    private final Set<K> haves = new HashSet<>();
+    private final Set<K> declines = new HashSet<>();
+    // Where the origin was asked to go back to for a receiver whose queue had no room, until it acknowledges past it
+    private final Map<K, Integer> resendFrom = new HashMap<>();
+    private boolean expired;
+    private long lastNext = -1;
+    private long lastLimit = -1;
+    private boolean lastDeflate;
+    private boolean lastBatch;
+    private boolean lastDelta;
+
+    public CreditRelay(Object origin) {
+        this(origin, Set.of());
+    }
+
+    public CreditRelay(Object origin, Collection<? extends K> expected) {
+        this.origin = origin;
+        this.pending = new HashSet<>(expected);
+        this.expected = Set.copyOf(pending);
+    }
+
+    /**
+     * The connection credit is forwarded to, or null when the server itself is sending.
+     */
+    public Object origin() {
+        return origin;
+    }
+
+    /**
+     * Record a receiver's cumulative grant. Returns the aggregated grant when it changed, otherwise null.
+     */
+    public synchronized Grant update(K recipient, int nextSequence, int window) {
+        return update(recipient, nextSequence, window, false);
+    }
+
+    public synchronized Grant update(K recipient, int nextSequence, int window, boolean deflate) {
+        return update(recipient, nextSequence, window, deflate, false);
+    }
+
+    public synchronized Grant update(K recipient, int nextSequence, int window, boolean deflate, boolean batch) {
+        return update(recipient, nextSequence, window, deflate, batch, false);
+    }
+
+    public synchronized Grant update(K recipient, int nextSequence, int window, boolean deflate, boolean batch,
+                                     boolean delta) {
+        if (delta && deltaBasis != null && deltaBasis.equals(bases.get(recipient))) {
+            acceptDelta.add(recipient);
+        } else {
+            acceptDelta.remove(recipient);
+        }
+        if (batch) {
+            acceptBatch.add(recipient);
+        } else {
+            acceptBatch.remove(recipient);
+        }
+        long limit = window == CreditWindow.UNLIMITED ? Long.MAX_VALUE : (long) nextSequence + window;
+        grants.put(recipient, new long[]{nextSequence, limit});
+        if (deflate) {
+            acceptDeflate.add(recipient);
+        } else {
+            acceptDeflate.remove(recipient);
+        }
+        pending.remove(recipient);
+        Integer asked = resendFrom.get(recipient);
+        if (asked != null && nextSequence > asked) {
+            resendFrom.remove(recipient);
+        }
+        return pending.isEmpty() ? aggregate() : null;
+    }
+
+    /**
+     * A frame starting at {@code sequence} could not be queued for {@code recipient}. Returns the sequence to ask
+     * the origin to go back to, or -1 when it was already asked to go back no further than that; frames dropped
+     * behind the first one are covered by that request.
+     */
+    public synchronized int dropped(K recipient, int sequence) {
+        Integer asked = resendFrom.get(recipient);
+        if (asked != null && asked < sequence) {
+            return -1;
+        }
+        resendFrom.put(recipient, sequence);
+        return sequence;
+    }
+
+    /**
+     * Record the older copy a receiver signed. Returns true for the first signature, which is the one to pass to
+     * the origin; later receivers take delta chunks only if theirs is the same copy.
+     */
+    public synchronized boolean signature(K recipient, String basisHash) {
+        bases.put(recipient, basisHash);
+        if (deltaBasis != null) {
+            return false;
+        }
+        deltaBasis = basisHash;
+        return true;
+    }
+
+    /**
+     * Stop waiting for expected receivers that have not answered yet. Returns the aggregated grant, if any.
+     */
+    public synchronized Grant release() {
+        if (pending.isEmpty()) {
+            return null;
+        }
+        pending.clear();
+        return grants.isEmpty() ? null : aggregate();
+    }
+
+    /**
+     * Forget a receiver that disconnected or declined. Returns the aggregated grant when it changed.
+     */
+    public synchronized Grant remove(K recipient) {
+        boolean waited = pending.remove(recipient);
+        acceptDeflate.remove(recipient);
+        acceptBatch.remove(recipient);
+        acceptDelta.remove(recipient);
+        bases.remove(recipient);
+        resendFrom.remove(recipient);
+        if (grants.remove(recipient) == null && !waited) {
+            return null;
+        }
+        if (!pending.isEmpty()) {
+            return null;
+        }
+        if (grants.isEmpty()) {
+            lastNext = Math.max(0, lastNext);
+            lastLimit = lastNext;
+            return new Grant((int) lastNext, 0);
+        }
+        return aggregate();
+    }
+
+    /**
+     * A receiver already holds the content and drops out. Returns the aggregated grant when it changed; check
+     * {@link #everyoneHasIt()} first, since then there is nothing left to send.
+     */
+    public synchronized Grant have(K recipient) {
+        if (expected.contains(recipient)) {
+            declines.remove(recipient);
+            haves.add(recipient);
+        }
+        return remove(recipient);
+    }
+
+    public synchronized boolean everyoneHasIt() {
+        return !expected.isEmpty() && haves.size() == expected.size();
+    }
+
+    /**
+     * A receiver turned the offer down. Returns the aggregated grant when it changed; check {@link #nobodyNeedsIt()}
+     * first.
+     */
+    public synchronized Grant decline(K recipient) {
+        if (expected.contains(recipient)) {
+            haves.remove(recipient);
+            declines.add(recipient);
+        }
+        return remove(recipient);
+    }
+
+    /**
+     * Close the offer to receivers that have not answered. Returns true when nobody accepted, so there is nothing
+     * to send.
+     */
+    public synchronized boolean expire() {
+        expired = true;
+        return nobodyNeedsIt();
+    }
+
+    /**
+     * Every expected receiver already has the content or declined it, or the offer expired without a taker.
+     */
+    public synchronized boolean nobodyNeedsIt() {
+        if (!grants.isEmpty()) {
+            return false;
+        }
+        return expired || !expected.isEmpty() && haves.size() + declines.size() == expected.size();
+    }
+
+    /**
+     * Participants still missing a block up to {@code lastSequence}, i.e. the ones a frame ending there is for.
+     */
+    public synchronized List<K> recipientsFor(int lastSequence) {
+        List<K> recipients = new ArrayList<>(grants.size());
+        grants.forEach((recipient, grant) -> {
+            if (grant[0] <= lastSequence) {
+                recipients.add(recipient);
+            }
+        });
+        return recipients;
+    }
+
+    public synchronized List<K> participants() {
+        return new ArrayList<>(grants.keySet());
+    }
+
+    // Caller must hold the monitor
+    private Grant aggregate() {
+        long next = Long.MAX_VALUE;
+        long limit = Long.MAX_VALUE;
+        for (long[] g : grants.values()) {
+            next = Math.min(next, g[0]);
+            limit = Math.min(limit, g[1]);
+        }
+        boolean deflate = acceptDeflate.size() == grants.size();
+        boolean batch = acceptBatch.size() == grants.size();
+        boolean delta = acceptDelta.size() == grants.size();
+        if (next == lastNext && limit == lastLimit && deflate == lastDeflate && batch == lastBatch && delta == lastDelta) {
+            return null;
+        }
+        lastNext = next;
+        lastLimit = limit;
+        lastDeflate = deflate;
+        lastBatch = batch;
+        lastDelta = delta;
+        int window = limit == Long.MAX_VALUE ? CreditWindow.UNLIMITED : (int) Math.min(Integer.MAX_VALUE - 1, Math.max(0, limit - next));
+        return new Grant((int) next, window, deflate, batch, delta);
+    }
+
+    public record Grant(int nextSequence, int window, boolean deflate, boolean batch, boolean delta) {
+        public Grant(int nextSequence, int window, boolean deflate, boolean batch) {
+            this(nextSequence, window, deflate, batch, false);
+        }
+
+        public Grant(int nextSequence, int window, boolean deflate) {
+            this(nextSequence, window, deflate, false);
+        }
+
+        public Grant(int nextSequence, int window) {
+            this(nextSequence, window, false);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sender-side view of the credit receivers have granted for one file transfer.
+ * <p>
+ * A chunk may only be sent while its sequence number is inside the granted window. Within that grant the sender
+ * keeps roughly two bandwidth-delay products in flight, estimated from the delivery rate between acknowledgements
+ * and the minimum observed round trip, so a fast link opens the window quickly while a slow disk or Wi-Fi peer does
+ * not get megabytes parked in socket and relay buffers.
+ * <p>
+ * The same estimate sizes frames: when receivers accept multi-block frames, {@link #blocksPerFrame()} packs about
+ * {@link #TARGET_FRAME_MS} worth of the delivery rate into each one, so a fast LAN pays the per-frame framing and
+ * encryption cost far less often while a slow or lossy link keeps single-block frames and small resends.
+ * <p>
+ * Receivers ask for lost chunks in one of two ways: a rewind sends everything again from the first one missing,
+ * while a resend asks for only the chunks that failed their proofs, which the sender reads and sends on their own
+ * before going on where it was.
+ */
+public final class CreditWindow {
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+    static final int MIN_WINDOW = 8;
+    static final int INITIAL_WINDOW = 16;
+    private static final int SEND_TIME_SLOTS = 1024;
+    static final long TARGET_FRAME_MS = 5;
+    // Longer than the server keeps an offer open (EncryptedMultiServer.OFFER_TIMEOUT_MS), so receivers have time to
+    // accept and the server to withdraw an offer nobody took before the sender falls back to uncredited sending
+    private static final long FIRST_GRANT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(75);
+    private static final long STALL_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(90);
+
+    private final int chunkSize;
+    private final long firstGrantTimeoutNanos;
+    private final long stallTimeoutNanos;
+    private final long[] sendTimes = new long[SEND_TIME_SLOTS];
+    private final long createdNanos;
+
+    private long ackedSeq;
+    private long rewindSeq = -1;
+    private final TreeSet<Long> resends = new TreeSet<>();
+    private long grantedLimit;
+    private boolean granted;
+    private boolean uncredited;
+    private boolean closed;
+    private boolean skipped;
+    private boolean deflate;
+    private boolean batch;
+    private boolean delta;
+    private long lastProgressNanos;
+    private long lastAckNanos;
+    private double minRttNanos = Double.MAX_VALUE;
+    private double deliveryRate; // bytes per nanosecond, smoothed
+    private int tunedWindow = INITIAL_WINDOW;
+
+    public CreditWindow(int chunkSize) {
+        this(chunkSize, FIRST_GRANT_TIMEOUT_MS, STALL_TIMEOUT_MS);
+    }
+
+    public CreditWindow(int chunkSize, long firstGrantTimeoutMs, long stallTimeoutMs) {
+        this.chunkSize = chunkSize;
+        this.firstGrantTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(firstGrantTimeoutMs);
+        this.stallTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(stallTimeoutMs);
+        this.createdNanos = System.nanoTime();
+        this.lastProgressNanos = createdNanos;
+    }
+
+    public synchronized void onSent(long seq, long nowNanos) {
+        sendTimes[(int) (seq % SEND_TIME_SLOTS)] = nowNanos;
+    }
+
+    /**
+     * A frame carrying chunks {@code firstSeq} to {@code lastSeq} went out.
+     */
+    public synchronized void onSent(long firstSeq, long lastSeq, long nowNanos) {
+        for (long seq = firstSeq; seq <= lastSeq; seq++) {
+            onSent(seq, nowNanos);
+        }
+    }
+
+    /**
+     * Apply a cumulative grant: everything below {@code nextSeq} was consumed and up to {@code window} more chunks
+     * may be outstanding.
+     */
+    public synchronized void grant(long nextSeq, int window, long nowNanos) {
+        grant(nextSeq, window, false, nowNanos);
+    }
+
+    /**
+     * As {@link #grant(long, int, long)}; the first grant also settles whether receivers accept compressed chunks.
+     */
+    public synchronized void grant(long nextSeq, int window, boolean acceptDeflate, long nowNanos) {
+        grant(nextSeq, window, acceptDeflate, false, nowNanos);
+    }
+
+    /**
+     * As {@link #grant(long, int, boolean, long)}; {@code acceptBatch} follows the latest grant, since it only
+     * shapes frames not yet built.
+     */
+    public synchronized void grant(long nextSeq, int window, boolean acceptDeflate, boolean acceptBatch, long nowNanos) {
+        grant(nextSeq, window, acceptDeflate, acceptBatch, false, nowNanos);
+    }
+
+    /**
+     * As {@link #grant(long, int, boolean, boolean, long)}; {@code acceptDelta} also follows the latest grant, so a
+     * receiver joining without the older copy turns delta chunks off from the next frame.
+     */
+    public synchronized void grant(long nextSeq, int window, boolean acceptDeflate, boolean acceptBatch,
+                                   boolean acceptDelta, long nowNanos) {
+        if (!granted) {
+            deflate = acceptDeflate;
+        }
+        batch = acceptBatch;
+        delta = acceptDelta;
+        long limit = window == UNLIMITED ? Long.MAX_VALUE : nextSeq + window;
+        if (nextSeq > ackedSeq) {
+            long sentAt = sendTimes[(int) ((nextSeq - 1) % SEND_TIME_SLOTS)];
+            if (sentAt > 0 && nowNanos > sentAt) {
+                minRttNanos = Math.min(minRttNanos, nowNanos - sentAt);
+            }
+            if (lastAckNanos > 0 && nowNanos > lastAckNanos) {
+                double sample = (double) (nextSeq - ackedSeq) * chunkSize / (nowNanos - lastAckNanos);
+                deliveryRate = deliveryRate == 0 ? sample : 0.75 * deliveryRate + 0.25 * sample;
+            }
+            ackedSeq = nextSeq;
+            lastAckNanos = nowNanos;
+            retune();
+        }
+        grantedLimit = granted ? Math.max(grantedLimit, limit) : limit;
+        lastProgressNanos = nowNanos;
+        granted = true;
+        notifyAll();
+    }
+
+    /**
+     * Block until chunk {@code seq} may be sent. Falls back to uncredited sending when no receiver has granted
+     * anything within the first-grant timeout (peers without flow control support).
+     */
+    public synchronized void awaitCredit(long seq) throws IOException, InterruptedException {
+        while (true) {
+            if (closed) {
+                throw new IOException("Transfer closed");
+            }
+            if (uncredited || rewindSeq >= 0 || !resends.isEmpty() || seq < creditLimit()) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (!granted) {
+                long left = createdNanos + firstGrantTimeoutNanos - now;
+                if (left <= 0) {
+                    uncredited = true;
+                    return;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+                continue;
+            }
+            long left = lastProgressNanos + stallTimeoutNanos - now;
+            if (left <= 0) {
+                throw new IOException("Receivers stopped granting credit");
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+    }
+
+    /**
+     * Block until the first grant and return the sequence it starts at, which is where receivers holding a partial
+     * copy want the transfer to resume. Returns 0 when nobody grants within the first-grant timeout, and -1 when
+     * every receiver already has the content.
+     */
+    public synchronized long awaitStart() throws IOException, InterruptedException {
+        while (!granted && !uncredited && !skipped) {
+            if (closed) {
+                throw new IOException("Transfer closed");
+            }
+            long left = createdNanos + firstGrantTimeoutNanos - System.nanoTime();
+            if (left <= 0) {
+                uncredited = true;
+                break;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        if (closed) {
+            throw new IOException("Transfer closed");
+        }
+        return skipped ? -1 : ackedSeq;
+    }
+
+    /**
+     * Every receiver already holds the content, so nothing needs to be sent.
+     */
+    public synchronized void skip() {
+        skipped = true;
+        notifyAll();
+    }
+
+    /**
+     * A receiver is missing chunks from {@code seq} on; the sender picks this up through {@link #takeRewind()}.
+     */
+    public synchronized void requestRewind(long seq) {
+        rewindSeq = rewindSeq < 0 ? seq : Math.min(rewindSeq, seq);
+        notifyAll();
+    }
+
+    /**
+     * The sequence the sender has to go back to, or -1 when no receiver asked for a resend.
+     */
+    public synchronized long takeRewind() {
+        long seq = rewindSeq;
+        rewindSeq = -1;
+        if (seq >= 0) {
+            resends.tailSet(seq).clear(); // going back sends them anyway
+        }
+        return seq;
+    }
+
+    /**
+     * A receiver needs {@code count} chunks from {@code seq} on again and kept the rest; the sender picks them up
+     * through {@link #takeResends()}. At most {@link #SEND_TIME_SLOTS} are held, since the receiver repeats a request
+     * that goes unanswered.
+     */
+    public synchronized void requestResend(long seq, int count) {
+        for (long s = seq, end = seq + Math.min(count, SEND_TIME_SLOTS); s < end && resends.size() < SEND_TIME_SLOTS; s++) {
+            resends.add(s);
+        }
+        notifyAll();
+    }
+
+    /**
+     * The chunks to send again on their own, in order, or none when no receiver asked.
+     */
+    public synchronized List<Long> takeResends() {
+        List<Long> taken = new ArrayList<>(resends);
+        resends.clear();
+        return taken;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isUncredited() {
+        return uncredited;
+    }
+
+    /**
+     * Whether every receiver accepted compressed chunks in the first grant; false when sending uncredited.
+     */
+    public synchronized boolean deflateAccepted() {
+        return deflate && !uncredited;
+    }
+
+    /**
+     * Whether every receiver takes delta chunks against the older copy it signed, as of the latest grant.
+     */
+    public synchronized boolean deltaAccepted() {
+        return delta && !uncredited;
+    }
+
+    /**
+     * Blocks to put in the next frame: about {@link #TARGET_FRAME_MS} at the measured delivery rate, at most a
+     * quarter of the current window so several frames stay in flight, and 1 until the link has been measured or
+     * when some receiver only takes single blocks.
+     */
+    public synchronized int blocksPerFrame() {
+        if (!batch || uncredited || deliveryRate <= 0) {
+            return 1;
+        }
+        double bytes = deliveryRate * TimeUnit.MILLISECONDS.toNanos(TARGET_FRAME_MS);
+        long window = Math.min(tunedWindow, grantedLimit - ackedSeq);
+        long cap = Math.max(1, Math.min(FileTransferProtocol.MAX_BLOCKS_PER_FRAME, window / 4));
+        return (int) Math.max(1, Math.min(cap, (long) (bytes / chunkSize)));
+    }
+
+    synchronized int tunedWindow() {
+        return tunedWindow;
+    }
+
+    // Caller must hold the monitor. An unlimited grant means nobody acknowledges, so there is no rate to size for.
+    private long creditLimit() {
+        return grantedLimit == Long.MAX_VALUE ? grantedLimit : Math.min(grantedLimit, ackedSeq + tunedWindow);
+    }
+
+    // Caller must hold the monitor
+    private void retune() {
+        if (deliveryRate <= 0 || minRttNanos == Double.MAX_VALUE) {
+            return;
+        }
+        double bdpChunks = deliveryRate * minRttNanos / chunkSize;
+        long target = (long) Math.ceil(2 * bdpChunks) + 1;
+        // Never shrink below what is already in flight by more than half, to avoid stalling the pipe
+        tunedWindow = (int) Math.max(MIN_WINDOW, Math.min(Integer.MAX_VALUE, Math.max(target, tunedWindow / 2)));
+    }
+}
@@ -0,0 +1,326 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * rsync-style delta encoding of chunks against an older version of the file that the receiver already holds.
+ * <p>
+ * The receiver splits its copy into blocks and sends a {@link Signature}: a rolling checksum and a truncated
+ * SHA-256 per block. The sender slides a window over each frame's data, and wherever the rolling checksum and then
+ * the strong hash match a block it emits a copy of that block instead of the bytes. The resulting script rebuilds
+ * the frame exactly, so leaf hashes, the Merkle root and the SHA-256 in the EOF are checked as for any other chunk;
+ * a mismatch shows up as a corrupt chunk and is sent again. Matches do not span frames, which costs at most one
+ * block of literal data per frame.
+ */
+final class DeltaCodec {
+    static final int MIN_BLOCK_SIZE = 2048;
+    static final int MAX_BLOCK_SIZE = 1 << 20;
+    static final int MAX_BLOCKS = 16384;
+    static final int STRONG_BYTES = 16;
+    static final int SUM_BYTES = 4 + STRONG_BYTES;
+    private static final int COPY = 1;
+    private static final int LITERAL = 2;
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(FileTransferProtocol::newSha256);
+
+    private DeltaCodec() {
+    }
+
+    /**
+     * Block size for a basis of {@code size} bytes: the smallest power of two from {@link #MIN_BLOCK_SIZE} that
+     * keeps the signature within {@link #MAX_BLOCKS} blocks.
+     */
+    static int blockSizeFor(long size) {
+        int blockSize = MIN_BLOCK_SIZE;
+        while (blockSize < MAX_BLOCK_SIZE && size / blockSize > MAX_BLOCKS) {
+            blockSize <<= 1;
+        }
+        return blockSize;
+    }
+
+    /**
+     * Signature of {@code basis}; a trailing partial block is left out.
+     */
+    static Signature sign(Path basis) throws IOException {
+        long size = Files.size(basis);
+        int blockSize = blockSizeFor(size);
+        int blocks = (int) Math.min(MAX_BLOCKS, size / blockSize);
+        byte[] sums = new byte[blocks * SUM_BYTES];
+        MessageDigest whole = FileTransferProtocol.newSha256();
+        MessageDigest strong = DIGESTS.get();
+        byte[] block = new byte[blockSize];
+        try (InputStream in = Files.newInputStream(basis)) {
+            for (int i = 0; ; i++) {
+                int read = in.readNBytes(block, 0, blockSize);
+                if (read <= 0) {
+                    break;
+                }
+                whole.update(block, 0, read);
+                if (read < blockSize || i >= blocks) {
+                    continue;
+                }
+                int offset = i * SUM_BYTES;
+                writeInt(sums, offset, weakSum(block, 0, blockSize));
+                strong.update(block, 0, blockSize);
+                System.arraycopy(strong.digest(), 0, sums, offset + 4, STRONG_BYTES);
+            }
+        }
+        return new Signature(FileTransferProtocol.toHex(whole.digest()), blockSize, sums);
+    }
+
+    // rsync's rolling checksum: a is the byte sum, b the sum of the running a values, both mod 2^16
+    static int weakSum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += a;
+        }
+        return (b & 0xffff) << 16 | (a & 0xffff);
+    }
+
+    private static byte[] strongSum(byte[] data, int offset, int length) {
+        MessageDigest digest = DIGESTS.get();
+        digest.update(data, offset, length);
+        return Arrays.copyOf(digest.digest(), STRONG_BYTES);
+    }
+
+    private static void writeInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] in, int offset) {
+        return (in[offset] & 0xff) << 24 | (in[offset + 1] & 0xff) << 16 | (in[offset + 2] & 0xff) << 8 | (in[offset + 3] & 0xff);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Sender-side lookup over a receiver's signature.
+     */
+    static final class Index {
+        private final int blockSize;
+        private final byte[] sums;
+        private final Map<Integer, int[]> blocksByWeak = new HashMap<>();
+
+        Index(Signature signature) {
+            this.blockSize = signature.blockSize();
+            this.sums = signature.sums();
+            Map<Integer, List<Integer>> grouped = new HashMap<>();
+            for (int block = 0; block < signature.blocks(); block++) {
+                grouped.computeIfAbsent(readInt(sums, block * SUM_BYTES), k -> new ArrayList<>(1)).add(block);
+            }
+            grouped.forEach((weak, blocks) -> blocksByWeak.put(weak, blocks.stream().mapToInt(Integer::intValue).toArray()));
+        }
+
+        /**
+         * Script rebuilding {@code data} from the receiver's copy, or null when too little of it matches for the
+         * script to be clearly smaller than the data.
+         */
+        byte[] encode(byte[] data) {
+            int n = data.length;
+            if (n < blockSize) {
+                return null;
+            }
+            ByteArrayOutputStream script = new ByteArrayOutputStream();
+            int literalStart = 0;
+            int runStart = -1;
+            int runLength = 0;
+            long matched = 0;
+            int i = 0;
+            int weak = weakSum(data, 0, blockSize);
+            while (i + blockSize <= n) {
+                int block = match(weak, data, i);
+                if (block >= 0) {
+                    if (literalStart < i) {
+                        runStart = flushCopy(script, runStart, runLength);
+                        runLength = 0;
+                        writeLiteral(script, data, literalStart, i);
+                    }
+                    if (runStart >= 0 && runStart + runLength == block) {
+                        runLength++;
+                    } else {
+                        flushCopy(script, runStart, runLength);
+                        runStart = block;
+                        runLength = 1;
+                    }
+                    matched += blockSize;
+                    i += blockSize;
+                    literalStart = i;
+                    if (i + blockSize <= n) {
+                        weak = weakSum(data, i, blockSize);
+                    }
+                    continue;
+                }
+                if (i + blockSize < n) {
+                    weak = roll(weak, data[i] & 0xff, data[i + blockSize] & 0xff);
+                }
+                i++;
+            }
+            if (literalStart < n) {
+                runStart = flushCopy(script, runStart, runLength);
+                writeLiteral(script, data, literalStart, n);
+            } else {
+                flushCopy(script, runStart, runLength);
+            }
+            if (matched == 0 || script.size() >= n - n / 8) {
+                return null;
+            }
+            return script.toByteArray();
+        }
+
+        private int match(int weak, byte[] data, int offset) {
+            int[] candidates = blocksByWeak.get(weak);
+            if (candidates == null) {
+                return -1;
+            }
+            byte[] strong = strongSum(data, offset, blockSize);
+            for (int block : candidates) {
+                if (Arrays.equals(sums, block * SUM_BYTES + 4, block * SUM_BYTES + SUM_BYTES, strong, 0, STRONG_BYTES)) {
+                    return block;
+                }
+            }
+            return -1;
+        }
+
+        private int roll(int weak, int out, int in) {
+            int a = (weak & 0xffff) - out + in;
+            int b = (weak >>> 16) - blockSize * out + a;
+            return (b & 0xffff) << 16 | (a & 0xffff);
+        }
+
+        private static int flushCopy(ByteArrayOutputStream script, int runStart, int runLength) {
+            if (runStart >= 0 && runLength > 0) {
+                script.write(COPY);
+                writeVarint(script, runStart);
+                writeVarint(script, runLength);
+            }
+            return -1;
+        }
+
+        private static void writeLiteral(ByteArrayOutputStream script, byte[] data, int from, int to) {
+            script.write(LITERAL);
+            writeVarint(script, to - from);
+            script.write(data, from, to - from);
+        }
+    }
+
+    /**
+     * Receiver-side access to its older copy, for rebuilding delta chunks.
+     */
+    static final class Basis implements Closeable {
+        private final FileChannel channel;
+        private final int blockSize;
+        private final long blocks;
+
+        Basis(Path file, int blockSize) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            this.blockSize = blockSize;
+            this.blocks = Math.min(MAX_BLOCKS, channel.size() / blockSize);
+        }
+
+        /**
+         * Run {@code script} and return the bytes it rebuilds, at most {@code maxLength} of them. A script that is
+         * malformed, refers past the signed blocks or cannot be read is rejected with an
+         * {@link IllegalArgumentException}, like any other undecodable chunk.
+         */
+        byte[] apply(byte[] script, int maxLength) {
+            byte[] out = new byte[maxLength];
+            int length = 0;
+            int[] pos = {0};
+            try {
+                while (pos[0] < script.length) {
+                    int op = script[pos[0]++];
+                    if (op == COPY) {
+                        long first = readVarint(script, pos);
+                        long count = readVarint(script, pos);
+                        if (count <= 0 || first + count > blocks || length + count * blockSize > maxLength) {
+                            throw new IllegalArgumentException("Delta copy out of range");
+                        }
+                        ByteBuffer target = ByteBuffer.wrap(out, length, (int) count * blockSize);
+                        long at = first * blockSize;
+                        while (target.hasRemaining()) {
+                            int read = channel.read(target, at + target.position() - length);
+                            if (read < 0) {
+                                throw new IllegalArgumentException("Delta basis is shorter than its signature");
+                            }
+                        }
+                        length += (int) count * blockSize;
+                    } else if (op == LITERAL) {
+                        long count = readVarint(script, pos);
+                        if (count < 0 || count > script.length - pos[0] || length + count > maxLength) {
+                            throw new IllegalArgumentException("Delta literal out of range");
+                        }
+                        System.arraycopy(script, pos[0], out, length, (int) count);
+                        pos[0] += (int) count;
+                        length += (int) count;
+                    } else {
+                        throw new IllegalArgumentException("Unknown delta instruction " + op);
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read delta basis", e);
+            }
+            return Arrays.copyOf(out, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private static long readVarint(byte[] in, int[] pos) {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos[0] >= in.length) {
+                    throw new IllegalArgumentException("Truncated delta script");
+                }
+                int b = in[pos[0]++] & 0xff;
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed delta script");
+        }
+    }
+
+    /**
+     * @param basisHash SHA-256 of the whole older copy, so receivers holding the same one can share a delta
+     * @param sums per block, a 4-byte rolling checksum followed by the first {@link #STRONG_BYTES} of its SHA-256
+     */
+    record Signature(String basisHash, int blockSize, byte[] sums) {
+        Signature {
+            if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || Integer.bitCount(blockSize) != 1) {
+                throw new IllegalArgumentException("Unsupported delta block size " + blockSize);
+            }
+            if (sums.length % SUM_BYTES != 0 || sums.length / SUM_BYTES > MAX_BLOCKS) {
+                throw new IllegalArgumentException("Malformed delta signature");
+            }
+        }
+
+        int blocks() {
+            return sums.length / SUM_BYTES;
+        }
+    }
+}
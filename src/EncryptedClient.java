@@ -2,61 +2,109 @@ import org.slf4j.Logger;
 
 import javax.crypto.AEADBadTagException;
 import javax.swing.*;
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.util.List;
 import java.util.Map;
 import java.util.Enumeration;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class EncryptedClient {
     private static final Logger LOG = AppLogger.get(EncryptedClient.class);
+    private static final long RECONNECT_BASE_MS = 500;
+    private static final long RECONNECT_MAX_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final int BULK_QUEUE_FRAMES = 16;
+    // Receiver credit: chunks the sender may run ahead, and how often the grant is refreshed
+    private static final int RECEIVE_WINDOW_CHUNKS = 64;
+    private static final int ACK_INTERVAL_CHUNKS = 2;
+    // Times an outgoing transfer re-offers itself after the session was replaced under it
+    private static final int MAX_SESSION_RESTARTS = 3;
+    // Outgoing transfers that stream at once; later ones queue
+    private static final int MAX_ACTIVE_SENDS = 3;
+    // Extra data connections for large transfers, added while each one measurably raises throughput
+    private static final long STRIPE_MIN_BYTES = 64L * 1024 * 1024;
+    private static final int MAX_STRIPES = 4;
+    private static final double STRIPE_MIN_GAIN = 0.5;
+    private static final long STRIPE_SAMPLE_MS = 1000;
+    // How long a received EOF waits for chunks still arriving over other connections
+    private static final long EOF_GRACE_MS = TimeUnit.SECONDS.toMillis(15);
+    // Largest older copy signed for a delta transfer; signing reads it on the socket reader
+    private static final long DELTA_MAX_BASIS_BYTES = 256L * 1024 * 1024;
 
-    private Socket socket;
+    private final ClientSessions sessions;
+    private volatile ClientIoLoop.Connection connection; // guarded by writeLock for writes
     private ChatWindow ui;
     private final String password;
-    private final char[] passwordChars;
-    private BufferedReader br;
-    private BufferedWriter bw;
-    private DiscoveryService discovery;
-    private String username;
     private String serverHost;
     private int serverPort;
     private final ConcurrentHashMap<String, IncomingFileTransfer> incomingTransfers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CreditWindow> outgoingCredits = new ConcurrentHashMap<>();
+    // Signatures of a receiver's older copy, for outgoing transfers that may send deltas against it
+    private final ConcurrentHashMap<String, DeltaCodec.Index> deltaIndexes = new ConcurrentHashMap<>();
+    // Offers answered from the content store; the relay may still deliver their chunks to us
+    private final Set<String> linkedTransfers = ConcurrentHashMap.newKeySet();
+    // Offers the user accepted; re-offered after a reconnect, they resume without asking again
+    private final Set<String> acceptedOffers = ConcurrentHashMap.newKeySet();
+    private final Object writeLock = new Object();
+    private final ChatCompression chatCompression = new ChatCompression();
+    private boolean compressChat; // guarded by writeLock; per connection
+    // Written by tasks on the shared crypto pool rather than a thread per session
+    private final FrameScheduler outbound;
+    private final TransferSlots sendSlots = new TransferSlots(MAX_ACTIVE_SENDS);
+    private final CopyOnWriteArrayList<StripeConnection> stripes = new CopyOnWriteArrayList<>();
+    // Stripes taken out of the rotation, closed once their queued frames are written
+    private final CopyOnWriteArrayList<StripeConnection> retiringStripes = new CopyOnWriteArrayList<>();
+    private final StripePlanner stripePlanner = new StripePlanner(MAX_STRIPES, STRIPE_MIN_GAIN);
+    private final AtomicInteger stripeTurn = new AtomicInteger();
+    private final AtomicInteger openingStripes = new AtomicInteger();
+    private final AtomicInteger largeSends = new AtomicInteger();
+    private final AtomicLong bulkChars = new AtomicLong();
+    private final ScheduledFuture<?> stripePlanning;
+    private long lastStripeSample = System.nanoTime(); // planner task only; runs are never concurrent
+    private final ReconnectBackoff backoff = new ReconnectBackoff(RECONNECT_BASE_MS, RECONNECT_MAX_MS);
+    private volatile SessionCrypto crypto;
+    private volatile String sessionToken;
+    private volatile boolean closed;
+    private volatile boolean online;
+    private volatile long sessionEpoch;
 
-    public EncryptedClient(String host, int port, String password) {
+    /**
+     * A session with the server at {@code host}, shown as a tab of {@code sessions}' window and recorded in
+     * {@code history}, which it closes.
+     */
+    EncryptedClient(ClientSessions sessions, String host, int port, String password, ChatHistory history) {
+        this.sessions = sessions;
         this.password = password != null ? password : "";
-        this.passwordChars = this.password.toCharArray();
         this.serverHost = host;
         this.serverPort = port;
-        // Apply look and feel
-        LookAndFeelUtil.installPreferredLaf();
+        this.outbound = new FrameScheduler(new FrameScheduler.FrameSink() {
+            @Override
+            public void write(String plaintext) throws IOException {
+                writeFrame(plaintext);
+            }
 
-        // Ask for a local display name for LAN discovery (prefill from prefs)
-        this.username = PrefsManager.getUsername(System.getProperty("user.name", "User"));
-        try {
-            String u = JOptionPane.showInputDialog(null, "Enter your display name:", username);
-            if (u != null && !u.trim().isEmpty()) username = u.trim();
-            PrefsManager.setUsername(username);
-        } catch (Exception ignored) {}
+            @Override
+            public boolean canWrite() {
+                ClientIoLoop.Connection c = connection;
+                return c == null || c.canWrite();
+            }
+        }, BULK_QUEUE_FRAMES, true, sessions.crypto());
 
-    ui = new ChatWindow("Encrypted Local Messenger - CLIENT (" + host + ":" + port + ")");
+    ui = new ChatWindow(host + ":" + port, history, sessions.tabs());
     ui.setStatus("Connecting to " + host + ":" + port + " ...");
     ui.setConnecting();
     ui.setEncryptionMode("AES-GCM");
@@ -65,8 +113,7 @@ public class EncryptedClient {
             if (e != null) e.getActionCommand();
             String txt = ui.grabInputAndClear();
             if (txt != null && !txt.trim().isEmpty()) {
-                sendText(txt);
-                ui.appendMessage("You", txt);
+                sendText(txt, ui.appendOutgoing(txt));
             }
         });
 
@@ -75,6 +122,7 @@ public class EncryptedClient {
         // LAN discovery button wires
         ui.findUsersButton.addActionListener(e -> {
             if (e != null) e.getActionCommand();
+            DiscoveryService discovery = sessions.discovery();
             if (discovery != null) discovery.refreshNow();
         });
 
@@ -82,9 +130,10 @@ public class EncryptedClient {
             if (e != null) e.getActionCommand();
             String ip = ui.getSelectedPeerIp();
             if (ip == null) {
-                JOptionPane.showMessageDialog(ui, "Select a user from the list first.");
+                JOptionPane.showMessageDialog(sessions.tabs(), "Select a user from the list first.");
                 return;
             }
+            DiscoveryService discovery = sessions.discovery();
             if (discovery != null) {
                 String hostForInvite = resolveHostForInvite(this.serverHost);
                 discovery.sendInviteToIp(ip, hostForInvite, this.serverPort, this.password);
@@ -97,221 +146,868 @@ public class EncryptedClient {
             if (e != null) e.getActionCommand();
             String ip = ui.manualIpField.getText();
             if (ip == null || ip.trim().isEmpty()) {
-                JOptionPane.showMessageDialog(ui, "Enter a target IP.");
+                JOptionPane.showMessageDialog(sessions.tabs(), "Enter a target IP.");
                 return;
             }
-            // Attempt new TCP connection to current server port on the manual IP
-            // Note: This launches a new client window to that IP/port with same password
-            String target = ip.trim();
-            SwingUtilities.invokeLater(() -> new EncryptedClient(target, this.serverPort, this.password));
+            // Opens another tab connected to the same port on that IP, with the same password
+            sessions.open(ip.trim(), this.serverPort, this.password);
         });
 
-        startClientThread(host, port);
+        start();
+        stripePlanning = sessions.io().every(this::planStripes, STRIPE_SAMPLE_MS);
+        try {
+            ContentStore.shared().indexDirectoryAsync(resolveDownloadDir());
+        } catch (IOException e) {
+            LOG.warn("Download directory unavailable for indexing", e);
+        }
+    }
 
-        // Start optional discovery service
-        startDiscoveryService();
+    ChatWindow window() {
+        return ui;
     }
 
-    private void startClientThread(String host, int port) {
-        new Thread(() -> {
-            try {
-                socket = new Socket(host, port);
-                br = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-                bw = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
-
-                ui.setStatus("Connected to " + socket.getRemoteSocketAddress());
-                ui.setConnected(true);
-                ui.updatePeerCount(1);
-                ui.appendMessage("SYSTEM", "Connected to " + socket.getRemoteSocketAddress());
-
-                // Receiving loop
-                String line;
-                while ((line = br.readLine()) != null) {
-                    try {
-                        String dec = EncryptionUtil.decryptMessage(line, passwordChars);
-                        if (FileTransferProtocol.PING.equals(dec)) {
-                            sendPlainPayload(FileTransferProtocol.PONG);
-                            continue;
-                        }
-                        if (FileTransferProtocol.isHeader(dec)) {
-                            handleIncomingFileHeader(dec);
-                            continue;
-                        }
-                        if (FileTransferProtocol.isChunk(dec)) {
-                            handleIncomingFileChunk(dec);
-                            continue;
-                        }
-                        if (FileTransferProtocol.isEof(dec)) {
-                            handleIncomingFileEof(dec);
-                            continue;
-                        }
-                        if (FileTransferProtocol.PONG.equals(dec)) {
-                            continue;
-                        }
-                        ui.appendMessage("Remote", dec);
-                    } catch (AEADBadTagException tampered) {
-                        LOG.warn("Discarded tampered message from {}", socket.getRemoteSocketAddress(), tampered);
-                        ui.appendMessage("REMOTE (encrypted)", line);
-                        ui.appendMessage("ERROR", "Message integrity check failed; content discarded.");
-                    } catch (Exception ex) {
-                        LOG.error("Failed to decrypt message from {}", socket.getRemoteSocketAddress(), ex);
-                        ui.appendMessage("REMOTE (encrypted)", line);
-                        ui.appendMessage("ERROR", "Decrypt failed: " + ex.getMessage());
-                    }
-                }
-                ui.appendMessage("SYSTEM", "Connection closed by server.");
-                ui.setStatus("Disconnected");
-                ui.setConnected(false);
-                ui.updatePeerCount(0);
-            } catch (Exception e) {
-                LOG.error("Client connection error", e);
-                ui.appendMessage("ERROR", e.getMessage());
-                ui.setStatus("Connection failed: " + e.getMessage());
+    boolean isFor(String host, int port) {
+        return serverHost.equalsIgnoreCase(host) && serverPort == port;
+    }
+
+    void showDiscoveredPeers(Map<String, DiscoveryService.DiscoveredPeer> snapshot) {
+        ui.setDiscoveredPeers(snapshot);
+        ui.updateDiscoveryCount(snapshot != null ? snapshot.size() : 0);
+    }
+
+    // Key derivation runs on the shared crypto pool, once per password for all sessions
+    private void start() {
+        sessions.sessionCrypto(password).whenComplete((shared, error) -> {
+            if (error != null) {
+                Throwable cause = error.getCause() != null ? error.getCause() : error;
+                LOG.error("Key derivation failed", cause);
+                ui.appendMessage("ERROR", "Encryption unavailable: " + cause.getMessage());
                 ui.setConnected(false);
-                ui.updatePeerCount(0);
-            } finally {
-                abortAllTransfers();
-                ui.updateDiscoveryCount(-1);
-                try { if (socket != null) socket.close(); } catch (Exception ignored) {}
+                return;
             }
-        }, "Client-Thread").start();
+            crypto = shared;
+            connect();
+        });
     }
 
-    // Send plaintext payload (it will be encrypted)
-    private void sendPlainPayload(String payload) {
+    // One connection attempt on the shared I/O loop; the session frame opens or resumes the session once connected
+    private void connect() {
+        if (closed) {
+            return;
+        }
+        boolean resuming = sessionToken != null;
+        sessions.io().connect(serverHost, serverPort, new ClientIoLoop.Handler() {
+            @Override
+            public void line(ClientIoLoop.Connection c, String line) {
+                receive(c, line);
+            }
+
+            @Override
+            public void closed(ClientIoLoop.Connection c, IOException cause) {
+                connectionLost(c, cause);
+            }
+        }).whenCompleteAsync((c, error) -> {
+            if (error != null) {
+                connectFailed(error.getCause() != null ? error.getCause() : error);
+            } else {
+                connected(c, resuming);
+            }
+        }, sessions.crypto());
+    }
+
+    private void connected(ClientIoLoop.Connection c, boolean resuming) {
+        synchronized (writeLock) {
+            connection = c;
+            chatCompression.reset();
+            compressChat = false;
+        }
+        c.onWritable(outbound::wake);
+        if (closed) {
+            c.close();
+            return;
+        }
         try {
-            if (bw == null || socket == null || !socket.isConnected()) {
-                ui.appendMessage("ERROR", "Not connected yet — message not sent.");
+            // The session frame must precede anything queued while we were offline
+            writeFrame(resuming ? SessionProtocol.buildResume(sessionToken) : SessionProtocol.HELLO);
+        } catch (IOException e) {
+            c.close(); // reported as lost, which reconnects
+            return;
+        }
+        outbound.setPaused(false);
+        online = true;
+
+        ui.setStatus("Connected to " + c.remoteAddress());
+        ui.setConnected(true);
+        ui.updatePeerCount(1);
+        ui.appendMessage("SYSTEM", (resuming ? "Reconnected to " : "Connected to ") + c.remoteAddress());
+    }
+
+    // Lines of one connection arrive here in order, one at a time, on the shared handler pool
+    private void receive(ClientIoLoop.Connection c, String line) {
+        try {
+            String dec = chatCompression.decode(crypto.decryptBytes(line));
+            if (FileTransferProtocol.PING.equals(dec)) {
+                sendPlainPayload(FileTransferProtocol.PONG);
                 return;
             }
-            String enc = EncryptionUtil.encryptMessage(payload, passwordChars);
-            bw.write(enc);
-            bw.newLine();
-            bw.flush();
+            if (SessionProtocol.isAccept(dec)) {
+                handleSessionAccept(SessionProtocol.parseAccept(dec));
+                return;
+            }
+            handleFrame(dec);
+        } catch (AEADBadTagException tampered) {
+            LOG.warn("Discarded tampered message from {}", c.remoteAddress(), tampered);
+            ui.appendMessage("REMOTE (encrypted)", line);
+            ui.appendMessage("ERROR", "Message integrity check failed; content discarded.");
         } catch (Exception ex) {
-            LOG.error("Failed to send payload to {}", (socket != null ? socket.getRemoteSocketAddress() : "unknown"), ex);
-            ui.appendMessage("ERROR", "Send failed: " + ex.getMessage());
+            LOG.error("Failed to decrypt message from {}", c.remoteAddress(), ex);
+            ui.appendMessage("REMOTE (encrypted)", line);
+            ui.appendMessage("ERROR", "Decrypt failed: " + ex.getMessage());
         }
     }
 
-    private void sendText(String txt) {
-        sendPlainPayload(txt);
+    private void connectionLost(ClientIoLoop.Connection c, IOException cause) {
+        online = false;
+        outbound.setPaused(true);
+        synchronized (writeLock) {
+            if (connection == c) {
+                connection = null;
+            }
+        }
+        closeStripes();
+        LOG.info("Chat compression on this connection: {}", chatCompression.describe());
+        ui.setConnected(false);
+        ui.updatePeerCount(0);
+        if (closed) {
+            sessionEnded();
+            return;
+        }
+        if (cause == null) {
+            ui.appendMessage("SYSTEM", "Connection closed by server.");
+        } else {
+            reportFailure(cause);
+        }
+        scheduleReconnect();
     }
 
-    private void sendFile(File file, ChatWindow.TransferMonitor monitor) throws Exception {
-        if (file == null || !file.exists() || !file.isFile()) {
-            ui.appendMessage("ERROR", "Invalid file selected.");
+    private void connectFailed(Throwable cause) {
+        ui.setConnected(false);
+        ui.updatePeerCount(0);
+        if (closed) {
+            sessionEnded();
             return;
         }
+        reportFailure(cause);
+        scheduleReconnect();
+    }
+
+    private void reportFailure(Throwable cause) {
+        LOG.warn("Client connection error (attempt {})", backoff.attempts() + 1, cause);
+        if (backoff.attempts() == 0) {
+            ui.appendMessage("ERROR", cause.getMessage());
+        }
+        ui.setStatus("Connection failed: " + cause.getMessage());
+    }
+
+    private void scheduleReconnect() {
+        if (sessionToken == null) {
+            // Nothing on the server side to resume into; keep partial downloads for the next offer
+            suspendAllTransfers("Connection closed");
+        }
+        long delay = backoff.nextDelayMillis();
+        ui.setConnecting();
+        ui.setStatus(String.format("Reconnecting in %.1f s (attempt %d) ...", delay / 1000.0, backoff.attempts()));
+        sessions.io().schedule(this::connect, delay);
+    }
+
+    private void sessionEnded() {
+        suspendAllTransfers("Connection closed");
+        ui.updateDiscoveryCount(-1);
+    }
+
+    // Frames from the session connection and from its stripes alike
+    private void handleFrame(String dec) {
+        if (FileTransferProtocol.isAck(dec)) {
+            handleCreditAck(dec);
+        } else if (FileTransferProtocol.isNack(dec)) {
+            handleResendRequest(dec);
+        } else if (FileTransferProtocol.isHave(dec) || FileTransferProtocol.isDecline(dec)) {
+            handleSkip(dec);
+        } else if (FileTransferProtocol.isSignature(dec)) {
+            handleSignature(dec);
+        } else if (FileTransferProtocol.isHeader(dec)) {
+            handleIncomingFileHeader(dec);
+        } else if (FileTransferProtocol.isChunk(dec)) {
+            handleIncomingFileChunk(dec);
+        } else if (FileTransferProtocol.isEof(dec)) {
+            handleIncomingFileEof(dec);
+        } else if (!FileTransferProtocol.PONG.equals(dec)) {
+            ui.appendMessage("Remote", dec);
+        }
+    }
+
+    // Samples bulk throughput while a large transfer runs and opens or retires stripes as the planner asks
+    private void planStripes() {
         try {
-            Path path = file.toPath();
-            long size = Files.size(path);
-            String hash = FileTransferProtocol.computeSha256(path);
-            sendPlainPayload(FileTransferProtocol.buildHeader(file.getName(), size, hash));
-            byte[] buffer = new byte[FileTransferProtocol.CHUNK_SIZE];
-            int seq = 0;
-            try (BufferedInputStream in = new BufferedInputStream(Files.newInputStream(path))) {
-                int read;
-                long transferred = 0;
-                while ((read = in.read(buffer)) != -1) {
+            long now = System.nanoTime();
+            long chars = bulkChars.getAndSet(0);
+            long elapsed = now - lastStripeSample;
+            lastStripeSample = now;
+            retiringStripes.removeIf(stripe -> {
+                if (stripe.isClosed() || stripe.isIdle()) {
+                    stripe.close();
+                    return true;
+                }
+                return false;
+            });
+            stripes.removeIf(StripeConnection::isClosed);
+            String token = sessionToken;
+            if (!online || token == null || !PrefsManager.isStripeTransfers() || !hasLargeTransfer()) {
+                stripePlanner.reset();
+                retireStripes(0);
+                return;
+            }
+            int target = stripePlanner.onSample(chars, elapsed, stripes.size());
+            while (stripes.size() + openingStripes.get() < target) {
+                openStripe(token);
+            }
+            retireStripes(target);
+        } catch (RuntimeException e) {
+            LOG.warn("Stripe planning failed", e);
+        }
+    }
+
+    // Connects on the shared I/O loop; the stripe joins the rotation once the server has been asked to take it
+    private void openStripe(String token) {
+        openingStripes.incrementAndGet();
+        StripeConnection.open(sessions.io(), serverHost, serverPort, crypto, token, BULK_QUEUE_FRAMES,
+                sessions.crypto(), this::handleFrame).whenComplete((stripe, error) -> {
+            if (error != null) {
+                LOG.warn("Could not open an extra data connection; staying at {}", stripes.size(), error);
+                stripePlanner.settle(stripes.size());
+            } else {
+                stripes.add(stripe);
+                if (closed) {
+                    stripe.close(); // the session ended while it connected
+                }
+            }
+            openingStripes.decrementAndGet();
+        });
+    }
+
+    private boolean hasLargeTransfer() {
+        return largeSends.get() > 0 || incomingTransfers.values().stream()
+                .anyMatch(t -> t.isActive() && t.size() >= STRIPE_MIN_BYTES);
+    }
+
+    private void retireStripes(int keep) {
+        while (stripes.size() > keep) {
+            retiringStripes.add(stripes.remove(stripes.size() - 1));
+        }
+    }
+
+    private void closeStripes() {
+        stripes.forEach(StripeConnection::close);
+        retiringStripes.forEach(StripeConnection::close);
+        stripes.clear();
+        retiringStripes.clear();
+        stripePlanner.reset();
+    }
+
+    private void handleSessionAccept(SessionProtocol.Accept accept) {
+        String previous = sessionToken;
+        sessionToken = accept.token();
+        backoff.reset();
+        if (accept.deflate() && PrefsManager.isCompressChat()) {
+            sendPlainPayload(SessionProtocol.DEFLATE_ON);
+        }
+        if (accept.resumed()) {
+            ui.appendMessage("SYSTEM", "Session resumed; in-progress transfers continue.");
+        } else if (previous != null) {
+            // Frames in flight were lost with the old session: receivers keep their partial files, and each
+            // outgoing transfer is woken up to offer itself again so it can resume from the receivers' offsets
+            suspendAllTransfers("Session expired");
+            sessionEpoch++;
+            outgoingCredits.forEach((hash, credits) -> {
+                discardStream(hash);
+                credits.close();
+            });
+            ui.appendMessage("SYSTEM", "Previous session expired; started a new one.");
+        }
+    }
+
+    /**
+     * Stop reconnecting and close the current connection.
+     */
+    public void shutdown() {
+        closed = true;
+        outbound.close();
+        stripePlanning.cancel(false);
+        closeStripes();
+        ClientIoLoop.Connection c = connection;
+        if (c != null) {
+            c.close();
+        } else {
+            sessionEnded();
+        }
+    }
+
+    // Queue plaintext payload on its priority lane; it is encrypted and written by the writer thread
+    private void sendPlainPayload(String payload) {
+        try {
+            outbound.submit(payload);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeFrame(String payload) throws IOException {
+        synchronized (writeLock) {
+            ClientIoLoop.Connection out = connection;
+            if (out == null || crypto == null) {
+                throw new IOException("Not connected");
+            }
+            try {
+                if (SessionProtocol.DEFLATE_ON.equals(payload)) {
+                    compressChat = true; // takes effect after this frame, on this connection only
+                    out.write(crypto.encrypt(ChatCompression.plain(payload)));
+                } else if (compressChat && FrameScheduler.classify(payload) == FrameScheduler.Lane.CHAT) {
+                    out.write(crypto.encrypt(chatCompression.compress(payload)));
+                } else {
+                    out.write(crypto.encrypt(ChatCompression.plain(payload)));
+                }
+            } catch (GeneralSecurityException e) {
+                ui.appendMessage("ERROR", "Send failed: " + e.getMessage());
+                throw new FrameScheduler.UnsendableFrameException("Failed to encrypt payload", e);
+            }
+        }
+    }
+
+    // Only queues: the writer thread encrypts and writes it, and the listener reports when it went or was dropped
+    private void sendText(String txt, FrameScheduler.DeliveryListener delivery) {
+        if (!outbound.submitChat(txt, delivery)) {
+            delivery.delivered(false);
+        }
+    }
+
+    private void sendFile(List<File> files, ChatWindow.TransferMonitor monitor) throws Exception {
+        OutgoingContent content;
+        try {
+            content = OutgoingContent.of(files);
+        } catch (IOException ex) {
+            ui.appendMessage("ERROR", "Invalid file selected: " + ex.getMessage());
+            return;
+        }
+        try {
+            sendSlots.acquire(monitor);
+            boolean sent;
+            try {
+                MerkleTree.Proofs proofs = content.proofs();
+                for (int restarts = 0; ; restarts++) {
+                    long epoch = sessionEpoch;
+                    try {
+                        sent = streamFile(content, proofs, monitor);
+                        break;
+                    } catch (IOException ex) {
+                        if (closed || epoch == sessionEpoch || restarts >= MAX_SESSION_RESTARTS) {
+                            throw ex;
+                        }
+                        ui.appendMessage("SYSTEM", "Re-offering " + content.name() + " after reconnect ...");
+                    }
+                }
+            } finally {
+                sendSlots.release();
+            }
+            ui.appendMessage("You", sent ? (content.isBundle() ? "Sent folder: " : "Sent file: ") + content.describe()
+                    : "Nobody needed " + content.name() + " (already have it or declined); nothing was sent.");
+        } catch (IOException ex) {
+            LOG.error("File send failed for {}", content.describe(), ex);
+            ui.appendMessage("ERROR", "File send failed: " + ex.getMessage());
+            throw ex;
+        }
+    }
+
+    /**
+     * Offer the file and stream it from the offset receivers report, which is past zero when they kept a partial
+     * copy from an earlier attempt. The content hash is computed in the same pass and sent with the EOF; the Merkle
+     * root in the offer needed a read of its own beforehand, in {@code proofs}. Returns false when every receiver
+     * already had the content.
+     */
+    private boolean streamFile(OutgoingContent content, MerkleTree.Proofs proofs, ChatWindow.TransferMonitor monitor)
+            throws IOException {
+        String name = content.name();
+        String hash = content.transferId();
+        long size = content.size();
+        CreditWindow credits = new CreditWindow(FileTransferProtocol.CHUNK_SIZE);
+        outgoingCredits.put(hash, credits);
+        boolean large = size >= STRIPE_MIN_BYTES;
+        if (large) {
+            largeSends.incrementAndGet();
+        }
+        try {
+            sendBulk(hash, content.header(PrefsManager.isCompressTransfers(), true, proofs));
+            int start = (int) awaitStart(credits, hash);
+            if (start < 0) {
+                return false;
+            }
+            if (start > 0) {
+                LOG.info("Resuming {} at chunk {}", name, start);
+            }
+            try (FileChunkReader reader = new FileChunkReader(content.source(), size)) {
+                ChunkEncoder encoder = new ChunkEncoder(reader, hash,
+                        PrefsManager.isCompressTransfers() && credits.deflateAccepted(), proofs);
+                encoder.seek(start);
+                encoder.setDelta(credits.deltaAccepted() ? deltaIndexes.get(hash) : null);
+                ChunkEncoder.Encoded chunk;
+                while ((chunk = encoder.next()) != null) {
                     if (monitor != null && monitor.isCancelled()) {
+                        discardStream(hash);
                         throw new IOException("Transfer cancelled by user");
                     }
-                    String chunk = FileTransferProtocol.buildChunk(hash, seq++, buffer, read);
-                    sendPlainPayload(chunk);
-                    transferred += read;
+                    long rewind = awaitSendable(credits, encoder, hash, chunk);
+                    if (rewind >= 0) {
+                        LOG.info("Receiver asked to resend {} from chunk {}", name, rewind);
+                        discardStream(hash);
+                        encoder.seek((int) rewind);
+                        continue;
+                    }
+                    sendBulk(hash, chunk.frame());
+                    credits.onSent(chunk.sequence(), chunk.lastSequence(), System.nanoTime());
+                    encoder.setBlocksPerFrame(credits.blocksPerFrame());
+                    encoder.setDelta(credits.deltaAccepted() ? deltaIndexes.get(hash) : null);
                     if (monitor != null) {
-                        monitor.onProgress(transferred, size);
+                        monitor.onProgress(chunk.position(), size);
                     }
                 }
+                sendBulk(hash, reader.eofFrame(hash));
+                content.recordSent(reader.contentHash());
             }
-            sendPlainPayload(FileTransferProtocol.buildEof(hash));
-            ui.appendMessage("You", "Sent file: " + file.getName());
-        } catch (IOException ex) {
-            LOG.error("File send failed for {}", file.getAbsolutePath(), ex);
-            ui.appendMessage("ERROR", "File send failed: " + ex.getMessage());
-            throw ex;
+            return true;
+        } finally {
+            if (large) {
+                largeSends.decrementAndGet();
+            }
+            outgoingCredits.remove(hash, credits);
+            deltaIndexes.remove(hash);
+            credits.close();
+        }
+    }
+
+    private long awaitStart(CreditWindow credits, String hash) throws IOException {
+        try {
+            return credits.awaitStart();
+        } catch (InterruptedException e) {
+            discardStream(hash);
+            Thread.currentThread().interrupt();
+            throw new IOException("Transfer cancelled by user");
         }
     }
 
+    // Waits for credit to send chunk, sending any earlier chunks receivers asked for again on the way. Returns the
+    // chunk to go back to when a receiver asked for a rewind, otherwise -1.
+    private long awaitSendable(CreditWindow credits, ChunkEncoder encoder, String hash, ChunkEncoder.Encoded chunk)
+            throws IOException {
+        while (true) {
+            awaitCredit(credits, hash, chunk.lastSequence());
+            long rewind = credits.takeRewind();
+            List<Long> resends = credits.takeResends();
+            if (rewind >= 0 || resends.isEmpty()) {
+                return rewind;
+            }
+            for (long seq : resends) {
+                if (seq < chunk.sequence()) {
+                    sendBulk(hash, encoder.resendFrame((int) seq));
+                    credits.onSent(seq, System.nanoTime());
+                }
+            }
+        }
+    }
+
+    private void awaitCredit(CreditWindow credits, String hash, int seq) throws IOException {
+        try {
+            credits.awaitCredit(seq);
+        } catch (InterruptedException e) {
+            discardStream(hash);
+            Thread.currentThread().interrupt();
+            throw new IOException("Transfer cancelled by user");
+        }
+    }
+
+    private void handleCreditAck(String frame) {
+        try {
+            FileTransferProtocol.Ack ack = FileTransferProtocol.parseAck(frame);
+            CreditWindow credits = outgoingCredits.get(ack.hash());
+            if (credits != null) {
+                credits.grant(ack.nextSequence(), ack.window(), ack.deflate(), ack.batch(), ack.delta(), System.nanoTime());
+            }
+        } catch (Exception ex) {
+            LOG.warn("Malformed credit frame", ex);
+        }
+    }
+
+    private void handleResendRequest(String frame) {
+        try {
+            FileTransferProtocol.Nack nack = FileTransferProtocol.parseNack(frame);
+            CreditWindow credits = outgoingCredits.get(nack.hash());
+            if (credits != null && nack.count() > 0) {
+                credits.requestResend(nack.sequence(), nack.count());
+            } else if (credits != null) {
+                credits.requestRewind(nack.sequence());
+            }
+        } catch (Exception ex) {
+            LOG.warn("Malformed resend request", ex);
+        }
+    }
+
+    // Arrives ahead of the receiver's first grant, which says whether it takes deltas against this copy
+    private void handleSignature(String frame) {
+        try {
+            FileTransferProtocol.Signature signature = FileTransferProtocol.parseSignature(frame);
+            if (outgoingCredits.containsKey(signature.transferId())) {
+                deltaIndexes.put(signature.transferId(), new DeltaCodec.Index(signature.signature()));
+            }
+        } catch (Exception ex) {
+            LOG.warn("Malformed signature frame", ex);
+        }
+    }
+
+    // The server sends a HAVE when every receiver already holds the content, or a DECLINE when nobody else wants it
+    private void handleSkip(String frame) {
+        try {
+            String hash = FileTransferProtocol.isHave(frame) ? FileTransferProtocol.parseHave(frame) : FileTransferProtocol.parseDecline(frame);
+            CreditWindow credits = outgoingCredits.get(hash);
+            if (credits != null) {
+                credits.skip();
+            }
+        } catch (Exception ex) {
+            LOG.warn("Malformed skip frame", ex);
+        }
+    }
+
+    // Blocks while the bulk lane is full, which paces the reader to what the socket can take
+    private void sendBulk(String streamId, String frame) throws IOException {
+        bulkChars.addAndGet(frame.length());
+        try {
+            if (sendOnStripe(streamId, frame)) {
+                return;
+            }
+            if (!outbound.enqueue(FrameScheduler.Lane.BULK, streamId, frame)) {
+                throw new IOException("Client is shutting down");
+            }
+        } catch (InterruptedException e) {
+            discardStream(streamId);
+            Thread.currentThread().interrupt();
+            throw new IOException("Transfer cancelled by user");
+        }
+    }
+
+    // File frames take turns over the session connection and its stripes; false leaves this one to the session's
+    private boolean sendOnStripe(String streamId, String frame) throws InterruptedException {
+        int count = stripes.size();
+        if (count == 0) {
+            return false;
+        }
+        int turn = Math.floorMod(stripeTurn.getAndIncrement(), count + 1);
+        try {
+            return turn > 0 && stripes.get(turn - 1).send(streamId, frame);
+        } catch (IndexOutOfBoundsException retiredMeanwhile) {
+            return false;
+        }
+    }
+
+    private void discardStream(String streamId) {
+        outbound.discardStream(streamId);
+        stripes.forEach(stripe -> stripe.discardStream(streamId));
+        retiringStripes.forEach(stripe -> stripe.discardStream(streamId));
+    }
+
+    // A header is an offer; one accepted earlier and re-offered after a reconnect is taken back up without asking.
+    // Files from the server's store are fetched only when asked for, and not offered at all when already held.
     private void handleIncomingFileHeader(String frame) {
+        FileTransferProtocol.Header header;
+        try {
+            header = FileTransferProtocol.parseHeader(frame);
+        } catch (Exception ex) {
+            LOG.error("Malformed file header", ex);
+            ui.appendMessage("ERROR", "Malformed file offer received.");
+            return;
+        }
+        if (header.stored() && !acceptedOffers.contains(header.hash())
+                && ContentStore.shared().lookup(header.contentHash() != null ? header.contentHash() : header.hash(), header.size()) != null) {
+            return;
+        }
+        if (acceptsWithoutAsking(header, PrefsManager.isAskBeforeReceiving(), acceptedOffers.contains(header.hash()))) {
+            acceptOffer(header);
+            return;
+        }
+        String description = (header.stored() ? "Available on server: " : "")
+                + (header.bundle() ? "Folder: " : "File: ") + header.filename() + " (" + header.size() + " bytes)";
+        // Answered on the event dispatch thread; accepting opens files, so it goes back to the handlers
+        ui.offerIncomingFile(description, accepted -> sessions.handlers().execute(() -> {
+            if (accepted) {
+                acceptOffer(header);
+            } else if (!header.stored()) {
+                sendPlainPayload(FileTransferProtocol.buildDecline(header.hash()));
+                ui.appendMessage("Remote", "Declined " + header.filename());
+            }
+        }));
+    }
+
+    // Live sends are taken unless the user wants to be asked; stored files are only fetched when asked for. An offer
+    // accepted before is taken back up either way.
+    static boolean acceptsWithoutAsking(FileTransferProtocol.Header header, boolean askBeforeReceiving,
+                                        boolean alreadyAccepted) {
+        boolean autoAccept = !header.stored() && !askBeforeReceiving;
+        return autoAccept || alreadyAccepted;
+    }
+
+    private void acceptOffer(FileTransferProtocol.Header header) {
+        acceptedOffers.add(header.hash());
         try {
-            FileTransferProtocol.Header header = FileTransferProtocol.parseHeader(frame);
-            ChatWindow.TransferProgressHandle handle = ui.createIncomingTransfer(header.hash(), header.filename(), header.size());
-            IncomingFileTransfer transfer = new IncomingFileTransfer(header, handle);
-            IncomingFileTransfer previous = incomingTransfers.put(header.hash(), transfer);
-            if (previous != null) {
-                previous.abortWithReason("Transfer reset");
-            }
-            ui.appendMessage("Remote", "Incoming file: " + header.filename() + " (" + header.size() + " bytes)");
+            if (linkExistingCopy(header)) {
+                return;
+            }
+            IncomingFileTransfer transfer = incomingTransfers.get(header.hash());
+            if (transfer == null || !transfer.isActive() || !transfer.matches(header)) {
+                if (transfer != null) {
+                    transfer.suspend("Transfer restarted");
+                }
+                ChatWindow.TransferProgressHandle handle = ui.createIncomingTransfer(header.hash(), header.filename(), header.size());
+                transfer = IncomingFileTransfer.open(resolveDownloadDir(), header, handle);
+                incomingTransfers.put(header.hash(), transfer);
+            }
+            Path older = header.delta() ? olderCopy(header) : null;
+            if (older == null) {
+                grantStart(header, transfer, null);
+                return;
+            }
+            // Signing reads the whole older copy, so it runs on a handler and the frame thread moves on
+            IncomingFileTransfer signing = transfer;
+            sessions.handlers().execute(() -> signAndGrant(header, signing, older));
         } catch (Exception ex) {
             LOG.error("Failed to initialize incoming file transfer", ex);
             ui.appendMessage("ERROR", "Unable to prepare file transfer: " + ex.getMessage());
         }
     }
 
+    // Sends the signature of the older copy ahead of the first grant; without one the whole file comes instead
+    private void signAndGrant(FileTransferProtocol.Header header, IncomingFileTransfer transfer, Path older) {
+        try {
+            DeltaCodec.Signature signature = DeltaCodec.sign(older);
+            transfer.useBasis(new DeltaCodec.Basis(older, signature.blockSize()));
+            sendPlainPayload(FileTransferProtocol.buildSignature(header.hash(), signature));
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Cannot sign {}, receiving {} in full", older, header.filename(), ex);
+            older = null;
+        }
+        grantStart(header, transfer, older);
+    }
+
+    // The first grant tells the sender where to start; past zero when a partial copy was kept
+    private void grantStart(FileTransferProtocol.Header header, IncomingFileTransfer transfer, Path older) {
+        int resumeAt = transfer.nextSequence();
+        sendPlainPayload(FileTransferProtocol.buildAck(
+                FileTransferProtocol.Ack.builder(header.hash(), resumeAt, RECEIVE_WINDOW_CHUNKS)
+                        .deflate(header.deflate())
+                        .batch(true)
+                        .delta(transfer.acceptsDelta())
+                        .build()));
+        ui.appendMessage("Remote", (header.bundle() ? "Incoming folder: " : "Incoming file: ") + header.filename() + " (" + header.size() + " bytes)"
+                + (resumeAt > 0 ? ", resuming at " + (long) resumeAt * FileTransferProtocol.CHUNK_SIZE + " bytes" : "")
+                + (older != null ? ", sending only what changed since " + older.getFileName() : ""));
+    }
+
+    /**
+     * The file of the same name already in the download directory, if it is worth sending a signature of: a
+     * regular file of at least a chunk and at most {@link #DELTA_MAX_BASIS_BYTES}. Null otherwise.
+     */
+    private Path olderCopy(FileTransferProtocol.Header header) throws IOException {
+        if (header.bundle()) {
+            return null;
+        }
+        String name = FileTransferProtocol.sanitizeFilename(header.filename()).replace('/', '_').replace('\\', '_');
+        if (name.isBlank() || name.equals(".") || name.equals("..")) {
+            return null;
+        }
+        Path older = resolveDownloadDir().resolve(name);
+        if (!Files.isRegularFile(older, LinkOption.NOFOLLOW_LINKS)) {
+            return null;
+        }
+        long size = Files.size(older);
+        return size >= FileTransferProtocol.CHUNK_SIZE && size <= DELTA_MAX_BASIS_BYTES ? older : null;
+    }
+
+    /**
+     * Answer an offer from the content store: link the local copy into the download directory and tell the sender
+     * it can skip us. Returns false when the content is not known here.
+     */
+    private boolean linkExistingCopy(FileTransferProtocol.Header header) throws IOException {
+        if (header.bundle()) {
+            return false; // folders are not indexed
+        }
+        ContentStore store = ContentStore.shared();
+        Path existing = store.lookup(header.contentHash() != null ? header.contentHash() : header.hash(), header.size());
+        if (existing == null) {
+            return false;
+        }
+        Path dir = resolveDownloadDir();
+        String name = FileTransferProtocol.sanitizeFilename(header.filename());
+        Path saved = existing;
+        if (!existing.equals(dir.resolve(name).toAbsolutePath().normalize())) {
+            saved = resolveDownloadTarget(header.filename());
+            try {
+                Files.createLink(saved, existing);
+            } catch (IOException | UnsupportedOperationException e) {
+                LOG.debug("Hard link to {} failed, copying instead", existing, e);
+                Files.copy(existing, saved);
+            }
+        }
+        linkedTransfers.add(header.hash());
+        sendPlainPayload(FileTransferProtocol.buildHave(header.hash()));
+        ui.appendMessage("Remote", "Already have " + header.filename() + " (" + header.size() + " bytes) at "
+                + saved.toAbsolutePath() + "; skipped the download");
+        return true;
+    }
+
+    // Runs on the socket reader, so the payload is only decoded and written once the transfer has taken it over
     private void handleIncomingFileChunk(String frame) {
-        final FileTransferProtocol.Chunk chunk;
+        final String id;
         try {
-            chunk = FileTransferProtocol.parseChunk(frame);
+            id = FileTransferProtocol.chunkTransferId(frame);
         } catch (Exception ex) {
             LOG.error("Malformed file chunk frame", ex);
             ui.appendMessage("ERROR", "Malformed file chunk received.");
             return;
         }
-        IncomingFileTransfer transfer = incomingTransfers.get(chunk.hash());
+        IncomingFileTransfer transfer = incomingTransfers.get(id);
         if (transfer == null) {
-            LOG.warn("Chunk received for unknown transfer {}", chunk.hash());
+            if (linkedTransfers.contains(id)) {
+                return; // relayed for other receivers
+            }
+            LOG.warn("Chunk received for unknown transfer {}", id);
             return;
         }
-        try {
-            transfer.appendChunk(chunk);
-        } catch (IOException ex) {
-            LOG.error("File chunk write failed for {}", chunk.hash(), ex);
-            incomingTransfers.remove(chunk.hash());
-            transfer.abortWithReason(ex.getMessage());
-            ui.appendMessage("ERROR", "File transfer aborted: " + ex.getMessage());
-        }
+        bulkChars.addAndGet(frame.length());
+        transfer.submitFrame(frame).whenComplete((result, failure) -> {
+            if (failure != null) {
+                Throwable cause = failure.getCause() != null ? failure.getCause() : failure;
+                if (incomingTransfers.remove(id, transfer)) {
+                    LOG.error("File chunk write failed for {}", id, cause);
+                    transfer.suspend(cause.getMessage());
+                    ui.appendMessage("ERROR", "File transfer interrupted: " + cause.getMessage() + " (kept for resume)");
+                }
+                return;
+            }
+            switch (result) {
+                case WRITTEN -> {
+                    // Chunks kept from ahead of a gap may have moved the transfer past several ack points at once
+                    int next = transfer.claimAck(ACK_INTERVAL_CHUNKS);
+                    if (next >= 0) {
+                        sendPlainPayload(FileTransferProtocol.buildAck(
+                                FileTransferProtocol.Ack.builder(id, next, transfer.creditWindow(RECEIVE_WINDOW_CHUNKS))
+                                        .deflate(transfer.acceptsDeflate())
+                                        .batch(true)
+                                        .build()));
+                    }
+                }
+                case GAP -> {
+                    // Chunks striped over several connections overtake each other; only a wide gap means loss
+                    if (transfer.claimGapResend(RECEIVE_WINDOW_CHUNKS * 3 / 4)) {
+                        sendPlainPayload(FileTransferProtocol.buildNack(id, transfer.nextSequence()));
+                    }
+                }
+                case CORRUPT -> {
+                    // Checked against the root, only the damaged chunks are asked for again
+                    for (FileTransferProtocol.Nack nack : transfer.claimDamagedResends()) {
+                        sendPlainPayload(FileTransferProtocol.buildNack(nack));
+                    }
+                }
+                case OVERLOADED -> {
+                    // Refused while the disk catches up; ask the sender to go back for it
+                    if (transfer.claimResendRequest()) {
+                        sendPlainPayload(FileTransferProtocol.buildNack(id, transfer.nextSequence()));
+                    }
+                }
+                case DUPLICATE -> { }
+            }
+        });
     }
 
     private void handleIncomingFileEof(String frame) {
-        final String hash;
+        final FileTransferProtocol.Eof eof;
         try {
-            hash = FileTransferProtocol.parseEofHash(frame);
+            eof = FileTransferProtocol.parseEof(frame);
         } catch (Exception ex) {
             LOG.error("Malformed EOF frame", ex);
             ui.appendMessage("ERROR", "Malformed file footer received.");
             return;
         }
-        IncomingFileTransfer transfer = incomingTransfers.remove(hash);
+        acceptedOffers.remove(eof.transferId());
+        // Stays registered until finished, so chunks still on their way over a slower stripe land
+        IncomingFileTransfer transfer = incomingTransfers.get(eof.transferId());
         if (transfer == null) {
-            LOG.warn("EOF received for unknown transfer {}", hash);
+            if (linkedTransfers.remove(eof.transferId())) {
+                return;
+            }
+            LOG.warn("EOF received for unknown transfer {}", eof.transferId());
+            return;
+        }
+        transfer.whenReceived(EOF_GRACE_MS).thenRun(() -> finishIncoming(transfer, eof));
+    }
+
+    // Runs once every chunk has been verified and written, or the grace for missing ones ran out
+    private void finishIncoming(IncomingFileTransfer transfer, FileTransferProtocol.Eof eof) {
+        if (!incomingTransfers.remove(eof.transferId(), transfer) || !transfer.isActive()) {
+            return; // suspended while the last chunks were being applied
+        }
+        if (!transfer.hasAllBytes()) {
+            // Chunks went missing and were not resent in time; keep what arrived for the next offer
+            transfer.suspend("Incomplete");
+            ui.appendMessage("ERROR", "File transfer incomplete: " + transfer.getFilename() + " (kept for resume)");
             return;
         }
         try {
             Path target = resolveDownloadTarget(transfer.getFilename());
-            Path saved = transfer.complete(target);
-            ui.appendMessage("Remote", "Received file: " + saved.getFileName() + " (saved to " + saved.toAbsolutePath() + ")");
+            Path saved = transfer.complete(target, eof.sha256(), eof.merkleRoot());
+            // Legacy senders put the content hash in the header, which complete() verified against
+            String sha = eof.sha256() != null ? eof.sha256() : eof.transferId();
+            if (!transfer.isBundle()) {
+                ContentStore store = ContentStore.shared();
+                store.record(sha, saved);
+                store.alias(eof.transferId(), sha);
+            }
+            ui.appendMessage("Remote", (transfer.isBundle() ? "Received folder: " : "Received file: ")
+                    + saved.getFileName() + " (saved to " + saved.toAbsolutePath() + ")");
             transfer.onCompleted();
         } catch (Exception ex) {
             transfer.abortWithReason(ex.getMessage());
-            LOG.error("File transfer verification failed for {}", hash, ex);
+            LOG.error("File transfer verification failed for {}", eof.transferId(), ex);
             ui.appendMessage("ERROR", "File transfer failed: " + ex.getMessage());
         }
     }
 
-    private void abortAllTransfers() {
-        incomingTransfers.values().forEach(t -> t.abortWithReason("Connection closed"));
+    // Partial downloads stay on disk with their checkpoints so a later offer of the same file resumes them
+    private void suspendAllTransfers(String reason) {
+        incomingTransfers.values().forEach(t -> t.suspend(reason));
         incomingTransfers.clear();
     }
 
-    private Path resolveDownloadTarget(String filename) throws IOException {
+    private Path resolveDownloadDir() throws IOException {
         Path dir = Paths.get(System.getProperty("user.home", "."), "Downloads");
         if (!Files.isDirectory(dir)) {
             dir = Paths.get(".").toAbsolutePath().normalize();
         }
         Files.createDirectories(dir);
-        String sanitized = FileTransferProtocol.sanitizeFilename(filename);
+        return dir;
+    }
+
+    private Path resolveDownloadTarget(String filename) throws IOException {
+        Path dir = resolveDownloadDir();
+        // The name comes from the sender, so it may only ever name an entry directly inside the download directory
+        String sanitized = FileTransferProtocol.sanitizeFilename(filename).replace('/', '_').replace('\\', '_');
+        if (sanitized.isBlank() || sanitized.equals(".") || sanitized.equals("..")) {
+            sanitized = "download";
+        }
         Path candidate = dir.resolve(sanitized);
         if (!Files.exists(candidate)) {
             return candidate;
@@ -330,117 +1026,6 @@ public class EncryptedClient {
         return candidate;
     }
 
-    private static String bytesToHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder(bytes.length * 2);
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
-        }
-        return sb.toString();
-    }
-
-    private static final class IncomingFileTransfer {
-        private final FileTransferProtocol.Header header;
-        private final Path tempFile;
-        private final OutputStream out;
-        private final MessageDigest digest;
-        private long bytesReceived = 0;
-        private int nextSequence = 0;
-        private final ChatWindow.TransferProgressHandle progressHandle;
-
-        IncomingFileTransfer(FileTransferProtocol.Header header, ChatWindow.TransferProgressHandle progressHandle) throws IOException, NoSuchAlgorithmException {
-            this.header = header;
-            this.tempFile = Files.createTempFile("localchat-", ".part");
-            this.out = Files.newOutputStream(this.tempFile);
-            this.digest = MessageDigest.getInstance("SHA-256");
-            this.progressHandle = progressHandle;
-        }
-
-        synchronized void appendChunk(FileTransferProtocol.Chunk chunk) throws IOException {
-            if (chunk.sequence() != nextSequence) {
-                throw new IOException("Unexpected chunk sequence: expected " + nextSequence + " but got " + chunk.sequence());
-            }
-            out.write(chunk.data());
-            digest.update(chunk.data());
-            bytesReceived += chunk.data().length;
-            nextSequence++;
-            if (progressHandle != null) {
-                progressHandle.update(bytesReceived);
-            }
-        }
-
-        synchronized Path complete(Path targetPath) throws IOException {
-            try {
-                out.flush();
-            } finally {
-                out.close();
-            }
-            if (bytesReceived != header.size()) {
-                throw new IOException("Size mismatch: expected " + header.size() + " bytes but received " + bytesReceived);
-            }
-            String computed = bytesToHex(digest.digest());
-            if (!computed.equals(header.hash())) {
-                throw new IOException("Hash mismatch: expected " + header.hash() + " but computed " + computed);
-            }
-            return Files.move(tempFile, targetPath, StandardCopyOption.REPLACE_EXISTING);
-        }
-
-        synchronized void abortWithReason(String reason) {
-            try { out.close(); } catch (IOException ignored) {}
-            try { Files.deleteIfExists(tempFile); } catch (IOException ignored) {}
-            if (progressHandle != null) {
-                progressHandle.fail(reason == null ? "Aborted" : reason);
-            }
-        }
-
-        String getFilename() {
-            return header.filename();
-        }
-
-        void onCompleted() {
-            if (progressHandle != null) {
-                progressHandle.complete(null);
-            }
-        }
-
-    }
-
-    // Initialize and start discovery service with UI listeners
-    private void startDiscoveryService() {
-        try {
-            discovery = new DiscoveryService(username, true, password);
-            discovery.addListener(new DiscoveryService.Listener() {
-                @Override
-                public void onPeersChanged(Map<String, DiscoveryService.DiscoveredPeer> snapshot) {
-                    ui.setDiscoveredPeers(snapshot);
-                    int count = snapshot != null ? snapshot.size() : 0;
-                    ui.updateDiscoveryCount(count);
-                }
-
-                @Override
-                public void onInvitation(DiscoveryService.Invitation invitation) {
-                    SwingUtilities.invokeLater(() -> {
-                        int res = JOptionPane.showConfirmDialog(ui,
-                                "'" + invitation.fromUsername + "' (" + invitation.fromIp + ") invites you to join:\n" +
-                                        invitation.serverHost + ":" + invitation.serverPort + "\nAccept?",
-                                "Chat Invitation",
-                                JOptionPane.YES_NO_OPTION);
-                        if (res == JOptionPane.YES_OPTION) {
-                            // Use inviter's IP if invite host is loopback or empty
-                            String targetHost = chooseInvitationHost(invitation.serverHost, invitation.fromIp);
-                            new EncryptedClient(targetHost, invitation.serverPort, invitation.serverPassword);
-                        }
-                    });
-                }
-            });
-            discovery.start();
-            ui.updateDiscoveryCount(0);
-            ui.appendMessage("SYSTEM", "LAN discovery started on UDP " + DiscoveryService.DISCOVERY_PORT);
-        } catch (Exception ex) {
-            LOG.error("Discovery service start failure", ex);
-            ui.appendMessage("ERROR", "Discovery start failed: " + ex.getMessage());
-        }
-    }
-
     // Replace localhost/127.* with our LAN IPv4 when sending invites, so peers can reach us
     private String resolveHostForInvite(String host) {
         if (host == null) return host;
@@ -453,14 +1038,14 @@ public class EncryptedClient {
     }
 
     // Prefer inviter's fromIp if the advertised serverHost is loopback or blank
-    private String chooseInvitationHost(String serverHost, String fromIp) {
+    static String chooseInvitationHost(String serverHost, String fromIp) {
         if (serverHost == null || serverHost.isEmpty() || isLoopbackHost(serverHost)) {
             return (fromIp != null && !fromIp.isEmpty()) ? fromIp : (serverHost == null ? "" : serverHost);
         }
         return serverHost;
     }
 
-    private boolean isLoopbackHost(String h) {
+    private static boolean isLoopbackHost(String h) {
         String x = h.toLowerCase();
         return "localhost".equals(x) || x.startsWith("127.");
     }
@@ -496,7 +1081,7 @@ public class EncryptedClient {
             PrefsManager.setHost(host);
             PrefsManager.setPort(port);
             PrefsManager.setPassword(password);
-            new EncryptedClient(host, port, password);
+            ClientSessions.shared().open(host, port, password);
         });
     }
 }
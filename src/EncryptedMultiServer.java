@@ -3,20 +3,24 @@ import org.slf4j.Logger;
 import javax.swing.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -25,28 +29,59 @@ public class EncryptedMultiServer {
     private static final Logger LOG = AppLogger.get(EncryptedMultiServer.class);
     private static final long HEARTBEAT_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
     private static final long HEARTBEAT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(90);
-    private static final int CLIENT_QUEUE_CAPACITY = 64;
+    // Every connection needs its own reader thread, including the extra data connections of striped sessions
+    private static final int MAX_CONNECTIONS = 256;
+    // How long a new transfer waits for every receiver to report its resume offset before starting anyway
+    private static final long RESUME_OFFER_WAIT_MS = TimeUnit.SECONDS.toMillis(2);
+    // How long receivers have to accept an offer before it is withdrawn from those that have not answered
+    static final long OFFER_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(60);
+    // How long a relay stays open after its EOF, for chunks still on their way over the sender's other connections
+    private static final long RELAY_LINGER_MS = TimeUnit.SECONDS.toMillis(30);
+    // Broadcasts that stream at once; later ones queue
+    private static final int MAX_ACTIVE_SENDS = 3;
+    // Disk the attachment store may use, and the stored files announced to a client that joins
+    private static final long ATTACHMENT_STORE_BYTES = 2L << 30;
+    private static final int ANNOUNCED_ON_JOIN = 5;
+    private static final long ANNOUNCE_MAX_AGE_MS = TimeUnit.DAYS.toMillis(1);
 
     private final CopyOnWriteArrayList<ClientHandler> clients = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<String, ClientHandler> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CreditRelay<ClientHandler>> creditRelays = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CreditWindow> serverCredits = new ConcurrentHashMap<>();
+    private final TransferSlots sendSlots = new TransferSlots(MAX_ACTIVE_SENDS);
+    private final AttachmentStore attachments;
+    private final ConcurrentHashMap<String, Set<ClientHandler>> spoolOffers = new ConcurrentHashMap<>();
     private final ChatWindow ui;
     private volatile boolean running = false;
     private final int port;
     private final String password;
     private final char[] passwordChars;
+    private final SessionCrypto sessionCrypto;
     private DiscoveryService discovery;
     private ServerSocket serverSocket;
     private Thread acceptThread;
     private final ExecutorService clientExecutor;
     private final ScheduledExecutorService heartbeatScheduler;
+    private final ExecutorService attachmentSender;
+    // Offers and EOFs that found a receiver's queue full wait for room here, not on the sender's reader thread
+    private final ExecutorService relaySender;
 
     public EncryptedMultiServer(int port, String password) {
         LookAndFeelUtil.installPreferredLaf();
         this.port = port;
         this.password = password != null ? password : "";
         this.passwordChars = this.password.toCharArray();
+        try {
+            this.sessionCrypto = new SessionCrypto(passwordChars);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES-GCM key derivation unavailable", e);
+        }
 
         this.clientExecutor = createClientExecutor();
         this.heartbeatScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Server-Heartbeat"));
+        this.attachmentSender = Executors.newCachedThreadPool(new NamedThreadFactory("Attachment-Sender"));
+        this.relaySender = Executors.newCachedThreadPool(new NamedThreadFactory("Relay-Sender"));
+        this.attachments = openAttachmentStore();
 
         Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "LocalChatServer-Shutdown"));
 
@@ -98,7 +133,7 @@ public class EncryptedMultiServer {
                 while (running) {
                     Socket sock = serverSocket.accept();
                     configureSocket(sock);
-                    ClientHandler handler = new ClientHandler(sock, passwordChars.clone(), this, heartbeatScheduler, HEARTBEAT_INTERVAL_MS, HEARTBEAT_TIMEOUT_MS);
+                    ClientHandler handler = new ClientHandler(sock, passwordChars.clone(), sessionCrypto, this, heartbeatScheduler, HEARTBEAT_INTERVAL_MS, HEARTBEAT_TIMEOUT_MS);
                     clients.add(handler);
                     ui.appendMessage("SYSTEM", "Client connected: " + handler.getClientId());
                     ui.setConnected(true);
@@ -135,6 +170,31 @@ public class EncryptedMultiServer {
 
     // Called by a ClientHandler when a plaintext message is received
     public void onClientMessage(ClientHandler sender, String plaintext) {
+        if (FileTransferProtocol.isAck(plaintext)) {
+            handleCreditAck(sender, plaintext);
+            return;
+        }
+
+        if (FileTransferProtocol.isNack(plaintext)) {
+            handleResendRequest(sender, plaintext);
+            return;
+        }
+
+        if (FileTransferProtocol.isHave(plaintext)) {
+            handleHave(sender, plaintext);
+            return;
+        }
+
+        if (FileTransferProtocol.isDecline(plaintext)) {
+            handleDecline(sender, plaintext);
+            return;
+        }
+
+        if (FileTransferProtocol.isSignature(plaintext)) {
+            handleSignature(sender, plaintext);
+            return;
+        }
+
         if (FileTransferProtocol.isFileMessage(plaintext)) {
             handleFileRelay(sender, plaintext);
             return;
@@ -150,6 +210,11 @@ public class EncryptedMultiServer {
             return;
         }
 
+        if (SessionProtocol.HELLO.equals(plaintext)) {
+            registerSession(sender);
+            return;
+        }
+
         ui.appendMessage("Remote(" + sender.getClientId() + ")", plaintext);
         String payload = "[" + sender.getClientId() + "] " + plaintext;
         broadcastToOthers(sender, payload);
@@ -163,8 +228,90 @@ public class EncryptedMultiServer {
         }
     }
 
+    private void registerSession(ClientHandler handler) {
+        String previous = handler.getSessionToken();
+        if (previous != null) {
+            sessions.remove(previous, handler);
+        }
+        String token = SessionProtocol.newToken();
+        handler.setSessionToken(token);
+        sessions.put(token, handler);
+        handler.sendAsync(SessionProtocol.buildAccept(token, false, PrefsManager.isCompressChat()));
+        if (attachments != null) {
+            for (AttachmentStore.Entry entry : attachments.recent(ANNOUNCED_ON_JOIN, ANNOUNCE_MAX_AGE_MS)) {
+                if (!creditRelays.containsKey(entry.transferId())) {
+                    handler.sendAsync(storedHeader(entry), passwordChars);
+                }
+            }
+        }
+    }
+
+    /**
+     * Look up the parked session for {@code token}. Returns it when the placeholder connection should be handed
+     * over, or null after starting a fresh session on {@code placeholder} instead.
+     */
+    ClientHandler resumeSession(ClientHandler placeholder, String token) {
+        ClientHandler parked = token == null ? null : sessions.get(token);
+        if (parked == null || parked == placeholder) {
+            LOG.info("Unknown or expired session from {}; starting a new one", placeholder.getClientId());
+            registerSession(placeholder);
+            return null;
+        }
+        clients.remove(placeholder);
+        ui.appendMessage("SYSTEM", "Client resumed session: " + parked.getClientId());
+        ui.updatePeerCount(clients.size());
+        ui.setConnected(true);
+        return parked;
+    }
+
+    /**
+     * Join {@code stripe} to the live session for {@code token} as an extra data connection. Returns the session's
+     * handler, or null when there is no such session and the connection should be closed.
+     */
+    ClientHandler attachStripe(ClientHandler stripe, String token) {
+        ClientHandler session = token == null ? null : sessions.get(token);
+        if (session == null || session == stripe || session.isDetached()) {
+            LOG.info("Stripe from {} names no live session; closing it", stripe.getClientId());
+            return null;
+        }
+        clients.remove(stripe);
+        ui.updatePeerCount(clients.size());
+        session.addStripe(stripe);
+        return session;
+    }
+
+    // Called by a ClientHandler whose socket dropped; true keeps it registered as a resumable session
+    boolean parkClient(ClientHandler handler) {
+        if (!running || handler.getSessionToken() == null) {
+            return false;
+        }
+        ui.appendMessage("SYSTEM", "Connection lost: " + handler.getClientId() + " (session held for resume)");
+        return true;
+    }
+
+    void expireSession(ClientHandler handler) {
+        handler.closeQuietly();
+        removeClient(handler);
+    }
+
     public void removeClient(ClientHandler handler) {
-        clients.remove(handler);
+        String token = handler.getSessionToken();
+        if (token != null) {
+            sessions.remove(token, handler);
+        }
+        if (!clients.remove(handler)) {
+            return;
+        }
+        creditRelays.forEach((hash, relay) -> {
+            if (relay.origin() == handler) {
+                creditRelays.remove(hash, relay);
+                if (attachments != null && spoolOffers.remove(hash) != null) {
+                    attachments.suspendSpool(hash);
+                }
+            } else {
+                forwardGrant(hash, relay, relay.remove(handler));
+            }
+        });
         LOG.info("Client disconnected: {} (active clients: {})", handler.getClientId(), clients.size());
         ui.appendMessage("SYSTEM", "Client disconnected: " + handler.getClientId() + " | Active: " + clients.size());
         ui.updatePeerCount(clients.size());
@@ -182,6 +329,8 @@ public class EncryptedMultiServer {
         }
         clientExecutor.shutdownNow();
         heartbeatScheduler.shutdownNow();
+        attachmentSender.shutdownNow();
+        relaySender.shutdownNow();
         for (ClientHandler client : clients) {
             client.closeQuietly();
         }
@@ -199,50 +348,453 @@ public class EncryptedMultiServer {
             try {
                 FileTransferProtocol.Header header = FileTransferProtocol.parseHeader(frame);
                 ui.appendMessage("SYSTEM", "Incoming file from " + sender.getClientId() + ": " + header.filename() + " (" + header.size() + " bytes)");
+                List<ClientHandler> receivers = new ArrayList<>(clients);
+                receivers.remove(sender);
+                if (receivers.isEmpty()) {
+                    // Nobody to receive it; release the sender instead of making it wait for credit
+                    creditRelays.put(header.hash(), new CreditRelay<>(sender));
+                    sender.sendAsync(FileTransferProtocol.buildAck(
+                            FileTransferProtocol.Ack.builder(header.hash(), 0, CreditWindow.UNLIMITED).build()));
+                } else {
+                    openRelay(header.hash(), sender, receivers);
+                }
+                if (attachments != null && attachments.spool(header)) {
+                    Set<ClientHandler> offered = new HashSet<>(receivers);
+                    offered.add(sender);
+                    spoolOffers.put(header.hash(), offered);
+                }
             } catch (Exception ex) {
                 LOG.warn("Discarding malformed file header from {}", sender.getClientId(), ex);
                 return;
             }
+            for (ClientHandler client : clients) {
+                if (client != sender) {
+                    deliverWithoutWaiting(client, frame);
+                }
+            }
+            return;
+        }
+        try {
+            relayToParticipants(sender, frame);
+        } catch (RuntimeException ex) {
+            LOG.warn("Discarding malformed file frame from {}", sender.getClientId(), ex);
         }
-        broadcastToOthers(sender, frame);
     }
 
-    private void broadcastFileFromServer(File file, ChatWindow.TransferMonitor monitor) throws Exception {
-        if (file == null || !file.exists() || !file.isFile()) {
-            ui.appendMessage("ERROR", "Invalid file selected.");
+    // The header went to everyone as an offer; chunks and the EOF only go to receivers that accepted it
+    private void relayToParticipants(ClientHandler origin, String frame) {
+        if (FileTransferProtocol.isEof(frame)) {
+            String hash = FileTransferProtocol.parseEof(frame).transferId();
+            CreditRelay<ClientHandler> relay = creditRelays.get(hash);
+            if (relay != null && relay.origin() == origin) {
+                if (origin == null) {
+                    dispatchToRecipients(relay.participants(), null, frame, passwordChars);
+                } else {
+                    relay.participants().forEach(client -> deliverWithoutWaiting(client, frame));
+                }
+                lingerRelay(hash, relay);
+                Set<ClientHandler> offered = origin != null ? spoolOffers.remove(hash) : null;
+                if (offered != null) {
+                    attachments.finishSpool(FileTransferProtocol.parseEof(frame))
+                            .thenAccept(entry -> announceStored(entry, offered));
+                }
+            }
             return;
         }
+        FileTransferProtocol.ChunkRange range = FileTransferProtocol.parseChunkRange(frame);
+        CreditRelay<ClientHandler> relay = creditRelays.get(range.transferId());
+        if (relay != null && relay.origin() == origin) {
+            if (origin == null) {
+                // The server's own upload: waiting for the slowest receiver is its flow control
+                dispatchToRecipients(relay.recipientsFor(range.last()), null, frame, passwordChars);
+            } else {
+                relayChunk(origin, relay, range, frame);
+            }
+            if (origin != null && attachments != null) {
+                attachments.spoolFrame(range.transferId(), frame);
+            }
+        }
+    }
+
+    // Runs on the origin's reader thread, which must not wait for a slow receiver: a chunk that finds a receiver's
+    // bulk lane full is dropped for it, and the origin is asked once to go back to the first one dropped
+    private void relayChunk(ClientHandler origin, CreditRelay<ClientHandler> relay, FileTransferProtocol.ChunkRange range,
+                            String frame) {
+        for (ClientHandler client : relay.recipientsFor(range.last())) {
+            if (client == origin || client.offerAsync(frame)) {
+                continue;
+            }
+            int from = relay.dropped(client, range.first());
+            if (from >= 0) {
+                LOG.debug("{} is behind on {}; asking {} to resend from {}", client.getClientId(), range.transferId(),
+                        origin.getClientId(), from);
+                origin.sendAsync(FileTransferProtocol.buildNack(range.transferId(), from));
+            }
+        }
+    }
 
-        Path path = file.toPath();
+    // For frames a receiver must not miss, such as offers and EOFs: queued at once when there is room, otherwise
+    // handed to a relay thread that waits for it
+    private void deliverWithoutWaiting(ClientHandler client, String frame) {
+        if (client.offerAsync(frame)) {
+            return;
+        }
         try {
-            long size = Files.size(path);
-            String hash = FileTransferProtocol.computeSha256(path);
-            String header = FileTransferProtocol.buildHeader(file.getName(), size, hash);
-            ui.appendMessage("You", "Streaming file: " + file.getName() + " (" + size + " bytes)");
-            broadcastToAll(header);
+            relaySender.execute(() -> client.sendAsync(frame, passwordChars));
+        } catch (RejectedExecutionException ignored) {
+            // shutting down
+        }
+    }
 
-            byte[] buffer = new byte[FileTransferProtocol.CHUNK_SIZE];
-            int seq = 0;
-            try (BufferedInputStream in = new BufferedInputStream(Files.newInputStream(path))) {
-                int read;
-                long transferred = 0;
-                while ((read = in.read(buffer)) != -1) {
-                    if (monitor != null && monitor.isCancelled()) {
-                        throw new IOException("Transfer cancelled by operator");
-                    }
-                    String chunk = FileTransferProtocol.buildChunk(hash, seq++, buffer, read);
-                    broadcastToAll(chunk);
-                    transferred += read;
-                    if (monitor != null) {
-                        monitor.onProgress(transferred, size);
+    // Offer a newly stored upload to the clients that did not see it live, once its relay has wound down so their
+    // grants open a fetch from the store rather than landing on the finished relay
+    private void announceStored(AttachmentStore.Entry entry, Set<ClientHandler> offered) {
+        if (entry == null) {
+            return;
+        }
+        try {
+            heartbeatScheduler.schedule(() -> {
+                String header = storedHeader(entry);
+                for (ClientHandler client : clients) {
+                    if (!offered.contains(client)) {
+                        deliverWithoutWaiting(client, header);
                     }
                 }
+            }, RELAY_LINGER_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+            // shutting down
+        }
+    }
+
+    private static String storedHeader(AttachmentStore.Entry entry) {
+        return FileTransferProtocol.buildHeader(
+                FileTransferProtocol.Header.builder(entry.filename(), entry.size(), entry.transferId())
+                        .contentHash(entry.contentHash())
+                        .deflate(PrefsManager.isCompressTransfers())
+                        .stored(true)
+                        .merkleRoot(entry.merkleRoot())
+                        .build());
+    }
+
+    // A striped sender's last chunks can reach us after its EOF; keep routing them for a while
+    private void lingerRelay(String hash, CreditRelay<ClientHandler> relay) {
+        try {
+            heartbeatScheduler.schedule(() -> creditRelays.remove(hash, relay), RELAY_LINGER_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            creditRelays.remove(hash, relay);
+        }
+    }
+
+    private void handleCreditAck(ClientHandler receiver, String frame) {
+        try {
+            FileTransferProtocol.Ack ack = FileTransferProtocol.parseAck(frame);
+            CreditRelay<ClientHandler> relay = creditRelays.get(ack.hash());
+            if (relay == null) {
+                relay = openStoredFetch(ack.hash());
+            }
+            if (relay == null || relay.origin() == receiver) {
+                return;
+            }
+            forwardGrant(ack.hash(), relay, relay.update(receiver, ack.nextSequence(), ack.window(), ack.deflate(),
+                    ack.batch(), ack.delta()));
+        } catch (Exception ex) {
+            LOG.warn("Discarding malformed credit frame from {}", receiver.getClientId(), ex);
+        }
+    }
+
+    // Receivers answer a header with their resume offset; hold the first grant until all have, or the wait runs out.
+    // Receivers still deciding join later; the offer is withdrawn if nobody has taken it when it expires.
+    private void openRelay(String hash, ClientHandler origin, List<ClientHandler> receivers) {
+        CreditRelay<ClientHandler> relay = new CreditRelay<>(origin, receivers);
+        creditRelays.put(hash, relay);
+        try {
+            heartbeatScheduler.schedule(() -> forwardGrant(hash, relay, relay.release()), RESUME_OFFER_WAIT_MS, TimeUnit.MILLISECONDS);
+            heartbeatScheduler.schedule(() -> {
+                if (relay.expire()) {
+                    skipOrigin(hash, relay, FileTransferProtocol.buildDecline(hash));
+                }
+            }, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            forwardGrant(hash, relay, relay.release());
+        }
+    }
+
+    // A receiver linked its existing copy; once every receiver has, the sender is told to skip the transfer
+    private void handleHave(ClientHandler receiver, String frame) {
+        try {
+            String hash = FileTransferProtocol.parseHave(frame);
+            CreditRelay<ClientHandler> relay = creditRelays.get(hash);
+            if (relay == null || relay.origin() == receiver) {
+                return;
+            }
+            CreditRelay.Grant grant = relay.have(receiver);
+            if (!relay.nobodyNeedsIt()) {
+                forwardGrant(hash, relay, grant);
+                return;
+            }
+            skipOrigin(hash, relay, relay.everyoneHasIt() ? frame : FileTransferProtocol.buildDecline(hash));
+        } catch (Exception ex) {
+            LOG.warn("Discarding malformed have frame from {}", receiver.getClientId(), ex);
+        }
+    }
+
+    // Only a client sending live can encode deltas; the first signature goes to it, later ones are only compared
+    private void handleSignature(ClientHandler receiver, String frame) {
+        try {
+            FileTransferProtocol.Signature signature = FileTransferProtocol.parseSignature(frame);
+            CreditRelay<ClientHandler> relay = creditRelays.get(signature.transferId());
+            if (relay == null || relay.origin() == receiver || !(relay.origin() instanceof ClientHandler origin)) {
+                return;
+            }
+            if (relay.signature(receiver, signature.signature().basisHash())) {
+                origin.sendAsync(frame);
+            }
+        } catch (Exception ex) {
+            LOG.warn("Discarding malformed signature frame from {}", receiver.getClientId(), ex);
+        }
+    }
+
+    private void handleDecline(ClientHandler receiver, String frame) {
+        try {
+            String hash = FileTransferProtocol.parseDecline(frame);
+            CreditRelay<ClientHandler> relay = creditRelays.get(hash);
+            if (relay == null || relay.origin() == receiver) {
+                return;
+            }
+            CreditRelay.Grant grant = relay.decline(receiver);
+            if (!relay.nobodyNeedsIt()) {
+                forwardGrant(hash, relay, grant);
+                return;
+            }
+            skipOrigin(hash, relay, frame);
+        } catch (Exception ex) {
+            LOG.warn("Discarding malformed decline frame from {}", receiver.getClientId(), ex);
+        }
+    }
+
+    // No receiver needs the transfer: tell the origin (with the HAVE or DECLINE that settled it) to skip sending
+    private void skipOrigin(String hash, CreditRelay<ClientHandler> relay, String reason) {
+        if (!creditRelays.remove(hash, relay)) {
+            return;
+        }
+        if (relay.origin() instanceof ClientHandler origin) {
+            origin.sendAsync(reason);
+            return;
+        }
+        CreditWindow window = serverCredits.get(hash);
+        if (window != null) {
+            window.skip();
+        }
+    }
+
+    private void handleResendRequest(ClientHandler receiver, String frame) {
+        try {
+            FileTransferProtocol.Nack nack = FileTransferProtocol.parseNack(frame);
+            CreditRelay<ClientHandler> relay = creditRelays.get(nack.hash());
+            if (relay == null || relay.origin() == receiver) {
+                return;
+            }
+            if (relay.origin() instanceof ClientHandler origin) {
+                origin.sendAsync(frame);
+                return;
+            }
+            CreditWindow window = serverCredits.get(nack.hash());
+            if (window != null && nack.count() > 0) {
+                window.requestResend(nack.sequence(), nack.count());
+            } else if (window != null) {
+                window.requestRewind(nack.sequence());
+            }
+        } catch (Exception ex) {
+            LOG.warn("Discarding malformed resend request from {}", receiver.getClientId(), ex);
+        }
+    }
+
+    private void forwardGrant(String hash, CreditRelay<ClientHandler> relay, CreditRelay.Grant grant) {
+        if (grant == null) {
+            return;
+        }
+        if (relay.origin() instanceof ClientHandler origin) {
+            origin.sendAsync(FileTransferProtocol.buildAck(
+                    FileTransferProtocol.Ack.builder(hash, grant.nextSequence(), grant.window())
+                            .deflate(grant.deflate())
+                            .batch(grant.batch())
+                            .delta(grant.delta())
+                            .build()));
+            return;
+        }
+        CreditWindow window = serverCredits.get(hash);
+        if (window != null) {
+            window.grant(grant.nextSequence(), grant.window(), grant.deflate(), grant.batch(), System.nanoTime());
+        }
+    }
+
+    private void broadcastFileFromServer(List<File> files, ChatWindow.TransferMonitor monitor) throws Exception {
+        OutgoingContent content;
+        try {
+            content = OutgoingContent.of(files);
+        } catch (IOException ex) {
+            ui.appendMessage("ERROR", "Invalid file selected: " + ex.getMessage());
+            return;
+        }
+
+        String hash = null;
+        CreditWindow credits = null;
+        boolean slotTaken = false;
+        try {
+            sendSlots.acquire(monitor);
+            slotTaken = true;
+            long size = content.size();
+            hash = content.transferId();
+            MerkleTree.Proofs proofs = content.proofs();
+            String header = content.header(PrefsManager.isCompressTransfers(), proofs);
+            ui.appendMessage("You", (content.isBundle() ? "Streaming folder: " : "Streaming file: ") + content.describe());
+            credits = new CreditWindow(FileTransferProtocol.CHUNK_SIZE);
+            serverCredits.put(hash, credits);
+            List<ClientHandler> receivers = new ArrayList<>(clients);
+            if (receivers.isEmpty()) {
+                creditRelays.put(hash, new CreditRelay<>(null));
+                credits.grant(0, CreditWindow.UNLIMITED, System.nanoTime());
+            } else {
+                openRelay(hash, null, receivers);
+            }
+            broadcastToAll(header);
+
+            long start = credits.awaitStart();
+            if (start < 0) {
+                ui.appendMessage("SYSTEM", "No client needs " + content.name() + " (already have it or declined); nothing to send.");
+                return;
+            }
+            try (FileChunkReader reader = new FileChunkReader(content.source(), size)) {
+                streamToParticipants(reader, proofs, hash, size, start, credits, monitor);
+                content.recordSent(reader.contentHash());
             }
-            broadcastToAll(FileTransferProtocol.buildEof(hash));
         } catch (IOException ex) {
             LOG.error("File broadcast failed", ex);
             ui.appendMessage("ERROR", "File send failed: " + ex.getMessage());
             throw ex;
+        } finally {
+            if (hash != null) {
+                serverCredits.remove(hash);
+                creditRelays.remove(hash);
+            }
+            if (credits != null) {
+                credits.close();
+            }
+            if (slotTaken) {
+                sendSlots.release();
+            }
+        }
+    }
+
+    // Sends from the receivers' resume point as far as their credit allows, then the EOF
+    private void streamToParticipants(FileChunkReader reader, MerkleTree.Proofs proofs, String hash, long size, long start,
+                                      CreditWindow credits, ChatWindow.TransferMonitor monitor)
+            throws IOException, InterruptedException {
+        ChunkEncoder encoder = new ChunkEncoder(reader, hash, PrefsManager.isCompressTransfers() && credits.deflateAccepted(),
+                proofs);
+        encoder.seek((int) start);
+        ChunkEncoder.Encoded chunk;
+        while ((chunk = encoder.next()) != null) {
+            if (monitor != null && monitor.isCancelled()) {
+                throw new IOException("Transfer cancelled by operator");
+            }
+            long rewind = awaitSendable(credits, encoder, chunk);
+            if (rewind >= 0) {
+                encoder.seek((int) rewind);
+                continue;
+            }
+            relayToParticipants(null, chunk.frame());
+            credits.onSent(chunk.sequence(), chunk.lastSequence(), System.nanoTime());
+            encoder.setBlocksPerFrame(credits.blocksPerFrame());
+            if (monitor != null) {
+                monitor.onProgress(chunk.position(), size);
+            }
+        }
+        relayToParticipants(null, reader.eofFrame(hash));
+    }
+
+    // Waits for credit to send chunk, sending any earlier chunks receivers asked for again on the way. Returns the
+    // chunk to go back to when a receiver asked for a rewind, otherwise -1.
+    private long awaitSendable(CreditWindow credits, ChunkEncoder encoder, ChunkEncoder.Encoded chunk)
+            throws IOException, InterruptedException {
+        while (true) {
+            credits.awaitCredit(chunk.lastSequence());
+            long rewind = credits.takeRewind();
+            List<Long> resends = credits.takeResends();
+            if (rewind >= 0 || resends.isEmpty()) {
+                return rewind;
+            }
+            for (long seq : resends) {
+                if (seq < chunk.sequence()) {
+                    relayToParticipants(null, encoder.resendFrame((int) seq));
+                    credits.onSent(seq, System.nanoTime());
+                }
+            }
+        }
+    }
+
+    /**
+     * Start serving a stored file to whoever grants for it: the grant that opens the fetch sets where it starts,
+     * and clients granting while it runs join it like late receivers of a live send. Returns the fetch's relay, or
+     * null when the file is not held.
+     */
+    private CreditRelay<ClientHandler> openStoredFetch(String hash) {
+        AttachmentStore.Entry entry = attachments != null ? attachments.pin(hash) : null;
+        if (entry == null) {
+            return null;
+        }
+        CreditWindow credits = new CreditWindow(FileTransferProtocol.CHUNK_SIZE);
+        CreditRelay<ClientHandler> relay = new CreditRelay<>(null);
+        if (serverCredits.putIfAbsent(hash, credits) != null) {
+            attachments.unpin(hash);
+            return creditRelays.get(hash);
+        }
+        creditRelays.put(hash, relay);
+        try {
+            attachmentSender.execute(() -> serveStored(entry, relay, credits));
+        } catch (RejectedExecutionException e) {
+            creditRelays.remove(hash, relay);
+            serverCredits.remove(hash, credits);
+            attachments.unpin(hash);
+            return null;
+        }
+        return relay;
+    }
+
+    private void serveStored(AttachmentStore.Entry entry, CreditRelay<ClientHandler> relay, CreditWindow credits) {
+        String hash = entry.transferId();
+        try {
+            long start = credits.awaitStart();
+            if (start >= 0 && !credits.isUncredited()) {
+                // The stored header announced the root recorded with the upload; the proofs must lead to it
+                MerkleTree.Proofs proofs = entry.merkleRoot() != null ? attachments.proofs(entry) : null;
+                try (FileChunkReader reader = new FileChunkReader(attachments.file(entry), entry.size())) {
+                    streamToParticipants(reader, proofs, hash, entry.size(), start, credits, null);
+                }
+            }
+        } catch (IOException ex) {
+            LOG.warn("Serving stored attachment {} failed", entry.filename(), ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            creditRelays.remove(hash, relay);
+            serverCredits.remove(hash, credits);
+            credits.close();
+            attachments.unpin(hash);
+        }
+    }
+
+    // Only when the operator chose to keep relayed files; read when the server starts
+    private static AttachmentStore openAttachmentStore() {
+        if (!PrefsManager.isStoreAttachments()) {
+            return null;
+        }
+        try {
+            return new AttachmentStore(Paths.get(System.getProperty("user.home", "."), ".localchat", "attachments"),
+                    ATTACHMENT_STORE_BYTES);
+        } catch (IOException e) {
+            LOG.warn("Attachment store unavailable; uploads are only relayed live", e);
+            return null;
         }
     }
 
@@ -271,14 +823,15 @@ public class EncryptedMultiServer {
     }
 
     private ExecutorService createClientExecutor() {
-        int cores = Math.max(2, Runtime.getRuntime().availableProcessors());
+        // A handler occupies its thread for the life of the connection, so a queued one would never be read;
+        // hand each connection straight to a thread and turn them away once the limit is reached
         ThreadFactory factory = new NamedThreadFactory("Client-Worker");
         return new ThreadPoolExecutor(
-                cores,
-                cores * 2,
+                0,
+                MAX_CONNECTIONS,
                 60L,
                 TimeUnit.SECONDS,
-                new LinkedBlockingQueue<>(CLIENT_QUEUE_CAPACITY),
+                new SynchronousQueue<>(),
                 factory,
                 new ThreadPoolExecutor.AbortPolicy());
     }
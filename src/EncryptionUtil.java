@@ -28,6 +28,13 @@ public final class EncryptionUtil {
     private EncryptionUtil() {
     }
 
+    /**
+     * Resolves the AES key for a salt found in an incoming message.
+     */
+    public interface KeySource {
+        SecretKey keyFor(byte[] salt) throws GeneralSecurityException;
+    }
+
     private static SecureRandom createSecureRandom() {
         try {
             return SecureRandom.getInstanceStrong();
@@ -62,10 +69,25 @@ public final class EncryptionUtil {
         Objects.requireNonNull(plaintext, "plaintext");
         Objects.requireNonNull(password, "password");
 
-        byte[] salt = new byte[SALT_SIZE_BYTES];
-        SECURE_RANDOM.nextBytes(salt);
+        byte[] salt = newSalt();
+        return encryptWithKey(plaintext, deriveKey(password, salt), salt);
+    }
 
-        SecretKey key = deriveKey(password, salt);
+    /**
+     * Encrypt with an already derived key. The salt is emitted unchanged so receivers can derive or look up the key.
+     */
+    public static String encryptWithKey(String plaintext, SecretKey key, byte[] salt) throws GeneralSecurityException {
+        Objects.requireNonNull(plaintext, "plaintext");
+        return encryptWithKey(plaintext.getBytes(StandardCharsets.UTF_8), key, salt);
+    }
+
+    /**
+     * Encrypt raw plaintext bytes, such as a compressed frame, with an already derived key.
+     */
+    public static String encryptWithKey(byte[] plaintext, SecretKey key, byte[] salt) throws GeneralSecurityException {
+        Objects.requireNonNull(plaintext, "plaintext");
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(salt, "salt");
 
         byte[] iv = new byte[IV_SIZE_BYTES];
         SECURE_RANDOM.nextBytes(iv);
@@ -74,13 +96,52 @@ public final class EncryptionUtil {
         GCMParameterSpec gcmSpec = new GCMParameterSpec(TAG_LENGTH_BITS, iv);
         cipher.init(Cipher.ENCRYPT_MODE, key, gcmSpec);
 
-        byte[] ciphertext = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
+        byte[] ciphertext = cipher.doFinal(plaintext);
 
         return B64_ENCODER.encodeToString(salt) + ':' +
                 B64_ENCODER.encodeToString(iv) + ':' +
                 B64_ENCODER.encodeToString(ciphertext);
     }
 
+    /**
+     * Encrypt bytes kept on disk rather than sent; returns iv followed by ciphertext+tag, with no salt or encoding.
+     * {@code aad} is authenticated but not stored, so the bytes only open with the same {@code aad}, typically
+     * naming where they are kept.
+     */
+    public static byte[] seal(byte[] plaintext, SecretKey key, byte[] aad) throws GeneralSecurityException {
+        Objects.requireNonNull(plaintext, "plaintext");
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(aad, "aad");
+
+        byte[] sealed = new byte[IV_SIZE_BYTES + plaintext.length + TAG_LENGTH_BITS / 8];
+        byte[] iv = new byte[IV_SIZE_BYTES];
+        SECURE_RANDOM.nextBytes(iv);
+        System.arraycopy(iv, 0, sealed, 0, IV_SIZE_BYTES);
+
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGO);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, iv));
+        cipher.updateAAD(aad);
+        cipher.doFinal(plaintext, 0, plaintext.length, sealed, IV_SIZE_BYTES);
+        return sealed;
+    }
+
+    /**
+     * Decrypt bytes produced by {@link #seal(byte[], SecretKey, byte[])} with the same {@code aad}.
+     */
+    public static byte[] open(byte[] sealed, SecretKey key, byte[] aad) throws GeneralSecurityException {
+        Objects.requireNonNull(sealed, "sealed");
+        Objects.requireNonNull(key, "key");
+        Objects.requireNonNull(aad, "aad");
+        if (sealed.length < IV_SIZE_BYTES + TAG_LENGTH_BITS / 8) {
+            throw new IllegalArgumentException("Sealed data too short: " + sealed.length);
+        }
+
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGO);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, sealed, 0, IV_SIZE_BYTES));
+        cipher.updateAAD(aad);
+        return cipher.doFinal(sealed, IV_SIZE_BYTES, sealed.length - IV_SIZE_BYTES);
+    }
+
     public static String encryptMessage(String plaintext, String password) throws GeneralSecurityException {
         return encryptMessage(plaintext, safePasswordChars(password));
     }
@@ -89,8 +150,23 @@ public final class EncryptionUtil {
      * Decrypt a message produced by {@link #encryptMessage(String, char[])}.
      */
     public static String decryptMessage(String combined, char[] password) throws GeneralSecurityException {
-        Objects.requireNonNull(combined, "combined");
         Objects.requireNonNull(password, "password");
+        return decryptMessage(combined, salt -> deriveKey(password, salt));
+    }
+
+    /**
+     * Decrypt a salt:iv:ciphertext message, resolving the key for its salt through {@code keys}.
+     */
+    public static String decryptMessage(String combined, KeySource keys) throws GeneralSecurityException {
+        return new String(decryptBytes(combined, keys), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decrypt a salt:iv:ciphertext message to its raw plaintext bytes.
+     */
+    public static byte[] decryptBytes(String combined, KeySource keys) throws GeneralSecurityException {
+        Objects.requireNonNull(combined, "combined");
+        Objects.requireNonNull(keys, "keys");
 
         String[] parts = combined.split(":");
         if (parts.length != 3) {
@@ -105,18 +181,26 @@ public final class EncryptionUtil {
             throw new IllegalArgumentException("Unexpected IV length: " + iv.length);
         }
 
-        SecretKey key = deriveKey(password, salt);
+        SecretKey key = keys.keyFor(salt);
         Cipher cipher = Cipher.getInstance(CIPHER_ALGO);
         cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, iv));
 
-        byte[] decrypted = cipher.doFinal(cipherText);
-        return new String(decrypted, StandardCharsets.UTF_8);
+        return cipher.doFinal(cipherText);
     }
 
     public static String decryptMessage(String combined, String password) throws GeneralSecurityException {
         return decryptMessage(combined, safePasswordChars(password));
     }
 
+    /**
+     * Generate a random salt of the size used by {@link #encryptMessage(String, char[])}.
+     */
+    public static byte[] newSalt() {
+        byte[] salt = new byte[SALT_SIZE_BYTES];
+        SECURE_RANDOM.nextBytes(salt);
+        return salt;
+    }
+
     /**
      * Deprecated alias maintained for backward compatibility.
      */
@@ -0,0 +1,231 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+/**
+ * A directory tree or a set of files sent as one transfer.
+ * <p>
+ * The bundle is a single byte stream: an 8-byte manifest length, the manifest, then every file's content back to
+ * back in manifest order. Small files therefore share chunks instead of each paying for its own header, hash and EOF
+ * round, and the stream goes through the normal chunk pipeline with its credit, resume and verification. The
+ * manifest lists one entry per line, {@code F<TAB>size<TAB>path} for files and {@code D<TAB>0<TAB>path} for empty
+ * directories, with {@code /}-separated paths relative to the bundle root. See {@link BundleExtractor} for the
+ * receiving side.
+ */
+final class FileBundle {
+    static final String MAGIC = "LCBUNDLE 1";
+    static final char FILE = 'F';
+    static final char DIRECTORY = 'D';
+
+    private final String name;
+    private final byte[] head;
+    private final List<Entry> entries;
+    private final long size;
+    private final String transferId;
+    private final int fileCount;
+
+    private FileBundle(String name, byte[] head, List<Entry> entries, String transferId) {
+        this.name = name;
+        this.head = head;
+        this.entries = entries;
+        this.transferId = transferId;
+        long total = head.length;
+        int files = 0;
+        for (Entry entry : entries) {
+            total += entry.size();
+            files += entry.source() != null ? 1 : 0;
+        }
+        this.size = total;
+        this.fileCount = files;
+    }
+
+    /**
+     * Bundle {@code roots}: a single directory is sent as itself, anything else as a folder holding every root.
+     */
+    static FileBundle of(List<Path> roots) throws IOException {
+        if (roots.isEmpty()) {
+            throw new IOException("Nothing to send");
+        }
+        List<Entry> entries = new ArrayList<>();
+        String name;
+        if (roots.size() == 1 && Files.isDirectory(roots.get(0))) {
+            Path root = roots.get(0);
+            name = root.getFileName().toString();
+            collect(root, "", entries);
+        } else {
+            name = roots.get(0).getFileName() + (roots.size() > 1 ? " and " + (roots.size() - 1) + " more" : "");
+            for (Path root : roots) {
+                collect(root, root.getFileName().toString(), entries);
+            }
+        }
+        StringBuilder manifest = new StringBuilder(MAGIC).append('\n');
+        MessageDigest id = FileTransferProtocol.newSha256();
+        for (Entry entry : entries) {
+            manifest.append(entry.source() != null ? FILE : DIRECTORY).append('\t')
+                    .append(entry.size()).append('\t').append(entry.path()).append('\n');
+            id.update((entry.path() + "|" + entry.size() + "|" + entry.modified() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] manifestBytes = manifest.toString().getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream head = new ByteArrayOutputStream(manifestBytes.length + Long.BYTES);
+        try (DataOutputStream out = new DataOutputStream(head)) {
+            out.writeLong(manifestBytes.length);
+            out.write(manifestBytes);
+        }
+        id.update(("bundle|" + FileTransferProtocol.sanitizeFilename(name)).getBytes(StandardCharsets.UTF_8));
+        return new FileBundle(name, head.toByteArray(), entries, FileTransferProtocol.toHex(id.digest()));
+    }
+
+    String name() {
+        return name;
+    }
+
+    long size() {
+        return size;
+    }
+
+    int fileCount() {
+        return fileCount;
+    }
+
+    /**
+     * Stable while no file in the bundle is added, removed, resized or touched, so an interrupted bundle resumes.
+     */
+    String transferId() {
+        return transferId;
+    }
+
+    /**
+     * The bundle stream from the start. Files are opened one at a time as the stream reaches them.
+     */
+    InputStream open() {
+        Iterator<Entry> files = entries.stream().filter(e -> e.source() != null).iterator();
+        Enumeration<InputStream> parts = new Enumeration<>() {
+            private boolean headSent;
+
+            @Override
+            public boolean hasMoreElements() {
+                return !headSent || files.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                if (!headSent) {
+                    headSent = true;
+                    return new ByteArrayInputStream(head);
+                }
+                if (!files.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return new ExactLengthStream(files.next());
+            }
+        };
+        return new SequenceInputStream(parts);
+    }
+
+    private static void collect(Path root, String prefix, List<Entry> entries) throws IOException {
+        if (Files.isRegularFile(root)) {
+            if (prefix.indexOf('\n') >= 0) {
+                throw new IOException("Cannot send a file with a line break in its name: " + root);
+            }
+            entries.add(new Entry(prefix, Files.size(root), Files.getLastModifiedTime(root).toMillis(), root));
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(root)) {
+            List<Path> paths = walk.sorted().toList();
+            for (Path path : paths) {
+                String relative = relativePath(root, path, prefix);
+                if (Files.isRegularFile(path)) {
+                    entries.add(new Entry(relative, Files.size(path), Files.getLastModifiedTime(path).toMillis(), path));
+                } else if (Files.isDirectory(path) && !relative.isEmpty() && isEmptyDirectory(path)) {
+                    entries.add(new Entry(relative, 0, 0, null));
+                }
+            }
+        }
+    }
+
+    private static String relativePath(Path root, Path path, String prefix) throws IOException {
+        StringBuilder sb = new StringBuilder(prefix);
+        for (Path segment : root.relativize(path)) {
+            String part = segment.toString();
+            if (part.isEmpty()) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(part);
+        }
+        if (sb.indexOf("\n") >= 0) {
+            throw new IOException("Cannot send a file with a line break in its name: " + path);
+        }
+        return sb.toString();
+    }
+
+    private static boolean isEmptyDirectory(Path dir) throws IOException {
+        try (Stream<Path> children = Files.list(dir)) {
+            return children.findAny().isEmpty();
+        }
+    }
+
+    /**
+     * @param source the file to read, or null for an empty directory
+     */
+    private record Entry(String path, long size, long modified, Path source) { }
+
+    // Yields exactly the size listed in the manifest, so a file that changed mid-send cannot shift the stream
+    private static final class ExactLengthStream extends InputStream {
+        private final Entry entry;
+        private InputStream in;
+        private long remaining;
+
+        ExactLengthStream(Entry entry) {
+            this.entry = entry;
+            this.remaining = entry.size();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (in == null) {
+                in = Files.newInputStream(entry.source());
+            }
+            if (remaining == 0) {
+                if (in.read() != -1) {
+                    throw new IOException("File changed while sending: " + entry.path());
+                }
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw new IOException("File changed while sending: " + entry.path());
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+}
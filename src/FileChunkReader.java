@@ -0,0 +1,207 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads a file chunk by chunk for sending and hashes it in the same pass: the SHA-256 of the content and the
+ * {@link MerkleTree} over the chunks, both of which go out with the EOF frame.
+ * <p>
+ * Neither digest can be rewound, so the state of both is kept every {@link #CHECKPOINT_CHUNKS} chunks read, and
+ * {@link #seek(int)} reopens the file, skips to the last checkpoint before the target and hashes only the chunks
+ * from there; resuming or resending from an earlier chunk costs at most that many chunks of rehashing.
+ * The bytes may come from any {@link Source} that can be reopened, such as a {@link FileBundle}.
+ */
+final class FileChunkReader implements Closeable {
+    static final int CHECKPOINT_CHUNKS = 256;
+
+    private final Source source;
+    private final long size;
+    private final byte[] buffer = new byte[FileTransferProtocol.CHUNK_SIZE];
+    private InputStream in;
+    private MessageDigest digest;
+    private MerkleTree tree;
+    private byte[] leaf;
+    private String contentHash;
+    private int sequence;
+    private long position;
+    private final TreeMap<Integer, Checkpoint> checkpoints = new TreeMap<>();
+
+    FileChunkReader(Path path, long size) throws IOException {
+        this(() -> Files.newInputStream(path), size);
+    }
+
+    FileChunkReader(Source source, long size) throws IOException {
+        this.source = source;
+        this.size = size;
+        seek(0);
+    }
+
+    /**
+     * Continue from chunk {@code seq}, clamped to the end of the file.
+     */
+    void seek(int seq) throws IOException {
+        close();
+        long chunks = (size + FileTransferProtocol.CHUNK_SIZE - 1) / FileTransferProtocol.CHUNK_SIZE;
+        int target = (int) Math.min(seq, chunks);
+        Map.Entry<Integer, Checkpoint> from = checkpoints.floorEntry(target);
+        InputStream raw = source.open();
+        try {
+            if (from == null) {
+                digest = FileTransferProtocol.newSha256();
+                tree = new MerkleTree();
+                sequence = 0;
+                position = 0;
+            } else {
+                position = (long) from.getKey() * FileTransferProtocol.CHUNK_SIZE;
+                raw.skipNBytes(position);
+                digest = from.getValue().digest();
+                tree = from.getValue().tree().copy();
+                sequence = from.getKey();
+            }
+        } catch (IOException | RuntimeException e) {
+            raw.close();
+            throw e;
+        }
+        in = new BufferedInputStream(raw);
+        while (sequence < target) {
+            if (next() <= 0) {
+                throw new IOException("File changed while sending: ended before chunk " + target);
+            }
+        }
+    }
+
+    /**
+     * Read the next chunk into {@link #buffer()}. Returns its length, or 0 at the end of the file.
+     */
+    int next() throws IOException {
+        int read = in.readNBytes(buffer, 0, buffer.length);
+        if (read <= 0) {
+            return 0;
+        }
+        digest.update(buffer, 0, read);
+        leaf = MerkleTree.leafHash(buffer, 0, read);
+        tree.addLeaf(leaf);
+        sequence++;
+        position += read;
+        if (sequence % CHECKPOINT_CHUNKS == 0 && !checkpoints.containsKey(sequence)) {
+            checkpoints.put(sequence, new Checkpoint(copy(digest), tree.copy()));
+        }
+        return read;
+    }
+
+    byte[] buffer() {
+        return buffer;
+    }
+
+    byte[] leafHash() {
+        return leaf;
+    }
+
+    /**
+     * Sequence number of the chunk returned by the last {@link #next()}.
+     */
+    int sequence() {
+        return sequence - 1;
+    }
+
+    long position() {
+        return position;
+    }
+
+    /**
+     * Chunk {@code seq} read on its own, leaving the stream where it is, for a receiver that asks for it again.
+     */
+    byte[] chunk(int seq) throws IOException {
+        long offset = (long) seq * FileTransferProtocol.CHUNK_SIZE;
+        if (seq < 0 || offset >= size) {
+            throw new IOException("No chunk " + seq + " in " + size + " bytes");
+        }
+        int length = (int) Math.min(FileTransferProtocol.CHUNK_SIZE, size - offset);
+        try (InputStream raw = source.open()) {
+            raw.skipNBytes(offset);
+            byte[] data = raw.readNBytes(length);
+            if (data.length != length) {
+                throw new IOException("File changed while sending: ended inside chunk " + seq);
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Read the whole of {@code source} once for the proof of every chunk, so the offer can announce the Merkle root
+     * the chunks are checked against.
+     * <p>
+     * This is a pre-pass: the offer waits for a full read of the file, which the streaming hash was meant to avoid.
+     * It is kept because a root that only came with the EOF would leave receivers nothing to check a chunk against on
+     * arrival, so one damaged chunk would again cost the whole file. The send that follows usually finds the file
+     * still in the page cache.
+     */
+    static MerkleTree.Proofs proofs(Source source, long size) throws IOException {
+        List<byte[]> leaves = new ArrayList<>((int) Math.min(MerkleTree.leafCount(size), Integer.MAX_VALUE));
+        try (FileChunkReader reader = new FileChunkReader(source, size)) {
+            while (reader.next() > 0) {
+                leaves.add(reader.leafHash());
+            }
+            if (reader.position != size) {
+                throw new IOException("File changed while hashing: expected " + size + " bytes");
+            }
+        }
+        return new MerkleTree.Proofs(leaves);
+    }
+
+    /**
+     * Build the EOF frame once every chunk has been read.
+     */
+    String eofFrame(String transferId) throws IOException {
+        if (position != size || in.read() != -1) {
+            throw new IOException("File changed while sending: expected " + size + " bytes");
+        }
+        contentHash = FileTransferProtocol.toHex(digest.digest());
+        return FileTransferProtocol.buildEof(transferId, contentHash, FileTransferProtocol.toHex(tree.root()));
+    }
+
+    /**
+     * SHA-256 of the whole file, available once {@link #eofFrame(String)} has been built.
+     */
+    String contentHash() {
+        return contentHash;
+    }
+
+    @Override
+    public void close() {
+        if (in != null) {
+            try { in.close(); } catch (IOException ignored) {}
+            in = null;
+        }
+    }
+
+    private static MessageDigest copy(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("SHA-256 state cannot be copied", e);
+        }
+    }
+
+    // Hash state after the chunks before a checkpoint; the digest is copied again on every use
+    private record Checkpoint(MessageDigest state, MerkleTree tree) {
+        MessageDigest digest() {
+            return copy(state);
+        }
+    }
+
+    /**
+     * Opens the bytes to send from the beginning.
+     */
+    interface Source {
+        InputStream open() throws IOException;
+    }
+}
@@ -1,24 +1,72 @@
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.StringJoiner;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * Simple helpers for streaming file transfers over the line-oriented chat protocol.
+ * <p>
+ * Frames are keyed by a 64-hex transfer id. Current senders use {@link #transferId}, which does not depend on the
+ * content, and send the SHA-256 of the content in the EOF frame; older senders put the content hash itself in the
+ * header and omit it from the EOF. A sender that hashed the content's chunks first announces their
+ * {@link MerkleTree} root in the header ({@link #ROOT}) and sends each chunk with its proof against that root, so
+ * every chunk is verified on arrival against the offer; otherwise chunks carry their leaf hash. The root also
+ * follows in the EOF.
+ * <p>
+ * A sender may offer {@link #DEFLATE} in the header; receivers that accept it say so in their grants, and chunks
+ * compressed by {@link ChunkEncoder} are then marked as such. Leaf hashes always cover the uncompressed bytes.
+ * Header options are comma-separated; {@link #BUNDLE} marks a {@link FileBundle} stream rather than a single file,
+ * and {@link #STORED} an offer from the server's {@link AttachmentStore}, which can be taken up at any time.
+ * <p>
+ * A sender may also offer {@link #DELTA}: a receiver holding an older file of the same name answers with a
+ * signature of it before its first grant, and grants naming {@code delta} take chunks encoded by {@link DeltaCodec}
+ * against that copy. The server passes the first signature to the sender and accepts delta for a receiver only when
+ * its copy is the same one.
+ * <p>
+ * A header is an offer: a receiver takes part by answering with its first grant, or opts out with a HAVE (it holds
+ * the content already) or a DECLINE. The server relays chunks only to receivers that granted.
+ * <p>
+ * Sequence numbers, leaf hashes and credit always count {@link #CHUNK_SIZE} blocks. Receivers that grant
+ * {@link #BATCH} also take frames carrying up to {@link #MAX_BLOCKS_PER_FRAME} consecutive blocks, which list one
+ * leaf hash per block; the frame starts at block {@code sequence} and its length follows from the leaf count.
  */
 public final class FileTransferProtocol {
     public static final int CHUNK_SIZE = 64 * 1024; // 64 KiB chunks
     public static final String HEADER_PREFIX = "[FILE-HEADER]|";
     public static final String CHUNK_PREFIX = "[FILE-CHUNK]|";
     public static final String EOF_PREFIX = "[FILE-EOF]|";
+    public static final String ACK_PREFIX = "[FILE-ACK]|";
+    public static final String NACK_PREFIX = "[FILE-NACK]|";
+    public static final String HAVE_PREFIX = "[FILE-HAVE]|";
+    public static final String DECLINE_PREFIX = "[FILE-DECLINE]|";
+    public static final String SIGNATURE_PREFIX = "[FILE-SIG]|";
     public static final String PING = "[PING]";
     public static final String PONG = "[PONG]";
+    public static final String DEFLATE = "deflate";
+    public static final String BUNDLE = "bundle";
+    public static final String STORED = "stored";
+    public static final String BATCH = "batch";
+    // Transfer ids and hashes name files on the receiving side, so nothing but lower-case hex is taken
+    private static final Pattern HEX_ID = Pattern.compile("[0-9a-f]{64}");
+    public static final String DELTA = "delta";
+    // Header option carrying the MerkleTree root, as root=<hex>; chunks then carry proofs rather than leaf hashes
+    public static final String ROOT = "root=";
+    public static final int MAX_BLOCKS_PER_FRAME = 64; // 4 MiB frames
 
     private FileTransferProtocol() {
     }
@@ -28,8 +76,32 @@ public final class FileTransferProtocol {
         return name.replace('|', '_');
     }
 
-    public static String buildHeader(String filename, long size, String sha256Hex) {
-        return HEADER_PREFIX + sanitizeFilename(filename) + "|" + size + "|" + sha256Hex;
+    /**
+     * Header frame for {@code header}. Options and the content hash field are only written when there is something
+     * to put in them, so a plain offer reads the same as from older senders.
+     */
+    public static String buildHeader(Header header) {
+        String frame = HEADER_PREFIX + sanitizeFilename(header.filename()) + "|" + header.size() + "|" + header.hash();
+        StringJoiner options = new StringJoiner(",");
+        if (header.deflate()) {
+            options.add(DEFLATE);
+        }
+        if (header.bundle()) {
+            options.add(BUNDLE);
+        }
+        if (header.stored()) {
+            options.add(STORED);
+        }
+        if (header.delta()) {
+            options.add(DELTA);
+        }
+        if (header.merkleRoot() != null) {
+            options.add(ROOT + header.merkleRoot());
+        }
+        if (options.length() == 0) {
+            return header.contentHash() == null ? frame : frame + "|" + header.contentHash();
+        }
+        return frame + "|" + (header.contentHash() == null ? "" : header.contentHash()) + "|" + options;
     }
 
     public static String buildChunk(String sha256Hex, int sequence, byte[] buffer, int length) {
@@ -38,8 +110,101 @@ public final class FileTransferProtocol {
         return CHUNK_PREFIX + sha256Hex + "|" + sequence + "|" + payload;
     }
 
-    public static String buildEof(String sha256Hex) {
-        return EOF_PREFIX + sha256Hex;
+    public static String buildChunk(String transferId, int sequence, byte[] buffer, int length, byte[] proof) {
+        return buildChunk(transferId, sequence, buffer, length) + "|" + toHex(proof);
+    }
+
+    /**
+     * Chunk whose payload is {@code deflated}; {@code proof} still covers the uncompressed bytes.
+     */
+    public static String buildDeflatedChunk(String transferId, int sequence, byte[] deflated, int length, byte[] proof) {
+        return buildChunk(transferId, sequence, deflated, length, proof) + "|" + DEFLATE;
+    }
+
+    /**
+     * Frame carrying {@code proofs.size()} consecutive blocks from {@code sequence} on, optionally deflated as
+     * a whole. Only for receivers that granted {@link #BATCH}.
+     */
+    public static String buildBatchChunk(String transferId, int sequence, byte[] payload, int length,
+                                         List<byte[]> proofs, boolean deflated) {
+        StringJoiner blocks = new StringJoiner(",");
+        for (byte[] proof : proofs) {
+            blocks.add(toHex(proof));
+        }
+        String frame = buildChunk(transferId, sequence, payload, length) + "|" + blocks;
+        return deflated ? frame + "|" + DEFLATE : frame;
+    }
+
+    /**
+     * Frame whose payload is a {@link DeltaCodec} script rebuilding its blocks from the receiver's older copy; the
+     * proofs cover the rebuilt bytes. Only for receivers that granted {@link #DELTA}.
+     */
+    public static String buildDeltaChunk(String transferId, int sequence, byte[] script, List<byte[]> proofs) {
+        return buildBatchChunk(transferId, sequence, script, script.length, proofs, false) + "|" + DELTA;
+    }
+
+    public static String buildEof(String transferId, String sha256Hex, String merkleRootHex) {
+        return EOF_PREFIX + transferId + "|" + sha256Hex + "|" + merkleRootHex;
+    }
+
+    /**
+     * Credit grant from a receiver: every chunk below {@code ack.nextSequence()} has been consumed and the sender may
+     * run up to {@code ack.window()} chunks ahead of it. The options are only written when some are accepted.
+     */
+    public static String buildAck(Ack ack) {
+        String frame = ACK_PREFIX + ack.hash() + "|" + ack.nextSequence() + "|" + ack.window();
+        StringJoiner options = new StringJoiner(",");
+        if (ack.deflate()) {
+            options.add(DEFLATE);
+        }
+        if (ack.batch()) {
+            options.add(BATCH);
+        }
+        if (ack.delta()) {
+            options.add(DELTA);
+        }
+        return options.length() == 0 ? frame : frame + "|" + options;
+    }
+
+    /**
+     * Signature of the older copy a receiver holds, sent ahead of its first grant in answer to a {@link #DELTA}
+     * offer.
+     */
+    public static String buildSignature(String transferId, DeltaCodec.Signature signature) {
+        return SIGNATURE_PREFIX + transferId + "|" + signature.basisHash() + "|" + signature.blockSize() + "|"
+                + Base64.getEncoder().encodeToString(signature.sums());
+    }
+
+    /**
+     * Resend request from a receiver that saw a gap, e.g. chunks lost with a dropped connection: the sender goes
+     * back to {@code sequence}.
+     */
+    public static String buildNack(String transferId, int sequence) {
+        return NACK_PREFIX + transferId + "|" + sequence;
+    }
+
+    /**
+     * As {@link #buildNack(String, int)}, or with a {@link Nack#count() count} a request for only those chunks from
+     * {@code sequence} on, for a receiver that verified and kept the chunks around them.
+     */
+    public static String buildNack(Nack nack) {
+        return nack.count() > 0
+                ? buildNack(nack.hash(), nack.sequence()) + "|" + nack.count()
+                : buildNack(nack.hash(), nack.sequence());
+    }
+
+    /**
+     * Reply from a receiver that already holds the offered content and will not take part in the transfer.
+     */
+    public static String buildHave(String transferId) {
+        return HAVE_PREFIX + transferId;
+    }
+
+    /**
+     * Reply from a receiver that does not want the offered content.
+     */
+    public static String buildDecline(String transferId) {
+        return DECLINE_PREFIX + transferId;
     }
 
     public static boolean isFileMessage(String plaintext) {
@@ -60,42 +225,260 @@ public final class FileTransferProtocol {
         return plaintext != null && plaintext.startsWith(EOF_PREFIX);
     }
 
+    public static boolean isAck(String plaintext) {
+        return plaintext != null && plaintext.startsWith(ACK_PREFIX);
+    }
+
+    public static boolean isNack(String plaintext) {
+        return plaintext != null && plaintext.startsWith(NACK_PREFIX);
+    }
+
+    public static boolean isHave(String plaintext) {
+        return plaintext != null && plaintext.startsWith(HAVE_PREFIX);
+    }
+
+    public static String parseHave(String have) {
+        if (!isHave(have)) {
+            throw new IllegalArgumentException("Not a have frame: " + have);
+        }
+        return checkedId(have.substring(HAVE_PREFIX.length()));
+    }
+
+    public static boolean isSignature(String plaintext) {
+        return plaintext != null && plaintext.startsWith(SIGNATURE_PREFIX);
+    }
+
+    public static Signature parseSignature(String frame) {
+        if (!isSignature(frame)) {
+            throw new IllegalArgumentException("Not a signature frame");
+        }
+        String[] parts = frame.substring(SIGNATURE_PREFIX.length()).split("\\|", 4);
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("Malformed signature frame");
+        }
+        DeltaCodec.Signature signature = new DeltaCodec.Signature(checkedId(parts[1]),
+                Integer.parseInt(parts[2]), Base64.getDecoder().decode(parts[3]));
+        return new Signature(checkedId(parts[0]), signature);
+    }
+
+    public static boolean isDecline(String plaintext) {
+        return plaintext != null && plaintext.startsWith(DECLINE_PREFIX);
+    }
+
+    public static String parseDecline(String decline) {
+        if (!isDecline(decline)) {
+            throw new IllegalArgumentException("Not a decline frame: " + decline);
+        }
+        return checkedId(decline.substring(DECLINE_PREFIX.length()));
+    }
+
     public static Header parseHeader(String header) throws IllegalArgumentException {
         if (!isHeader(header)) {
             throw new IllegalArgumentException("Not a header frame: " + header);
         }
-        String[] parts = header.substring(HEADER_PREFIX.length()).split("\\|", 3);
-        if (parts.length != 3) {
+        String[] parts = header.substring(HEADER_PREFIX.length()).split("\\|", 5);
+        if (parts.length < 3) {
             throw new IllegalArgumentException("Malformed header frame");
         }
         String filename = parts[0];
         long size = Long.parseLong(parts[1]);
-        String hash = parts[2].toLowerCase(Locale.ROOT);
-        if (hash.length() != 64) {
-            throw new IllegalArgumentException("Unexpected hash length");
+        String hash = checkedId(parts[2]);
+        String contentHash = parts.length >= 4 && !parts[3].isEmpty() ? checkedId(parts[3]) : null;
+        boolean deflate = false;
+        boolean bundle = false;
+        boolean stored = false;
+        boolean delta = false;
+        String merkleRoot = null;
+        if (parts.length == 5) {
+            for (String option : parts[4].split(",")) {
+                deflate |= DEFLATE.equals(option);
+                bundle |= BUNDLE.equals(option);
+                stored |= STORED.equals(option);
+                delta |= DELTA.equals(option);
+                if (option.startsWith(ROOT)) {
+                    merkleRoot = checkedId(option.substring(ROOT.length()));
+                }
+            }
         }
-        return new Header(filename, size, hash);
+        return new Header(filename, size, hash, contentHash, deflate, bundle, stored, delta, merkleRoot);
     }
 
     public static Chunk parseChunk(String chunk) {
+        List<Chunk> blocks = parseChunks(chunk);
+        if (blocks.size() != 1) {
+            throw new IllegalArgumentException("Unexpected multi-block chunk frame");
+        }
+        return blocks.get(0);
+    }
+
+    /**
+     * Parse a chunk frame into its blocks: one for ordinary frames, several for {@link #BATCH} frames.
+     */
+    public static List<Chunk> parseChunks(String chunk) {
+        return parseChunks(chunk, null);
+    }
+
+    /**
+     * As {@link #parseChunks(String)}, rebuilding {@link #DELTA} frames from {@code basis}; without one they are
+     * rejected.
+     */
+    public static List<Chunk> parseChunks(String chunk, DeltaCodec.Basis basis) {
         if (!isChunk(chunk)) {
             throw new IllegalArgumentException("Not a chunk frame: " + chunk);
         }
-        String[] parts = chunk.substring(CHUNK_PREFIX.length()).split("\\|", 3);
-        if (parts.length != 3) {
+        String[] parts = chunk.substring(CHUNK_PREFIX.length()).split("\\|", 5);
+        if (parts.length < 3) {
             throw new IllegalArgumentException("Malformed chunk frame");
         }
-        String hash = parts[0].toLowerCase(Locale.ROOT);
+        String hash = checkedId(parts[0]);
         int sequence = Integer.parseInt(parts[1]);
         byte[] data = Base64.getDecoder().decode(parts[2]);
-        return new Chunk(hash, sequence, data);
+        String[] leaves = parts.length >= 4 ? parts[3].split(",") : new String[] {null};
+        if (leaves.length > MAX_BLOCKS_PER_FRAME) {
+            throw new IllegalArgumentException("Chunk frame carries too many blocks");
+        }
+        if (parts.length == 5) {
+            if (DELTA.equals(parts[4])) {
+                if (basis == null) {
+                    throw new IllegalArgumentException("Delta chunk without an older copy to apply it to");
+                }
+                data = basis.apply(data, CHUNK_SIZE * leaves.length);
+            } else if (DEFLATE.equals(parts[4])) {
+                data = inflate(data, CHUNK_SIZE * leaves.length);
+            } else {
+                throw new IllegalArgumentException("Unsupported chunk encoding: " + parts[4]);
+            }
+        }
+        if (leaves.length == 1) {
+            return List.of(new Chunk(hash, sequence, data, leaves[0] == null ? null : HexFormat.of().parseHex(leaves[0])));
+        }
+        if (data.length <= CHUNK_SIZE * (leaves.length - 1) || data.length > CHUNK_SIZE * leaves.length) {
+            throw new IllegalArgumentException("Chunk frame length does not match its block count");
+        }
+        List<Chunk> blocks = new ArrayList<>(leaves.length);
+        for (int i = 0; i < leaves.length; i++) {
+            byte[] block = Arrays.copyOfRange(data, i * CHUNK_SIZE, Math.min(data.length, (i + 1) * CHUNK_SIZE));
+            blocks.add(new Chunk(hash, sequence + i, block, HexFormat.of().parseHex(leaves[i])));
+        }
+        return blocks;
+    }
+
+    /**
+     * The transfer id of a chunk frame, read without decoding its payload.
+     */
+    public static String chunkTransferId(String chunk) {
+        if (!isChunk(chunk)) {
+            throw new IllegalArgumentException("Not a chunk frame");
+        }
+        int end = chunk.indexOf('|', CHUNK_PREFIX.length());
+        if (end < 0) {
+            throw new IllegalArgumentException("Malformed chunk frame");
+        }
+        return checkedId(chunk.substring(CHUNK_PREFIX.length(), end));
     }
 
-    public static String parseEofHash(String eof) {
+    /**
+     * The transfer id and the blocks a chunk frame covers, read without decoding its payload.
+     */
+    public static ChunkRange parseChunkRange(String chunk) {
+        String id = chunkTransferId(chunk);
+        int seqStart = CHUNK_PREFIX.length() + id.length() + 1;
+        int seqEnd = chunk.indexOf('|', seqStart);
+        if (seqEnd < 0) {
+            throw new IllegalArgumentException("Malformed chunk frame");
+        }
+        int first = Integer.parseInt(chunk, seqStart, seqEnd, 10);
+        int dataEnd = chunk.indexOf('|', seqEnd + 1);
+        int blocks = 1;
+        if (dataEnd >= 0) {
+            int leavesEnd = chunk.indexOf('|', dataEnd + 1);
+            for (int i = dataEnd + 1, end = leavesEnd < 0 ? chunk.length() : leavesEnd; i < end; i++) {
+                blocks += chunk.charAt(i) == ',' ? 1 : 0;
+            }
+        }
+        return new ChunkRange(id, first, first + blocks - 1);
+    }
+
+    public static Eof parseEof(String eof) {
         if (!isEof(eof)) {
             throw new IllegalArgumentException("Not an EOF frame: " + eof);
         }
-        return eof.substring(EOF_PREFIX.length()).toLowerCase(Locale.ROOT);
+        String[] parts = eof.substring(EOF_PREFIX.length()).split("\\|", 3);
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = checkedId(parts[i]);
+        }
+        return new Eof(parts[0], parts.length > 1 ? parts[1] : null, parts.length > 2 ? parts[2] : null);
+    }
+
+    public static Ack parseAck(String ack) {
+        if (!isAck(ack)) {
+            throw new IllegalArgumentException("Not an ack frame: " + ack);
+        }
+        String[] parts = ack.substring(ACK_PREFIX.length()).split("\\|", 4);
+        if (parts.length < 3) {
+            throw new IllegalArgumentException("Malformed ack frame");
+        }
+        int nextSequence = Integer.parseInt(parts[1]);
+        int window = Integer.parseInt(parts[2]);
+        if (nextSequence < 0 || window < 0) {
+            throw new IllegalArgumentException("Negative credit in ack frame");
+        }
+        boolean deflate = false;
+        boolean batch = false;
+        boolean delta = false;
+        if (parts.length == 4) {
+            for (String option : parts[3].split(",")) {
+                deflate |= DEFLATE.equals(option);
+                batch |= BATCH.equals(option);
+                delta |= DELTA.equals(option);
+            }
+        }
+        return new Ack(checkedId(parts[0]), nextSequence, window, deflate, batch, delta);
+    }
+
+    public static Nack parseNack(String nack) {
+        if (!isNack(nack)) {
+            throw new IllegalArgumentException("Not a nack frame: " + nack);
+        }
+        String[] parts = nack.substring(NACK_PREFIX.length()).split("\\|", 3);
+        if (parts.length < 2) {
+            throw new IllegalArgumentException("Malformed nack frame");
+        }
+        int sequence = Integer.parseInt(parts[1]);
+        int count = parts.length == 3 ? Integer.parseInt(parts[2]) : 0;
+        if (sequence < 0 || count < 0) {
+            throw new IllegalArgumentException("Negative sequence in nack frame");
+        }
+        return new Nack(checkedId(parts[0]), sequence, count);
+    }
+
+    /**
+     * {@code id} lower-cased, if it is 64 hex digits; a peer's id is used in file names, so anything else is refused.
+     */
+    static String checkedId(String id) {
+        String lower = id.toLowerCase(Locale.ROOT);
+        if (!HEX_ID.matcher(lower).matches()) {
+            throw new IllegalArgumentException("Malformed transfer id or hash");
+        }
+        return lower;
+    }
+
+    /**
+     * Stable id for offering a file without reading it first: the same unmodified file maps to the same id, which
+     * is what lets an interrupted transfer resume when it is offered again.
+     */
+    public static String transferId(String filename, long size, long lastModifiedMillis) {
+        MessageDigest digest = newSha256();
+        digest.update((sanitizeFilename(filename) + "|" + size + "|" + lastModifiedMillis).getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
     }
 
     public static String computeSha256(Path path) throws IOException {
@@ -108,13 +491,38 @@ public final class FileTransferProtocol {
                     // reading via DigestInputStream updates the digest automatically
                 }
             }
-            return bytesToHex(digest.digest());
+            return toHex(digest.digest());
         } catch (NoSuchAlgorithmException e) {
             throw new IllegalStateException("SHA-256 not available", e);
         }
     }
 
-    private static String bytesToHex(byte[] bytes) {
+    // Bounded so a hostile sender cannot inflate a small frame into an arbitrarily large chunk
+    private static byte[] inflate(byte[] deflated, int maxLength) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            byte[] out = new byte[maxLength];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == out.length) {
+                    throw new IllegalArgumentException("Compressed chunk exceeds " + maxLength + " bytes");
+                }
+                int n = inflater.inflate(out, length, out.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated compressed chunk");
+                }
+                length += n;
+            }
+            return java.util.Arrays.copyOf(out, length);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed chunk", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
         StringBuilder sb = new StringBuilder(bytes.length * 2);
         for (byte b : bytes) {
             sb.append(String.format(Locale.ROOT, "%02x", b));
@@ -122,7 +530,153 @@ public final class FileTransferProtocol {
         return sb.toString();
     }
 
-    public record Header(String filename, long size, String hash) { }
+    /**
+     * @param contentHash SHA-256 of the content when the sender announced it, otherwise null
+     * @param deflate whether the sender offered compressed chunks
+     * @param bundle whether the content is a {@link FileBundle} stream
+     * @param stored whether the server offers the file from its attachment store rather than relaying a live send
+     * @param delta whether the sender offered delta chunks against an older copy
+     * @param merkleRoot the root every chunk's proof must lead to, or null when the sender announced none
+     */
+    public record Header(String filename, long size, String hash, String contentHash, boolean deflate, boolean bundle,
+                         boolean stored, boolean delta, String merkleRoot) {
+        /**
+         * A header offering {@code size} bytes as {@code filename} under transfer id {@code hash}, with every option
+         * off until set on the builder.
+         */
+        public static Builder builder(String filename, long size, String hash) {
+            return new Builder(filename, size, hash);
+        }
+
+        public static final class Builder {
+            private final String filename;
+            private final long size;
+            private final String hash;
+            private String contentHash;
+            private boolean deflate;
+            private boolean bundle;
+            private boolean stored;
+            private boolean delta;
+            private String merkleRoot;
+
+            private Builder(String filename, long size, String hash) {
+                this.filename = filename;
+                this.size = size;
+                this.hash = hash;
+            }
+
+            public Builder contentHash(String contentHash) {
+                this.contentHash = contentHash;
+                return this;
+            }
+
+            public Builder deflate(boolean deflate) {
+                this.deflate = deflate;
+                return this;
+            }
+
+            public Builder bundle(boolean bundle) {
+                this.bundle = bundle;
+                return this;
+            }
+
+            public Builder stored(boolean stored) {
+                this.stored = stored;
+                return this;
+            }
+
+            public Builder delta(boolean delta) {
+                this.delta = delta;
+                return this;
+            }
+
+            public Builder merkleRoot(String merkleRoot) {
+                this.merkleRoot = merkleRoot;
+                return this;
+            }
+
+            public Header build() {
+                return new Header(filename, size, hash, contentHash, deflate, bundle, stored, delta, merkleRoot);
+            }
+        }
+    }
+
+    /**
+     * @param proof the sender's {@link MerkleTree.Proofs#path proof} for {@code data} when the header announced a
+     *              root, otherwise its leaf hash, or null from older senders
+     */
+    public record Chunk(String hash, int sequence, byte[] data, byte[] proof) {
+        public Chunk(String hash, int sequence, byte[] data) {
+            this(hash, sequence, data, null);
+        }
+    }
+
+    /**
+     * @param deflate whether the receiver accepts compressed chunks
+     * @param batch whether the receiver accepts frames of several blocks
+     * @param delta whether the receiver accepts delta chunks against the copy it signed
+     */
+    public record Ack(String hash, int nextSequence, int window, boolean deflate, boolean batch, boolean delta) {
+        /**
+         * A grant of {@code window} chunks past {@code nextSequence}, accepting none of the options until set on the
+         * builder.
+         */
+        public static Builder builder(String hash, int nextSequence, int window) {
+            return new Builder(hash, nextSequence, window);
+        }
+
+        public static final class Builder {
+            private final String hash;
+            private final int nextSequence;
+            private final int window;
+            private boolean deflate;
+            private boolean batch;
+            private boolean delta;
+
+            private Builder(String hash, int nextSequence, int window) {
+                this.hash = hash;
+                this.nextSequence = nextSequence;
+                this.window = window;
+            }
+
+            public Builder deflate(boolean deflate) {
+                this.deflate = deflate;
+                return this;
+            }
+
+            public Builder batch(boolean batch) {
+                this.batch = batch;
+                return this;
+            }
+
+            public Builder delta(boolean delta) {
+                this.delta = delta;
+                return this;
+            }
+
+            public Ack build() {
+                return new Ack(hash, nextSequence, window, deflate, batch, delta);
+            }
+        }
+    }
+
+    /**
+     * @param count how many chunks from {@code sequence} on to send again on their own, or 0 to go back to
+     *              {@code sequence} and send everything from there
+     */
+    public record Nack(String hash, int sequence, int count) { }
+
+    public record Signature(String transferId, DeltaCodec.Signature signature) { }
+
+    /**
+     * @param first sequence of the frame's first block
+     * @param last sequence of its last block; equal to {@code first} unless the frame is batched
+     */
+    public record ChunkRange(String transferId, int first, int last) { }
 
-    public record Chunk(String hash, int sequence, byte[] data) { }
+    /**
+     * @param sha256 content hash to verify against, or null when a legacy sender put it in the header instead
+     * @param merkleRoot root over the chunks' leaf hashes, or null from older senders
+     */
+    public record Eof(String transferId, String sha256, String merkleRoot) { }
 }
@@ -0,0 +1,443 @@
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Owns the outbound side of one connection: frames are queued on priority lanes and written by a single writer
+ * thread, or by one task at a time on a shared executor. Control frames always go first, chat frames are served ahead of bulk data with a bounded burst, and
+ * bulk frames are grouped into streams (one per file transfer) that take turns by deficit round-robin: each turn
+ * earns a stream {@link #BULK_QUANTUM} characters of credit, so a transfer sending large batched frames gets the
+ * same share of the link as one sending single blocks.
+ */
+public final class FrameScheduler {
+    private static final Logger LOG = AppLogger.get(FrameScheduler.class);
+    // Chat frames written back to back before a waiting bulk frame gets a turn
+    private static final int CHAT_BURST = 8;
+    // Frames one task on a shared executor writes before handing the executor to other connections
+    private static final int TASK_FRAMES = 32;
+    // Characters of credit a bulk stream earns per round; about one base64-encoded block
+    static final int BULK_QUANTUM = FileTransferProtocol.CHUNK_SIZE * 4 / 3;
+
+    public enum Lane { CONTROL, CHAT, BULK }
+
+    /**
+     * Writes one plaintext frame to the connection. Throwing pauses the scheduler with the frame kept at the head
+     * of its lane until {@link #setPaused(boolean)} resumes it.
+     */
+    public interface FrameSink {
+        void write(String plaintext) throws IOException;
+
+        /**
+         * Whether the sink takes a frame without blocking; asked only by a scheduler running on an executor, which
+         * stops writing until {@link #wake()} when it says no.
+         */
+        default boolean canWrite() {
+            return true;
+        }
+    }
+
+    /**
+     * Told once whether a chat frame was written to the connection or dropped unsent when the scheduler closed or
+     * the sink refused it. A write that fails keeps the frame queued for the resumed connection, so it is not
+     * reported as failed.
+     */
+    public interface DeliveryListener {
+        void delivered(boolean written);
+    }
+
+    /**
+     * Thrown by a sink for a frame it can never write, e.g. one that fails to encrypt. The frame is dropped and
+     * reported unwritten instead of being kept for the resumed connection, and the frames after it still go.
+     */
+    public static final class UnsendableFrameException extends IOException {
+        public UnsendableFrameException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private final FrameSink sink;
+    private final Executor executor; // null when the scheduler has a writer thread of its own
+    private final int bulkCapacity;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private final Condition space = lock.newCondition();
+    private final ArrayDeque<String> control = new ArrayDeque<>();
+    private final ArrayDeque<Queued> chat = new ArrayDeque<>();
+    private final LinkedHashMap<String, BulkStream> bulkStreams = new LinkedHashMap<>();
+    private int bulkQueued;
+    private int chatStreak;
+    private boolean paused;
+    private boolean closed;
+    private boolean draining; // a task is queued or running on the executor
+
+    public FrameScheduler(String name, FrameSink sink, int bulkCapacity, boolean startPaused) {
+        this.sink = Objects.requireNonNull(sink, "sink");
+        this.executor = null;
+        this.bulkCapacity = Math.max(1, bulkCapacity);
+        this.paused = startPaused;
+        Thread writer = new Thread(this::drain, name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * A scheduler without a thread of its own: while frames wait and the sink can take them, they are written by
+     * tasks on {@code executor}, so many connections can share a few threads. The sink must not block.
+     */
+    public FrameScheduler(FrameSink sink, int bulkCapacity, boolean startPaused, Executor executor) {
+        this.sink = Objects.requireNonNull(sink, "sink");
+        this.executor = Objects.requireNonNull(executor, "executor");
+        this.bulkCapacity = Math.max(1, bulkCapacity);
+        this.paused = startPaused;
+    }
+
+    /**
+     * Queue a frame on the lane its prefix implies. Bulk frames may block while the bulk lane is full.
+     */
+    public boolean submit(String plaintext) throws InterruptedException {
+        Lane lane = classify(plaintext);
+        return enqueue(lane, lane == Lane.BULK ? streamIdOf(plaintext) : null, plaintext);
+    }
+
+    /**
+     * Queue a chat frame and tell {@code listener} once it was written or dropped. Never blocks; returns false,
+     * without calling the listener, once the scheduler is closed.
+     */
+    public boolean submitChat(String plaintext, DeliveryListener listener) {
+        Objects.requireNonNull(plaintext, "plaintext");
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            chat.addLast(new Queued(plaintext, listener));
+            signalWork();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue a frame without waiting for room. Returns false when the bulk lane is full or the scheduler is closed.
+     */
+    public boolean offer(String plaintext) {
+        Objects.requireNonNull(plaintext, "plaintext");
+        Lane lane = classify(plaintext);
+        lock.lock();
+        try {
+            if (closed || lane == Lane.BULK && bulkQueued >= bulkCapacity) {
+                return false;
+            }
+            add(lane, lane == Lane.BULK ? streamIdOf(plaintext) : null, plaintext);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue a frame. Returns false once the scheduler is closed.
+     */
+    public boolean enqueue(Lane lane, String streamId, String plaintext) throws InterruptedException {
+        Objects.requireNonNull(plaintext, "plaintext");
+        lock.lockInterruptibly();
+        try {
+            if (lane == Lane.BULK) {
+                while (!closed && bulkQueued >= bulkCapacity) {
+                    space.await();
+                }
+            }
+            if (closed) {
+                return false;
+            }
+            add(lane, streamId, plaintext);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Caller must hold lock
+    private void add(Lane lane, String streamId, String plaintext) {
+        switch (lane) {
+            case CONTROL -> control.addLast(plaintext);
+            case CHAT -> chat.addLast(new Queued(plaintext, null));
+            case BULK -> {
+                bulkStreams.computeIfAbsent(streamId == null ? "" : streamId, k -> new BulkStream()).frames.addLast(plaintext);
+                bulkQueued++;
+            }
+        }
+        signalWork();
+    }
+
+    public void setPaused(boolean paused) {
+        lock.lock();
+        try {
+            this.paused = paused;
+            ready.signalAll();
+            signalWork();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Resume writing on the executor after the sink said it could not take more.
+     */
+    public void wake() {
+        lock.lock();
+        try {
+            signalWork();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop every queued frame of one bulk stream, e.g. when its transfer is cancelled.
+     */
+    public void discardStream(String streamId) {
+        lock.lock();
+        try {
+            BulkStream stream = bulkStreams.remove(streamId);
+            if (stream != null) {
+                bulkQueued -= stream.frames.size();
+                space.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * True when nothing is queued on any lane.
+     */
+    public boolean isIdle() {
+        lock.lock();
+        try {
+            return isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        ArrayDeque<Queued> dropped;
+        lock.lock();
+        try {
+            closed = true;
+            control.clear();
+            dropped = new ArrayDeque<>(chat);
+            chat.clear();
+            bulkStreams.clear();
+            bulkQueued = 0;
+            ready.signalAll();
+            space.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        dropped.forEach(queued -> notify(queued.listener(), false));
+    }
+
+    private void drain() {
+        while (true) {
+            Pick pick;
+            lock.lock();
+            try {
+                while (!closed && (paused || isEmpty())) {
+                    ready.awaitUninterruptibly();
+                }
+                if (closed) {
+                    return;
+                }
+                pick = pickNext();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                sink.write(pick.frame());
+            } catch (UnsendableFrameException e) {
+                LOG.warn("Dropping a frame the connection cannot send", e);
+                notify(pick.listener(), false);
+                continue;
+            } catch (IOException | RuntimeException e) {
+                LOG.debug("Outbound write failed; pausing until the connection is back", e);
+                requeueFront(pick);
+                continue;
+            }
+            notify(pick.listener(), true);
+        }
+    }
+
+    // On the executor: writes until there is nothing to write, the sink is full or the task has had its turn
+    private void drainSome() {
+        for (int written = 0; ; written++) {
+            Pick pick;
+            lock.lock();
+            try {
+                if (written == TASK_FRAMES) {
+                    executor.execute(this::drainSome); // still draining; to the back of the executor's queue
+                    return;
+                }
+                if (closed || paused || isEmpty() || !sink.canWrite()) {
+                    draining = false;
+                    return;
+                }
+                pick = pickNext();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                sink.write(pick.frame());
+            } catch (UnsendableFrameException e) {
+                LOG.warn("Dropping a frame the connection cannot send", e);
+                notify(pick.listener(), false);
+                continue;
+            } catch (IOException | RuntimeException e) {
+                LOG.debug("Outbound write failed; pausing until the connection is back", e);
+                requeueFront(pick);
+                continue;
+            }
+            notify(pick.listener(), true);
+        }
+    }
+
+    // Caller must hold lock
+    private void signalWork() {
+        if (executor == null) {
+            ready.signal();
+        } else if (!draining && !closed && !paused && !isEmpty()) {
+            draining = true;
+            executor.execute(this::drainSome);
+        }
+    }
+
+    // Caller must hold lock
+    private Pick pickNext() {
+        if (!control.isEmpty()) {
+            return new Pick(Lane.CONTROL, null, control.pollFirst(), null);
+        }
+        if (!chat.isEmpty() && (bulkQueued == 0 || chatStreak < CHAT_BURST)) {
+            chatStreak++;
+            Queued queued = chat.pollFirst();
+            return new Pick(Lane.CHAT, null, queued.frame(), queued.listener());
+        }
+        chatStreak = 0;
+        // One frame per turn at most; a stream whose next frame is larger than its credit skips turns until it has
+        // earned enough, so every stream gets about one quantum of the link per round
+        while (true) {
+            Iterator<Map.Entry<String, BulkStream>> it = bulkStreams.entrySet().iterator();
+            Map.Entry<String, BulkStream> head = it.next();
+            String streamId = head.getKey();
+            BulkStream stream = head.getValue();
+            it.remove();
+            String frame = stream.frames.peekFirst();
+            if (stream.deficit < frame.length()) {
+                stream.deficit += BULK_QUANTUM;
+            }
+            if (stream.deficit < frame.length()) {
+                bulkStreams.put(streamId, stream); // rotate to the back of the round-robin
+                continue;
+            }
+            stream.frames.pollFirst();
+            stream.deficit -= frame.length();
+            // An emptied stream is dropped with its credit, so an idle transfer cannot bank a burst
+            if (!stream.frames.isEmpty()) {
+                bulkStreams.put(streamId, stream);
+            }
+            bulkQueued--;
+            space.signalAll();
+            return new Pick(Lane.BULK, streamId, frame, null);
+        }
+    }
+
+    private void requeueFront(Pick pick) {
+        boolean dropped = false;
+        lock.lock();
+        try {
+            if (closed) {
+                dropped = true;
+                return;
+            }
+            switch (pick.lane()) {
+                case CONTROL -> control.addFirst(pick.frame());
+                case CHAT -> chat.addFirst(new Queued(pick.frame(), pick.listener()));
+                case BULK -> {
+                    BulkStream stream = bulkStreams.computeIfAbsent(pick.streamId(), k -> new BulkStream());
+                    stream.frames.addFirst(pick.frame());
+                    stream.deficit += pick.frame().length();
+                    bulkQueued++;
+                }
+            }
+            paused = true;
+        } finally {
+            lock.unlock();
+            if (dropped) {
+                notify(pick.listener(), false);
+            }
+        }
+    }
+
+    // Caller must hold lock
+    private boolean isEmpty() {
+        return control.isEmpty() && chat.isEmpty() && bulkQueued == 0;
+    }
+
+    static Lane classify(String plaintext) {
+        if (FileTransferProtocol.PING.equals(plaintext)
+                || FileTransferProtocol.PONG.equals(plaintext)
+                || SessionProtocol.HELLO.equals(plaintext)
+                || SessionProtocol.isResume(plaintext)
+                || SessionProtocol.isStripe(plaintext)
+                || SessionProtocol.isAccept(plaintext)
+                || SessionProtocol.DEFLATE_ON.equals(plaintext)
+                || FileTransferProtocol.isAck(plaintext)
+                || FileTransferProtocol.isNack(plaintext)
+                || FileTransferProtocol.isHave(plaintext)
+                || FileTransferProtocol.isDecline(plaintext)
+                || FileTransferProtocol.isSignature(plaintext)) {
+            return Lane.CONTROL;
+        }
+        return FileTransferProtocol.isFileMessage(plaintext) ? Lane.BULK : Lane.CHAT;
+    }
+
+    // File frames carry their transfer id right after the prefix; headers carry it after the name and size
+    static String streamIdOf(String plaintext) {
+        if (FileTransferProtocol.isHeader(plaintext)) {
+            String[] parts = plaintext.substring(FileTransferProtocol.HEADER_PREFIX.length()).split("\\|", 4);
+            return parts.length >= 3 ? parts[2] : "";
+        }
+        int start = plaintext.indexOf('|') + 1;
+        int end = plaintext.indexOf('|', start);
+        return end < 0 ? plaintext.substring(start) : plaintext.substring(start, end);
+    }
+
+    private static void notify(DeliveryListener listener, boolean written) {
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.delivered(written);
+        } catch (RuntimeException e) {
+            LOG.warn("Delivery listener failed", e);
+        }
+    }
+
+    private record Pick(Lane lane, String streamId, String frame, DeliveryListener listener) { }
+
+    private record Queued(String frame, DeliveryListener listener) { }
+
+    private static final class BulkStream {
+        final ArrayDeque<String> frames = new ArrayDeque<>();
+        long deficit;
+    }
+}
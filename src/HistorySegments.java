@@ -0,0 +1,240 @@
+import javax.crypto.SecretKey;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The stored messages of one conversation, kept across restarts in a directory and encrypted at rest.
+ * <p>
+ * Messages are grouped in segments of {@link #SEGMENT_MESSAGES}. A full segment is sealed as one file; messages of
+ * the segment still filling up are sealed one by one into a tail file as they arrive, so a crash loses nothing
+ * written. Opening decrypts only the tail. Full segments are decrypted when a read reaches them, and only the
+ * {@link #CACHED_SEGMENTS} most recently read are kept. Not thread-safe; {@link ChatHistory} serializes access.
+ * <p>
+ * Each message, segment and named file is sealed with its place as associated data: the number of the message,
+ * of the segment or the file name. A record copied to another position, or a segment or file renamed over another,
+ * fails to open instead of reading back as something it is not.
+ */
+final class HistorySegments implements Closeable {
+    static final int SEGMENT_MESSAGES = 256;
+    static final int CACHED_SEGMENTS = 16;
+    private static final byte[] CHECK = "LCHISTORY1".getBytes(StandardCharsets.US_ASCII);
+
+    private final Path dir;
+    private final SecretKey key;
+    private final FileChannel lockFile;
+    private final FileChannel tailFile;
+    private final List<ChatHistory.Message> tail = new ArrayList<>();
+    private final Map<Integer, List<ChatHistory.Message>> cache = new LinkedHashMap<>(CACHED_SEGMENTS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<ChatHistory.Message>> eldest) {
+            return size() > CACHED_SEGMENTS;
+        }
+    };
+    private int sealed;
+    private long tailEnd;
+
+    /**
+     * Open or start the history in {@code dir}. Fails when another window has it open, or when it was written with
+     * another key.
+     */
+    HistorySegments(Path dir, SecretKey key) throws IOException, GeneralSecurityException {
+        this.dir = dir;
+        this.key = key;
+        Files.createDirectories(dir);
+        lockFile = FileChannel.open(dir.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileChannel opened = null;
+        try {
+            FileLock lock;
+            try {
+                lock = lockFile.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                throw new IOException("Chat history " + dir + " is in use");
+            }
+            byte[] check = readSealed("check.bin");
+            if (check == null) {
+                writeSealed("check.bin", CHECK);
+            } else if (!Arrays.equals(check, CHECK)) {
+                throw new GeneralSecurityException("Not a chat history: " + dir);
+            }
+            while (Files.exists(segmentFile(sealed))) {
+                sealed++;
+            }
+            opened = FileChannel.open(dir.resolve("tail.bin"), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            tailFile = opened;
+            loadTail();
+            if (tail.size() == SEGMENT_MESSAGES) {
+                sealTail(); // the app stopped between writing the last entry and moving the segment into place
+            }
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            if (opened != null) {
+                opened.close();
+            }
+            lockFile.close();
+            throw e;
+        }
+    }
+
+    int size() {
+        return sealed * SEGMENT_MESSAGES + tail.size();
+    }
+
+    ChatHistory.Message append(long time, String who, String text) throws IOException, GeneralSecurityException {
+        ChatHistory.Message message = new ChatHistory.Message(size(), time, who, text);
+        byte[] record = EncryptionUtil.seal(ChatHistory.encode(message).array(), key, place("message", message.id()));
+        ByteBuffer entry = ByteBuffer.allocate(Integer.BYTES + record.length).putInt(record.length).put(record).flip();
+        while (entry.hasRemaining()) {
+            tailEnd += tailFile.write(entry, tailEnd);
+        }
+        tail.add(message);
+        if (tail.size() == SEGMENT_MESSAGES) {
+            sealTail();
+        }
+        return message;
+    }
+
+    /**
+     * Messages {@code from} up to but excluding {@code to}, decrypting the segments they are in if not cached.
+     */
+    List<ChatHistory.Message> read(int from, int to) throws IOException, GeneralSecurityException {
+        List<ChatHistory.Message> messages = new ArrayList<>(Math.max(0, to - from));
+        for (int id = from; id < to; ) {
+            int segment = id / SEGMENT_MESSAGES;
+            List<ChatHistory.Message> held = segment == sealed ? tail : segment(segment);
+            int start = segment * SEGMENT_MESSAGES;
+            int stop = Math.min(to, start + held.size());
+            messages.addAll(held.subList(id - start, stop - start));
+            if (stop == id) {
+                break;
+            }
+            id = stop;
+        }
+        return messages;
+    }
+
+    /**
+     * Decrypted contents of a file stored next to the messages, or null if there is none.
+     */
+    byte[] readSealed(String name) throws IOException, GeneralSecurityException {
+        Path file = dir.resolve(name);
+        return Files.exists(file) ? EncryptionUtil.open(Files.readAllBytes(file), key, place("file", name)) : null;
+    }
+
+    /**
+     * Store {@code data} encrypted next to the messages, replacing the file as a whole.
+     */
+    void writeSealed(String name, byte[] data) throws IOException, GeneralSecurityException {
+        Path temp = dir.resolve(name + ".tmp");
+        Files.write(temp, EncryptionUtil.seal(data, key, place("file", name)));
+        Files.move(temp, dir.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            tailFile.close();
+        } finally {
+            lockFile.close();
+        }
+    }
+
+    private static byte[] place(String kind, Object where) {
+        return (kind + " " + where).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Path segmentFile(int segment) {
+        return dir.resolve(String.format("segment-%08d.bin", segment));
+    }
+
+    private List<ChatHistory.Message> segment(int segment) throws IOException, GeneralSecurityException {
+        List<ChatHistory.Message> messages = cache.get(segment);
+        if (messages != null) {
+            return messages;
+        }
+        ByteBuffer records = ByteBuffer.wrap(EncryptionUtil.open(Files.readAllBytes(segmentFile(segment)), key,
+                place("segment", segment)));
+        messages = new ArrayList<>(SEGMENT_MESSAGES);
+        for (int i = 0; i < SEGMENT_MESSAGES && records.hasRemaining(); i++) {
+            messages.add(ChatHistory.decode(segment * SEGMENT_MESSAGES + i, records));
+        }
+        cache.put(segment, messages);
+        return messages;
+    }
+
+    // The tail starts with the number of the segment it fills. A tail left behind by a crash just after its segment
+    // was sealed names an earlier one and is dropped; an entry cut short by a crash is dropped with all after it.
+    private void loadTail() throws IOException {
+        ByteBuffer stored = ByteBuffer.allocate((int) tailFile.size());
+        while (stored.hasRemaining() && tailFile.read(stored, stored.position()) > 0) {
+            // keep reading
+        }
+        stored.flip();
+        if (stored.remaining() < Integer.BYTES || stored.getInt() != sealed) {
+            startTail();
+            return;
+        }
+        tailEnd = stored.position();
+        while (stored.remaining() >= Integer.BYTES && tail.size() < SEGMENT_MESSAGES) {
+            int length = stored.getInt();
+            if (length <= 0 || length > stored.remaining()) {
+                break;
+            }
+            byte[] record = new byte[length];
+            stored.get(record);
+            try {
+                tail.add(ChatHistory.decode(size(), ByteBuffer.wrap(EncryptionUtil.open(record, key,
+                        place("message", size())))));
+            } catch (GeneralSecurityException | RuntimeException e) {
+                break;
+            }
+            tailEnd = stored.position();
+        }
+        tailFile.truncate(tailEnd);
+    }
+
+    private void startTail() throws IOException {
+        tailFile.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES).putInt(sealed).flip();
+        tailEnd = 0;
+        while (header.hasRemaining()) {
+            tailEnd += tailFile.write(header, tailEnd);
+        }
+    }
+
+    private void sealTail() throws IOException, GeneralSecurityException {
+        int length = 0;
+        List<ByteBuffer> records = new ArrayList<>(tail.size());
+        for (ChatHistory.Message message : tail) {
+            ByteBuffer record = ChatHistory.encode(message);
+            records.add(record);
+            length += record.remaining();
+        }
+        ByteBuffer segment = ByteBuffer.allocate(length);
+        records.forEach(segment::put);
+        Path temp = segmentFile(sealed).resolveSibling("segment.tmp");
+        Files.write(temp, EncryptionUtil.seal(segment.array(), key, place("segment", sealed)));
+        Files.move(temp, segmentFile(sealed), StandardCopyOption.ATOMIC_MOVE);
+        cache.put(sealed, List.copyOf(tail));
+        tail.clear();
+        sealed++;
+        startTail();
+    }
+}
@@ -0,0 +1,684 @@
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Receiving side of one file transfer.
+ * <p>
+ * Data is written to a hidden {@code .part} file in the download directory, sized to the full file up front, and a
+ * small sidecar records the offset written in order so far. When the same file (by transfer id) is offered again
+ * after a disconnect or a retry, the transfer picks up from that offset instead of starting over. {@link MessageDigest}
+ * state cannot be persisted, so on resume the digest is rebuilt by re-reading the local prefix, which is far cheaper
+ * than re-receiving it. The sidecar also keeps the Merkle root over that prefix, computed from chunks that were
+ * verified on arrival, and a prefix whose bytes no longer hash to it is received again instead. Because the part file already sits next to its destination, completing is a rename.
+ * <p>
+ * Each chunk is checked on a shared pool as soon as it arrives, so consecutive chunks are verified in parallel: against
+ * the {@link MerkleTree} root announced in the header through the proof it carries, or, from senders that announce
+ * none, against its own leaf hash. Every verified chunk is written at its own offset, even one that arrives ahead of a gap; the
+ * digest and tree only advance in sequence order, reading such early chunks back once the gap has been filled.
+ * <p>
+ * A {@link FileBundle} is unpacked by a {@link BundleExtractor} into a hidden staging directory instead, which is
+ * renamed into place once the whole stream has been verified.
+ * <p>
+ * Raw frames handed over by the socket reader are decoded on the same pool, so a slow disk never holds up chat or
+ * heartbeats. At most {@link #MAX_QUEUED_CHUNKS} chunks wait for the disk; beyond that a chunk is refused with
+ * {@link ChunkResult#OVERLOADED} rather than blocking the reader, and the credit granted in acks shrinks by the
+ * backlog so the sender slows down before that point.
+ */
+final class IncomingFileTransfer {
+    private static final Logger LOG = AppLogger.get(IncomingFileTransfer.class);
+    private static final int CHECKPOINT_INTERVAL_CHUNKS = 16;
+    private static final int MAX_EARLY_CHUNKS = 4096;
+    // A bundle streams into its extractor, so chunks ahead of a gap wait in memory instead of at their offset
+    private static final int MAX_EARLY_BUNDLE_CHUNKS = 128;
+    static final int MAX_QUEUED_CHUNKS = 128;
+    // A resend request that brought nothing is repeated after this long; a narrow gap counts as loss after the other
+    private static final long RESEND_RETRY_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long REORDER_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final AtomicInteger VERIFIER_IDS = new AtomicInteger();
+    private static final ExecutorService VERIFIERS = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread t = new Thread(r, "Chunk-Verifier-" + VERIFIER_IDS.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+
+    // In rising order of severity, which is how a frame of several blocks reports its outcome
+    enum ChunkResult { DUPLICATE, WRITTEN, GAP, CORRUPT, OVERLOADED }
+
+    private final FileTransferProtocol.Header header;
+    private final Path partFile;
+    private final Path sidecar;
+    private final MessageDigest digest;
+    private final BundleExtractor extractor;
+    private final ChatWindow.TransferProgressHandle progressHandle;
+    private final byte[] announcedRoot;
+    private MerkleTree tree = new MerkleTree();
+    private final TreeMap<Integer, byte[]> earlyLeaves = new TreeMap<>();
+    private final TreeMap<Integer, byte[]> earlyData = new TreeMap<>();
+    // Chunks that failed verification, with when they were last asked for again
+    private final TreeMap<Integer, Long> damaged = new TreeMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private FileChannel channel;
+    private OutputStream out;
+    private long bytesReceived;
+    private int nextSequence;
+    private int rewindRequestedAt = -1;
+    private long rewindRequestedNanos;
+    private int gapAt = -1;
+    private long gapSinceNanos;
+    private int ackedSequence;
+    private boolean closed;
+    private volatile DeltaCodec.Basis basis;
+    private CompletableFuture<?> tail = CompletableFuture.completedFuture(null);
+    // Completes once every byte is on disk, or the transfer is closed
+    private final CompletableFuture<Void> allBytes = new CompletableFuture<>();
+
+    private IncomingFileTransfer(FileTransferProtocol.Header header, Path partFile, Path sidecar,
+                                 BundleExtractor extractor, ChatWindow.TransferProgressHandle progressHandle) {
+        this.header = header;
+        this.partFile = partFile;
+        this.sidecar = sidecar;
+        this.extractor = extractor;
+        this.digest = FileTransferProtocol.newSha256();
+        this.progressHandle = progressHandle;
+        this.announcedRoot = header.merkleRoot() != null ? HexFormat.of().parseHex(header.merkleRoot()) : null;
+    }
+
+    /**
+     * Open the transfer for {@code header} in {@code dir}, resuming a previous partial download when its sidecar
+     * matches.
+     */
+    static IncomingFileTransfer open(Path dir, FileTransferProtocol.Header header,
+                                     ChatWindow.TransferProgressHandle progressHandle) throws IOException {
+        Path part = partPath(dir, header, ".part");
+        Path meta = partPath(dir, header, ".part.meta");
+        BundleExtractor extractor = header.bundle()
+                ? new BundleExtractor(part, partPath(dir, header, ".part.manifest"), header.size())
+                : null;
+        IncomingFileTransfer transfer = new IncomingFileTransfer(header, part, meta, extractor, progressHandle);
+        Resume resume = transfer.readCheckpoint();
+        long offset = resume.offset();
+        if (offset > 0) {
+            try {
+                transfer.restorePrefix(resume);
+            } catch (IOException e) {
+                LOG.warn("Cannot resume {}, starting over", header.filename(), e);
+                offset = 0;
+            }
+        }
+        if (offset == 0) {
+            transfer.discardPrefix();
+        }
+        if (extractor != null) {
+            transfer.out = extractor;
+        } else {
+            transfer.channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            transfer.preallocate();
+        }
+        transfer.ackedSequence = transfer.nextSequence;
+        if (progressHandle != null && transfer.bytesReceived > 0) {
+            progressHandle.update(transfer.bytesReceived);
+        }
+        return transfer;
+    }
+
+    // The transfer id comes from the peer; parsing only lets hex through, and this keeps the files in dir regardless
+    private static Path partPath(Path dir, FileTransferProtocol.Header header, String suffix) throws IOException {
+        Path base = dir.toAbsolutePath().normalize();
+        Path path = base.resolve("." + header.hash() + suffix).normalize();
+        if (!base.equals(path.getParent())) {
+            throw new IOException("Transfer id does not name a file in the download directory");
+        }
+        return path;
+    }
+
+    /**
+     * Queue a chunk: it is verified in parallel with other chunks, and it is applied after every chunk
+     * submitted before it. A failed write completes the result exceptionally.
+     */
+    CompletableFuture<ChunkResult> submit(FileTransferProtocol.Chunk chunk) {
+        return enqueue(() -> List.of(new Verified(chunk, verifiedLeaf(chunk))));
+    }
+
+    /**
+     * Queue a chunk frame as received, decoding it off the caller's thread. A frame of several blocks is applied
+     * block by block and reports the worst outcome among them; one that does not parse counts as
+     * {@link ChunkResult#CORRUPT}.
+     */
+    CompletableFuture<ChunkResult> submitFrame(String frame) {
+        return enqueue(() -> {
+            try {
+                List<Verified> blocks = new ArrayList<>();
+                for (FileTransferProtocol.Chunk chunk : FileTransferProtocol.parseChunks(frame, basis)) {
+                    blocks.add(new Verified(chunk, verifiedLeaf(chunk)));
+                }
+                return blocks;
+            } catch (IllegalArgumentException e) {
+                LOG.warn("Malformed chunk frame for {}", header.filename(), e);
+                return null;
+            }
+        });
+    }
+
+    private CompletableFuture<ChunkResult> enqueue(Supplier<List<Verified>> decode) {
+        if (queued.incrementAndGet() > MAX_QUEUED_CHUNKS) {
+            queued.decrementAndGet();
+            return CompletableFuture.completedFuture(ChunkResult.OVERLOADED);
+        }
+        CompletableFuture<List<Verified>> verified = CompletableFuture.supplyAsync(decode, VERIFIERS);
+        synchronized (this) {
+            CompletableFuture<ChunkResult> result = tail.thenCombine(verified, (ignored, blocks) -> {
+                if (blocks == null) {
+                    return ChunkResult.CORRUPT;
+                }
+                ChunkResult worst = ChunkResult.DUPLICATE;
+                for (Verified block : blocks) {
+                    ChunkResult r = apply(block.chunk(), block.leaf());
+                    worst = r.compareTo(worst) > 0 ? r : worst;
+                }
+                return worst;
+            }).whenComplete((r, e) -> queued.decrementAndGet()); // also when an earlier chunk or the decoding failed
+            tail = result;
+            return result;
+        }
+    }
+
+    /**
+     * Completes once every chunk submitted so far has been applied (or failed).
+     */
+    synchronized CompletableFuture<Void> whenDrained() {
+        return tail.handle((r, e) -> null);
+    }
+
+    /**
+     * Completes once every byte has been written and every submitted chunk applied, or {@code graceMs} from now if
+     * some are still missing. Chunks striped over several connections can arrive after the EOF that followed them.
+     */
+    CompletableFuture<Void> whenReceived(long graceMs) {
+        synchronized (this) {
+            if (bytesReceived == header.size()) {
+                allBytes.complete(null);
+            }
+        }
+        return allBytes.copy().completeOnTimeout(null, graceMs, TimeUnit.MILLISECONDS).thenCompose(ignored -> whenDrained());
+    }
+
+    /**
+     * Verify and apply a chunk on the calling thread.
+     */
+    ChunkResult appendChunk(FileTransferProtocol.Chunk chunk) throws IOException {
+        try {
+            return apply(chunk, verifiedLeaf(chunk));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private byte[] verifiedLeaf(FileTransferProtocol.Chunk chunk) {
+        return announcedRoot != null
+                ? MerkleTree.verifiedLeaf(chunk, MerkleTree.leafCount(header.size()), announcedRoot)
+                : MerkleTree.verifiedLeaf(chunk);
+    }
+
+    // Only the chunk right after what is on disk is written; anything else is reported for the caller to act on
+    private synchronized ChunkResult apply(FileTransferProtocol.Chunk chunk, byte[] leaf) {
+        try {
+            if (closed) {
+                throw new IOException("Transfer is not active");
+            }
+            if (chunk.sequence() < nextSequence || earlyLeaves.containsKey(chunk.sequence())) {
+                return ChunkResult.DUPLICATE;
+            }
+            if (leaf == null || !fitsFile(chunk)) {
+                LOG.warn("Chunk {} of {} failed verification", chunk.sequence(), header.filename());
+                if (damaged.size() < MAX_EARLY_CHUNKS) {
+                    damaged.putIfAbsent(chunk.sequence(), System.nanoTime() - RESEND_RETRY_NANOS);
+                }
+                return ChunkResult.CORRUPT;
+            }
+            if (chunk.sequence() > nextSequence) {
+                keepEarly(chunk, leaf);
+                return ChunkResult.GAP;
+            }
+            if (channel != null) {
+                writeAt(chunk.sequence(), chunk.data());
+            } else {
+                out.write(chunk.data());
+            }
+            advance(chunk.data(), leaf);
+            drainEarly();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (progressHandle != null) {
+            progressHandle.update(bytesReceived);
+        }
+        return ChunkResult.WRITTEN;
+    }
+
+    /**
+     * Verify the received bytes against the SHA-256 and Merkle root the sender computed while streaming (or, from
+     * legacy senders, the hash in the header) and move the file into place.
+     */
+    synchronized Path complete(Path targetPath, String expectedSha256, String expectedMerkleRoot) throws IOException {
+        closeStream();
+        if (bytesReceived != header.size()) {
+            throw new IOException("Size mismatch: expected " + header.size() + " bytes but received " + bytesReceived);
+        }
+        String expected = expectedSha256 != null ? expectedSha256 : header.hash();
+        String computed = FileTransferProtocol.toHex(digest.digest());
+        if (!computed.equals(expected)) {
+            throw new IOException("Hash mismatch: expected " + expected + " but computed " + computed);
+        }
+        String root = FileTransferProtocol.toHex(tree.root());
+        if ((expectedMerkleRoot != null && !expectedMerkleRoot.equals(root))
+                || (header.merkleRoot() != null && !header.merkleRoot().equals(root))) {
+            throw new IOException("Merkle root mismatch over " + tree.leafCount() + " chunks");
+        }
+        if (extractor != null) {
+            extractor.finish();
+        }
+        Files.deleteIfExists(sidecar);
+        try {
+            return Files.move(partFile, targetPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            return Files.move(partFile, targetPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Stop receiving but keep the partial file and its checkpoint for a later resume.
+     */
+    synchronized void suspend(String reason) {
+        if (!closed) {
+            try {
+                closeStream();
+                checkpoint();
+            } catch (IOException e) {
+                LOG.warn("Failed to checkpoint partial download {}", partFile, e);
+            }
+        }
+        if (progressHandle != null) {
+            progressHandle.fail(reason == null ? "Interrupted" : reason);
+        }
+    }
+
+    synchronized void abortWithReason(String reason) {
+        try { closeStream(); } catch (IOException ignored) {}
+        try { discardPartFile(); } catch (IOException ignored) {}
+        try { Files.deleteIfExists(sidecar); } catch (IOException ignored) {}
+        if (progressHandle != null) {
+            progressHandle.fail(reason == null ? "Aborted" : reason);
+        }
+    }
+
+    /**
+     * Returns true once per missing or corrupt chunk, when the sender should be asked to go back to
+     * {@link #nextSequence()}, and again if the chunk is still missing a while later.
+     */
+    synchronized boolean claimResendRequest() {
+        long now = System.nanoTime();
+        if (rewindRequestedAt == nextSequence && now - rewindRequestedNanos < RESEND_RETRY_NANOS) {
+            return false;
+        }
+        rewindRequestedAt = nextSequence;
+        rewindRequestedNanos = now;
+        return true;
+    }
+
+    /**
+     * Resend requests for the chunks that failed verification, once and again if still missing a while later. When
+     * the header announced a root, the chunks around a damaged one were checked on their own and kept, so each run of
+     * damaged chunks is asked for alone; otherwise the sender goes back to {@link #nextSequence()}.
+     */
+    synchronized List<FileTransferProtocol.Nack> claimDamagedResends() {
+        if (announcedRoot == null) {
+            return claimResendRequest() ? List.of(new FileTransferProtocol.Nack(header.hash(), nextSequence, 0)) : List.of();
+        }
+        damaged.headMap(nextSequence).clear();
+        long now = System.nanoTime();
+        List<FileTransferProtocol.Nack> requests = new ArrayList<>();
+        int first = -1;
+        int last = -1;
+        for (Map.Entry<Integer, Long> entry : damaged.entrySet()) {
+            if (now - entry.getValue() < RESEND_RETRY_NANOS) {
+                continue;
+            }
+            entry.setValue(now);
+            if (first >= 0 && entry.getKey() != last + 1) {
+                requests.add(new FileTransferProtocol.Nack(header.hash(), first, last - first + 1));
+                first = -1;
+            }
+            if (first < 0) {
+                first = entry.getKey();
+            }
+            last = entry.getKey();
+        }
+        if (first >= 0) {
+            requests.add(new FileTransferProtocol.Nack(header.hash(), first, last - first + 1));
+        }
+        return requests;
+    }
+
+    /**
+     * Like {@link #claimResendRequest()}, for a chunk that arrived ahead of a gap. Striped chunks overtake each other,
+     * so the gap only counts as loss once chunks kept past it reach {@code reorderTolerance} ahead or it has stayed
+     * open for a second.
+     */
+    synchronized boolean claimGapResend(int reorderTolerance) {
+        long now = System.nanoTime();
+        if (gapAt != nextSequence) {
+            gapAt = nextSequence;
+            gapSinceNanos = now;
+        }
+        boolean wide = !earlyLeaves.isEmpty() && earlyLeaves.lastKey() - nextSequence >= reorderTolerance;
+        if (!wide && now - gapSinceNanos < REORDER_WAIT_NANOS) {
+            return false;
+        }
+        return claimResendRequest();
+    }
+
+    /**
+     * The sequence to acknowledge when progress has crossed the next multiple of {@code interval} since the last
+     * acknowledgement, otherwise -1.
+     */
+    synchronized int claimAck(int interval) {
+        if (nextSequence / interval <= ackedSequence / interval) {
+            return -1;
+        }
+        ackedSequence = nextSequence;
+        return nextSequence;
+    }
+
+    /**
+     * {@code window} less the chunks still waiting for the disk, so a slow writer throttles the sender.
+     */
+    int creditWindow(int window) {
+        return Math.max(0, window - queued.get());
+    }
+
+    synchronized boolean hasAllBytes() {
+        return bytesReceived == header.size();
+    }
+
+    synchronized int nextSequence() {
+        return nextSequence;
+    }
+
+    synchronized boolean isActive() {
+        return !closed;
+    }
+
+    long size() {
+        return header.size();
+    }
+
+    boolean matches(FileTransferProtocol.Header other) {
+        return header.hash().equals(other.hash()) && header.size() == other.size();
+    }
+
+    boolean acceptsDeflate() {
+        return header.deflate();
+    }
+
+    /**
+     * Take delta chunks against {@code older}, the copy this receiver signed; it is closed with the transfer.
+     */
+    synchronized void useBasis(DeltaCodec.Basis older) throws IOException {
+        if (closed) {
+            older.close();
+            return;
+        }
+        DeltaCodec.Basis previous = basis;
+        basis = older;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    boolean acceptsDelta() {
+        return basis != null;
+    }
+
+    boolean isBundle() {
+        return extractor != null;
+    }
+
+    String getFilename() {
+        return header.filename();
+    }
+
+    void onCompleted() {
+        if (progressHandle != null) {
+            progressHandle.complete(null);
+        }
+    }
+
+    // Caller must hold the monitor
+    private void advance(byte[] data, byte[] leaf) throws IOException {
+        damaged.remove(nextSequence);
+        digest.update(data);
+        tree.addLeaf(leaf);
+        bytesReceived += data.length;
+        nextSequence++;
+        if (nextSequence % CHECKPOINT_INTERVAL_CHUNKS == 0) {
+            checkpoint();
+        }
+        if (bytesReceived == header.size()) {
+            allBytes.complete(null);
+        }
+    }
+
+    // Caller must hold the monitor. Writes a verified chunk that arrived ahead of a gap straight to its offset, or
+    // for a bundle keeps its bytes until the gap fills
+    private void keepEarly(FileTransferProtocol.Chunk chunk, byte[] leaf) throws IOException {
+        int limit = channel != null ? MAX_EARLY_CHUNKS : MAX_EARLY_BUNDLE_CHUNKS;
+        if (leaf == null || !fitsFile(chunk) || earlyLeaves.size() >= limit) {
+            return; // the resend after the gap brings it again
+        }
+        if (channel != null) {
+            writeAt(chunk.sequence(), chunk.data());
+        } else {
+            earlyData.put(chunk.sequence(), chunk.data());
+        }
+        earlyLeaves.put(chunk.sequence(), leaf);
+        damaged.remove(chunk.sequence());
+    }
+
+    // Caller must hold the monitor. Folds early chunks that now follow on into the digest, reading them back
+    private void drainEarly() throws IOException {
+        earlyLeaves.headMap(nextSequence).clear();
+        earlyData.headMap(nextSequence).clear();
+        byte[] leaf;
+        while ((leaf = earlyLeaves.remove(nextSequence)) != null) {
+            byte[] kept = earlyData.remove(nextSequence);
+            if (kept != null) {
+                out.write(kept);
+                advance(kept, leaf);
+                continue;
+            }
+            long offset = (long) nextSequence * FileTransferProtocol.CHUNK_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(FileTransferProtocol.CHUNK_SIZE, header.size() - offset));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Part file is shorter than expected");
+                }
+            }
+            advance(buffer.array(), leaf);
+        }
+    }
+
+    // Every chunk but the last is full-sized, and none may reach past the announced size
+    private boolean fitsFile(FileTransferProtocol.Chunk chunk) {
+        long offset = (long) chunk.sequence() * FileTransferProtocol.CHUNK_SIZE;
+        long expected = Math.min(FileTransferProtocol.CHUNK_SIZE, header.size() - offset);
+        return chunk.data().length == expected;
+    }
+
+    private void writeAt(int sequence, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long offset = (long) sequence * FileTransferProtocol.CHUNK_SIZE;
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    // Reserves the whole file at once: the last byte is written so the length is final and, where the filesystem
+    // supports it, the blocks in between stay sparse until chunks fill them
+    private void preallocate() throws IOException {
+        if (channel.size() > header.size()) {
+            channel.truncate(header.size());
+        } else if (channel.size() < header.size()) {
+            channel.write(ByteBuffer.wrap(new byte[1]), header.size() - 1);
+        }
+    }
+
+    private void closeStream() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        allBytes.complete(null);
+        earlyData.clear();
+        if (basis != null) {
+            basis.close();
+        }
+        if (channel != null) {
+            channel.close();
+            return;
+        }
+        try {
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        if (!closed && out != null) {
+            out.flush();
+        }
+        Properties props = new Properties();
+        props.setProperty("filename", header.filename());
+        props.setProperty("size", Long.toString(header.size()));
+        props.setProperty("chunkSize", Integer.toString(FileTransferProtocol.CHUNK_SIZE));
+        props.setProperty("offset", Long.toString(bytesReceived));
+        props.setProperty("prefixRoot", FileTransferProtocol.toHex(tree.root()));
+        if (header.merkleRoot() != null) {
+            props.setProperty("merkleRoot", header.merkleRoot());
+        }
+        Path tmp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+        try (OutputStream metaOut = Files.newOutputStream(tmp)) {
+            props.store(metaOut, "LocalChat partial download " + header.hash());
+        }
+        Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Returns the resumable offset recorded by a previous attempt with the root over the prefix, or offset 0
+    private Resume readCheckpoint() {
+        Resume none = new Resume(0, null);
+        if (!Files.isRegularFile(sidecar) || !Files.exists(partFile)) {
+            return none;
+        }
+        Properties props = new Properties();
+        try (InputStream metaIn = Files.newInputStream(sidecar)) {
+            props.load(metaIn);
+            long size = Long.parseLong(props.getProperty("size", "-1"));
+            int chunkSize = Integer.parseInt(props.getProperty("chunkSize", "-1"));
+            long offset = Long.parseLong(props.getProperty("offset", "0"));
+            String prefixRoot = props.getProperty("prefixRoot");
+            if (size != header.size() || chunkSize != FileTransferProtocol.CHUNK_SIZE || prefixRoot == null
+                    || !Objects.equals(props.getProperty("merkleRoot"), header.merkleRoot())) {
+                return none; // older checkpoints and other offers cannot vouch for the prefix
+            }
+            if (offset % chunkSize != 0 || (extractor == null && offset > Files.size(partFile))) {
+                return none; // not the prefix the root was taken over
+            }
+            return new Resume(offset, prefixRoot);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Ignoring unreadable checkpoint {}", sidecar, e);
+            return none;
+        }
+    }
+
+    // Drop anything past the checkpoint and rebuild the digest and tree over the kept prefix, which must still hash
+    // to the root recorded when its chunks were verified
+    private void restorePrefix(Resume resume) throws IOException {
+        long offset = resume.offset();
+        InputStream prefix;
+        if (extractor != null) {
+            prefix = extractor.resume(offset);
+        } else {
+            prefix = Files.newInputStream(partFile); // already sized to the whole file; only the prefix is read
+        }
+        byte[] buffer = new byte[FileTransferProtocol.CHUNK_SIZE];
+        long replayed = 0;
+        try (InputStream in = prefix) {
+            int read;
+            while (replayed < offset && (read = in.readNBytes(buffer, 0, (int) Math.min(buffer.length, offset - replayed))) > 0) {
+                digest.update(buffer, 0, read);
+                tree.addLeaf(MerkleTree.leafHash(buffer, 0, read));
+                replayed += read;
+            }
+        }
+        if (replayed != offset) {
+            throw new IOException("Partial download is shorter than its checkpoint");
+        }
+        if (!FileTransferProtocol.toHex(tree.root()).equals(resume.prefixRoot())) {
+            throw new IOException("Partial download no longer matches the chunks verified for it");
+        }
+        bytesReceived = offset;
+        nextSequence = (int) (offset / FileTransferProtocol.CHUNK_SIZE);
+        LOG.info("Resuming {} from offset {}", header.filename(), offset);
+    }
+
+    // Start from nothing, also when a resume attempt got part of the way
+    private void discardPrefix() throws IOException {
+        digest.reset();
+        tree = new MerkleTree();
+        bytesReceived = 0;
+        nextSequence = 0;
+        if (extractor != null) {
+            extractor.reset();
+        } else {
+            Files.deleteIfExists(partFile);
+        }
+    }
+
+    private record Verified(FileTransferProtocol.Chunk chunk, byte[] leaf) { }
+
+    private record Resume(long offset, String prefixRoot) { }
+
+    private void discardPartFile() throws IOException {
+        if (extractor != null) {
+            extractor.discard();
+        } else {
+            Files.deleteIfExists(partFile);
+        }
+    }
+}
@@ -30,7 +30,7 @@ public class LocalChatApp {
                 // Small delay to let server start listening
                 try { Thread.sleep(300); } catch (InterruptedException ignored) {}
 
-                new EncryptedClient("localhost", port, password);
+                ClientSessions.shared().open("localhost", port, password);
             }
         });
     }
@@ -54,7 +54,7 @@ public class LocalChatApp {
         PrefsManager.setHost(host);
         PrefsManager.setPort(port);
         PrefsManager.setPassword(password);
-        new EncryptedClient(host, port, password);
+        ClientSessions.shared().open(host, port, password);
     }
 
     private static String[] promptServerPortAndPassword() {
@@ -0,0 +1,229 @@
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streaming Merkle tree over the fixed-size chunks of a file transfer.
+ * <p>
+ * Leaves are {@code SHA-256(0x00 || chunk)} and inner nodes {@code SHA-256(0x01 || left || right)}, so a leaf can
+ * never be passed off as a node. Leaves are folded in as they arrive, keeping only one pending hash per tree level;
+ * at the end the remaining subtrees are combined right to left, so the tree over {@code n} leaves is a row of
+ * perfect subtrees, one per set bit of {@code n} and largest first.
+ * <p>
+ * A sender that hashed the file before offering it announces the root up front and sends each chunk with its
+ * {@link Proofs#path proof}: the sibling hashes from its leaf up to that root. Every chunk can then be checked on its
+ * own, in any order, against something it did not bring along itself.
+ */
+public final class MerkleTree {
+    private static final byte LEAF = 0x00;
+    private static final byte NODE = 0x01;
+
+    private final ArrayDeque<byte[]> levels = new ArrayDeque<>();
+    private final ArrayDeque<Integer> heights = new ArrayDeque<>();
+    private long leafCount;
+
+    public static byte[] leafHash(byte[] data, int offset, int length) {
+        MessageDigest digest = FileTransferProtocol.newSha256();
+        digest.update(LEAF);
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    public static byte[] leafHash(byte[] data) {
+        return leafHash(data, 0, data.length);
+    }
+
+    /**
+     * Check a received chunk from a sender that announced no root against the leaf hash it attached. That only
+     * catches a payload rebuilt wrongly on this side, such as a delta applied to the wrong copy. Returns the leaf hash
+     * to fold into the receiver's tree, or null when the chunk does not match.
+     */
+    public static byte[] verifiedLeaf(FileTransferProtocol.Chunk chunk) {
+        byte[] leaf = leafHash(chunk.data());
+        if (chunk.proof() != null && !Arrays.equals(leaf, chunk.proof())) {
+            return null;
+        }
+        return leaf;
+    }
+
+    /**
+     * Check a received chunk against {@code root}, the root over {@code count} leaves announced before the transfer,
+     * using the proof it carries. Returns the leaf hash to fold into the receiver's tree, or null when it does not
+     * lead to that root.
+     */
+    public static byte[] verifiedLeaf(FileTransferProtocol.Chunk chunk, long count, byte[] root) {
+        byte[] proof = chunk.proof();
+        long index = chunk.sequence();
+        if (proof == null || proof.length % 32 != 0 || index < 0 || index >= count) {
+            return null;
+        }
+        byte[] leaf = leafHash(chunk.data());
+        // Find the perfect subtree holding the leaf and how many come before it
+        long start = 0;
+        int before = 0;
+        int height = 63 - Long.numberOfLeadingZeros(count);
+        while (index >= start + (1L << height) || (count & (1L << height)) == 0) {
+            if ((count & (1L << height)) != 0) {
+                start += 1L << height;
+                before++;
+            }
+            height--;
+        }
+        boolean hasRight = (count & ((1L << height) - 1)) != 0;
+        if (proof.length / 32 != height + (hasRight ? 1 : 0) + before) {
+            return null;
+        }
+        byte[] hash = leaf;
+        int at = 0;
+        for (int level = 0; level < height; level++, at += 32) {
+            byte[] sibling = Arrays.copyOfRange(proof, at, at + 32);
+            hash = ((index - start) >> level & 1) == 0 ? node(hash, sibling) : node(sibling, hash);
+        }
+        if (hasRight) {
+            hash = node(hash, Arrays.copyOfRange(proof, at, at + 32));
+            at += 32;
+        }
+        for (; at < proof.length; at += 32) {
+            hash = node(Arrays.copyOfRange(proof, at, at + 32), hash);
+        }
+        return Arrays.equals(hash, root) ? leaf : null;
+    }
+
+    /**
+     * Number of leaves in the tree over {@code size} bytes.
+     */
+    public static long leafCount(long size) {
+        return (size + FileTransferProtocol.CHUNK_SIZE - 1) / FileTransferProtocol.CHUNK_SIZE;
+    }
+
+    public void addLeaf(byte[] leaf) {
+        byte[] hash = leaf;
+        int height = 0;
+        while (!heights.isEmpty() && heights.peekLast() == height) {
+            heights.pollLast();
+            hash = node(levels.pollLast(), hash);
+            height++;
+        }
+        levels.addLast(hash);
+        heights.addLast(height);
+        leafCount++;
+    }
+
+    public long leafCount() {
+        return leafCount;
+    }
+
+    /**
+     * An independent tree over the same leaves, to go on from this point more than once.
+     */
+    public MerkleTree copy() {
+        MerkleTree copy = new MerkleTree();
+        copy.levels.addAll(levels); // hashes are never changed in place
+        copy.heights.addAll(heights);
+        copy.leafCount = leafCount;
+        return copy;
+    }
+
+    /**
+     * Root over every leaf added so far. An empty tree has the hash of an empty leaf as its root.
+     */
+    public byte[] root() {
+        if (levels.isEmpty()) {
+            return leafHash(new byte[0]);
+        }
+        byte[][] pending = levels.toArray(new byte[0][]);
+        byte[] hash = pending[pending.length - 1];
+        for (int i = pending.length - 2; i >= 0; i--) {
+            hash = node(pending[i], hash);
+        }
+        return hash;
+    }
+
+    /**
+     * The whole tree over a sender's leaves, kept to hand out each leaf's proof. Takes about twice as much memory as
+     * the leaves, 32 bytes per chunk each.
+     */
+    public static final class Proofs {
+        // levels.get(l)[j] covers leaves j * 2^l up to (j + 1) * 2^l; only nodes over whole subtrees are kept
+        private final List<byte[][]> levels = new ArrayList<>();
+        private final long count;
+        // Subtrees of the tree's row, left to right, with the hash of each one folded with everything right of it
+        private final List<long[]> subtrees = new ArrayList<>();
+        private final List<byte[]> folded = new ArrayList<>();
+
+        public Proofs(List<byte[]> leaves) {
+            count = leaves.size();
+            byte[][] level = leaves.toArray(new byte[0][]);
+            levels.add(level);
+            while (level.length > 1) {
+                byte[][] up = new byte[level.length / 2][];
+                for (int j = 0; j < up.length; j++) {
+                    up[j] = node(level[2 * j], level[2 * j + 1]);
+                }
+                levels.add(up);
+                level = up;
+            }
+            long start = 0;
+            for (int height = 62; height >= 0; height--) {
+                if ((count & (1L << height)) != 0) {
+                    subtrees.add(new long[] {start, height});
+                    start += 1L << height;
+                }
+            }
+            byte[] right = null;
+            for (int k = subtrees.size() - 1; k >= 0; k--) {
+                byte[] peak = levels.get((int) subtrees.get(k)[1])[(int) (subtrees.get(k)[0] >> subtrees.get(k)[1])];
+                right = right == null ? peak : node(peak, right);
+                folded.add(0, right);
+            }
+        }
+
+        public long leafCount() {
+            return count;
+        }
+
+        /**
+         * The same root a streaming {@link MerkleTree} reaches over these leaves.
+         */
+        public byte[] root() {
+            return folded.isEmpty() ? leafHash(new byte[0]) : folded.get(0);
+        }
+
+        /**
+         * Sibling hashes from leaf {@code index} up to the root: first inside its perfect subtree, then the subtrees
+         * to its right folded together, then each subtree to its left, nearest first.
+         */
+        public byte[] path(int index) {
+            int k = 0;
+            while (index >= subtrees.get(k)[0] + (1L << subtrees.get(k)[1])) {
+                k++;
+            }
+            int height = (int) subtrees.get(k)[1];
+            int extra = (k + 1 < subtrees.size() ? 1 : 0) + k;
+            byte[] path = new byte[32 * (height + extra)];
+            int at = 0;
+            for (int level = 0; level < height; level++, at += 32) {
+                System.arraycopy(levels.get(level)[(index >> level) ^ 1], 0, path, at, 32);
+            }
+            if (k + 1 < subtrees.size()) {
+                System.arraycopy(folded.get(k + 1), 0, path, at, 32);
+                at += 32;
+            }
+            for (int left = k - 1; left >= 0; left--, at += 32) {
+                long[] subtree = subtrees.get(left);
+                System.arraycopy(levels.get((int) subtree[1])[(int) (subtree[0] >> subtree[1])], 0, path, at, 32);
+            }
+            return path;
+        }
+    }
+
+    private static byte[] node(byte[] left, byte[] right) {
+        MessageDigest digest = FileTransferProtocol.newSha256();
+        digest.update(NODE);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+}
@@ -0,0 +1,83 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * What one send from the file chooser puts on the wire: a single regular file goes out as itself, anything else
+ * (a folder, several files) as one {@link FileBundle}.
+ *
+ * @param file the file being sent, or null for a bundle
+ * @param fileCount number of files covered, 1 unless this is a bundle
+ */
+record OutgoingContent(String name, long size, String transferId, Path file, int fileCount, FileChunkReader.Source source) {
+
+    static OutgoingContent of(List<File> selection) throws IOException {
+        if (selection == null || selection.isEmpty()) {
+            throw new IOException("Nothing selected");
+        }
+        for (File f : selection) {
+            if (f == null || !f.exists()) {
+                throw new IOException("Not found: " + f);
+            }
+        }
+        if (selection.size() == 1 && selection.get(0).isFile()) {
+            Path path = selection.get(0).toPath();
+            String name = path.getFileName().toString();
+            long size = Files.size(path);
+            String id = FileTransferProtocol.transferId(name, size, Files.getLastModifiedTime(path).toMillis());
+            return new OutgoingContent(name, size, id, path, 1, () -> Files.newInputStream(path));
+        }
+        FileBundle bundle = FileBundle.of(selection.stream().map(File::toPath).toList());
+        return new OutgoingContent(bundle.name(), bundle.size(), bundle.transferId(), null, bundle.fileCount(), bundle::open);
+    }
+
+    boolean isBundle() {
+        return file == null;
+    }
+
+    /**
+     * The header offering this content; only single files announce a content hash, since bundles are not indexed.
+     */
+    String header(boolean offerDeflate, MerkleTree.Proofs proofs) {
+        return header(offerDeflate, false, proofs);
+    }
+
+    /**
+     * As {@link #header(boolean, MerkleTree.Proofs)}; {@code offerDelta} invites receivers with an older version to
+     * send a signature, which is only worth it for single files of at least a chunk.
+     */
+    String header(boolean offerDeflate, boolean offerDelta, MerkleTree.Proofs proofs) {
+        String contentHash = file == null ? null : ContentStore.shared().knownHash(file);
+        return FileTransferProtocol.buildHeader(
+                FileTransferProtocol.Header.builder(name, size, transferId)
+                        .contentHash(contentHash)
+                        .deflate(offerDeflate)
+                        .bundle(isBundle())
+                        .delta(offerDelta && file != null && size >= FileTransferProtocol.CHUNK_SIZE)
+                        .merkleRoot(FileTransferProtocol.toHex(proofs.root()))
+                        .build());
+    }
+
+    /**
+     * Read the content once for the proofs of its chunks, whose root the offer announces; the offer goes out only
+     * after this full read (see {@link FileChunkReader#proofs}).
+     */
+    MerkleTree.Proofs proofs() throws IOException {
+        return FileChunkReader.proofs(source, size);
+    }
+
+    /**
+     * Remember the hash computed while sending so the next offer can announce it.
+     */
+    void recordSent(String contentHash) {
+        if (file != null) {
+            ContentStore.shared().record(contentHash, file);
+        }
+    }
+
+    String describe() {
+        return isBundle() ? name + " (" + fileCount + " files, " + size + " bytes)" : name + " (" + size + " bytes)";
+    }
+}
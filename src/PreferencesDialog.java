@@ -10,6 +10,11 @@ public class PreferencesDialog extends JDialog {
     private final JSpinner portSpinner = new JSpinner(new SpinnerNumberModel(5000, 1, 65535, 1));
     private final JPasswordField passwordField = new JPasswordField(20);
     private final JComboBox<ThemeOption> themeCombo = new JComboBox<>(ThemeOption.values());
+    private final JCheckBox compressCheck = new JCheckBox("Compress file transfers when it helps");
+    private final JCheckBox compressChatCheck = new JCheckBox("Compress chat messages");
+    private final JCheckBox askReceiveCheck = new JCheckBox("Ask before receiving files");
+    private final JCheckBox stripeCheck = new JCheckBox("Use extra connections for large transfers");
+    private final JCheckBox storeCheck = new JCheckBox("Server keeps relayed files for clients joining later");
 
     public PreferencesDialog(Window owner) {
         super(owner, "Preferences", ModalityType.APPLICATION_MODAL);
@@ -39,6 +44,12 @@ public class PreferencesDialog extends JDialog {
     gbc.gridx = 0; gbc.gridy++; form.add(new JLabel("Theme:"), gbc);
     gbc.gridx = 1; form.add(themeCombo, gbc);
 
+        gbc.gridx = 1; gbc.gridy++; form.add(compressCheck, gbc);
+        gbc.gridx = 1; gbc.gridy++; form.add(compressChatCheck, gbc);
+        gbc.gridx = 1; gbc.gridy++; form.add(askReceiveCheck, gbc);
+        gbc.gridx = 1; gbc.gridy++; form.add(stripeCheck, gbc);
+        gbc.gridx = 1; gbc.gridy++; form.add(storeCheck, gbc);
+
         JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
         JButton cancel = new JButton("Cancel");
         JButton save = new JButton("Save");
@@ -63,6 +74,11 @@ public class PreferencesDialog extends JDialog {
         passwordField.setText(PrefsManager.getPassword("changeit"));
         String theme = PrefsManager.getTheme(LookAndFeelUtil.THEME_LIGHT);
         themeCombo.setSelectedItem(ThemeOption.fromKey(theme));
+        compressCheck.setSelected(PrefsManager.isCompressTransfers());
+        compressChatCheck.setSelected(PrefsManager.isCompressChat());
+        askReceiveCheck.setSelected(PrefsManager.isAskBeforeReceiving());
+        stripeCheck.setSelected(PrefsManager.isStripeTransfers());
+        storeCheck.setSelected(PrefsManager.isStoreAttachments());
     }
 
     private void savePrefs() {
@@ -70,6 +86,11 @@ public class PreferencesDialog extends JDialog {
         PrefsManager.setHost(hostField.getText());
         PrefsManager.setPort((Integer) portSpinner.getValue());
         PrefsManager.setPassword(new String(passwordField.getPassword()));
+        PrefsManager.setCompressTransfers(compressCheck.isSelected());
+        PrefsManager.setCompressChat(compressChatCheck.isSelected());
+        PrefsManager.setAskBeforeReceiving(askReceiveCheck.isSelected());
+        PrefsManager.setStripeTransfers(stripeCheck.isSelected());
+        PrefsManager.setStoreAttachments(storeCheck.isSelected());
         ThemeOption opt = (ThemeOption) themeCombo.getSelectedItem();
         if (opt != null) {
             LookAndFeelUtil.applyTheme(opt.themeKey);
@@ -10,6 +10,11 @@ public class PrefsManager {
     private static final String KEY_PORT = "defaultPort";
     private static final String KEY_PASSWORD = "defaultPassword"; // stored in plain prefs; for demo only
     private static final String KEY_THEME = "uiTheme";
+    private static final String KEY_COMPRESS_TRANSFERS = "compressTransfers";
+    private static final String KEY_COMPRESS_CHAT = "compressChat";
+    private static final String KEY_ASK_BEFORE_RECEIVING = "askBeforeReceiving";
+    private static final String KEY_STRIPE_TRANSFERS = "stripeTransfers";
+    private static final String KEY_STORE_ATTACHMENTS = "storeAttachments";
 
     private static Preferences prefs() { return Preferences.userRoot().node(NODE); }
 
@@ -28,5 +33,21 @@ public class PrefsManager {
     public static String getTheme(String defVal) { return prefs().get(KEY_THEME, defVal); }
     public static void setTheme(String v) { prefs().put(KEY_THEME, nvl(v)); }
 
+    public static boolean isCompressTransfers() { return prefs().getBoolean(KEY_COMPRESS_TRANSFERS, true); }
+    public static void setCompressTransfers(boolean v) { prefs().putBoolean(KEY_COMPRESS_TRANSFERS, v); }
+
+    public static boolean isCompressChat() { return prefs().getBoolean(KEY_COMPRESS_CHAT, true); }
+    public static void setCompressChat(boolean v) { prefs().putBoolean(KEY_COMPRESS_CHAT, v); }
+
+    public static boolean isAskBeforeReceiving() { return prefs().getBoolean(KEY_ASK_BEFORE_RECEIVING, true); }
+    public static void setAskBeforeReceiving(boolean v) { prefs().putBoolean(KEY_ASK_BEFORE_RECEIVING, v); }
+
+    public static boolean isStripeTransfers() { return prefs().getBoolean(KEY_STRIPE_TRANSFERS, true); }
+    public static void setStripeTransfers(boolean v) { prefs().putBoolean(KEY_STRIPE_TRANSFERS, v); }
+
+    // Off unless chosen: the server then keeps a copy of every file relayed through it
+    public static boolean isStoreAttachments() { return prefs().getBoolean(KEY_STORE_ATTACHMENTS, false); }
+    public static void setStoreAttachments(boolean v) { prefs().putBoolean(KEY_STORE_ATTACHMENTS, v); }
+
     private static String nvl(String s) { return s == null ? "" : s; }
 }
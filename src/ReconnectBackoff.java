@@ -0,0 +1,40 @@
+import java.util.Random;
+
+/**
+ * Exponential reconnect backoff with "equal jitter": each delay is half the current ceiling plus a random share
+ * of the other half, so clients dropped together do not reconnect in lockstep.
+ */
+public final class ReconnectBackoff {
+    private final long baseMs;
+    private final long maxMs;
+    private final Random random;
+    private int attempts;
+
+    public ReconnectBackoff(long baseMs, long maxMs) {
+        this(baseMs, maxMs, new Random());
+    }
+
+    ReconnectBackoff(long baseMs, long maxMs, Random random) {
+        if (baseMs <= 0 || maxMs < baseMs) {
+            throw new IllegalArgumentException("Invalid backoff bounds: " + baseMs + ".." + maxMs);
+        }
+        this.baseMs = baseMs;
+        this.maxMs = maxMs;
+        this.random = random;
+    }
+
+    public synchronized long nextDelayMillis() {
+        long ceiling = Math.min(maxMs, baseMs << Math.min(attempts, 30));
+        attempts++;
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half));
+    }
+
+    public synchronized int attempts() {
+        return attempts;
+    }
+
+    public synchronized void reset() {
+        attempts = 0;
+    }
+}
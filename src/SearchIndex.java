@@ -0,0 +1,207 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Full-text index over a {@link ChatHistory}: every word of a message's text and sender maps to the numbers of the
+ * messages that contain it. Messages are added as they are recorded, so the index never has to rescan the history.
+ * <p>
+ * A query matches messages containing every one of its words, each word as a prefix ("rep" finds "report"). Each
+ * word's message numbers are kept ascending as variable-length gaps, usually a byte or two per occurrence, and are
+ * written to disk the same way.
+ */
+final class SearchIndex {
+    static final String MAGIC = "LCINDEX1";
+    // Longer words are indexed by their first this many characters, which is also how far a query word is matched
+    static final int MAX_WORD = 32;
+
+    private final TreeMap<String, Postings> words = new TreeMap<>();
+    private int next;
+
+    /**
+     * Index a message. Messages must be added in the order the history numbered them; ones already indexed are
+     * ignored, so the history can be replayed over an index loaded from disk.
+     */
+    synchronized void add(ChatHistory.Message message) {
+        if (message.id() < next) {
+            return;
+        }
+        for (String word : words(message.who() + " " + message.text())) {
+            words.computeIfAbsent(word, w -> new Postings()).add(message.id());
+        }
+        next = message.id() + 1;
+    }
+
+    /**
+     * Index the messages of {@code history} recorded since the last one added.
+     */
+    void catchUp(ChatHistory history) {
+        for (int from = indexed(); from < history.size(); ) {
+            List<ChatHistory.Message> page = history.read(from, ChatExporter.PAGE_MESSAGES);
+            if (page.isEmpty()) {
+                return;
+            }
+            page.forEach(this::add);
+            from += page.size();
+        }
+    }
+
+    /**
+     * Number of the next message to index.
+     */
+    synchronized int indexed() {
+        return next;
+    }
+
+    /**
+     * Numbers of the newest {@code limit} messages matching {@code query}, newest first. A query without words
+     * matches nothing.
+     */
+    synchronized int[] search(String query, int limit) {
+        List<String> terms = words(query);
+        if (terms.isEmpty()) {
+            return new int[0];
+        }
+        BitSet matches = null;
+        for (String term : terms) {
+            BitSet withTerm = new BitSet(next);
+            for (Postings postings : words.subMap(term, true, term + Character.MAX_VALUE, false).values()) {
+                postings.addTo(withTerm);
+            }
+            if (matches == null) {
+                matches = withTerm;
+            } else {
+                matches.and(withTerm);
+            }
+            if (matches.isEmpty()) {
+                return new int[0];
+            }
+        }
+        int[] ids = new int[Math.min(limit, matches.cardinality())];
+        int id = matches.length();
+        for (int i = 0; i < ids.length; i++) {
+            id = matches.previousSetBit(id - 1);
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    void write(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+            write(out);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    synchronized void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeUTF(MAGIC);
+        out.writeInt(next);
+        out.writeInt(words.size());
+        for (Map.Entry<String, Postings> entry : words.entrySet()) {
+            Postings postings = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeInt(postings.last);
+            out.writeInt(postings.length);
+            out.write(postings.gaps, 0, postings.length);
+        }
+        out.flush();
+    }
+
+    static SearchIndex read(Path file) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+            return read(in);
+        }
+    }
+
+    static SearchIndex read(InputStream stream) throws IOException {
+        SearchIndex index = new SearchIndex();
+        DataInputStream in = new DataInputStream(stream);
+        if (!MAGIC.equals(in.readUTF())) {
+            throw new IOException("Not a search index");
+        }
+        index.next = in.readInt();
+        for (int count = in.readInt(); count > 0; count--) {
+            String word = in.readUTF();
+            Postings postings = new Postings();
+            postings.last = in.readInt();
+            postings.length = in.readInt();
+            postings.gaps = new byte[postings.length];
+            in.readFully(postings.gaps);
+            index.words.put(word, postings);
+        }
+        return index;
+    }
+
+    /**
+     * Lower-cased runs of letters and digits, cut to {@link #MAX_WORD} characters.
+     */
+    static List<String> words(String text) {
+        List<String> found = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                found.add(text.substring(start, Math.min(i, start + MAX_WORD)).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return found;
+    }
+
+    // Ascending message numbers, each stored as its gap from the one before in 7-bit groups, low group first
+    private static final class Postings {
+        private byte[] gaps = new byte[4];
+        private int length;
+        private int last = -1;
+
+        void add(int id) {
+            if (id == last) {
+                return;
+            }
+            if (length + 5 > gaps.length) {
+                gaps = Arrays.copyOf(gaps, gaps.length * 2);
+            }
+            int gap = id - last;
+            while (gap >= 0x80) {
+                gaps[length++] = (byte) (gap | 0x80);
+                gap >>>= 7;
+            }
+            gaps[length++] = (byte) gap;
+            last = id;
+        }
+
+        void addTo(BitSet ids) {
+            int id = -1;
+            for (int i = 0; i < length; ) {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = gaps[i++];
+                    gap |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += gap;
+                ids.set(id);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Connection-scoped AES-GCM context that runs PBKDF2 once per salt instead of once per message.
+ * Frames keep the {@link EncryptionUtil} salt:iv:ciphertext layout, so plain password-based peers can still read them.
+ */
+public final class SessionCrypto {
+    private static final int MAX_CACHED_KEYS = 64;
+
+    private final char[] password;
+    private final byte[] sendSalt;
+    private final SecretKey sendKey;
+    private final Map<String, SecretKey> peerKeys = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest) {
+                    return size() > MAX_CACHED_KEYS;
+                }
+            });
+
+    public SessionCrypto(char[] password) throws GeneralSecurityException {
+        this.password = Objects.requireNonNull(password, "password").clone();
+        this.sendSalt = EncryptionUtil.newSalt();
+        this.sendKey = EncryptionUtil.deriveKey(this.password, sendSalt);
+        peerKeys.put(Base64.getEncoder().encodeToString(sendSalt), sendKey);
+    }
+
+    public String encrypt(String plaintext) throws GeneralSecurityException {
+        return EncryptionUtil.encryptWithKey(plaintext, sendKey, sendSalt);
+    }
+
+    public String encrypt(byte[] plaintext) throws GeneralSecurityException {
+        return EncryptionUtil.encryptWithKey(plaintext, sendKey, sendSalt);
+    }
+
+    public String decrypt(String combined) throws GeneralSecurityException {
+        return EncryptionUtil.decryptMessage(combined, this::keyFor);
+    }
+
+    public byte[] decryptBytes(String combined) throws GeneralSecurityException {
+        return EncryptionUtil.decryptBytes(combined, this::keyFor);
+    }
+
+    /**
+     * True when {@code candidate} is the password this context was created with.
+     */
+    public boolean matches(char[] candidate) {
+        return Arrays.equals(password, candidate);
+    }
+
+    private SecretKey keyFor(byte[] salt) throws GeneralSecurityException {
+        String id = Base64.getEncoder().encodeToString(salt);
+        SecretKey key = peerKeys.get(id);
+        if (key == null) {
+            key = EncryptionUtil.deriveKey(password, salt);
+            peerKeys.put(id, key);
+        }
+        return key;
+    }
+}
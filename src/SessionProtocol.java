@@ -0,0 +1,97 @@
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Objects;
+
+/**
+ * Control frames used to open and resume a client session over the encrypted line protocol.
+ */
+public final class SessionProtocol {
+    public static final String HELLO = "[SESSION-HELLO]";
+    public static final String RESUME_PREFIX = "[SESSION-RESUME]|";
+    public static final String ACCEPT_PREFIX = "[SESSION-OK]|";
+    // Sent by a client once the server offered chat compression: from here on either side may compress chat text
+    public static final String DEFLATE_ON = "[SESSION-DEFLATE]";
+    // First frame on an extra data connection: it joins the session with this token instead of opening its own
+    public static final String STRIPE_PREFIX = "[SESSION-STRIPE]|";
+
+    private static final String MODE_NEW = "new";
+    private static final String MODE_RESUMED = "resumed";
+    private static final String DEFLATE = "deflate";
+    private static final int TOKEN_BYTES = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private SessionProtocol() {
+    }
+
+    public static String newToken() {
+        byte[] token = new byte[TOKEN_BYTES];
+        RANDOM.nextBytes(token);
+        return HexFormat.of().formatHex(token);
+    }
+
+    public static String buildResume(String token) {
+        return RESUME_PREFIX + Objects.requireNonNull(token, "token");
+    }
+
+    public static String buildStripe(String token) {
+        return STRIPE_PREFIX + Objects.requireNonNull(token, "token");
+    }
+
+    public static String buildAccept(String token, boolean resumed) {
+        return ACCEPT_PREFIX + Objects.requireNonNull(token, "token") + "|" + (resumed ? MODE_RESUMED : MODE_NEW);
+    }
+
+    /**
+     * Accept frame that also offers per-connection chat compression.
+     */
+    public static String buildAccept(String token, boolean resumed, boolean offerDeflate) {
+        String accept = buildAccept(token, resumed);
+        return offerDeflate ? accept + "|" + DEFLATE : accept;
+    }
+
+    public static boolean isResume(String plaintext) {
+        return plaintext != null && plaintext.startsWith(RESUME_PREFIX);
+    }
+
+    public static boolean isStripe(String plaintext) {
+        return plaintext != null && plaintext.startsWith(STRIPE_PREFIX);
+    }
+
+    public static boolean isAccept(String plaintext) {
+        return plaintext != null && plaintext.startsWith(ACCEPT_PREFIX);
+    }
+
+    public static String parseResumeToken(String frame) {
+        if (!isResume(frame)) {
+            throw new IllegalArgumentException("Not a resume frame: " + frame);
+        }
+        return frame.substring(RESUME_PREFIX.length());
+    }
+
+    public static String parseStripeToken(String frame) {
+        if (!isStripe(frame)) {
+            throw new IllegalArgumentException("Not a stripe frame: " + frame);
+        }
+        return frame.substring(STRIPE_PREFIX.length());
+    }
+
+    public static Accept parseAccept(String frame) {
+        if (!isAccept(frame)) {
+            throw new IllegalArgumentException("Not a session accept frame: " + frame);
+        }
+        String[] parts = frame.substring(ACCEPT_PREFIX.length()).split("\\|", 3);
+        if (parts.length < 2 || parts[0].isEmpty()) {
+            throw new IllegalArgumentException("Malformed session accept frame");
+        }
+        return new Accept(parts[0], MODE_RESUMED.equals(parts[1]), parts.length == 3 && DEFLATE.equals(parts[2]));
+    }
+
+    /**
+     * @param deflate whether the server offered chat compression on this connection
+     */
+    public record Accept(String token, boolean resumed, boolean deflate) {
+        public Accept(String token, boolean resumed) {
+            this(token, resumed, false);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The client's one window: each server session's chat view is a tab, and a tab whose session got a message while
+ * another tab was shown is marked until it is selected. Closing a tab ends its session; closing the window ends
+ * them all. Must only be used on the event dispatch thread.
+ */
+final class SessionTabs extends JFrame {
+    private static final String UNREAD = "\u25CF ";
+
+    private final JTabbedPane tabs = new JTabbedPane();
+    private final Map<ChatWindow, Tab> open = new LinkedHashMap<>();
+    private final Consumer<ChatWindow> onClose;
+
+    /**
+     * @param onClose told which session's tab the user closed
+     * @param onExit  told once when the window is closed, before the process exits
+     */
+    SessionTabs(String title, Consumer<ChatWindow> onClose, Runnable onExit) {
+        super(title);
+        this.onClose = onClose;
+        setSize(900, 600);
+        setLocationRelativeTo(null);
+        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        getContentPane().add(tabs, BorderLayout.CENTER);
+        tabs.addChangeListener(e -> {
+            Component shown = tabs.getSelectedComponent();
+            open.values().stream().filter(tab -> tab.content == shown).forEach(tab -> tab.setUnread(false));
+        });
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                onExit.run();
+            }
+        });
+    }
+
+    /**
+     * Show {@code window}'s contents as a new, selected tab; the window itself is never shown.
+     */
+    void add(String title, ChatWindow window) {
+        Container content = window.getContentPane();
+        window.setContentPane(new JPanel());
+        Tab tab = new Tab(title, content);
+        tab.close.addActionListener(e -> onClose.accept(window));
+        open.put(window, tab);
+        tabs.addTab(title, content);
+        tabs.setTabComponentAt(tabs.indexOfComponent(content), tab.header);
+        tabs.setSelectedComponent(content);
+        if (!isVisible()) {
+            setVisible(true);
+        }
+    }
+
+    void select(ChatWindow window) {
+        Tab tab = open.get(window);
+        if (tab != null) {
+            tabs.setSelectedComponent(tab.content);
+            toFront();
+        }
+    }
+
+    void remove(ChatWindow window) {
+        Tab tab = open.remove(window);
+        if (tab != null) {
+            tabs.remove(tab.content);
+        }
+    }
+
+    int count() {
+        return open.size();
+    }
+
+    /**
+     * Mark {@code window}'s tab if it is not the one shown.
+     */
+    void messageArrived(ChatWindow window) {
+        Tab tab = open.get(window);
+        if (tab != null && tabs.getSelectedComponent() != tab.content) {
+            tab.setUnread(true);
+        }
+    }
+
+    private static final class Tab {
+        final Container content;
+        final String title;
+        final JLabel label;
+        final JButton close = new JButton("\u00D7");
+        final JPanel header = new JPanel(new FlowLayout(FlowLayout.LEFT, 4, 0));
+
+        Tab(String title, Container content) {
+            this.title = title;
+            this.content = content;
+            this.label = new JLabel(title);
+            close.setToolTipText("Disconnect and close this tab");
+            close.setBorder(new EmptyBorder(0, 4, 0, 4));
+            close.setContentAreaFilled(false);
+            close.setFocusable(false);
+            header.setOpaque(false);
+            header.add(label);
+            header.add(close);
+        }
+
+        void setUnread(boolean unread) {
+            label.setText(unread ? UNREAD + title : title);
+            label.setFont(label.getFont().deriveFont(unread ? Font.BOLD : Font.PLAIN));
+        }
+    }
+}
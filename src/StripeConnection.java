@@ -0,0 +1,135 @@
+import org.slf4j.Logger;
+
+import javax.crypto.AEADBadTagException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * An extra data connection joined to a client's session. It carries a share of the session's file frames in both
+ * directions, each connection with its own socket, send queue and encryption, so one TCP stream stops being the
+ * ceiling for a large transfer. Like the session connection it is read and written by the shared
+ * {@link ClientIoLoop}, so it adds no threads. Frames read here are handed to the session's dispatcher; the
+ * receiver puts chunks back in order by their sequence numbers.
+ */
+final class StripeConnection {
+    private static final Logger LOG = AppLogger.get(StripeConnection.class);
+
+    private final ClientIoLoop.Connection connection;
+    private final SessionCrypto crypto;
+    private final Consumer<String> frames;
+    private final FrameScheduler outbound;
+    private volatile boolean closed;
+
+    private StripeConnection(ClientIoLoop.Connection connection, SessionCrypto crypto, int bulkCapacity,
+                             Executor writers, Consumer<String> frames) {
+        this.connection = connection;
+        this.crypto = crypto;
+        this.frames = frames;
+        this.outbound = new FrameScheduler(new FrameScheduler.FrameSink() {
+            @Override
+            public void write(String plaintext) throws IOException {
+                writeFrame(plaintext);
+            }
+
+            @Override
+            public boolean canWrite() {
+                return connection.canWrite();
+            }
+        }, bulkCapacity, false, writers);
+        connection.onWritable(outbound::wake);
+    }
+
+    /**
+     * Connect on {@code io} and join the session for {@code token}. Frames are written by tasks on
+     * {@code writers}, and frames the server sends on this connection go to {@code frames} on the loop's handlers.
+     */
+    static CompletableFuture<StripeConnection> open(ClientIoLoop io, String host, int port, SessionCrypto crypto,
+                                                    String token, int bulkCapacity, Executor writers,
+                                                    Consumer<String> frames) {
+        // Set before the stripe frame goes out, so it is there for anything the server sends in reply
+        CompletableFuture<StripeConnection> created = new CompletableFuture<>();
+        return io.connect(host, port, new ClientIoLoop.Handler() {
+            @Override
+            public void line(ClientIoLoop.Connection c, String line) {
+                created.join().receive(line);
+            }
+
+            @Override
+            public void closed(ClientIoLoop.Connection c, IOException cause) {
+                LOG.debug("Stripe to {} closed", c.remoteAddress(), cause);
+                created.thenAccept(StripeConnection::close);
+            }
+        }).thenApply(c -> {
+            StripeConnection stripe = new StripeConnection(c, crypto, bulkCapacity, writers, frames);
+            created.complete(stripe);
+            try {
+                stripe.writeFrame(SessionProtocol.buildStripe(token));
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            return stripe;
+        });
+    }
+
+    /**
+     * Queue a file frame, blocking while this connection's bulk lane is full. Returns false once closed.
+     */
+    boolean send(String streamId, String frame) throws InterruptedException {
+        return !closed && outbound.enqueue(FrameScheduler.Lane.BULK, streamId, frame);
+    }
+
+    void discardStream(String streamId) {
+        outbound.discardStream(streamId);
+    }
+
+    boolean isIdle() {
+        return outbound.isIdle();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    // Frames already handed to the connection are still written before it closes
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        outbound.close();
+        connection.close();
+    }
+
+    private void receive(String line) {
+        try {
+            String frame = new String(crypto.decryptBytes(line), StandardCharsets.UTF_8);
+            if (FileTransferProtocol.PING.equals(frame)) {
+                outbound.submit(FileTransferProtocol.PONG);
+                return;
+            }
+            frames.accept(frame);
+        } catch (AEADBadTagException tampered) {
+            LOG.warn("Discarded tampered frame on stripe to {}", connection.remoteAddress(), tampered);
+        } catch (GeneralSecurityException e) {
+            LOG.error("Failed to decrypt frame on stripe to {}", connection.remoteAddress(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // A failed write retires the stripe rather than pausing it: there is no resume for a stripe, and closing
+    // releases senders blocked on its lane. Frames lost with it are asked for again by the receiver.
+    private void writeFrame(String payload) throws IOException {
+        try {
+            connection.write(crypto.encrypt(payload));
+        } catch (IOException | GeneralSecurityException e) {
+            close();
+            throw new IOException("Stripe write failed", e);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+import java.util.Arrays;
+
+/**
+ * Decides how many extra data connections a large transfer should use, from the throughput measured with each
+ * count. It probes upward one connection at a time and keeps a new connection only while it adds at least
+ * {@code minGain} of what a single connection was carrying before it; once one does not, it settles on the count
+ * before and stays there until the transfer ends. A sample taken right after the count changed is skipped, since a
+ * fresh connection needs a moment to ramp up.
+ */
+final class StripePlanner {
+    private final int maxStripes;
+    private final double minGain;
+    private final double[] rates;
+    private int target;
+    private int samplesAtTarget;
+    private boolean settled;
+
+    StripePlanner(int maxStripes, double minGain) {
+        this.maxStripes = Math.max(0, maxStripes);
+        this.minGain = minGain;
+        this.rates = new double[this.maxStripes + 1];
+    }
+
+    /**
+     * Record {@code bytes} moved over {@code elapsedNanos} while {@code stripes} extra connections were open, and
+     * return the number of extra connections wanted next.
+     */
+    synchronized int onSample(long bytes, long elapsedNanos, int stripes) {
+        if (settled || elapsedNanos <= 0 || bytes <= 0 || stripes != target) {
+            return target;
+        }
+        if (++samplesAtTarget < 2) {
+            return target;
+        }
+        double rate = (double) bytes / elapsedNanos;
+        rates[target] = rate;
+        if (target > 0) {
+            double perStream = rates[target - 1] / target;
+            if (rate - rates[target - 1] < minGain * perStream) {
+                return settle(target - 1);
+            }
+        }
+        if (target == maxStripes) {
+            return settle(target);
+        }
+        target++;
+        samplesAtTarget = 0;
+        return target;
+    }
+
+    /**
+     * Forget the measurements, e.g. once no large transfer is running; the next one probes afresh.
+     */
+    synchronized void reset() {
+        target = 0;
+        samplesAtTarget = 0;
+        settled = false;
+        Arrays.fill(rates, 0);
+    }
+
+    synchronized int target() {
+        return target;
+    }
+
+    /**
+     * Stop probing at {@code stripes}, e.g. when another connection could not be opened.
+     */
+    synchronized int settle(int stripes) {
+        target = stripes;
+        settled = true;
+        return target;
+    }
+}
@@ -0,0 +1,41 @@
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps how many outgoing transfers stream at once. Transfers started beyond the cap wait in the order they were
+ * started, so a burst of picks does not split the link into many slow transfers that all finish last.
+ */
+final class TransferSlots {
+    private final Semaphore permits;
+
+    TransferSlots(int maxActive) {
+        this.permits = new Semaphore(Math.max(1, maxActive), true);
+    }
+
+    /**
+     * Take a slot, waiting while every slot is busy; {@link #release()} it once the transfer is over. The monitor is
+     * told once the transfer has to queue. A queued transfer is cancelled by interrupting its thread.
+     */
+    void acquire(ChatWindow.TransferMonitor monitor) throws IOException {
+        try {
+            // The timed form honours the queue order; the untimed tryAcquire would barge ahead of waiting transfers
+            if (!permits.tryAcquire(0, TimeUnit.MILLISECONDS)) {
+                if (monitor != null) {
+                    monitor.onQueued();
+                }
+                permits.acquire();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Transfer cancelled by user");
+        }
+    }
+
+    /**
+     * Give back a slot taken by {@link #acquire}, letting the next queued transfer start.
+     */
+    void release() {
+        permits.release();
+    }
+}
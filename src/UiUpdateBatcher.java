@@ -0,0 +1,82 @@
+import org.slf4j.Logger;
+
+import javax.swing.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects UI updates from any thread and applies them on the event dispatch thread in one pass per tick, instead
+ * of one {@code invokeLater} per update, so a burst of messages or progress reports cannot flood the event queue.
+ * <p>
+ * Updates posted with {@link #post(Runnable)} all run, in the order they were posted. Updates posted with
+ * {@link #postLatest(Object, Runnable)} replace any update for the same key still waiting, so only the newest value
+ * of a label or progress bar is applied; they run after the ordered updates of the same pass.
+ */
+final class UiUpdateBatcher {
+    private static final Logger LOG = AppLogger.get(UiUpdateBatcher.class);
+    static final int TICK_MS = 16;
+
+    private final ConcurrentLinkedQueue<Runnable> updates = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<Object, Runnable> latest = new ConcurrentHashMap<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong passes = new AtomicLong();
+    private final Timer timer;
+
+    UiUpdateBatcher() {
+        this(TICK_MS);
+    }
+
+    UiUpdateBatcher(int tickMs) {
+        timer = new Timer(tickMs, e -> flush());
+        timer.setRepeats(false);
+    }
+
+    void post(Runnable update) {
+        updates.add(update);
+        schedule();
+    }
+
+    void postLatest(Object key, Runnable update) {
+        latest.put(key, update);
+        schedule();
+    }
+
+    /**
+     * Passes run so far; each applies everything posted since the one before.
+     */
+    long passes() {
+        return passes.get();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            timer.restart();
+        }
+    }
+
+    // On the event dispatch thread. Cleared first, so an update posted while this pass runs gets a pass of its own.
+    private void flush() {
+        scheduled.set(false);
+        passes.incrementAndGet();
+        Runnable update;
+        while ((update = updates.poll()) != null) {
+            apply(update);
+        }
+        for (Object key : latest.keySet()) {
+            update = latest.remove(key);
+            if (update != null) {
+                apply(update);
+            }
+        }
+    }
+
+    private static void apply(Runnable update) {
+        try {
+            update.run();
+        } catch (RuntimeException e) {
+            LOG.error("UI update failed", e);
+        }
+    }
+}
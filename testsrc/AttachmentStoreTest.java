@@ -0,0 +1,103 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class AttachmentStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void relayedUploadIsStoredOnceAndSurvivesARestart() throws Exception {
+        byte[] data = new byte[FileTransferProtocol.CHUNK_SIZE * 3 + 77];
+        new Random(11).nextBytes(data);
+        AttachmentStore store = new AttachmentStore(dir.resolve("store"), 1 << 20);
+
+        AttachmentStore.Entry entry = upload(store, "report.pdf", data);
+
+        assertNotNull(entry);
+        assertEquals("report.pdf", entry.filename());
+        assertArrayEquals(data, Files.readAllBytes(store.file(entry)));
+        assertFalse(store.spool(header("report.pdf", data)), "a file already held is not spooled again");
+        assertFalse(store.spool(FileTransferProtocol.Header.builder("photos", 10, "cd".repeat(32)).bundle(true).build()),
+                "folders are not stored");
+
+        AttachmentStore reopened = new AttachmentStore(dir.resolve("store"), 1 << 20);
+        assertEquals(1, reopened.recent(5, 60_000).size());
+        assertEquals(entry, reopened.pin(entry.transferId()));
+        assertEquals(data.length, reopened.totalBytes());
+    }
+
+    @Test
+    void leastRecentlyUsedFilesGoFirstButNotWhileBeingServed() throws Exception {
+        int size = FileTransferProtocol.CHUNK_SIZE * 2;
+        AttachmentStore store = new AttachmentStore(dir.resolve("store"), size * 5L / 2);
+        AttachmentStore.Entry a = upload(store, "a.bin", bytes(size, 1));
+        AttachmentStore.Entry b = upload(store, "b.bin", bytes(size, 2));
+        assertNotNull(store.pin(a.transferId()));
+
+        AttachmentStore.Entry c = upload(store, "c.bin", bytes(size, 3));
+        assertTrue(store.contains(a.transferId()));
+        assertFalse(store.contains(b.transferId()), "b was used least recently");
+        assertFalse(Files.exists(dir.resolve("store").resolve(b.transferId())));
+
+        AttachmentStore.Entry d = upload(store, "d.bin", bytes(size, 4));
+        assertTrue(store.contains(a.transferId()), "a is still being served");
+        assertFalse(store.contains(c.transferId()));
+        assertTrue(store.contains(d.transferId()));
+
+        store.unpin(a.transferId());
+        assertEquals(2L * size, store.totalBytes());
+    }
+
+    @Test
+    void storedFilesAreReadableByTheOwnerAlone() throws Exception {
+        assumeTrue(Files.getFileStore(dir).supportsFileAttributeView("posix"));
+        Path storeDir = Files.createDirectories(dir.resolve("store"),
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwxr-xr-x")));
+        AttachmentStore store = new AttachmentStore(storeDir, 1 << 20);
+
+        upload(store, "payslip.pdf", bytes(FileTransferProtocol.CHUNK_SIZE + 5, 7));
+
+        assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(storeDir)));
+        try (Stream<Path> files = Files.list(storeDir)) {
+            for (Path file : files.toList()) {
+                assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)),
+                        file.getFileName().toString());
+            }
+        }
+    }
+
+    private AttachmentStore.Entry upload(AttachmentStore store, String name, byte[] data) throws Exception {
+        Path source = Files.write(dir.resolve(name), data);
+        FileTransferProtocol.Header header = header(name, data);
+        assertTrue(store.spool(header));
+        try (FileChunkReader reader = new FileChunkReader(source, data.length)) {
+            ChunkEncoder encoder = new ChunkEncoder(reader, header.hash(), false);
+            ChunkEncoder.Encoded chunk;
+            while ((chunk = encoder.next()) != null) {
+                store.spoolFrame(header.hash(), chunk.frame());
+            }
+            return store.finishSpool(FileTransferProtocol.parseEof(reader.eofFrame(header.hash()))).get();
+        }
+    }
+
+    private static FileTransferProtocol.Header header(String name, byte[] data) {
+        return FileTransferProtocol.Header.builder(name, data.length, FileTransferProtocol.transferId(name, data.length, 0))
+                .build();
+    }
+
+    private static byte[] bytes(int size, int seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,59 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatCompressionTest {
+
+    @Test
+    void streamedMessagesRoundTripAndShrinkAsContextBuilds() throws Exception {
+        ChatCompression sender = new ChatCompression();
+        ChatCompression receiver = new ChatCompression();
+        String[] messages = {
+                "[192.168.1.20:51544] hey, are you joining the meeting?",
+                "[192.168.1.20:51544] I'll send the file in a minute",
+                "[192.168.1.20:51544] ok, sending the file now",
+                "[192.168.1.20:51544] did you get the file?",
+                "[192.168.1.20:51544] über-cool ✓",
+        };
+        int lastSize = Integer.MAX_VALUE;
+        for (String message : messages) {
+            byte[] frame = sender.compress(message);
+            assertEquals(ChatCompression.MARKER, frame[0]);
+            assertEquals(message, receiver.decode(frame));
+            lastSize = frame.length;
+        }
+        assertTrue(lastSize < messages[4].getBytes(java.nio.charset.StandardCharsets.UTF_8).length);
+        assertTrue(sender.ratio() > 1.0, sender.describe());
+        assertEquals("plain text", receiver.decode("plain text".getBytes(java.nio.charset.StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void plainTextStartingWithTheMarkerIsNotTakenForACompressedFrame() throws Exception {
+        ChatCompression sender = new ChatCompression();
+        ChatCompression receiver = new ChatCompression();
+        for (String message : new String[] {"\0starts with the marker", "\u0001starts with the escape", "\0", "", "plain"}) {
+            assertEquals(message, receiver.decode(ChatCompression.plain(message)));
+            assertEquals(message, receiver.decode(sender.compress(message)), "the stream carries on after plain frames");
+        }
+        assertArrayEquals("plain".getBytes(java.nio.charset.StandardCharsets.UTF_8), ChatCompression.plain("plain"),
+                "ordinary text goes out as it is");
+    }
+
+    @Test
+    void longMessagesAreNotTruncated() throws Exception {
+        ChatCompression sender = new ChatCompression();
+        ChatCompression receiver = new ChatCompression();
+        String message = "x".repeat(100_000) + "end";
+        assertEquals(message, receiver.decode(sender.compress(message)));
+    }
+
+    @Test
+    void resetStartsBothStreamsOver() throws Exception {
+        ChatCompression a = new ChatCompression();
+        ChatCompression b = new ChatCompression();
+        b.decode(a.compress("first connection"));
+        a.reset();
+        b.reset();
+        assertEquals("second connection", b.decode(a.compress("second connection")));
+    }
+}
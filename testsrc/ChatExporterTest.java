@@ -0,0 +1,61 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatExporterTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void exportsEveryPageAsUtf8TextOrJsonLinesWithinTheRange() throws Exception {
+        try (ChatHistory history = new ChatHistory(dir.resolve("history.bin"))) {
+            for (int i = 0; i < 1200; i++) {
+                history.append(i * 1000L, "peer", "message " + i);
+            }
+            history.append(1_200_000L, "Zoë", "quote \" and\nnewline");
+
+            Path all = dir.resolve("all.txt");
+            int[] lastScanned = {0};
+            assertEquals(1201, ChatExporter.export(history, all, ChatExporter.Format.TEXT, Long.MIN_VALUE,
+                    Long.MAX_VALUE, (scanned, total) -> {
+                        lastScanned[0] = scanned;
+                        return true;
+                    }));
+            assertEquals(1201, lastScanned[0]);
+            List<String> lines = Files.readAllLines(all, StandardCharsets.UTF_8);
+            assertTrue(lines.get(0).endsWith("] peer: message 0"));
+            assertTrue(lines.get(1199).endsWith("] peer: message 1199"));
+            assertTrue(lines.get(1200).contains("Zoë: quote \" and"));
+
+            Path range = dir.resolve("range.jsonl");
+            assertEquals(101, ChatExporter.export(history, range, ChatExporter.Format.JSON_LINES, 1_100_000L,
+                    Long.MAX_VALUE, (scanned, total) -> true));
+            lines = Files.readAllLines(range, StandardCharsets.UTF_8);
+            assertEquals(101, lines.size());
+            assertTrue(lines.get(0).startsWith("{\"id\":1100,\"time\":\""));
+            assertTrue(lines.get(100).endsWith(",\"from\":\"Zoë\",\"text\":\"quote \\\" and\\nnewline\"}"),
+                    lines.get(100));
+        }
+    }
+
+    @Test
+    void cancelledExportLeavesNoFile() throws Exception {
+        try (ChatHistory history = new ChatHistory(dir.resolve("history.bin"))) {
+            for (int i = 0; i < 2000; i++) {
+                history.append(i, "peer", "message " + i);
+            }
+            Path target = dir.resolve("chat.txt");
+            assertThrows(CancellationException.class, () -> ChatExporter.export(history, target,
+                    ChatExporter.Format.TEXT, Long.MIN_VALUE, Long.MAX_VALUE, (scanned, total) -> scanned < 1000));
+            assertFalse(Files.exists(target));
+        }
+    }
+}
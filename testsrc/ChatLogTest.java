@@ -0,0 +1,63 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatLogTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void viewStaysBoundedAndPagesOlderMessagesBackIn() throws Exception {
+        try (ChatHistory history = new ChatHistory(dir.resolve("history.bin"))) {
+            ChatLog log = new ChatLog(history, 100);
+            for (int i = 0; i < 1000; i++) {
+                log.add(history.append(i, "peer", "message " + i));
+            }
+            assertTrue(log.messageCount() <= 100 + 100 / 8, "kept " + log.messageCount());
+            assertTrue(log.getElementAt(log.getSize() - 1).text().endsWith("message 999"));
+
+            int firstShown = log.getElementAt(0).message().id();
+            assertEquals(40, log.loadOlder(40));
+            assertEquals(firstShown - 40, log.getElementAt(0).message().id());
+            assertEquals("message " + (firstShown - 40), log.getElementAt(0).message().text());
+
+            while (log.hasOlder()) {
+                log.loadOlder(40);
+            }
+            assertEquals(0, log.getElementAt(0).message().id());
+            assertFalse(log.isFollowing(), "the newest fell off while paging up");
+            assertFalse(log.add(history.append(1000, "peer", "message 1000")), "only recorded while scrolled away");
+
+            while (!log.isFollowing()) {
+                log.loadNewer(40);
+            }
+            assertEquals("message 1000", log.getElementAt(log.getSize() - 1).message().text());
+            assertTrue(log.add(history.append(1001, "peer", "message 1001")));
+
+            int row = log.showAround(10);
+            assertEquals("message 10", log.getElementAt(row).message().text());
+            assertFalse(log.isFollowing());
+        }
+    }
+
+    @Test
+    void longMessagesWrapIntoFixedHeightRows() throws Exception {
+        assertEquals(List.of("one two", "three"), ChatLog.wrap("one two three", 7, String::length));
+        assertEquals(List.of("abcd", "efgh", "ij"), ChatLog.wrap("abcdefghij", 4, String::length));
+        assertEquals(List.of("first", "second"), ChatLog.wrap("first\nsecond", 20, String::length));
+
+        try (ChatHistory history = new ChatHistory(dir.resolve("history.bin"))) {
+            ChatLog log = new ChatLog(history, 10);
+            log.add(history.append(0, "me", "a fairly long line of chat"));
+            assertEquals(1, log.getSize());
+            log.rewrap(text -> ChatLog.wrap(text, 20, String::length));
+            assertTrue(log.getSize() > 1);
+            assertTrue(log.getElementAt(1).text().startsWith("    "), "continuation lines are indented");
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkEncoderTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void compressibleChunksAreDeflatedAndRoundTrip() throws Exception {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; log.length() < 3 * FileTransferProtocol.CHUNK_SIZE; i++) {
+            log.append("2024-05-01 12:00:").append(i % 60).append(" INFO request ").append(i).append(" served in 3ms\n");
+        }
+        byte[] data = java.util.Arrays.copyOf(log.toString().getBytes(StandardCharsets.UTF_8), 3 * FileTransferProtocol.CHUNK_SIZE);
+        Path file = Files.write(dir.resolve("app.log"), data);
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        long wire = 0;
+        try (FileChunkReader reader = new FileChunkReader(file, data.length)) {
+            ChunkEncoder encoder = new ChunkEncoder(reader, "ab".repeat(32), true);
+            ChunkEncoder.Encoded encoded;
+            int expectedSeq = 0;
+            while ((encoded = encoder.next()) != null) {
+                assertEquals(expectedSeq++, encoded.sequence());
+                assertTrue(encoded.frame().endsWith("|" + FileTransferProtocol.DEFLATE));
+                FileTransferProtocol.Chunk chunk = FileTransferProtocol.parseChunk(encoded.frame());
+                assertNotNull(MerkleTree.verifiedLeaf(chunk), "leaf hash covers the uncompressed bytes");
+                received.write(chunk.data());
+                wire += encoded.wireBytes();
+            }
+        }
+        assertArrayEquals(data, received.toByteArray());
+        assertTrue(wire < data.length / 4, "log text compresses well: " + wire);
+    }
+
+    @Test
+    void randomDataIsSentRaw() throws Exception {
+        byte[] data = new byte[FileTransferProtocol.CHUNK_SIZE * 2 + 10];
+        new Random(5).nextBytes(data);
+        assertFalse(ChunkEncoder.looksCompressible(data, data.length));
+        Path file = Files.write(dir.resolve("photo.jpg"), data);
+
+        try (FileChunkReader reader = new FileChunkReader(file, data.length)) {
+            ChunkEncoder encoder = new ChunkEncoder(reader, "ab".repeat(32), true);
+            encoder.seek(1);
+            ChunkEncoder.Encoded encoded = encoder.next();
+            assertEquals(1, encoded.sequence());
+            assertFalse(encoded.frame().endsWith(FileTransferProtocol.DEFLATE));
+            assertEquals(FileTransferProtocol.CHUNK_SIZE, encoded.wireBytes());
+        }
+    }
+
+    @Test
+    void batchedFramesSplitBackIntoVerifiedBlocks() throws Exception {
+        byte[] data = new byte[FileTransferProtocol.CHUNK_SIZE * 5 + 99];
+        new Random(8).nextBytes(data);
+        Path file = Files.write(dir.resolve("blob.bin"), data);
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        int nextSeq = 0;
+        try (FileChunkReader reader = new FileChunkReader(file, data.length)) {
+            ChunkEncoder encoder = new ChunkEncoder(reader, "ab".repeat(32), false);
+            encoder.setBlocksPerFrame(4);
+            ChunkEncoder.Encoded encoded;
+            while ((encoded = encoder.next()) != null) {
+                assertEquals(nextSeq, encoded.sequence());
+                for (FileTransferProtocol.Chunk chunk : FileTransferProtocol.parseChunks(encoded.frame())) {
+                    assertEquals(nextSeq++, chunk.sequence());
+                    assertNotNull(MerkleTree.verifiedLeaf(chunk));
+                    received.write(chunk.data());
+                }
+                assertEquals(nextSeq - 1, encoded.lastSequence());
+            }
+        }
+        assertEquals(6, nextSeq);
+        assertArrayEquals(data, received.toByteArray());
+    }
+
+    @Test
+    void seekingBackLateInAFileRehashesOnlyFromTheLastCheckpoint() throws Exception {
+        int chunks = FileChunkReader.CHECKPOINT_CHUNKS * 3 + 7;
+        byte[] data = new byte[FileTransferProtocol.CHUNK_SIZE * (chunks - 1) + 123];
+        new Random(9).nextBytes(data);
+        long[] read = new long[1];
+        FileChunkReader.Source counted = () -> new java.io.FilterInputStream(new java.io.ByteArrayInputStream(data)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws java.io.IOException {
+                int n = super.read(b, off, len);
+                read[0] += Math.max(n, 0);
+                return n;
+            }
+        };
+
+        String straight;
+        try (FileChunkReader reader = new FileChunkReader(counted, data.length)) {
+            while (reader.next() > 0) { }
+            straight = reader.eofFrame("t");
+        }
+        try (FileChunkReader reader = new FileChunkReader(counted, data.length)) {
+            while (reader.next() > 0) { }
+            read[0] = 0;
+            reader.seek(FileChunkReader.CHECKPOINT_CHUNKS * 3 + 2);
+            assertEquals(2L * FileTransferProtocol.CHUNK_SIZE, read[0], "only the chunks past the checkpoint are read");
+            assertEquals(FileChunkReader.CHECKPOINT_CHUNKS * 3 + 1, reader.sequence());
+            reader.seek(5);
+            reader.seek(FileChunkReader.CHECKPOINT_CHUNKS + 1);
+            while (reader.next() > 0) { }
+            assertEquals(straight, reader.eofFrame("t"), "resuming from a checkpoint hashes to the same EOF");
+        }
+    }
+}
@@ -0,0 +1,144 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClientIoLoopTest {
+
+    @Test
+    void linesSplitAcrossReadsArriveWholeAndInOrderBeforeTheClose() throws Exception {
+        String longLine = "é".repeat(100_000);
+        ExecutorService handlers = Executors.newCachedThreadPool();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             ClientIoLoop loop = new ClientIoLoop(handlers)) {
+            List<String> received = new ArrayList<>();
+            CountDownLatch closed = new CountDownLatch(1);
+            loop.connect("localhost", server.getLocalPort(), new ClientIoLoop.Handler() {
+                @Override
+                public void line(ClientIoLoop.Connection connection, String line) {
+                    synchronized (received) {
+                        received.add(line);
+                    }
+                }
+
+                @Override
+                public void closed(ClientIoLoop.Connection connection, IOException cause) {
+                    synchronized (received) {
+                        received.add("<closed " + cause + ">");
+                    }
+                    closed.countDown();
+                }
+            }).get(5, TimeUnit.SECONDS);
+
+            try (Socket peer = server.accept()) {
+                OutputStream out = peer.getOutputStream();
+                byte[] bytes = ("first\nsec" + "ond\n" + longLine + "\nlast\n").getBytes(StandardCharsets.UTF_8);
+                // Cut mid-word and mid-character so lines and characters both span reads
+                for (int at = 0; at < bytes.length; at += 7001) {
+                    out.write(bytes, at, Math.min(7001, bytes.length - at));
+                    out.flush();
+                    Thread.sleep(1);
+                }
+            }
+
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            assertEquals(List.of("first", "second", longLine, "last", "<closed null>"), received);
+        } finally {
+            handlers.shutdownNow();
+        }
+    }
+
+    @Test
+    void lineLongerThanTheLimitEndsTheConnection() throws Exception {
+        ExecutorService handlers = Executors.newCachedThreadPool();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             ClientIoLoop loop = new ClientIoLoop(handlers)) {
+            List<String> received = new ArrayList<>();
+            IOException[] cause = new IOException[1];
+            CountDownLatch closed = new CountDownLatch(1);
+            loop.connect("localhost", server.getLocalPort(), new ClientIoLoop.Handler() {
+                @Override
+                public void line(ClientIoLoop.Connection connection, String line) {
+                    synchronized (received) {
+                        received.add(line);
+                    }
+                }
+
+                @Override
+                public void closed(ClientIoLoop.Connection connection, IOException c) {
+                    cause[0] = c;
+                    closed.countDown();
+                }
+            }).get(5, TimeUnit.SECONDS);
+
+            try (Socket peer = server.accept()) {
+                OutputStream out = peer.getOutputStream();
+                out.write("fine\n".getBytes(StandardCharsets.UTF_8));
+                byte[] block = new byte[64 * 1024];
+                Arrays.fill(block, (byte) 'x');
+                try {
+                    for (long sent = 0; sent <= ClientIoLoop.MAX_LINE_BYTES; sent += block.length) {
+                        out.write(block);
+                    }
+                } catch (IOException expected) {
+                    // the client may already have cut the connection
+                }
+                assertTrue(closed.await(5, TimeUnit.SECONDS));
+            }
+            assertEquals(List.of("fine"), received);
+            assertNotNull(cause[0], "an overlong line is an error, not an ordinary close");
+        } finally {
+            handlers.shutdownNow();
+        }
+    }
+
+    @Test
+    void writtenLinesReachThePeerAndCloseEndsTheConnection() throws Exception {
+        ExecutorService handlers = Executors.newCachedThreadPool();
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             ClientIoLoop loop = new ClientIoLoop(handlers)) {
+            CountDownLatch closed = new CountDownLatch(1);
+            ClientIoLoop.Connection connection = loop.connect("localhost", server.getLocalPort(), new ClientIoLoop.Handler() {
+                @Override
+                public void line(ClientIoLoop.Connection c, String line) {
+                }
+
+                @Override
+                public void closed(ClientIoLoop.Connection c, IOException cause) {
+                    closed.countDown();
+                }
+            }).get(5, TimeUnit.SECONDS);
+
+            try (Socket peer = server.accept()) {
+                for (int i = 0; i < 10_000; i++) {
+                    connection.write("line " + i);
+                }
+                connection.close();
+                BufferedReader in = new BufferedReader(new InputStreamReader(peer.getInputStream(), StandardCharsets.UTF_8));
+                for (int i = 0; i < 10_000; i++) {
+                    assertEquals("line " + i, in.readLine());
+                }
+                assertNull(in.readLine());
+            }
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            assertThrows(IOException.class, () -> connection.write("after"));
+        } finally {
+            handlers.shutdownNow();
+        }
+    }
+}
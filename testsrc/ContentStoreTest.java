@@ -0,0 +1,54 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentStoreTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void findsRecordedContentByHashOrTransferIdAfterReload() throws Exception {
+        Path file = Files.writeString(dir.resolve("notes.txt"), "hello");
+        String sha = FileTransferProtocol.computeSha256(file);
+        Path index = dir.resolve("index");
+        ContentStore store = new ContentStore(index);
+        store.record(sha, file);
+        store.alias("transfer-1", sha);
+
+        ContentStore reloaded = new ContentStore(index);
+        assertEquals(file.toAbsolutePath().normalize(), reloaded.lookup(sha, 5));
+        assertEquals(file.toAbsolutePath().normalize(), reloaded.lookup("transfer-1", 5));
+        assertNull(reloaded.lookup(sha, 6), "size must match");
+        assertEquals(sha, reloaded.knownHash(file));
+    }
+
+    @Test
+    void changedFileIsNoLongerTrusted() throws Exception {
+        Path file = Files.writeString(dir.resolve("a.bin"), "abc");
+        ContentStore store = new ContentStore(dir.resolve("index"));
+        String sha = FileTransferProtocol.computeSha256(file);
+        store.record(sha, file);
+
+        Files.writeString(file, "abd");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 2_000));
+        assertNull(store.lookup(sha, 3));
+        assertNull(store.knownHash(file));
+    }
+
+    @Test
+    void indexingSkipsPartialDownloads() throws Exception {
+        Path file = Files.writeString(dir.resolve("done.txt"), "done");
+        Files.writeString(dir.resolve(".abc.part"), "partial");
+        ContentStore store = new ContentStore(dir.resolve("index-dir").resolve("index"));
+        store.indexDirectory(dir);
+
+        assertNotNull(store.knownHash(file));
+        assertNull(store.lookup(FileTransferProtocol.computeSha256(dir.resolve(".abc.part")), 7));
+    }
+}
@@ -0,0 +1,207 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CreditWindowTest {
+
+    @Test
+    void senderWaitsForGrantBeforeExceedingWindow() throws Exception {
+        CreditWindow window = new CreditWindow(1024, 5_000, 5_000);
+        window.grant(0, 2, System.nanoTime());
+        window.awaitCredit(0);
+        window.awaitCredit(1);
+
+        Thread waiter = new Thread(() -> {
+            try {
+                window.awaitCredit(2);
+            } catch (Exception ignored) {
+            }
+        });
+        waiter.start();
+        waiter.join(200);
+        assertTrue(waiter.isAlive(), "chunk 2 is outside the granted window");
+
+        window.grant(1, 2, System.nanoTime());
+        waiter.join(2_000);
+        assertFalse(waiter.isAlive());
+    }
+
+    @Test
+    void fallsBackToUncreditedWhenNoReceiverEverGrants() throws Exception {
+        CreditWindow window = new CreditWindow(1024, 50, 5_000);
+        window.awaitCredit(100);
+        assertTrue(window.isUncredited());
+    }
+
+    @Test
+    void unlimitedGrantIsNotHeldToTheTunedWindow() throws Exception {
+        CreditWindow window = new CreditWindow(1024, 5_000, 100);
+        window.grant(0, CreditWindow.UNLIMITED, System.nanoTime());
+        window.awaitCredit(window.tunedWindow() * 10L);
+    }
+
+    @Test
+    void stalledReceiversFailTheTransfer() {
+        CreditWindow window = new CreditWindow(1024, 5_000, 100);
+        window.grant(0, 1, System.nanoTime());
+        assertThrows(IOException.class, () -> window.awaitCredit(1));
+    }
+
+    @Test
+    void relayForwardsTheSlowestParticipantsGrant() {
+        CreditRelay<String> relay = new CreditRelay<>("origin");
+        assertEquals(new CreditRelay.Grant(4, 8), relay.update("fast", 4, 8));
+        assertEquals(new CreditRelay.Grant(1, 8), relay.update("slow", 1, 8));
+        assertNull(relay.update("fast", 6, 8), "minimum did not move");
+        assertEquals(new CreditRelay.Grant(6, 8), relay.remove("slow"));
+        assertEquals(new CreditRelay.Grant(6, 0), relay.remove("fast"), "nobody left to send to");
+        assertEquals(new CreditRelay.Grant(7, 8), relay.update("late", 7, 8));
+    }
+
+    @Test
+    void relayAsksOnceToResendWhatAFullReceiverMissed() {
+        CreditRelay<String> relay = new CreditRelay<>("origin");
+        relay.update("slow", 0, 64);
+        assertEquals(10, relay.dropped("slow", 10));
+        assertEquals(-1, relay.dropped("slow", 11), "frames behind the first drop are covered");
+        assertEquals(10, relay.dropped("slow", 10), "dropped again after the origin went back");
+        relay.update("slow", 11, 64);
+        assertEquals(20, relay.dropped("slow", 20), "acknowledged past it, so a new drop is a new request");
+    }
+
+    @Test
+    void relayHoldsFirstGrantUntilEveryReceiverReportedItsOffset() throws Exception {
+        CreditRelay<String> relay = new CreditRelay<>("origin", java.util.List.of("a", "b"));
+        assertNull(relay.update("a", 40, 8), "b has not answered yet");
+        assertEquals(new CreditRelay.Grant(12, 8), relay.update("b", 12, 8));
+
+        CreditWindow window = new CreditWindow(1024, 5_000, 5_000);
+        window.grant(12, 8, System.nanoTime());
+        assertEquals(12, window.awaitStart());
+    }
+
+    @Test
+    void resendRequestWakesBlockedSenderAndRewinds() throws Exception {
+        CreditWindow window = new CreditWindow(1024, 5_000, 5_000);
+        window.grant(4, 2, System.nanoTime());
+        FileTransferProtocol.Nack nack = FileTransferProtocol.parseNack(FileTransferProtocol.buildNack("ab".repeat(32), 3));
+        window.requestRewind(nack.sequence());
+        window.awaitCredit(6); // would block without the rewind
+        assertEquals(3, window.takeRewind());
+        assertEquals(-1, window.takeRewind());
+    }
+
+    @Test
+    void damagedChunksAreResentAloneUnlessARewindCoversThem() throws Exception {
+        CreditWindow window = new CreditWindow(1024, 5_000, 5_000);
+        window.grant(4, 2, System.nanoTime());
+        FileTransferProtocol.Nack nack = FileTransferProtocol.parseNack(
+                FileTransferProtocol.buildNack(new FileTransferProtocol.Nack("ab".repeat(32), 4, 2)));
+        assertEquals(2, nack.count());
+        window.requestResend(nack.sequence(), nack.count());
+        window.awaitCredit(6); // would block without the resend
+        assertEquals(-1, window.takeRewind());
+        assertEquals(java.util.List.of(4L, 5L), window.takeResends());
+        assertTrue(window.takeResends().isEmpty());
+
+        window.requestResend(4, 1);
+        window.requestResend(7, Integer.MAX_VALUE);
+        window.requestRewind(5);
+        assertEquals(5, window.takeRewind());
+        assertEquals(java.util.List.of(4L), window.takeResends(), "the rewind sends the rest again anyway");
+    }
+
+    @Test
+    void senderSkipsOnceEveryReceiverHasTheContent() throws Exception {
+        CreditRelay<String> relay = new CreditRelay<>("origin", java.util.List.of("a", "b"));
+        assertNull(relay.have("a"), "b has not answered yet");
+        relay.have("a");
+        assertFalse(relay.everyoneHasIt());
+        assertEquals(new CreditRelay.Grant(0, 8), relay.update("b", 0, 8));
+        relay.have("b");
+        assertTrue(relay.everyoneHasIt());
+
+        CreditWindow window = new CreditWindow(1024, 5_000, 5_000);
+        window.skip();
+        assertEquals(-1, window.awaitStart());
+    }
+
+    @Test
+    void chunksGoOnlyToReceiversThatAcceptedAndLateJoinersAreBackfilled() {
+        CreditRelay<String> relay = new CreditRelay<>("origin", java.util.List.of("a", "b", "c"));
+        assertNull(relay.decline("c"));
+        assertNull(relay.update("a", 0, 8), "b has not answered yet");
+        assertEquals(new CreditRelay.Grant(0, 8), relay.release());
+        assertEquals(java.util.List.of("a"), relay.recipientsFor(0));
+
+        relay.update("a", 40, 8);
+        relay.update("b", 0, 8);
+        assertEquals(java.util.Set.of("a", "b"), new java.util.HashSet<>(relay.recipientsFor(41)), "b joins at the next frame");
+        assertEquals(java.util.List.of("b"), relay.recipientsFor(5), "resent start only goes to the late joiner");
+        assertFalse(relay.nobodyNeedsIt());
+
+        CreditRelay<String> unwanted = new CreditRelay<>("origin", java.util.List.of("a", "b"));
+        unwanted.decline("a");
+        unwanted.decline("a");
+        assertFalse(unwanted.nobodyNeedsIt(), "a repeated answer does not speak for b");
+        unwanted.have("b");
+        assertTrue(unwanted.nobodyNeedsIt());
+        assertFalse(unwanted.everyoneHasIt());
+        assertTrue(new CreditRelay<String>("origin", java.util.List.of("a")).expire(), "nobody answered in time");
+    }
+
+    @Test
+    void compressionIsAcceptedOnlyWhenEveryReceiverAcceptsIt() {
+        CreditRelay<String> relay = new CreditRelay<>("origin", java.util.List.of("a", "b"));
+        assertNull(relay.update("a", 0, 8, true));
+        assertFalse(relay.update("b", 0, 8, false).deflate());
+        assertTrue(relay.update("b", 0, 8, true).deflate());
+
+        CreditWindow window = new CreditWindow(1024, 5_000, 5_000);
+        window.grant(0, 8, true, System.nanoTime());
+        window.grant(2, 8, false, System.nanoTime());
+        assertTrue(window.deflateAccepted(), "settled by the first grant");
+    }
+
+    @Test
+    void framesGrowWithTheMeasuredRateOnlyWhenReceiversAcceptBatches() {
+        int chunk = FileTransferProtocol.CHUNK_SIZE;
+        CreditWindow window = new CreditWindow(chunk, 5_000, 5_000);
+        long now = 1_000_000_000L;
+        window.grant(0, 256, false, true, now);
+        assertEquals(1, window.blocksPerFrame(), "nothing measured yet");
+        // 8 chunks acked every millisecond is about 500 MB/s, so a 5 ms frame would be far above the cap
+        for (int seq = 0; seq < 64; seq += 8) {
+            window.onSent(seq, seq + 7, now);
+            now += 1_000_000;
+            window.grant(seq + 8, 256, false, true, now);
+        }
+        int blocks = window.blocksPerFrame();
+        assertTrue(blocks > 1 && blocks <= window.tunedWindow() / 4, "blocks " + blocks);
+
+        window.grant(64, 256, false, false, now);
+        assertEquals(1, window.blocksPerFrame(), "a receiver without batch support joined");
+    }
+
+    @Test
+    void deltasAreAcceptedOnlyWhileEveryReceiverSignedTheSameCopy() {
+        CreditRelay<String> relay = new CreditRelay<>("origin", java.util.List.of("a", "b"));
+        assertTrue(relay.signature("a", "old"), "the first signature goes to the origin");
+        assertFalse(relay.signature("b", "other"));
+        assertNull(relay.update("a", 0, 8, false, true, true));
+        assertFalse(relay.update("b", 0, 8, false, true, true).delta(), "b holds a different copy");
+
+        relay.signature("b", "old");
+        assertTrue(relay.update("b", 0, 8, false, true, true).delta());
+        assertFalse(relay.update("c", 0, 8, false, true, false).delta(), "a receiver without the copy joined");
+        assertTrue(relay.remove("c").delta());
+
+        CreditWindow window = new CreditWindow(1024, 5_000, 5_000);
+        window.grant(0, 8, false, true, true, System.nanoTime());
+        assertTrue(window.deltaAccepted());
+        window.grant(2, 8, false, true, false, System.nanoTime());
+        assertFalse(window.deltaAccepted(), "follows the latest grant");
+    }
+}
@@ -0,0 +1,55 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeltaCodecTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void editedFileIsRebuiltFromTheOlderCopyAndAFewLiterals() throws Exception {
+        int chunk = FileTransferProtocol.CHUNK_SIZE;
+        byte[] older = new byte[chunk * 3];
+        new Random(5).nextBytes(older);
+        // The new version has 100 bytes inserted near the start, which shifts everything after, and a run overwritten
+        byte[] newer = new byte[older.length + 100];
+        System.arraycopy(older, 0, newer, 0, 1000);
+        System.arraycopy(older, 1000, newer, 1100, older.length - 1000);
+        Arrays.fill(newer, 1000, 1100, (byte) 1);
+        Arrays.fill(newer, 40_000, 41_000, (byte) 7);
+        Path basis = Files.write(dir.resolve("report.bin"), older);
+
+        DeltaCodec.Signature signature = DeltaCodec.sign(basis);
+        String sigFrame = FileTransferProtocol.buildSignature("ab".repeat(32), signature);
+        DeltaCodec.Index index = new DeltaCodec.Index(FileTransferProtocol.parseSignature(sigFrame).signature());
+        byte[] data = Arrays.copyOf(newer, chunk);
+        byte[] script = index.encode(data);
+
+        assertNotNull(script);
+        assertTrue(script.length < data.length / 4, "script " + script.length);
+        byte[] leaf = MerkleTree.leafHash(data);
+        String frame = FileTransferProtocol.buildDeltaChunk("ab".repeat(32), 0, script, List.of(leaf));
+        assertThrows(IllegalArgumentException.class, () -> FileTransferProtocol.parseChunks(frame));
+        try (DeltaCodec.Basis copy = new DeltaCodec.Basis(basis, signature.blockSize())) {
+            assertArrayEquals(data, FileTransferProtocol.parseChunks(frame, copy).get(0).data());
+        }
+    }
+
+    @Test
+    void unrelatedDataIsNotEncoded() throws Exception {
+        byte[] older = new byte[FileTransferProtocol.CHUNK_SIZE];
+        new Random(1).nextBytes(older);
+        byte[] newer = new byte[FileTransferProtocol.CHUNK_SIZE];
+        new Random(2).nextBytes(newer);
+        DeltaCodec.Index index = new DeltaCodec.Index(DeltaCodec.sign(Files.write(dir.resolve("a.bin"), older)));
+        assertNull(index.encode(newer));
+    }
+}
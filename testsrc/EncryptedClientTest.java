@@ -0,0 +1,20 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EncryptedClientTest {
+
+    @Test
+    void storedOffersAreAskedAboutUnlessAcceptedBefore() {
+        String id = "ab".repeat(32);
+        FileTransferProtocol.Header live = FileTransferProtocol.Header.builder("a.bin", 10, id).build();
+        FileTransferProtocol.Header stored = FileTransferProtocol.Header.builder("a.bin", 10, id).stored(true).build();
+
+        assertTrue(EncryptedClient.acceptsWithoutAsking(live, false, false));
+        assertFalse(EncryptedClient.acceptsWithoutAsking(live, true, false));
+        assertFalse(EncryptedClient.acceptsWithoutAsking(stored, true, false), "ask before receiving covers the store too");
+        assertFalse(EncryptedClient.acceptsWithoutAsking(stored, false, false), "stored files are fetched only when asked for");
+        assertTrue(EncryptedClient.acceptsWithoutAsking(stored, true, true), "re-offered after a reconnect");
+        assertTrue(EncryptedClient.acceptsWithoutAsking(live, true, true));
+    }
+}
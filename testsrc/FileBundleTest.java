@@ -0,0 +1,182 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileBundleTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void folderArrivesIntactAcrossAnInterruption() throws Exception {
+        Path folder = Files.createDirectories(dir.resolve("photos"));
+        Random random = new Random(11);
+        for (int i = 0; i < 200; i++) {
+            Files.writeString(Files.createDirectories(folder.resolve("small/" + (i % 7))).resolve(i + ".txt"), "note " + i);
+        }
+        byte[] large = new byte[FileTransferProtocol.CHUNK_SIZE * 3 + 17];
+        random.nextBytes(large);
+        Files.write(folder.resolve("large.bin"), large);
+        Files.createFile(folder.resolve("empty.txt"));
+        Files.createDirectories(folder.resolve("nothing/here"));
+
+        FileBundle bundle = FileBundle.of(List.of(folder));
+        assertEquals("photos", bundle.name());
+        assertEquals(202, bundle.fileCount());
+        assertTrue(bundle.size() < 200 * FileTransferProtocol.CHUNK_SIZE, "small files share chunks");
+
+        FileTransferProtocol.Header header = FileTransferProtocol.parseHeader(FileTransferProtocol.buildHeader(
+                FileTransferProtocol.Header.builder(bundle.name(), bundle.size(), bundle.transferId()).bundle(true).build()));
+        assertTrue(header.bundle());
+        List<FileTransferProtocol.Chunk> chunks;
+        String sha;
+        String root;
+        try (FileChunkReader reader = new FileChunkReader(bundle::open, bundle.size())) {
+            chunks = new ArrayList<>();
+            int read;
+            while ((read = reader.next()) > 0) {
+                byte[] data = Arrays.copyOf(reader.buffer(), read);
+                chunks.add(new FileTransferProtocol.Chunk(header.hash(), reader.sequence(), data, reader.leafHash()));
+            }
+            String eof = reader.eofFrame(header.hash());
+            sha = FileTransferProtocol.parseEof(eof).sha256();
+            root = FileTransferProtocol.parseEof(eof).merkleRoot();
+        }
+        assertTrue(chunks.size() > 3);
+
+        Path downloads = Files.createDirectories(dir.resolve("downloads"));
+        IncomingFileTransfer first = IncomingFileTransfer.open(downloads, header, null);
+        assertTrue(first.isBundle());
+        for (int seq = 0; seq < 3; seq++) {
+            assertEquals(IncomingFileTransfer.ChunkResult.WRITTEN, first.appendChunk(chunks.get(seq)));
+        }
+        first.suspend("Connection closed");
+
+        IncomingFileTransfer resumed = IncomingFileTransfer.open(downloads, header, null);
+        assertEquals(3, resumed.nextSequence());
+        for (int seq = 3; seq < chunks.size(); seq++) {
+            assertEquals(IncomingFileTransfer.ChunkResult.WRITTEN, resumed.appendChunk(chunks.get(seq)));
+        }
+        Path saved = resumed.complete(downloads.resolve("photos"), sha, root);
+
+        assertArrayEquals(large, Files.readAllBytes(saved.resolve("large.bin")));
+        assertEquals("note 123", Files.readString(saved.resolve("small/4/123.txt")));
+        assertEquals(0, Files.size(saved.resolve("empty.txt")));
+        assertTrue(Files.isDirectory(saved.resolve("nothing/here")));
+        try (var leftovers = Files.list(downloads)) {
+            assertEquals(1, leftovers.count(), "staging files are cleaned up");
+        }
+    }
+
+    @Test
+    void stripedBundleChunksThatOvertakeEachOtherAreKeptUntilTheGapFills() throws Exception {
+        Path folder = Files.createDirectories(dir.resolve("striped"));
+        byte[] data = new byte[FileTransferProtocol.CHUNK_SIZE * 9 + 3];
+        new Random(21).nextBytes(data);
+        Files.write(folder.resolve("a.bin"), data);
+        Files.writeString(folder.resolve("b.txt"), "after");
+        FileBundle bundle = FileBundle.of(List.of(folder));
+        FileTransferProtocol.Header header = FileTransferProtocol.parseHeader(FileTransferProtocol.buildHeader(
+                FileTransferProtocol.Header.builder(bundle.name(), bundle.size(), bundle.transferId()).bundle(true).build()));
+        List<FileTransferProtocol.Chunk> chunks = new ArrayList<>();
+        String sha;
+        String root;
+        try (FileChunkReader reader = new FileChunkReader(bundle::open, bundle.size())) {
+            int read;
+            while ((read = reader.next()) > 0) {
+                chunks.add(new FileTransferProtocol.Chunk(header.hash(), reader.sequence(),
+                        Arrays.copyOf(reader.buffer(), read), reader.leafHash()));
+            }
+            FileTransferProtocol.Eof eof = FileTransferProtocol.parseEof(reader.eofFrame(header.hash()));
+            sha = eof.sha256();
+            root = eof.merkleRoot();
+        }
+
+        Path downloads = Files.createDirectories(dir.resolve("downloads"));
+        IncomingFileTransfer transfer = IncomingFileTransfer.open(downloads, header, null);
+        // Two connections taking turns: each odd chunk overtakes the even one before it
+        for (int seq = 0; seq < chunks.size(); seq += 2) {
+            if (seq + 1 < chunks.size()) {
+                assertEquals(IncomingFileTransfer.ChunkResult.GAP, transfer.appendChunk(chunks.get(seq + 1)));
+                assertFalse(transfer.claimGapResend(48), "one chunk ahead is reordering, not loss");
+            }
+            assertEquals(IncomingFileTransfer.ChunkResult.WRITTEN, transfer.appendChunk(chunks.get(seq)));
+        }
+        assertTrue(transfer.hasAllBytes());
+        Path saved = transfer.complete(downloads.resolve("striped"), sha, root);
+
+        assertArrayEquals(data, Files.readAllBytes(saved.resolve("a.bin")));
+        assertEquals("after", Files.readString(saved.resolve("b.txt")));
+    }
+
+    @Test
+    void extractionResumesInsideAFile() throws Exception {
+        Path folder = Files.createDirectories(dir.resolve("big"));
+        byte[] data = new byte[FileTransferProtocol.CHUNK_SIZE * 20];
+        new Random(5).nextBytes(data);
+        Files.write(folder.resolve("a.bin"), data);
+        Files.writeString(folder.resolve("b.txt"), "tail");
+        FileBundle bundle = FileBundle.of(List.of(folder));
+        byte[] stream;
+        try (InputStream in = bundle.open()) {
+            stream = in.readAllBytes();
+        }
+        assertEquals(bundle.size(), stream.length);
+
+        Path staging = dir.resolve("staging");
+        Path manifest = dir.resolve("staging.manifest");
+        BundleExtractor first = new BundleExtractor(staging, manifest, stream.length);
+        first.reset();
+        first.write(stream, 0, FileTransferProtocol.CHUNK_SIZE * 18 + 100);
+        first.close();
+
+        long offset = FileTransferProtocol.CHUNK_SIZE * 16L;
+        BundleExtractor second = new BundleExtractor(staging, manifest, stream.length);
+        try (InputStream prefix = second.resume(offset)) {
+            assertArrayEquals(Arrays.copyOf(stream, (int) offset), prefix.readAllBytes());
+        }
+        second.write(stream, (int) offset, stream.length - (int) offset);
+        second.finish();
+
+        assertArrayEquals(data, Files.readAllBytes(staging.resolve("a.bin")));
+        assertEquals("tail", Files.readString(staging.resolve("b.txt")));
+        assertFalse(Files.exists(manifest));
+    }
+
+    @Test
+    void pathsOutsideTheBundleAreRejected() throws Exception {
+        for (String path : List.of("../evil.txt", "/etc/evil.txt", "a/../../evil.txt", "a//b.txt")) {
+            byte[] stream = craft(path, "bad".getBytes(StandardCharsets.UTF_8));
+            Path staging = dir.resolve("staging");
+            BundleExtractor extractor = new BundleExtractor(staging, dir.resolve("staging.manifest"), stream.length);
+            extractor.reset();
+            assertThrows(IOException.class, () -> extractor.write(stream, 0, stream.length), path);
+            extractor.discard();
+        }
+        assertFalse(Files.exists(dir.resolve("evil.txt")));
+    }
+
+    private static byte[] craft(String path, byte[] content) throws IOException {
+        byte[] manifest = (FileBundle.MAGIC + "\nF\t" + content.length + "\t" + path + "\n").getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(manifest.length);
+            out.write(manifest);
+            out.write(content);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -42,4 +42,103 @@ class FileTransferProtocolTest {
             Files.deleteIfExists(temp);
         }
     }
+
+    @Test
+    void eofCarriesStreamedHashAndToleratesLegacyFrames() {
+        String id = FileTransferProtocol.transferId("a.txt", 3, 42);
+        String sha = "ab".repeat(32);
+        String root = "cd".repeat(32);
+        FileTransferProtocol.Eof eof = FileTransferProtocol.parseEof(FileTransferProtocol.buildEof(id, sha, root));
+        assertEquals(new FileTransferProtocol.Eof(id, sha, root), eof);
+        assertNull(FileTransferProtocol.parseEof(FileTransferProtocol.EOF_PREFIX + id).sha256());
+        assertNull(FileTransferProtocol.parseEof(FileTransferProtocol.EOF_PREFIX + id + "|" + sha).merkleRoot());
+        assertEquals(id, FileTransferProtocol.transferId("a.txt", 3, 42), "same file, same id");
+    }
+
+    @Test
+    void headerCarriesOptionalContentHash() {
+        String id = "ab".repeat(32);
+        String sha = "cd".repeat(32);
+        assertEquals(sha, FileTransferProtocol.parseHeader(FileTransferProtocol.buildHeader(
+                FileTransferProtocol.Header.builder("a.txt", 3, id).contentHash(sha).build())).contentHash());
+        assertNull(FileTransferProtocol.parseHeader(FileTransferProtocol.buildHeader(
+                FileTransferProtocol.Header.builder("a.txt", 3, id).build())).contentHash());
+        assertEquals(id, FileTransferProtocol.parseHave(FileTransferProtocol.buildHave(id)));
+    }
+
+    @Test
+    void deflateIsNegotiatedAndOversizedChunksAreRejected() {
+        String id = "ab".repeat(32);
+        FileTransferProtocol.Header header = FileTransferProtocol.parseHeader(FileTransferProtocol.buildHeader(
+                FileTransferProtocol.Header.builder("a.txt", 3, id).deflate(true).build()));
+        assertTrue(header.deflate());
+        assertNull(header.contentHash());
+        assertTrue(FileTransferProtocol.parseAck(FileTransferProtocol.buildAck(
+                FileTransferProtocol.Ack.builder(id, 0, 8).deflate(true).build())).deflate());
+        assertFalse(FileTransferProtocol.parseAck(FileTransferProtocol.buildAck(
+                FileTransferProtocol.Ack.builder(id, 0, 8).build())).deflate());
+
+        byte[] bomb = new byte[FileTransferProtocol.CHUNK_SIZE + 1];
+        java.util.zip.Deflater deflater = new java.util.zip.Deflater();
+        deflater.setInput(bomb);
+        deflater.finish();
+        byte[] out = new byte[1024];
+        int length = deflater.deflate(out);
+        deflater.end();
+        String frame = FileTransferProtocol.buildDeflatedChunk(id, 0, out, length, MerkleTree.leafHash(bomb));
+        assertThrows(IllegalArgumentException.class, () -> FileTransferProtocol.parseChunk(frame));
+    }
+
+    @Test
+    void batchSupportIsGrantedAlongsideDeflate() {
+        String id = "cd".repeat(32);
+        FileTransferProtocol.Ack both = FileTransferProtocol.parseAck(FileTransferProtocol.buildAck(
+                FileTransferProtocol.Ack.builder(id, 3, 64).deflate(true).batch(true).build()));
+        assertTrue(both.deflate());
+        assertTrue(both.batch());
+        FileTransferProtocol.Ack legacy = FileTransferProtocol.parseAck(FileTransferProtocol.buildAck(
+                FileTransferProtocol.Ack.builder(id, 3, 64).deflate(true).build()));
+        assertTrue(legacy.deflate());
+        assertFalse(legacy.batch());
+
+        byte[] short1 = new byte[10];
+        String frame = FileTransferProtocol.buildBatchChunk(id, 0, short1, short1.length,
+                java.util.List.of(MerkleTree.leafHash(short1), MerkleTree.leafHash(short1)), false);
+        assertThrows(IllegalArgumentException.class, () -> FileTransferProtocol.parseChunks(frame),
+                "two blocks cannot fit in fewer bytes than one full block");
+    }
+
+    @Test
+    void relayReadsChunkRangesWithoutDecodingAndOffersCanBeDeclined() {
+        String id = "ef".repeat(32);
+        byte[] data = new byte[FileTransferProtocol.CHUNK_SIZE + 5];
+        byte[] leaf = MerkleTree.leafHash(data);
+        String batch = FileTransferProtocol.buildBatchChunk(id, 7, data, data.length, java.util.List.of(leaf, leaf), true);
+        assertEquals(new FileTransferProtocol.ChunkRange(id, 7, 8), FileTransferProtocol.parseChunkRange(batch));
+        String single = FileTransferProtocol.buildChunk(id, 3, new byte[3], 3);
+        assertEquals(new FileTransferProtocol.ChunkRange(id, 3, 3), FileTransferProtocol.parseChunkRange(single));
+
+        String decline = FileTransferProtocol.buildDecline(id);
+        assertTrue(FileTransferProtocol.isDecline(decline));
+        assertFalse(FileTransferProtocol.isFileMessage(decline));
+        assertEquals(id, FileTransferProtocol.parseDecline(decline));
+        assertEquals(FrameScheduler.Lane.CONTROL, FrameScheduler.classify(decline));
+    }
+
+    @Test
+    void idsThatAreNotHexAreRefusedInEveryFrame() {
+        String escape = "/../../../../../tmp/escape".concat("a".repeat(38));
+        assertEquals(64, escape.length());
+        assertThrows(IllegalArgumentException.class, () -> FileTransferProtocol.parseHeader(FileTransferProtocol.buildHeader(
+                FileTransferProtocol.Header.builder("a.txt", 3, escape).build())));
+        assertThrows(IllegalArgumentException.class, () -> FileTransferProtocol.chunkTransferId(FileTransferProtocol.buildChunk(escape, 0, new byte[3], 3)));
+        assertThrows(IllegalArgumentException.class, () -> FileTransferProtocol.parseChunk(FileTransferProtocol.buildChunk(escape, 0, new byte[3], 3)));
+        assertThrows(IllegalArgumentException.class, () -> FileTransferProtocol.parseEof(FileTransferProtocol.EOF_PREFIX + escape));
+        assertThrows(IllegalArgumentException.class, () -> FileTransferProtocol.parseAck(FileTransferProtocol.buildAck(
+                FileTransferProtocol.Ack.builder(escape, 0, 1).build())));
+        assertThrows(IllegalArgumentException.class, () -> FileTransferProtocol.parseNack(FileTransferProtocol.buildNack(escape, 0)));
+        assertThrows(IllegalArgumentException.class, () -> FileTransferProtocol.parseHave(FileTransferProtocol.buildHave(escape)));
+        assertThrows(IllegalArgumentException.class, () -> FileTransferProtocol.parseDecline(FileTransferProtocol.buildDecline(escape)));
+        assertEquals("ab".repeat(32), FileTransferProtocol.parseHave(FileTransferProtocol.buildHave("AB".repeat(32))));
+    }
 }
@@ -0,0 +1,170 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameSchedulerTest {
+
+    @Test
+    void controlAndChatOvertakeQueuedBulkFrames() throws InterruptedException {
+        List<String> written = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(6);
+        FrameScheduler scheduler = new FrameScheduler("test-writer", frame -> {
+            synchronized (written) {
+                written.add(frame);
+            }
+            done.countDown();
+        }, 16, true);
+
+        scheduler.enqueue(FrameScheduler.Lane.BULK, "a", "a1");
+        scheduler.enqueue(FrameScheduler.Lane.BULK, "a", "a2");
+        scheduler.enqueue(FrameScheduler.Lane.BULK, "b", "b1");
+        scheduler.enqueue(FrameScheduler.Lane.BULK, "b", "b2");
+        scheduler.submit("hello");
+        scheduler.submit(FileTransferProtocol.PONG);
+        scheduler.setPaused(false);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        scheduler.close();
+        assertEquals(List.of(FileTransferProtocol.PONG, "hello", "a1", "b1", "a2", "b2"), written);
+    }
+
+    @Test
+    void bulkStreamsShareTheLinkByBytesNotFrames() throws InterruptedException {
+        List<String> written = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(36);
+        FrameScheduler scheduler = new FrameScheduler("test-writer", frame -> {
+            synchronized (written) {
+                written.add(frame);
+            }
+            done.countDown();
+        }, 64, true);
+
+        String big = "b".repeat(FrameScheduler.BULK_QUANTUM * 8);
+        String small = "s".repeat(FrameScheduler.BULK_QUANTUM);
+        for (int i = 0; i < 4; i++) {
+            scheduler.enqueue(FrameScheduler.Lane.BULK, "batched", big);
+        }
+        for (int i = 0; i < 32; i++) {
+            scheduler.enqueue(FrameScheduler.Lane.BULK, "single", small);
+        }
+        scheduler.setPaused(false);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        scheduler.close();
+        int smallSeen = 0;
+        int bigSeen = 0;
+        for (String frame : written) {
+            if (frame.startsWith("s") && ++smallSeen == 16) {
+                break;
+            }
+            bigSeen += frame.startsWith("b") ? 1 : 0;
+        }
+        assertEquals(2, bigSeen, "one large frame per eight small ones keeps the byte shares equal");
+    }
+
+    @Test
+    void failedWriteIsRetriedAfterResume() throws InterruptedException {
+        List<String> written = new ArrayList<>();
+        CountDownLatch delivered = new CountDownLatch(1);
+        boolean[] fail = {true};
+        FrameScheduler scheduler = new FrameScheduler("test-writer", frame -> {
+            if (fail[0]) {
+                fail[0] = false;
+                throw new java.io.IOException("link down");
+            }
+            written.add(frame);
+            delivered.countDown();
+        }, 4, false);
+
+        scheduler.submit("message");
+        Thread.sleep(200);
+        assertTrue(written.isEmpty(), "scheduler must pause after a failed write");
+        scheduler.setPaused(false);
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        scheduler.close();
+        assertEquals(List.of("message"), written);
+    }
+
+    @Test
+    void chatSenderIsToldWhenItsMessageWentOrWasDropped() throws InterruptedException {
+        List<String> outcomes = new java.util.concurrent.CopyOnWriteArrayList<>();
+        CountDownLatch sent = new CountDownLatch(1);
+        boolean[] fail = {true};
+        FrameScheduler scheduler = new FrameScheduler("test-writer", frame -> {
+            if (fail[0]) {
+                fail[0] = false;
+                throw new java.io.IOException("link down");
+            }
+        }, 4, false);
+
+        assertTrue(scheduler.submitChat("first", written -> {
+            outcomes.add("first " + written);
+            sent.countDown();
+        }));
+        Thread.sleep(200);
+        assertTrue(outcomes.isEmpty(), "a failed write keeps the message queued for the resumed connection");
+        scheduler.setPaused(false);
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+
+        scheduler.setPaused(true);
+        scheduler.submitChat("second", written -> outcomes.add("second " + written));
+        scheduler.close();
+        assertEquals(List.of("first true", "second false"), outcomes);
+        assertFalse(scheduler.submitChat("third", written -> outcomes.add("third " + written)));
+    }
+
+    @Test
+    void frameTheSinkCannotSendIsReportedAndTheRestStillGo() throws InterruptedException {
+        List<String> outcomes = new java.util.concurrent.CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(2);
+        FrameScheduler scheduler = new FrameScheduler("test-writer", frame -> {
+            if (frame.equals("poison")) {
+                throw new FrameScheduler.UnsendableFrameException("cannot encrypt",
+                        new java.security.GeneralSecurityException("bad"));
+            }
+        }, 4, true);
+
+        scheduler.submitChat("poison", written -> {
+            outcomes.add("poison " + written);
+            done.countDown();
+        });
+        scheduler.submitChat("next", written -> {
+            outcomes.add("next " + written);
+            done.countDown();
+        });
+        scheduler.setPaused(false);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS), "a refused frame must not pause the scheduler");
+        scheduler.close();
+        assertEquals(List.of("poison false", "next true"), outcomes);
+    }
+
+    @Test
+    void offerRefusesBulkFramesWhenTheLaneIsFullInsteadOfWaiting() {
+        FrameScheduler scheduler = new FrameScheduler("test-writer", frame -> { }, 2, true);
+        String chunk = FileTransferProtocol.buildChunk("ab".repeat(32), 0, new byte[8], 8);
+        assertTrue(scheduler.offer(chunk));
+        assertTrue(scheduler.offer(chunk));
+        assertFalse(scheduler.offer(chunk), "lane is full");
+        assertTrue(scheduler.offer(FileTransferProtocol.PONG), "control frames always have room");
+        scheduler.close();
+        assertFalse(scheduler.offer(FileTransferProtocol.PONG));
+    }
+
+    @Test
+    void classifiesFramesByPrefix() {
+        assertEquals(FrameScheduler.Lane.CONTROL, FrameScheduler.classify(FileTransferProtocol.PING));
+        assertEquals(FrameScheduler.Lane.CHAT, FrameScheduler.classify("just text"));
+        String hash = "ab".repeat(32);
+        assertEquals(FrameScheduler.Lane.BULK, FrameScheduler.classify(FileTransferProtocol.buildEof(hash, hash, hash)));
+        assertEquals(hash, FrameScheduler.streamIdOf(FileTransferProtocol.buildEof(hash, "cd".repeat(32), "ef".repeat(32))));
+        assertEquals(hash, FrameScheduler.streamIdOf(FileTransferProtocol.buildHeader(
+                FileTransferProtocol.Header.builder("x.bin", 3, hash).build())));
+        assertEquals(hash, FrameScheduler.streamIdOf(FileTransferProtocol.buildChunk(hash, 0, new byte[3], 3)));
+    }
+}
@@ -0,0 +1,131 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistorySegmentsTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void keptHistoryIsEncryptedAndReadBackAfterReopening() throws Exception {
+        Path dir = root.resolve("conversation");
+        int total = 3 * HistorySegments.SEGMENT_MESSAGES + 10;
+        try (ChatHistory history = ChatHistory.open(dir, "secret".toCharArray())) {
+            for (int i = 0; i < total; i++) {
+                history.append(i, "peer", "plaintext marker " + i);
+            }
+            try (ChatHistory second = ChatHistory.open(dir, "secret".toCharArray())) {
+                assertEquals(0, second.size(), "a history open in another window is not shared");
+            }
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                assertFalse(new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1).contains("marker"), file.toString());
+            }
+        }
+
+        try (ChatHistory history = ChatHistory.open(dir, "secret".toCharArray())) {
+            assertEquals(total, history.size());
+            List<ChatHistory.Message> span = history.read(HistorySegments.SEGMENT_MESSAGES - 5, 20);
+            assertEquals(20, span.size());
+            assertEquals(HistorySegments.SEGMENT_MESSAGES - 5, span.get(0).id());
+            assertEquals("plaintext marker " + (HistorySegments.SEGMENT_MESSAGES + 14), span.get(19).text());
+            assertEquals("plaintext marker " + (total - 1), history.read(total - 1, 1).get(0).text());
+            assertEquals(total, history.append(total, "me", "next").id());
+        }
+
+        try (ChatHistory wrong = ChatHistory.open(dir, "guess".toCharArray())) {
+            assertEquals(0, wrong.size(), "a wrong password opens a temporary history instead");
+        }
+    }
+
+    @Test
+    void tailCutShortByACrashKeepsEveryCompleteMessage() throws Exception {
+        Path dir = root.resolve("conversation");
+        try (ChatHistory history = ChatHistory.open(dir, "secret".toCharArray())) {
+            for (int i = 0; i < 5; i++) {
+                history.append(i, "peer", "message " + i);
+            }
+        }
+        Path tail = dir.resolve("tail.bin");
+        byte[] stored = Files.readAllBytes(tail);
+        Files.write(tail, Arrays.copyOf(stored, stored.length - 3));
+
+        try (ChatHistory history = ChatHistory.open(dir, "secret".toCharArray())) {
+            assertEquals(4, history.size());
+            assertEquals("message 4", history.append(4, "peer", "message 4").text());
+            assertEquals(5, history.read(0, 10).size());
+        }
+    }
+
+    @Test
+    void fullTailLeftByACrashBeforeItsSegmentWasMovedIsSealedOnOpening() throws Exception {
+        Path dir = root.resolve("conversation");
+        int full = HistorySegments.SEGMENT_MESSAGES;
+        try (ChatHistory history = ChatHistory.open(dir, "secret".toCharArray())) {
+            // The segment cannot be moved into place, as if the app stopped right after the last tail entry
+            Path blocker = Files.createDirectories(dir.resolve("segment-00000000.bin").resolve("blocker"));
+            for (int i = 0; i < full; i++) {
+                history.append(i, "peer", "message " + i);
+            }
+            Files.delete(blocker);
+            Files.delete(blocker.getParent());
+        }
+
+        try (ChatHistory history = ChatHistory.open(dir, "secret".toCharArray())) {
+            assertEquals(full, history.size());
+            assertEquals(full, history.append(full, "peer", "after").id());
+            assertEquals("after", history.read(full, 1).get(0).text());
+        }
+        try (ChatHistory history = ChatHistory.open(dir, "secret".toCharArray())) {
+            assertEquals(full + 1, history.size());
+            List<ChatHistory.Message> all = history.read(0, full + 1);
+            assertEquals(full + 1, all.size());
+            assertEquals("message " + (full - 1), all.get(full - 1).text());
+            assertEquals("after", all.get(full).text());
+        }
+    }
+
+    @Test
+    void sealedSegmentsOnlyOpenInTheirOwnPlace() throws Exception {
+        Path dir = root.resolve("conversation");
+        int full = HistorySegments.SEGMENT_MESSAGES;
+        try (ChatHistory history = ChatHistory.open(dir, "secret".toCharArray())) {
+            for (int i = 0; i < 2 * full; i++) {
+                history.append(i, "peer", "message " + i);
+            }
+        }
+        Files.copy(dir.resolve("segment-00000000.bin"), dir.resolve("segment-00000001.bin"),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+
+        try (ChatHistory history = ChatHistory.open(dir, "secret".toCharArray())) {
+            assertEquals("message 0", history.read(0, 1).get(0).text());
+            assertTrue(history.read(full, 1).isEmpty(), "segment 0 copied over segment 1 must not pass as it");
+        }
+    }
+
+    @Test
+    void searchIndexIsKeptWithTheHistoryAndCaughtUp() throws Exception {
+        Path dir = root.resolve("conversation");
+        try (ChatHistory history = ChatHistory.open(dir, "secret".toCharArray())) {
+            SearchIndex index = history.loadIndex();
+            index.add(history.append(0, "peer", "quarterly report"));
+            history.saveIndex(index);
+            history.append(1, "peer", "report draft"); // recorded, then the app stopped before saving the index
+        }
+        assertFalse(new String(Files.readAllBytes(dir.resolve("index.bin")), StandardCharsets.ISO_8859_1).contains("report"));
+
+        try (ChatHistory history = ChatHistory.open(dir, "secret".toCharArray())) {
+            assertArrayEquals(new int[] {1, 0}, history.loadIndex().search("rep", 10));
+        }
+    }
+}
@@ -0,0 +1,261 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IncomingFileTransferTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void interruptedTransferResumesFromCheckpoint() throws Exception {
+        int chunkSize = FileTransferProtocol.CHUNK_SIZE;
+        byte[] data = new byte[chunkSize * 5 + 123];
+        new Random(7).nextBytes(data);
+        Path source = dir.resolve("source.bin");
+        Files.write(source, data);
+        FileTransferProtocol.Header header = FileTransferProtocol.Header.builder("source.bin", data.length,
+                FileTransferProtocol.transferId("source.bin", data.length, 0)).build();
+        Path downloads = Files.createDirectories(dir.resolve("downloads"));
+
+        IncomingFileTransfer first = IncomingFileTransfer.open(downloads, header, null);
+        assertEquals(IncomingFileTransfer.ChunkResult.WRITTEN, first.appendChunk(chunk(header, data, 0)));
+        assertEquals(IncomingFileTransfer.ChunkResult.WRITTEN, first.appendChunk(chunk(header, data, 1)));
+        first.suspend("Connection closed");
+
+        IncomingFileTransfer resumed = IncomingFileTransfer.open(downloads, header, null);
+        assertEquals(2, resumed.nextSequence());
+        assertEquals(IncomingFileTransfer.ChunkResult.DUPLICATE, resumed.appendChunk(chunk(header, data, 1)));
+        assertEquals(IncomingFileTransfer.ChunkResult.GAP, resumed.appendChunk(chunk(header, data, 3)));
+        MerkleTree tree = new MerkleTree();
+        for (int seq = 0; seq < 6; seq++) {
+            FileTransferProtocol.Chunk chunk = chunk(header, data, seq);
+            tree.addLeaf(chunk.proof());
+            if (seq >= 2) {
+                // Chunk 3 arrived early above and was kept, so its resend is a duplicate
+                assertEquals(seq == 3 ? IncomingFileTransfer.ChunkResult.DUPLICATE : IncomingFileTransfer.ChunkResult.WRITTEN,
+                        resumed.submit(chunk).get());
+            }
+        }
+        Path saved = resumed.complete(downloads.resolve("source.bin"), FileTransferProtocol.computeSha256(source),
+                FileTransferProtocol.toHex(tree.root()));
+
+        assertArrayEquals(data, Files.readAllBytes(saved));
+        try (var leftovers = Files.list(downloads)) {
+            assertEquals(1, leftovers.count(), "part file and checkpoint are cleaned up");
+        }
+    }
+
+    @Test
+    void partialDownloadThatChangedOnDiskIsNotResumed() throws Exception {
+        byte[] data = new byte[FileTransferProtocol.CHUNK_SIZE * 3];
+        new Random(11).nextBytes(data);
+        FileTransferProtocol.Header header = FileTransferProtocol.Header.builder("x.bin", data.length,
+                FileTransferProtocol.transferId("x.bin", data.length, 0)).build();
+        Path downloads = Files.createDirectories(dir.resolve("downloads"));
+        IncomingFileTransfer first = IncomingFileTransfer.open(downloads, header, null);
+        first.appendChunk(chunk(header, data, 0));
+        first.appendChunk(chunk(header, data, 1));
+        first.suspend("Connection closed");
+
+        Path part = downloads.resolve("." + header.hash() + ".part");
+        byte[] kept = Files.readAllBytes(part);
+        kept[FileTransferProtocol.CHUNK_SIZE + 5] ^= 1;
+        Files.write(part, kept);
+        assertEquals(0, IncomingFileTransfer.open(downloads, header, null).nextSequence(),
+                "a prefix that no longer hashes to the verified chunks is received again");
+    }
+
+    @Test
+    void transferIdCannotPlaceFilesOutsideTheDownloadDirectory() throws Exception {
+        Path downloads = Files.createDirectories(dir.resolve("downloads"));
+        String escape = "/../escape".concat("a".repeat(54));
+        FileTransferProtocol.Header header = FileTransferProtocol.Header.builder("x.bin", 10, escape).build();
+        assertThrows(java.io.IOException.class, () -> IncomingFileTransfer.open(downloads, header, null));
+        try (var files = Files.list(dir)) {
+            assertEquals(java.util.List.of(downloads), files.toList());
+        }
+    }
+
+    @Test
+    void corruptChunkIsRejectedAndNotWritten() throws Exception {
+        byte[] data = new byte[1000];
+        new Random(3).nextBytes(data);
+        FileTransferProtocol.Header header = FileTransferProtocol.Header.builder("x.bin", data.length,
+                FileTransferProtocol.transferId("x.bin", data.length, 0)).build();
+        IncomingFileTransfer transfer = IncomingFileTransfer.open(dir, header, null);
+        byte[] damaged = data.clone();
+        damaged[10] ^= 1;
+
+        FileTransferProtocol.Chunk bad = new FileTransferProtocol.Chunk(header.hash(), 0, damaged, MerkleTree.leafHash(data));
+        assertEquals(IncomingFileTransfer.ChunkResult.CORRUPT, transfer.submit(bad).get());
+        assertTrue(transfer.claimResendRequest());
+        assertFalse(transfer.claimResendRequest(), "one resend request per missing chunk");
+        assertEquals(IncomingFileTransfer.ChunkResult.WRITTEN, transfer.submit(chunk(header, data, 0)).get());
+        assertTrue(transfer.hasAllBytes());
+    }
+
+    @Test
+    void onlyChunksThatFailTheirProofAreAskedForAgain() throws Exception {
+        byte[] data = new byte[FileTransferProtocol.CHUNK_SIZE * 6];
+        new Random(6).nextBytes(data);
+        Path source = Files.write(dir.resolve("selective.bin"), data);
+        MerkleTree.Proofs proofs = FileChunkReader.proofs(() -> Files.newInputStream(source), data.length);
+        FileTransferProtocol.Header header = FileTransferProtocol.parseHeader(FileTransferProtocol.buildHeader(
+                FileTransferProtocol.Header.builder("selective.bin", data.length, FileTransferProtocol.transferId("selective.bin", data.length, 0))
+                        .merkleRoot(FileTransferProtocol.toHex(proofs.root()))
+                        .build()));
+        IncomingFileTransfer transfer = IncomingFileTransfer.open(Files.createDirectories(dir.resolve("downloads")), header, null);
+
+        for (int seq = 0; seq < 6; seq++) {
+            byte[] slice = chunk(header, data, seq).data();
+            if (seq == 1 || seq == 2 || seq == 4) {
+                slice[7] ^= 1;
+            }
+            transfer.submit(new FileTransferProtocol.Chunk(header.hash(), seq, slice, proofs.path(seq))).get();
+        }
+        assertEquals(List.of(new FileTransferProtocol.Nack(header.hash(), 1, 2), new FileTransferProtocol.Nack(header.hash(), 4, 1)),
+                transfer.claimDamagedResends());
+        assertEquals(List.of(), transfer.claimDamagedResends(), "asked for once until the retry interval passes");
+        for (int seq : new int[] {1, 2, 4}) {
+            transfer.submit(new FileTransferProtocol.Chunk(header.hash(), seq, chunk(header, data, seq).data(), proofs.path(seq))).get();
+        }
+        assertTrue(transfer.hasAllBytes(), "chunks 3 and 5 were kept and not sent again");
+    }
+
+    @Test
+    void chunksAreCheckedAgainstTheRootAnnouncedInTheHeader() throws Exception {
+        byte[] data = new byte[FileTransferProtocol.CHUNK_SIZE * 5 + 77];
+        new Random(5).nextBytes(data);
+        Path source = dir.resolve("rooted.bin");
+        Files.write(source, data);
+        MerkleTree.Proofs proofs = FileChunkReader.proofs(() -> Files.newInputStream(source), data.length);
+        FileTransferProtocol.Header header = FileTransferProtocol.parseHeader(FileTransferProtocol.buildHeader(
+                FileTransferProtocol.Header.builder("rooted.bin", data.length, FileTransferProtocol.transferId("rooted.bin", data.length, 0))
+                        .merkleRoot(FileTransferProtocol.toHex(proofs.root()))
+                        .build()));
+        Path downloads = Files.createDirectories(dir.resolve("downloads"));
+        IncomingFileTransfer transfer = IncomingFileTransfer.open(downloads, header, null);
+
+        byte[] forged = java.util.Arrays.copyOfRange(data, 0, FileTransferProtocol.CHUNK_SIZE);
+        forged[0] ^= 1;
+        assertEquals(IncomingFileTransfer.ChunkResult.CORRUPT, transfer.appendChunk(
+                new FileTransferProtocol.Chunk(header.hash(), 0, forged, MerkleTree.leafHash(forged))),
+                "a leaf hash sent along with the data proves nothing");
+        assertEquals(IncomingFileTransfer.ChunkResult.CORRUPT, transfer.appendChunk(
+                new FileTransferProtocol.Chunk(header.hash(), 0, forged, proofs.path(0))));
+        for (int seq : new int[] {3, 0, 1, 5, 2, 4}) {
+            FileTransferProtocol.Chunk chunk = chunk(header, data, seq);
+            transfer.appendChunk(new FileTransferProtocol.Chunk(header.hash(), seq, chunk.data(), proofs.path(seq)));
+        }
+        assertTrue(transfer.hasAllBytes());
+        Path saved = transfer.complete(downloads.resolve("rooted.bin"), FileTransferProtocol.computeSha256(source),
+                FileTransferProtocol.toHex(proofs.root()));
+        assertArrayEquals(data, Files.readAllBytes(saved));
+    }
+
+    @Test
+    void chunksAheadOfAGapAreKeptAndFoldedInOnceItFills() throws Exception {
+        byte[] data = new byte[FileTransferProtocol.CHUNK_SIZE * 4 + 5];
+        new Random(9).nextBytes(data);
+        FileTransferProtocol.Header header = FileTransferProtocol.Header.builder("ooo.bin", data.length,
+                FileTransferProtocol.transferId("ooo.bin", data.length, 0)).build();
+        IncomingFileTransfer transfer = IncomingFileTransfer.open(dir, header, null);
+        Path part = dir.resolve("." + header.hash() + ".part");
+        assertEquals(data.length, Files.size(part), "part file is sized up front");
+
+        assertEquals(IncomingFileTransfer.ChunkResult.WRITTEN, transfer.appendChunk(chunk(header, data, 0)));
+        assertEquals(IncomingFileTransfer.ChunkResult.GAP, transfer.appendChunk(chunk(header, data, 2)));
+        assertEquals(IncomingFileTransfer.ChunkResult.GAP, transfer.appendChunk(chunk(header, data, 4)));
+        assertEquals(IncomingFileTransfer.ChunkResult.DUPLICATE, transfer.appendChunk(chunk(header, data, 2)));
+        assertEquals(1, transfer.nextSequence());
+        assertEquals(IncomingFileTransfer.ChunkResult.WRITTEN, transfer.appendChunk(chunk(header, data, 1)));
+        assertEquals(3, transfer.nextSequence(), "chunk 2 was already on disk");
+        assertEquals(IncomingFileTransfer.ChunkResult.WRITTEN, transfer.appendChunk(chunk(header, data, 3)));
+        assertTrue(transfer.hasAllBytes());
+
+        Path saved = transfer.complete(dir.resolve("ooo.bin"), FileTransferProtocol.toHex(
+                java.security.MessageDigest.getInstance("SHA-256").digest(data)), null);
+        assertArrayEquals(data, Files.readAllBytes(saved));
+    }
+
+    @Test
+    void narrowGapIsTreatedAsReorderingUntilItWidens() throws Exception {
+        byte[] data = new byte[FileTransferProtocol.CHUNK_SIZE * 8];
+        new Random(12).nextBytes(data);
+        FileTransferProtocol.Header header = FileTransferProtocol.Header.builder("striped.bin", data.length,
+                FileTransferProtocol.transferId("striped.bin", data.length, 0)).build();
+        IncomingFileTransfer transfer = IncomingFileTransfer.open(dir, header, null);
+
+        assertEquals(IncomingFileTransfer.ChunkResult.GAP, transfer.appendChunk(chunk(header, data, 2)));
+        assertFalse(transfer.claimGapResend(4), "chunk 0 may still be on another connection");
+        assertEquals(IncomingFileTransfer.ChunkResult.GAP, transfer.appendChunk(chunk(header, data, 5)));
+        assertTrue(transfer.claimGapResend(4), "five ahead is past the tolerance");
+        assertFalse(transfer.claimGapResend(4), "one resend request per missing chunk");
+
+        for (int seq : new int[] {1, 0, 3, 4, 7, 6}) {
+            transfer.appendChunk(chunk(header, data, seq));
+        }
+        assertTrue(transfer.hasAllBytes());
+        assertTrue(transfer.whenReceived(60_000).isDone(), "nothing left to wait for after the EOF");
+    }
+
+    @Test
+    void rawFramesAreDecodedOffTheReaderAndAckedAtIntervals() throws Exception {
+        byte[] data = new byte[FileTransferProtocol.CHUNK_SIZE * 3];
+        new Random(4).nextBytes(data);
+        FileTransferProtocol.Header header = FileTransferProtocol.Header.builder("raw.bin", data.length,
+                FileTransferProtocol.transferId("raw.bin", data.length, 0)).build();
+        IncomingFileTransfer transfer = IncomingFileTransfer.open(dir, header, null);
+
+        assertEquals(IncomingFileTransfer.ChunkResult.CORRUPT,
+                transfer.submitFrame(FileTransferProtocol.CHUNK_PREFIX + header.hash() + "|0|!!").get());
+        assertEquals(IncomingFileTransfer.ChunkResult.WRITTEN, transfer.submitFrame(frame(header, data, 0)).get());
+        assertEquals(-1, transfer.claimAck(2));
+        assertEquals(IncomingFileTransfer.ChunkResult.WRITTEN, transfer.submitFrame(frame(header, data, 1)).get());
+        assertEquals(2, transfer.claimAck(2));
+        assertEquals(-1, transfer.claimAck(2), "each ack point is claimed once");
+        transfer.whenDrained().get();
+        assertEquals(64, transfer.creditWindow(64), "nothing waits for the disk");
+    }
+
+    @Test
+    void chunksFailedBehindAnEarlierFailureGiveTheirQueueSlotBack() throws Exception {
+        byte[] data = new byte[FileTransferProtocol.CHUNK_SIZE * 3];
+        new Random(12).nextBytes(data);
+        FileTransferProtocol.Header header = FileTransferProtocol.Header.builder("failed.bin", data.length,
+                FileTransferProtocol.transferId("failed.bin", data.length, 0)).build();
+        IncomingFileTransfer transfer = IncomingFileTransfer.open(dir, header, null);
+        transfer.abortWithReason("test");
+
+        List<CompletableFuture<IncomingFileTransfer.ChunkResult>> results = new ArrayList<>();
+        for (int seq = 0; seq < 3; seq++) {
+            results.add(transfer.submit(chunk(header, data, seq)));
+        }
+        for (var result : results) {
+            assertThrows(ExecutionException.class, result::get);
+        }
+        assertEquals(64, transfer.creditWindow(64), "failed chunks no longer count against the window");
+    }
+
+    private static String frame(FileTransferProtocol.Header header, byte[] data, int seq) {
+        FileTransferProtocol.Chunk chunk = chunk(header, data, seq);
+        return FileTransferProtocol.buildChunk(header.hash(), seq, chunk.data(), chunk.data().length, chunk.proof());
+    }
+
+    private static FileTransferProtocol.Chunk chunk(FileTransferProtocol.Header header, byte[] data, int seq) {
+        int from = seq * FileTransferProtocol.CHUNK_SIZE;
+        int to = Math.min(data.length, from + FileTransferProtocol.CHUNK_SIZE);
+        byte[] slice = java.util.Arrays.copyOfRange(data, from, to);
+        return new FileTransferProtocol.Chunk(header.hash(), seq, slice, MerkleTree.leafHash(slice));
+    }
+}
@@ -0,0 +1,44 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MerkleTreeTest {
+
+    @Test
+    void everyLeafsProofLeadsToTheStreamingRootAndNoOtherLeafs() {
+        for (int count = 1; count <= 37; count++) {
+            MerkleTree tree = new MerkleTree();
+            List<byte[]> leaves = new ArrayList<>();
+            List<byte[]> blocks = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                byte[] block = ("block " + i).getBytes();
+                blocks.add(block);
+                leaves.add(MerkleTree.leafHash(block));
+                tree.addLeaf(leaves.get(i));
+            }
+            MerkleTree.Proofs proofs = new MerkleTree.Proofs(leaves);
+            assertArrayEquals(tree.root(), proofs.root(), "count " + count);
+            for (int i = 0; i < count; i++) {
+                byte[] path = proofs.path(i);
+                assertArrayEquals(leaves.get(i), MerkleTree.verifiedLeaf(chunk(i, blocks.get(i), path), count, proofs.root()));
+                int other = (i + 1) % count;
+                if (other != i) {
+                    assertNull(MerkleTree.verifiedLeaf(chunk(other, blocks.get(i), path), count, proofs.root()),
+                            "a proof only holds at its own position");
+                }
+                if (path.length > 0) {
+                    byte[] tampered = path.clone();
+                    tampered[tampered.length - 1] ^= 1;
+                    assertNull(MerkleTree.verifiedLeaf(chunk(i, blocks.get(i), tampered), count, proofs.root()));
+                }
+            }
+        }
+    }
+
+    private static FileTransferProtocol.Chunk chunk(int sequence, byte[] data, byte[] proof) {
+        return new FileTransferProtocol.Chunk("ab".repeat(32), sequence, data, proof);
+    }
+}
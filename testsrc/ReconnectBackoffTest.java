@@ -0,0 +1,30 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReconnectBackoffTest {
+
+    @Test
+    void delaysGrowExponentiallyWithinJitterBounds() {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 10_000, new Random(42));
+        long ceiling = 100;
+        for (int i = 0; i < 12; i++) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue(delay >= ceiling / 2 && delay <= ceiling, "delay " + delay + " outside [" + ceiling / 2 + ", " + ceiling + "]");
+            ceiling = Math.min(10_000, ceiling * 2);
+        }
+        assertEquals(12, backoff.attempts());
+    }
+
+    @Test
+    void resetRestartsFromBaseDelay() {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 10_000, new Random(7));
+        for (int i = 0; i < 5; i++) {
+            backoff.nextDelayMillis();
+        }
+        backoff.reset();
+        assertTrue(backoff.nextDelayMillis() <= 100);
+    }
+}
@@ -0,0 +1,50 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchIndexTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void prefixWordsMatchNewestFirstAndEveryWordMustMatch() throws Exception {
+        try (ChatHistory history = new ChatHistory(dir.resolve("history.bin"))) {
+            SearchIndex index = new SearchIndex();
+            index.add(history.append(0, "alice", "Quarterly REPORT is ready"));
+            index.add(history.append(1, "bob", "thanks, reading the report now"));
+            index.add(history.append(2, "alice", "lunch?"));
+            index.add(history.append(3, "bob", "the repository moved"));
+
+            assertArrayEquals(new int[] {3, 1, 0}, index.search("rep", 10));
+            assertArrayEquals(new int[] {3, 1}, index.search("rep", 2));
+            assertArrayEquals(new int[] {1}, index.search("Report rea bob", 10));
+            assertArrayEquals(new int[] {2, 0}, index.search("ALICE", 10));
+            assertArrayEquals(new int[0], index.search("report lunch", 10));
+            assertArrayEquals(new int[0], index.search("  ?! ", 10));
+        }
+    }
+
+    @Test
+    void savedIndexIsReloadedAndCaughtUpWithNewerMessages() throws Exception {
+        try (ChatHistory history = new ChatHistory(dir.resolve("history.bin"))) {
+            SearchIndex index = new SearchIndex();
+            for (int i = 0; i < 1000; i++) {
+                index.add(history.append(i, "peer", "message number " + i + (i % 100 == 0 ? " milestone" : "")));
+            }
+            Path file = dir.resolve("index.bin");
+            index.write(file);
+            history.append(1000, "peer", "late milestone");
+
+            SearchIndex loaded = SearchIndex.read(file);
+            assertEquals(1000, loaded.indexed());
+            loaded.catchUp(history);
+            assertEquals(1001, loaded.indexed());
+            assertArrayEquals(new int[] {1000, 900, 800}, loaded.search("mile", 3));
+            assertArrayEquals(new int[] {999}, loaded.search("999", 10));
+        }
+    }
+}
@@ -0,0 +1,49 @@
+import org.junit.jupiter.api.Test;
+
+import java.security.GeneralSecurityException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionCryptoTest {
+
+    @Test
+    void sessionFramesInteroperateWithPasswordBasedDecryption() throws GeneralSecurityException {
+        char[] password = "s3cr3t".toCharArray();
+        SessionCrypto sender = new SessionCrypto(password);
+        SessionCrypto receiver = new SessionCrypto(password);
+
+        String frame = sender.encrypt("hello");
+        assertEquals("hello", receiver.decrypt(frame));
+        assertEquals("hello", EncryptionUtil.decryptMessage(frame, password));
+        assertEquals("legacy", receiver.decrypt(EncryptionUtil.encryptMessage("legacy", password)));
+    }
+
+    @Test
+    void sessionFramesUseFreshIvPerMessage() throws GeneralSecurityException {
+        SessionCrypto crypto = new SessionCrypto("pw".toCharArray());
+        assertNotEquals(crypto.encrypt("same"), crypto.encrypt("same"));
+    }
+
+    @Test
+    void wrongPasswordIsRejected() throws GeneralSecurityException {
+        String frame = new SessionCrypto("one".toCharArray()).encrypt("payload");
+        assertThrows(GeneralSecurityException.class, () -> new SessionCrypto("two".toCharArray()).decrypt(frame));
+    }
+
+    @Test
+    void sessionAcceptRoundTrip() {
+        String token = SessionProtocol.newToken();
+        SessionProtocol.Accept accept = SessionProtocol.parseAccept(SessionProtocol.buildAccept(token, true));
+        assertEquals(token, accept.token());
+        assertTrue(accept.resumed());
+        assertEquals(token, SessionProtocol.parseResumeToken(SessionProtocol.buildResume(token)));
+    }
+
+    @Test
+    void acceptMayOfferChatCompression() {
+        SessionProtocol.Accept accept = SessionProtocol.parseAccept(SessionProtocol.buildAccept("abc", true, true));
+        assertTrue(accept.resumed());
+        assertTrue(accept.deflate());
+        assertFalse(SessionProtocol.parseAccept(SessionProtocol.buildAccept("abc", false)).deflate());
+    }
+}
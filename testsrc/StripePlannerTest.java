@@ -0,0 +1,34 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StripePlannerTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    void addsConnectionsWhileEachOnePaysOffAndSettlesOnTheLastThatDid() {
+        StripePlanner planner = new StripePlanner(4, 0.5);
+        assertEquals(0, planner.onSample(100, SECOND, 0), "first sample at a count is a warm-up");
+        assertEquals(1, planner.onSample(100, SECOND, 0));
+        planner.onSample(190, SECOND, 1);
+        assertEquals(2, planner.onSample(190, SECOND, 1), "a second stream nearly doubled throughput");
+        planner.onSample(230, SECOND, 2);
+        assertEquals(1, planner.onSample(230, SECOND, 2), "40 more is less than half of 95 per stream");
+        assertEquals(1, planner.onSample(1000, SECOND, 1), "settled until reset");
+
+        planner.reset();
+        assertEquals(0, planner.target());
+    }
+
+    @Test
+    void stopsAtTheLimitAndIgnoresSamplesTakenAtAnotherCount() {
+        StripePlanner planner = new StripePlanner(1, 0.5);
+        planner.onSample(100, SECOND, 0);
+        assertEquals(1, planner.onSample(100, SECOND, 0));
+        assertEquals(1, planner.onSample(500, SECOND, 0), "the stripe is not open yet");
+        planner.onSample(300, SECOND, 1);
+        assertEquals(1, planner.onSample(300, SECOND, 1));
+        assertEquals(0, planner.settle(0));
+        assertEquals(0, planner.onSample(900, SECOND, 0));
+    }
+}
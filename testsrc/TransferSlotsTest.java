@@ -0,0 +1,65 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransferSlotsTest {
+
+    @Test
+    void queuedTransfersStartInOrderAndCancellingOneLeavesTheRestQueued() throws Exception {
+        TransferSlots slots = new TransferSlots(1);
+        slots.acquire(null);
+        List<String> started = new CopyOnWriteArrayList<>();
+        CountDownLatch cancelled = new CountDownLatch(1);
+        Thread first = queue(slots, "first", started, null);
+        Thread dropped = queue(slots, "dropped", started, cancelled);
+        Thread last = queue(slots, "last", started, null);
+
+        dropped.interrupt();
+        assertTrue(cancelled.await(5, TimeUnit.SECONDS));
+        Thread newcomer = queue(slots, "newcomer", started, null);
+        slots.release();
+        for (Thread t : List.of(first, last, newcomer)) {
+            t.join(5_000);
+        }
+        assertEquals(List.of("first", "last", "newcomer"), started);
+    }
+
+    // Starts a transfer that records itself once it holds a slot, and waits until it is queued
+    private static Thread queue(TransferSlots slots, String name, List<String> started, CountDownLatch cancelled)
+            throws InterruptedException {
+        CountDownLatch queued = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                slots.acquire(new ChatWindow.TransferMonitor() {
+                    @Override
+                    public void onProgress(long transferred, long total) {
+                    }
+
+                    @Override
+                    public boolean isCancelled() {
+                        return false;
+                    }
+
+                    @Override
+                    public void onQueued() {
+                        queued.countDown();
+                    }
+                });
+                started.add(name);
+                slots.release();
+            } catch (IOException e) {
+                cancelled.countDown();
+            }
+        });
+        t.start();
+        assertTrue(queued.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50); // onQueued runs just before the thread parks on the semaphore
+        return t;
+    }
+}
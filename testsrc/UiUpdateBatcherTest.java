@@ -0,0 +1,34 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UiUpdateBatcherTest {
+
+    @Test
+    void burstIsAppliedInOrderInAFewPassesAndOnlyTheLatestValuePerKey() throws Exception {
+        UiUpdateBatcher batcher = new UiUpdateBatcher(50);
+        List<Integer> applied = new ArrayList<>();
+        List<Integer> progress = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < 1000; i++) {
+            int n = i;
+            batcher.post(() -> applied.add(n));
+            batcher.postLatest("progress", () -> progress.add(n));
+        }
+        batcher.post(done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        javax.swing.SwingUtilities.invokeAndWait(() -> { }); // the rest of the pass that counted down
+        assertEquals(1000, applied.size());
+        for (int i = 0; i < applied.size(); i++) {
+            assertEquals(i, (int) applied.get(i));
+        }
+        assertEquals(List.of(999), progress);
+        assertTrue(batcher.passes() <= 2, "passes " + batcher.passes());
+    }
+}